@@ -1,9 +1,13 @@
 package it.ksuploader.client;
 
+import it.ksuploader.client.Configuration.Setting;
 import it.ksuploader.client.ui.MyScreen;
+import it.ksuploader.client.utils.ImageScaler;
+import it.ksuploader.client.utils.TileIndex;
 import it.ksuploader.client.utils.Zipper;
 
 import java.awt.AWTException;
+import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.Robot;
 import java.awt.Toolkit;
@@ -17,7 +21,12 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -29,14 +38,29 @@ import javax.swing.JFileChooser;
 public class Capture {
 
     private static final String IMAGE_FORMAT = "png";
+    private static final String RECORDING_FORMAT = "gif";
     private static final String TEMP_FILE_PREFIX = "KSU_";
     private static final String TEMP_FILE_SUFFIX = ".tmp";
     private static final String TEMP_ZIP_FILE_SUFFIX = ".zip" + TEMP_FILE_SUFFIX;
     private static final String TEMP_IMAGE_FILE_SUFFIX = "." + IMAGE_FORMAT + TEMP_FILE_SUFFIX;
     private static final String TEMP_TEXT_FILE_SUFFIX = ".txt" + TEMP_FILE_SUFFIX;
+    private static final String TEMP_RECORDING_FILE_SUFFIX = "." + RECORDING_FORMAT + TEMP_FILE_SUFFIX;
+
+    /**
+     * The tiles of the last uploaded screenshot of every area of the screen,
+     * by the bounds of the area: the desktop, or a monitor. Kept between
+     * captures so that unchanged parts of the screen don't have to be
+     * uploaded again.
+     */
+    private static final Map<Rectangle, TileIndex> SCREEN_INDEXES = new HashMap<>();
 
     private File file;
     private boolean fileIsTemporary = false;
+    /* Screenshots are only written to files when they are uploaded. */
+    private final List<BufferedImage> images = new ArrayList<>();
+    /* Stored in the indexes once the screenshots were uploaded. */
+    private final List<TileIndex.Changes> changes = new ArrayList<>();
+    private volatile ScreenRecorder recorder;
 
     /**
      * Lets the user choose a file from their file system for this Capture.
@@ -75,8 +99,7 @@ public class Capture {
      * Brings up a UI with which a part of the user's screen can be selected as
      * an image for this Capture.
      *
-     * @throws CaptureException If the user selected an invalid screenshot, or
-     * if the screenshot could not be saved.
+     * @throws CaptureException If the user selected an invalid screenshot.
      */
     public void capturePartialScreenshot() throws CaptureException {
         MyScreen partialScreen = new MyScreen();
@@ -88,41 +111,281 @@ public class Capture {
 
     /**
      * Gets the user's current entire screen and uses it as an image for this
+     * Capture. Which part of the screen is captured depends on the configured
+     * {@link ScreenTarget}; the {@code MONITORS} target gives one image per
+     * monitor. If differential capturing is enabled, only the part of the
+     * screen that changed since the last uploaded screenshot of the same area
+     * is used, and this Capture stays empty if nothing changed.
+     *
+     * @throws CaptureException If the user's Operating System doesn't allow
+     * making this screenshot, or if the configured monitor doesn't exist.
+     */
+    public void captureEntireScreenshot() throws CaptureException {
+        switch (ScreenTarget.fromSetting()) {
+            case ACTIVE_MONITOR:
+                captureActiveMonitorScreenshot();
+                break;
+            case MONITOR:
+                captureMonitorScreenshot(Setting.SCREENSHOT_MONITOR.getIntValue());
+                break;
+            case MONITORS:
+                captureMonitorScreenshots();
+                break;
+            case DESKTOP:
+            default:
+                saveEntireScreenshot(KSUploader.inst.getEnvironment().getScreenBounds());
+                break;
+        }
+    }
+
+    /**
+     * Gets the monitor on which the mouse cursor is and uses it as an image for
+     * this Capture.
+     *
+     * @throws CaptureException If the user's Operating System doesn't allow
+     * making this screenshot.
+     */
+    public void captureActiveMonitorScreenshot() throws CaptureException {
+        saveEntireScreenshot(KSUploader.inst.getEnvironment().getActiveScreenBounds());
+    }
+
+    /**
+     * Gets one of the user's monitors and uses it as an image for this
      * Capture.
      *
+     * @param monitor The index of the monitor, starting at 0.
+     * @throws CaptureException If the user's Operating System doesn't allow
+     * making this screenshot, or if there is no monitor with that index.
+     */
+    public void captureMonitorScreenshot(int monitor) throws CaptureException {
+        Rectangle[] devices = KSUploader.inst.getEnvironment().getScreenDeviceBounds();
+        if (monitor < 0 || monitor >= devices.length) {
+            throw new CaptureException("Monitor screenshot capturing failed: there is no monitor " + monitor + "; found " + devices.length + " monitors.");
+        }
+        saveEntireScreenshot(devices[monitor]);
+    }
+
+    /**
+     * Gets the window that has the focus and uses it as an image for this
+     * Capture. If the Operating System can't tell where the focused window is,
+     * the monitor on which the mouse cursor is will be used instead.
+     *
      * @throws CaptureException If the user's Operating System doesn't allow
      * making this screenshot.
      */
-    public void captureEntireScreenshot() throws CaptureException {
-        Robot robot;
+    public void captureWindowScreenshot() throws CaptureException {
+        Rectangle window = KSUploader.inst.getEnvironment().getActiveWindowBounds();
+        if (window != null) {
+            window = window.intersection(KSUploader.inst.getEnvironment().getScreenBounds());
+        }
+        if (window == null || window.isEmpty()) {
+            KSUploader.logger.log(Level.INFO, "Couldn't find the bounds of the focused window; capturing the active monitor.");
+            window = KSUploader.inst.getEnvironment().getActiveScreenBounds();
+        }
+        saveScreenshot(captureScreenArea(window));
+    }
+
+    /**
+     * Gets every monitor as an image of its own for this Capture, so that the
+     * areas between monitors are neither captured nor encoded. If
+     * differential capturing is enabled, only the part of each monitor that
+     * changed since its previous screenshot is used, and monitors that didn't
+     * change are left out.
+     *
+     * @throws CaptureException If the user's Operating System doesn't allow
+     * making this screenshot.
+     */
+    public void captureMonitorScreenshots() throws CaptureException {
+        images.clear();
+        changes.clear();
+        file = null;
+        for (Rectangle device : KSUploader.inst.getEnvironment().getScreenDeviceBounds()) {
+            BufferedImage image = captureScreenArea(device);
+            if (Setting.DIFFERENTIAL_CAPTURE_ENABLED.getBooleanValue()) {
+                image = cropToChanges(device, image);
+            }
+            if (image != null) {
+                images.add(scaleScreenshot(image));
+            }
+        }
+        if (images.isEmpty()) {
+            KSUploader.logger.log(Level.INFO, "No monitor changed since the previous screenshot; nothing to upload.");
+        }
+    }
+
+    /**
+     * Captures an area of the screen.
+     *
+     * @param bounds The area to capture, in desktop coordinates.
+     * @return an image of the area
+     * @throws CaptureException If the user's Operating System doesn't allow
+     * making this screenshot.
+     */
+    private static BufferedImage captureScreenArea(Rectangle bounds) throws CaptureException {
         try {
-            robot = new Robot();
+            return new Robot().createScreenCapture(bounds);
         } catch (AWTException ex) {
             throw new CaptureException("Entire screenshot capturing failed: not supported by Operating System.", ex);
         }
-        Rectangle bounds = KSUploader.inst.getEnvironment().getScreenBounds();
-        BufferedImage image = robot.createScreenCapture(bounds);
+    }
+
+    /**
+     * Saves a screenshot of an area of the screen, or only the part of it that
+     * changed if differential capturing is enabled.
+     *
+     * @param bounds The area to capture, in desktop coordinates.
+     * @throws CaptureException If the user's Operating System doesn't allow
+     * making this screenshot.
+     */
+    private void saveEntireScreenshot(Rectangle bounds) throws CaptureException {
+        BufferedImage image = captureScreenArea(bounds);
+        changes.clear();
+        if (Setting.DIFFERENTIAL_CAPTURE_ENABLED.getBooleanValue()) {
+            image = cropToChanges(bounds, image);
+            if (image == null) {
+                KSUploader.logger.log(Level.INFO, "The screen didn't change since the previous screenshot; nothing to upload.");
+                images.clear();
+                file = null;
+                return;
+            }
+        }
         saveScreenshot(image);
     }
 
     /**
-     * Saves the given image to a temporary file using the {@code IMAGE_FORMAT}
-     * format.
+     * Crops a screenshot to the part that changed since the last uploaded
+     * screenshot of the same area. The index of the area is only updated by
+     * {@link #commitChanges()}, so a screenshot that couldn't be uploaded
+     * isn't taken for the previous one.
      *
-     * @param image The image to save.
-     * @throws CaptureException If the temporary file could not be created, or
-     * if the used image format could not be used.
+     * @param bounds The area of the screenshot, in desktop coordinates.
+     * @param image The screenshot.
+     * @return the part of the screenshot that changed, or null if nothing
+     * changed
      */
-    private void saveScreenshot(BufferedImage image) throws CaptureException {
+    private BufferedImage cropToChanges(Rectangle bounds, BufferedImage image) {
+        TileIndex index;
+        synchronized (SCREEN_INDEXES) {
+            index = SCREEN_INDEXES.computeIfAbsent(new Rectangle(bounds), (area) -> new TileIndex());
+        }
+        TileIndex.Changes changed = index.compare(image);
+        Rectangle crop = changed.getBounds();
+        if (crop == null) {
+            return null;
+        }
+        changes.add(changed);
+        return image.getSubimage(crop.x, crop.y, crop.width, crop.height);
+    }
+
+    /**
+     * Takes the screenshots of this Capture for the previous ones, after they
+     * were uploaded, so that the next differential screenshot of the same
+     * areas only contains what changed since. If they couldn't be uploaded,
+     * don't call this; the next screenshot then contains those changes too.
+     */
+    public void commitChanges() {
+        changes.forEach(TileIndex.Changes::commit);
+        changes.clear();
+    }
+
+    /**
+     * Brings up a UI with which a part of the user's screen can be selected,
+     * and records that part as an animation for this Capture. Blocks until the
+     * recording is stopped with {@link #stopScreenRecording()} or until the
+     * maximum recording duration has passed.
+     *
+     * @throws CaptureException If the user selected an invalid area, or if the
+     * user's Operating System doesn't allow recording the screen, or if the
+     * recording could not be saved.
+     */
+    public void captureScreenRecording() throws CaptureException {
+        MyScreen selection = new MyScreen();
+        if (!selection.isValidScreen()) {
+            throw new CaptureException("Screen recording failed: invalid area selected.");
+        }
+        try {
+            recorder = new ScreenRecorder(selection.getSelectionBounds(), Setting.RECORDING_FPS.getIntValue());
+        } catch (AWTException ex) {
+            throw new CaptureException("Screen recording failed: not supported by Operating System.", ex);
+        }
         fileIsTemporary = true;
-        file = createTempFile(TEMP_FILE_PREFIX, TEMP_IMAGE_FILE_SUFFIX);
+        file = createTempFile(TEMP_FILE_PREFIX, TEMP_RECORDING_FILE_SUFFIX);
         try {
-            writeImageToFile(image, IMAGE_FORMAT, file);
+            recorder.record(file, Setting.RECORDING_MAX_DURATION.getIntValue() * 1000L);
         } catch (IOException ex) {
-            throw new CaptureException("Entire screenshot capturing failed: couldn't save the screenshot using format: " + IMAGE_FORMAT, ex);
+            throw new CaptureException("Screen recording failed: couldn't save the recording using format: " + RECORDING_FORMAT, ex);
+        } finally {
+            recorder = null;
+        }
+    }
+
+    /**
+     * Stops the screen recording of this Capture, if it is recording.
+     */
+    public void stopScreenRecording() {
+        ScreenRecorder current = recorder;
+        if (current != null) {
+            current.stop();
         }
     }
 
+    /**
+     * Uses the given image as the screenshot of this Capture. The image is
+     * scaled down first if {@code CAPTURE_SCALE} or
+     * {@code CAPTURE_MAX_DIMENSION} require it. It is only written to a file
+     * once the file is needed, so a caller that encodes the screenshot itself
+     * doesn't encode it twice.
+     *
+     * @param image The image to save.
+     */
+    private void saveScreenshot(BufferedImage image) {
+        images.clear();
+        images.add(scaleScreenshot(image));
+        file = null;
+    }
+
+    /**
+     * Gets the screenshot of this Capture, scaled down as configured.
+     *
+     * @return the screenshot, or the first one if there is one per monitor,
+     * or null if this Capture has no screenshot, for example because the
+     * screen didn't change since the previous one
+     */
+    public BufferedImage getImage() {
+        return images.isEmpty() ? null : images.get(0);
+    }
+
+    /**
+     * Gets the screenshots of this Capture, scaled down as configured: one
+     * per monitor for the {@code MONITORS} target, and one otherwise.
+     *
+     * @return the screenshots, which are none if this Capture has no
+     * screenshot, for example because the screen didn't change since the
+     * previous one
+     */
+    public List<BufferedImage> getImages() {
+        return Collections.unmodifiableList(images);
+    }
+
+    /**
+     * Scales a screenshot down according to {@code CAPTURE_SCALE} and
+     * {@code CAPTURE_MAX_DIMENSION}.
+     *
+     * @param image The screenshot to scale.
+     * @return the scaled screenshot, or {@code image} itself if it doesn't
+     * need to be scaled
+     */
+    private static BufferedImage scaleScreenshot(BufferedImage image) {
+        Dimension target = ImageScaler.getTargetSize(image.getWidth(), image.getHeight(),
+                Setting.CAPTURE_SCALE.getDoubleValue(), Setting.CAPTURE_MAX_DIMENSION.getIntValue());
+        if (target.width == image.getWidth() && target.height == image.getHeight()) {
+            return image;
+        }
+        KSUploader.logger.log(Level.FINE, "Scaling screenshot from {0}x{1} to {2}x{3}",
+                new Object[]{image.getWidth(), image.getHeight(), target.width, target.height});
+        return ImageScaler.downscale(image, target.width, target.height);
+    }
+
     /**
      * Gets the user's system clipboard and uses the data inside for this
      * capture.
@@ -168,12 +431,74 @@ public class Capture {
     }
 
     /**
-     * Uploads the captured file and puts the URL to where it can be found in
-     * the history.
+     * Gets the captured file, such as a screen recording. Screenshots are
+     * kept as images instead; see {@link #getImages()}.
+     *
+     * @return the file, or null if there is none
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets whether this Capture has no file to upload, for example because
+     * the screen didn't change since the previous screenshot.
+     *
+     * @return true if there is nothing to upload; false otherwise
+     */
+    public boolean isEmpty() {
+        return file == null && images.isEmpty();
+    }
+
+    /**
+     * Uploads the captured file, or every screenshot, with the configured
+     * {@link Uploader} and puts the URL to where it can be found in the
+     * history. Does nothing if this Capture is empty.
+     *
+     * @return the link to the uploaded file or last screenshot, or null if
+     * this Capture is empty
+     * @throws IOException If the file could not be read or uploaded.
+     */
+    public Link upload() throws IOException {
+        if (file != null) {
+            return upload(file, fileIsTemporary);
+        }
+        Link link = null;
+        for (BufferedImage image : images) {
+            File screenshotFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_IMAGE_FILE_SUFFIX);
+            try {
+                writeImageToFile(image, IMAGE_FORMAT, screenshotFile);
+                link = upload(screenshotFile, true);
+            } finally {
+                screenshotFile.delete();
+            }
+        }
+        commitChanges();
+        return link;
+    }
+
+    /**
+     * Uploads a file and puts the URL in the history.
      */
-    public void upload() {
-        String url = KSUploader.inst.getUploader().upload(file);
-        KSUploader.inst.getSystemTrayMenu().history(url);
+    private static Link upload(File file, boolean temporary) throws IOException {
+        String name = file.getName();
+        if (temporary && name.endsWith(TEMP_FILE_SUFFIX)) {
+            name = name.substring(0, name.length() - TEMP_FILE_SUFFIX.length());
+        }
+        Link link = Uploader.await(KSUploader.inst.getUploader().upload(Payload.read(file, name, getType(name))));
+        KSUploader.inst.getSystemTrayMenu().history(link.getUrl());
+        return link;
+    }
+
+    /**
+     * Gets the kind of file the server expects for a file name.
+     */
+    private static String getType(String name) {
+        String lowerCaseName = name.toLowerCase(Locale.ENGLISH);
+        if (lowerCaseName.endsWith("." + IMAGE_FORMAT) || lowerCaseName.endsWith("." + RECORDING_FORMAT)) {
+            return "img";
+        }
+        return lowerCaseName.endsWith(".txt") ? "txt" : "file";
     }
 
     /**
@@ -183,7 +508,7 @@ public class Capture {
      * delete
      */
     public boolean clean() {
-        if (fileIsTemporary) {
+        if (fileIsTemporary && file != null) {
             return file.delete();
         }
         return false;
@@ -220,25 +545,47 @@ public class Capture {
         }
     }
 
-}
-
-/**
- * Thrown if there is an error while capturing a file to use for a Capture.
- */
-class CaptureException extends Exception {
-
-    private static final long serialVersionUID = 1L;
+    /**
+     * Represents the part of the screen that is captured for an entire
+     * screenshot.
+     */
+    public enum ScreenTarget {
 
-    public CaptureException(String message) {
-        super(message);
-    }
+        /**
+         * The bounding box of all monitors, including any areas between them
+         * that aren't covered by a monitor.
+         */
+        DESKTOP,
+        /**
+         * Every monitor as a screenshot of its own, without the areas between
+         * them.
+         */
+        MONITORS,
+        /**
+         * The monitor on which the mouse cursor is.
+         */
+        ACTIVE_MONITOR,
+        /**
+         * The monitor configured with {@code SCREENSHOT_MONITOR}.
+         */
+        MONITOR;
 
-    public CaptureException(Throwable cause) {
-        super(cause);
-    }
+        /**
+         * Gets the ScreenTarget configured with {@code SCREENSHOT_TARGET}.
+         *
+         * @return the configured ScreenTarget, or {@code DESKTOP} if the
+         * setting isn't recognized
+         */
+        public static ScreenTarget fromSetting() {
+            String value = Setting.SCREENSHOT_TARGET.getValue().toString().trim().toUpperCase(Locale.ENGLISH);
+            try {
+                return valueOf(value);
+            } catch (IllegalArgumentException ex) {
+                KSUploader.logger.log(Level.INFO, "Unknown screenshot target {0}; capturing the desktop.", value);
+                return DESKTOP;
+            }
+        }
 
-    public CaptureException(String message, Throwable cause) {
-        super(message, cause);
     }
 
 }
@@ -0,0 +1,22 @@
+package it.ksuploader.client;
+
+/**
+ * Thrown if there is an error while capturing a file to use for a Capture.
+ */
+public class CaptureException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public CaptureException(String message) {
+        super(message);
+    }
+
+    public CaptureException(Throwable cause) {
+        super(cause);
+    }
+
+    public CaptureException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
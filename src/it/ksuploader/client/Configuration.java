@@ -122,6 +122,12 @@ public class Configuration extends Properties {
          * The password for the KSUploader-server.
          */
         KSUPLOADER_PASSWORD("ksuploader_password", "pass"),
+        /**
+         * Whether the connection to KSUploader-server is encrypted with TLS.
+         * The server, or a proxy in front of it, must accept TLS on
+         * {@code KSUPLOADER_PORT}.
+         */
+        KSUPLOADER_TLS_ENABLED("ksuploader_tls_enabled", false),
         /**
          * Whether FTP(S) should be used to upload files, instead of
          * KSUploader-server.
@@ -190,7 +196,292 @@ public class Configuration extends Properties {
         /**
          * The keyboard shortcut to upload the contents of the system clipboard.
          */
-        SHORTCUT_CLIPBOARD("key_clipboard", new int[]{56, 5});
+        SHORTCUT_CLIPBOARD("key_clipboard", new int[]{56, 5}),
+        /**
+         * The keyboard shortcut to capture the focused window.
+         */
+        SHORTCUT_WINDOW_SCREENSHOT("shortcut_window_screen", new int[]{56, 6}),
+        /**
+         * The keyboard shortcut to start recording an area of the screen, and
+         * to stop the recording.
+         */
+        SHORTCUT_SCREEN_RECORDING("shortcut_screen_recording", new int[]{56, 7}),
+        /**
+         * The number of frames per second that are captured when recording the
+         * screen.
+         */
+        RECORDING_FPS("recording_fps", 10),
+        /**
+         * The maximum length of a screen recording in seconds.
+         */
+        RECORDING_MAX_DURATION("recording_max_duration", 30),
+        /**
+         * Whether entire screenshots should be cropped to the part of the
+         * screen that changed since the last uploaded screenshot of the same
+         * area, and be skipped if nothing changed.
+         */
+        DIFFERENTIAL_CAPTURE_ENABLED("differential_capture_enabled", false),
+        /**
+         * The part of the screen that is captured for an entire screenshot:
+         * "desktop", "monitors", "active_monitor" or "monitor".
+         */
+        SCREENSHOT_TARGET("screenshot_target", "desktop"),
+        /**
+         * The index of the monitor that is captured for an entire screenshot,
+         * if {@code SCREENSHOT_TARGET} is "monitor".
+         */
+        SCREENSHOT_MONITOR("screenshot_monitor", 0),
+        /**
+         * The factor by which screenshots are scaled down before they are
+         * uploaded, for example 0.5 to share screenshots of a 2x display at 1x.
+         * Values of 1 or higher leave screenshots unchanged.
+         */
+        CAPTURE_SCALE("capture_scale", 1.0),
+        /**
+         * The maximum width and height in pixels of uploaded screenshots.
+         * Larger screenshots are scaled down. Use 0 for no limit.
+         */
+        CAPTURE_MAX_DIMENSION("capture_max_dimension", 0),
+        /**
+         * Whether a selection of several files should be uploaded as separate
+         * files instead of as one ZIP archive, when using KSUploader-server or
+         * an uploader that can upload several files in parallel.
+         */
+        BATCH_UPLOAD_ENABLED("batch_upload_enabled", false),
+        /**
+         * How text and other compressible files are compressed while they are
+         * sent to KSUploader-server: "deflate", "fast" (deflate at the fastest
+         * level) or "none". Only used if the server supports it.
+         */
+        TRANSFER_COMPRESSION("transfer_compression", "deflate"),
+        /**
+         * The maximum rate in KiB per second at which all uploads together
+         * send data, or 0 for no limit.
+         */
+        UPLOAD_RATE_LIMIT("upload_rate_limit", 0),
+        /**
+         * The maximum rate in KiB per second at which a single upload sends
+         * data, or 0 for no limit.
+         */
+        UPLOAD_RATE_LIMIT_PER_UPLOAD("upload_rate_limit_per_upload", 0),
+        /**
+         * Times of day at which {@code UPLOAD_RATE_LIMIT} is replaced by
+         * another rate, as entries like "09:00-18:00=256" separated by
+         * semicolons. A rate of 0 means no limit.
+         */
+        UPLOAD_RATE_SCHEDULE("upload_rate_schedule", ""),
+        /**
+         * The maximum number of screenshot and clipboard uploads that run at
+         * the same time.
+         */
+        INTERACTIVE_UPLOAD_LIMIT("interactive_upload_limit", 2),
+        /**
+         * The maximum number of file uploads that run at the same time.
+         */
+        BULK_UPLOAD_LIMIT("bulk_upload_limit", 1),
+        /**
+         * The destinations to which every upload is sent, separated by commas,
+         * for example "socket,ftp". If empty, uploads go to FTP(S) or
+         * KSUploader-server depending on {@code FTP_ENABLED}.
+         */
+        UPLOAD_DESTINATIONS("upload_destinations", ""),
+        /**
+         * When an upload to several {@code UPLOAD_DESTINATIONS} is done:
+         * "first" as soon as one destination has the file, or "all" when every
+         * destination has it.
+         */
+        FAN_OUT_POLICY("fan_out_policy", "first"),
+        /**
+         * The name of the uploader used when {@code UPLOAD_DESTINATIONS} is
+         * empty, for example "http". If empty, uploads go to FTP(S) or
+         * KSUploader-server depending on {@code FTP_ENABLED}.
+         */
+        UPLOADER("uploader", ""),
+        /**
+         * The URL to which the HTTP uploader sends files. With PUT requests
+         * the file name is appended to it.
+         */
+        HTTP_UPLOAD_URL("http_upload_url", "https://upload.mydomain.name/"),
+        /**
+         * The URL to which the file name is appended to get the link to a file
+         * uploaded over HTTP. If empty, the link is taken from the
+         * {@code Location} header or the body of the reply.
+         */
+        HTTP_WEB_URL("http_weburl", ""),
+        /**
+         * The value of the Authorization header of HTTP uploads, for example
+         * "Bearer token". If empty, no header is sent.
+         */
+        HTTP_AUTHORIZATION("http_authorization", ""),
+        /**
+         * Whether files are uploaded over HTTP as a multipart/form-data POST
+         * instead of a PUT.
+         */
+        HTTP_MULTIPART_ENABLED("http_multipart_enabled", false),
+        /**
+         * The maximum length in KiB of a single HTTP PUT request; larger files
+         * are sent in chunks with a Content-Range header. Use 0 to send every
+         * file in one request.
+         */
+        HTTP_CHUNK_SIZE("http_chunk_size", 8192),
+        /**
+         * The URL of the S3-compatible object store, for example
+         * "https://s3.eu-west-1.amazonaws.com" or "http://localhost:9000".
+         */
+        S3_ENDPOINT("s3_endpoint", "https://s3.amazonaws.com"),
+        /**
+         * The region of the object store, used to sign requests.
+         */
+        S3_REGION("s3_region", "us-east-1"),
+        /**
+         * The bucket in which files are stored.
+         */
+        S3_BUCKET("s3_bucket", "ksuploader"),
+        /**
+         * The text put before the file name to get the key of an object, for
+         * example "uploads/".
+         */
+        S3_KEY_PREFIX("s3_key_prefix", ""),
+        /**
+         * The access key with which requests are signed.
+         */
+        S3_ACCESS_KEY("s3_access_key", ""),
+        /**
+         * The secret key with which requests are signed.
+         */
+        S3_SECRET_KEY("s3_secret_key", ""),
+        /**
+         * The URL to which the key is appended to get the link to an uploaded
+         * object. If empty, the URL of the object in the store is returned.
+         */
+        S3_WEB_URL("s3_weburl", ""),
+        /**
+         * The length in KiB of the parts of a multipart upload; files up to
+         * this length are uploaded in one request. At least 5 MiB are used.
+         */
+        S3_PART_SIZE("s3_part_size", 8192),
+        /**
+         * The number of parts of a multipart upload that are sent at the same
+         * time.
+         */
+        S3_PARALLEL_PARTS("s3_parallel_parts", 4),
+        /**
+         * The name or address of the SSH server to which files are uploaded
+         * over SFTP.
+         */
+        SFTP_ADDRESS("sftp_address", "ssh.mydomain.name"),
+        /**
+         * The port of the {@code SFTP_ADDRESS}.
+         */
+        SFTP_PORT("sftp_port", 22),
+        /**
+         * The user name on the {@code SFTP_ADDRESS}.
+         */
+        SFTP_USER("sftp_user", "user"),
+        /**
+         * The password of the {@code SFTP_USER}. If empty, only the
+         * {@code SFTP_KEY_FILE} is tried.
+         */
+        SFTP_PASSWORD("sftp_password", ""),
+        /**
+         * The file with the private key of the {@code SFTP_USER}, in the
+         * OpenSSH format and without passphrase. If empty, only the
+         * {@code SFTP_PASSWORD} is tried.
+         */
+        SFTP_KEY_FILE("sftp_key_file", ""),
+        /**
+         * The fingerprint of the host key of the {@code SFTP_ADDRESS}, for
+         * example "SHA256:uNiVztksCsDhcc0u9e8BujQXVUpKZIDTMczCvj3tD2s". If
+         * empty, the key shown the first time is trusted.
+         */
+        SFTP_HOST_KEY("sftp_host_key", ""),
+        /**
+         * The directory on the {@code SFTP_ADDRESS} in which files are stored.
+         * If empty, the home directory of the {@code SFTP_USER} is used.
+         */
+        SFTP_DIRECTORY("sftp_directory", ""),
+        /**
+         * The URL to which the file name is appended to get the link to a file
+         * uploaded over SFTP.
+         */
+        SFTP_WEB_URL("sftp_weburl", "http://mydomain.name/"),
+        /**
+         * The maximum number of SFTP write requests that await a reply. More
+         * hide more of the round trip time to the server.
+         */
+        SFTP_MAX_REQUESTS("sftp_max_requests", 64),
+        /**
+         * Whether FTP(S) sessions are tuned for speed: they are kept open for
+         * later uploads, files that aren't compressed yet are sent in MODE Z
+         * if the server supports it, and data connections use
+         * {@code FTP_SOCKET_BUFFER_SIZE}.
+         */
+        FTP_PERFORMANCE_ENABLED("ftp_performance_enabled", false),
+        /**
+         * The size in KiB of the socket buffers of FTP(S) data connections,
+         * used if {@code FTP_PERFORMANCE_ENABLED}.
+         */
+        FTP_SOCKET_BUFFER_SIZE("ftp_socket_buffer_size", 512),
+        /**
+         * The maximum number of files of a selection that are uploaded at the
+         * same time, if {@code BATCH_UPLOAD_ENABLED} and the uploader can
+         * upload several files in parallel.
+         */
+        BATCH_PARALLEL_UPLOADS("batch_parallel_uploads", 4),
+        /**
+         * Whether files are stored on the FTP(S) server under a name derived
+         * from their contents, instead of their own name, so that files
+         * uploaded at the same time never overwrite each other.
+         */
+        FTP_CONTENT_NAMES("ftp_content_names", true),
+        /**
+         * Whether files are uploaded to the FTP(S) server under a temporary
+         * name and renamed once complete, so that the link never shows a
+         * partly uploaded file.
+         */
+        FTP_ATOMIC_UPLOAD("ftp_atomic_upload", true),
+        /**
+         * Whether the link to a file is copied and added to the history as
+         * soon as it is known, before the upload finishes, if the uploader
+         * knows it in advance. If the upload fails, the link is flagged in the
+         * history.
+         */
+        OPTIMISTIC_LINKS("optimistic_links", true),
+        /**
+         * The time in seconds to wait for a server to accept a connection.
+         */
+        CONNECT_TIMEOUT("connect_timeout", 10),
+        /**
+         * The time in seconds to wait for a reply of an HTTP server or an
+         * object store.
+         */
+        READ_TIMEOUT("read_timeout", 60),
+        /**
+         * The time in seconds for which the addresses of a server name are
+         * kept before the name is resolved again.
+         */
+        DNS_CACHE_TTL("dns_cache_ttl", 60),
+        /**
+         * The number of times an upload is attempted if the connection to
+         * the destination fails or is reset.
+         */
+        UPLOAD_ATTEMPTS("upload_attempts", 3),
+        /**
+         * The number of failed attempts in a row after which uploads to a
+         * destination fail right away for {@code CIRCUIT_BREAKER_COOLDOWN}.
+         */
+        CIRCUIT_BREAKER_THRESHOLD("circuit_breaker_threshold", 5),
+        /**
+         * The time in seconds for which uploads to a destination fail right
+         * away once {@code CIRCUIT_BREAKER_THRESHOLD} attempts failed.
+         */
+        CIRCUIT_BREAKER_COOLDOWN("circuit_breaker_cooldown", 30),
+        /**
+         * The maximum size in KiB of a file uploaded to the FTP(S) server, or
+         * 0 for no limit. Archives and screenshots are made to fit before
+         * they are uploaded, or not built at all if they can't.
+         */
+        FTP_MAX_SIZE("ftp_max_size", 0);
 
         private final String configKey;
         private final Object defaultValue;
@@ -234,6 +525,47 @@ public class Configuration extends Properties {
             return (value == null) ? getDefaultValue() : value;
         }
 
+        /**
+         * Gets the value for this setting as an integer.
+         *
+         * @return the setting's value
+         * @throws NumberFormatException If the value is not an integer.
+         */
+        public int getIntValue() {
+            Object current = getValue();
+            if (current instanceof Number) {
+                return ((Number) current).intValue();
+            }
+            return Integer.parseInt(current.toString().trim());
+        }
+
+        /**
+         * Gets the value for this setting as a floating point number.
+         *
+         * @return the setting's value
+         * @throws NumberFormatException If the value is not a number.
+         */
+        public double getDoubleValue() {
+            Object current = getValue();
+            if (current instanceof Number) {
+                return ((Number) current).doubleValue();
+            }
+            return Double.parseDouble(current.toString().trim());
+        }
+
+        /**
+         * Gets the value for this setting as a boolean.
+         *
+         * @return the setting's value
+         */
+        public boolean getBooleanValue() {
+            Object current = getValue();
+            if (current instanceof Boolean) {
+                return (Boolean) current;
+            }
+            return Boolean.parseBoolean(current.toString().trim());
+        }
+
         /**
          * Sets the value of this setting.
          *
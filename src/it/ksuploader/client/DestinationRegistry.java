@@ -0,0 +1,266 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Knows the {@link Uploader}s with which files can be uploaded, and uploads a
+ * file to all destinations listed in {@code UPLOAD_DESTINATIONS} at the same
+ * time. The file is read once, and all destinations send from the same
+ * {@link Payload}. Uploaders are found with a {@link ServiceLoader} when this
+ * class is loaded.
+ */
+public class DestinationRegistry {
+
+    /**
+     * The name of the KSUploader-server destination.
+     */
+    public static final String SOCKET = "socket";
+
+    /**
+     * The name of the FTP(S) destination.
+     */
+    public static final String FTP = "ftp";
+
+    /**
+     * The name of the HTTP(S) destination.
+     */
+    public static final String HTTP = "http";
+
+    /**
+     * The name of the S3-compatible object store destination.
+     */
+    public static final String S3 = "s3";
+
+    /**
+     * The name of the SFTP destination.
+     */
+    public static final String SFTP = "sftp";
+
+    private static final Map<String, Uploader> UPLOADERS = new ConcurrentHashMap<>();
+
+    static {
+        registerProviders(DestinationRegistry.class.getClassLoader());
+    }
+
+    /**
+     * Registers the uploaders listed in
+     * {@code META-INF/services/it.ksuploader.client.Uploader}. An uploader
+     * that can't be loaded is left out, and the ones after it are still
+     * registered.
+     *
+     * @param loader The class loader with which the uploaders are found.
+     */
+    static void registerProviders(ClassLoader loader) {
+        Iterator<Uploader> providers = ServiceLoader.load(Uploader.class, loader).iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    return;
+                }
+                register(providers.next());
+            } catch (ServiceConfigurationError ex) {
+                KSUploader.logger.log(Level.WARNING, "Couldn't load an uploader; loading the others.", ex);
+            }
+        }
+    }
+
+    /**
+     * Registers an uploader under its name. An uploader with the same name is
+     * replaced. Its uploads are tried again if they fail, see
+     * {@link RetryingUploader}.
+     *
+     * @param uploader The uploader.
+     */
+    public static void register(Uploader uploader) {
+        UPLOADERS.put(uploader.getName().toLowerCase(Locale.ENGLISH),
+                (uploader instanceof RetryingUploader) ? uploader : new RetryingUploader(uploader));
+        KSUploader.logger.log(Level.FINE, "Registered uploader {0} with capabilities {1}",
+                new Object[]{uploader.getName(), uploader.getCapabilities()});
+    }
+
+    /**
+     * Gets a registered uploader.
+     *
+     * @param name The name of the uploader.
+     * @return the uploader, or null if no uploader has that name
+     */
+    public static Uploader get(String name) {
+        return UPLOADERS.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Gets the uploader chosen with {@code UPLOADER}, or with
+     * {@code FTP_ENABLED} if that is empty.
+     *
+     * @return the uploader named in {@code UPLOADER}; otherwise the FTP
+     * uploader if {@code FTP_ENABLED}, or the KSUploader-server uploader
+     * @throws IllegalStateException If that uploader isn't registered.
+     */
+    public static Uploader getDefault() {
+        String name = Setting.UPLOADER.getValue().toString().trim();
+        if (name.isEmpty()) {
+            name = Setting.FTP_ENABLED.getBooleanValue() ? FTP : SOCKET;
+        }
+        Uploader uploader = get(name);
+        if (uploader == null) {
+            throw new IllegalStateException("The " + name + " uploader isn't registered.");
+        }
+        return uploader;
+    }
+
+    /**
+     * Gets whether uploads go to the destinations in
+     * {@code UPLOAD_DESTINATIONS} instead of only to the one chosen with
+     * {@code UPLOADER} or {@code FTP_ENABLED}.
+     *
+     * @return true if {@code UPLOAD_DESTINATIONS} is set
+     */
+    public static boolean isFanOutEnabled() {
+        return !getConfiguredNames().isEmpty();
+    }
+
+    /**
+     * Gets the names of the destinations in {@code UPLOAD_DESTINATIONS}, in
+     * order.
+     *
+     * @return the destination names, or an empty list if the setting is empty
+     */
+    public static List<String> getConfiguredNames() {
+        List<String> names = new ArrayList<>();
+        for (String name : Setting.UPLOAD_DESTINATIONS.getValue().toString().split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim().toLowerCase(Locale.ENGLISH));
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Starts uploading a payload to every destination in
+     * {@code UPLOAD_DESTINATIONS} at the same time. With the "first"
+     * {@code FAN_OUT_POLICY} the returned future completes as soon as one
+     * destination has the file, while the others continue in the background;
+     * with "all" it waits for every destination. Cancelling the returned
+     * future stops every upload that is still running.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the average percentage of the payload that has
+     * been sent to the destinations. May be null.
+     * @param onLink Receives the link from every destination that succeeded,
+     * as soon as it arrives. Called from background threads.
+     * @param onFailure Receives every registered uploader that failed, with
+     * the reason. Called from background threads.
+     * @return a future for the first link with the "first" policy, or for the
+     * link of the first listed destination that succeeded with the "all"
+     * policy, which completes exceptionally with the failure of the last
+     * destination if none succeeded
+     */
+    public static CompletableFuture<Link> fanOut(Payload payload, IntConsumer progress, Consumer<Link> onLink,
+            BiConsumer<Uploader, IOException> onFailure) {
+        List<String> names = getConfiguredNames();
+        boolean waitForAll = "all".equalsIgnoreCase(Setting.FAN_OUT_POLICY.getValue().toString().trim());
+        CompletableFuture<Link> result = new CompletableFuture<>();
+        if (names.isEmpty()) {
+            result.completeExceptionally(new IOException("No upload destinations are configured."));
+            return result;
+        }
+        List<Uploader> uploaders = new ArrayList<>(names.size());
+        List<CompletableFuture<Link>> links = new ArrayList<>(names.size());
+        int[] percentages = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            int index = i;
+            Uploader uploader = get(names.get(i));
+            uploaders.add(uploader);
+            if (uploader == null) {
+                CompletableFuture<Link> unknown = new CompletableFuture<>();
+                unknown.completeExceptionally(new IOException("Unknown upload destination: " + names.get(i)));
+                links.add(unknown);
+                continue;
+            }
+            links.add(uploader.upload(payload, (progress == null) ? null : (percentage) -> {
+                synchronized (percentages) {
+                    percentages[index] = percentage;
+                    progress.accept(Arrays.stream(percentages).sum() / percentages.length);
+                }
+            }));
+        }
+
+        /* Every link is in the list before the first one is looked at. */
+        AtomicInteger pending = new AtomicInteger(names.size());
+        AtomicReference<IOException> lastFailure = new AtomicReference<>();
+        for (int i = 0; i < names.size(); i++) {
+            int index = i;
+            Uploader uploader = uploaders.get(i);
+            links.get(i).whenComplete((received, ex) -> {
+                if (ex == null) {
+                    onLink.accept(received);
+                    if (!waitForAll) {
+                        result.complete(received);
+                    }
+                } else {
+                    IOException failure = toIOException(ex);
+                    KSUploader.logger.log(Level.WARNING, "Couldn't upload " + payload.getName() + " to " + names.get(index), failure);
+                    lastFailure.set(failure);
+                    if (uploader != null) {
+                        onFailure.accept(uploader, failure);
+                    }
+                }
+                if (pending.decrementAndGet() == 0) {
+                    Link first = links.stream().filter((done) -> !done.isCompletedExceptionally())
+                            .map(CompletableFuture::join).findFirst().orElse(null);
+                    if (first != null) {
+                        result.complete(first);
+                    } else {
+                        result.completeExceptionally(lastFailure.get());
+                    }
+                }
+            });
+        }
+        result.whenComplete((link, ex) -> {
+            if (result.isCancelled()) {
+                links.forEach((upload) -> upload.cancel(true));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Gets the reason an upload failed as the IOException the uploaders
+     * report.
+     */
+    private static IOException toIOException(Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        if (ex instanceof IOException) {
+            return (IOException) ex;
+        }
+        if (ex instanceof CancellationException) {
+            return new InterruptedIOException("The upload was cancelled.");
+        }
+        return new IOException("The upload failed.", ex);
+    }
+
+}
@@ -0,0 +1,312 @@
+package it.ksuploader.client;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message of version 2 of the KSUploader protocol. On the wire a frame is an
+ * opcode byte, a 4-byte stream id, a 4-byte payload length and the payload.
+ * The stream id tells which upload a frame belongs to, so several uploads can
+ * share one connection.
+ */
+public class Frame {
+
+    /**
+     * The length in bytes of the part of a frame before the payload.
+     */
+    public static final int HEADER_LENGTH = 9;
+
+    /**
+     * The maximum length in bytes of the payload of a frame.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Opcode opcode;
+    private final int stream;
+    private final byte[] payload;
+    private final int length;
+
+    /**
+     * Constructs a new Frame.
+     *
+     * @param opcode The kind of frame.
+     * @param stream The id of the upload this frame belongs to, or 0 for the
+     * connection itself.
+     * @param payload The payload of the frame. Not copied.
+     * @param length The number of bytes of {@code payload} that are used.
+     * @throws IllegalArgumentException If the payload is too long.
+     */
+    public Frame(Opcode opcode, int stream, byte[] payload, int length) {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH || length > payload.length) {
+            throw new IllegalArgumentException("Invalid payload length for a frame: " + length);
+        }
+        this.opcode = opcode;
+        this.stream = stream;
+        this.payload = payload;
+        this.length = length;
+    }
+
+    /**
+     * Constructs a new Frame with a text payload.
+     *
+     * @param opcode The kind of frame.
+     * @param stream The id of the upload this frame belongs to, or 0 for the
+     * connection itself.
+     * @param text The payload, which will be encoded as UTF-8.
+     * @return the new Frame
+     */
+    public static Frame text(Opcode opcode, int stream, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return new Frame(opcode, stream, payload, payload.length);
+    }
+
+    /**
+     * Constructs a new Frame without a payload.
+     *
+     * @param opcode The kind of frame.
+     * @param stream The id of the upload this frame belongs to.
+     * @return the new Frame
+     */
+    public static Frame empty(Opcode opcode, int stream) {
+        return new Frame(opcode, stream, EMPTY, 0);
+    }
+
+    /**
+     * Constructs a BEGIN frame, which announces a new upload.
+     *
+     * @param stream The id of the new upload.
+     * @param fileLength The length in bytes of the file that will be sent.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @param name The name of the file.
+     * @param encoding The transfer encoding of the DATA frames, or an empty
+     * string if the file is sent as it is.
+     * @return the new Frame
+     */
+    public static Frame begin(int stream, long fileLength, String type, String name, String encoding) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] encodingBytes = encoding.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 2 + typeBytes.length + 2 + nameBytes.length + 2 + encodingBytes.length);
+        payload.putLong(fileLength);
+        payload.putShort((short) typeBytes.length).put(typeBytes);
+        payload.putShort((short) nameBytes.length).put(nameBytes);
+        payload.putShort((short) encodingBytes.length).put(encodingBytes);
+        return new Frame(Opcode.BEGIN, stream, payload.array(), payload.capacity());
+    }
+
+    /**
+     * Gets the kind of this frame.
+     *
+     * @return the opcode
+     */
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Gets the id of the upload this frame belongs to.
+     *
+     * @return the stream id, or 0 for the connection itself
+     */
+    public int getStream() {
+        return stream;
+    }
+
+    /**
+     * Gets the payload of this frame. Only the first {@link #getLength()}
+     * bytes are part of the payload.
+     *
+     * @return the payload array, not copied
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Gets the length of the payload of this frame.
+     *
+     * @return the payload length in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the payload of this frame as text.
+     *
+     * @return the payload, decoded as UTF-8
+     */
+    public String getText() {
+        return new String(payload, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes this frame to an output.
+     *
+     * @param out The output to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(opcode.getCode());
+        out.writeInt(stream);
+        out.writeInt(length);
+        out.write(payload, 0, length);
+    }
+
+    /**
+     * Writes this frame to a buffer.
+     *
+     * @param buffer The buffer to write to. Must have at least
+     * {@code HEADER_LENGTH + getLength()} bytes remaining.
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.put(opcode.getCode());
+        buffer.putInt(stream);
+        buffer.putInt(length);
+        buffer.put(payload, 0, length);
+    }
+
+    /**
+     * Reads a frame from an input. Blocks until the entire frame is read.
+     *
+     * @param in The input to read from.
+     * @return the frame that was read
+     * @throws IOException If an I/O error occurs, or if the data is not a
+     * valid frame.
+     */
+    public static Frame read(DataInput in) throws IOException {
+        Opcode opcode = Opcode.fromCode(in.readByte());
+        int stream = in.readInt();
+        int length = checkLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(opcode, stream, payload, length);
+    }
+
+    /**
+     * Reads a frame from a buffer, if the buffer contains all of it.
+     *
+     * @param buffer A buffer in read mode. If a frame is read, its bytes are
+     * consumed from the buffer.
+     * @return the frame that was read, or null if the buffer doesn't contain a
+     * complete frame yet
+     * @throws IOException If the data is not a valid frame.
+     */
+    public static Frame read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = checkLength(buffer.getInt(start + 5));
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+        Opcode opcode = Opcode.fromCode(buffer.get());
+        int stream = buffer.getInt();
+        buffer.getInt();
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return new Frame(opcode, stream, payload, length);
+    }
+
+    /**
+     * Checks whether a payload length read from the network is valid.
+     */
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame payload length: " + length);
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame[" + opcode + ", stream=" + stream + ", length=" + length + "]";
+    }
+
+    /**
+     * The kinds of frames.
+     */
+    public enum Opcode {
+
+        /**
+         * Sent by the client with the server password as payload.
+         */
+        AUTH(1),
+        /**
+         * Sent by the client to start an upload.
+         */
+        BEGIN(2),
+        /**
+         * Sent by the client with a part of the uploaded file.
+         */
+        DATA(3),
+        /**
+         * Sent by the client after the last DATA frame of an upload.
+         */
+        END(4),
+        /**
+         * Sent by the server with the link to an uploaded file.
+         */
+        LINK(5),
+        /**
+         * Sent by the server with the reason an upload or the connection was
+         * refused, for example "FILE_TOO_LARGE".
+         */
+        ERROR(6),
+        /**
+         * Sent by the server right after a BEGIN frame, with the link the
+         * file will have once it is uploaded. Only sent if both sides
+         * announced {@code FrameConnection.EXTENSION_RESERVE} in the
+         * handshake; the LINK or ERROR frame still follows the END frame.
+         */
+        RESERVED(7),
+        /**
+         * Sent by the client with a kind of file, to ask how large a file of
+         * that kind the server accepts right now. The server answers with a
+         * QUOTA frame on the same stream whose payload is that length as 8
+         * bytes, negative if there is no limit, or with an ERROR frame. Only
+         * sent if both sides announced {@code FrameConnection.EXTENSION_QUOTA}
+         * in the handshake.
+         */
+        QUOTA(8);
+
+        private final byte code;
+
+        private Opcode(int code) {
+            this.code = (byte) code;
+        }
+
+        /**
+         * Gets the byte that represents this opcode on the wire.
+         *
+         * @return the opcode byte
+         */
+        public byte getCode() {
+            return code;
+        }
+
+        /**
+         * Gets the opcode represented by a byte.
+         *
+         * @param code The opcode byte.
+         * @return the opcode
+         * @throws IOException If the byte is not a known opcode.
+         */
+        public static Opcode fromCode(byte code) throws IOException {
+            for (Opcode opcode : values()) {
+                if (opcode.code == code) {
+                    return opcode;
+                }
+            }
+            throw new IOException("Unknown frame opcode: " + code);
+        }
+
+    }
+
+}
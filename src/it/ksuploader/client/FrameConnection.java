@@ -0,0 +1,806 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.utils.BandwidthLimiter;
+import it.ksuploader.client.utils.HostConnector;
+import it.ksuploader.client.utils.TaskRunner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+/**
+ * A connection to KSUploader-server using version 2 of the protocol, in which
+ * all messages are binary {@link Frame}s. A connection starts with a
+ * handshake that older servers can answer too, so that the client can fall
+ * back to the original protocol. Connections can be encrypted with TLS, and
+ * are kept open for a while after an upload so that later uploads can skip
+ * connecting and the TLS handshake.
+ */
+public class FrameConnection implements Closeable {
+
+    /**
+     * The greeting with which the client asks for version 2 of the protocol.
+     * Servers that speak version 2 answer with the same greeting; older
+     * servers reject it as a bad SYN string. The client may append the
+     * transfer encodings and other extensions it supports, separated by
+     * {@code ENCODING_SEPARATOR}, after which the server appends the ones it
+     * accepts.
+     */
+    public static final String HELLO = "KSU/2";
+
+    /**
+     * Separates the greeting and the extensions in the handshake.
+     */
+    private static final String ENCODING_SEPARATOR = ";";
+
+    /**
+     * The transfer encoding in which files are compressed with deflate.
+     */
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    /**
+     * The extension with which the server reserves the link to a file as
+     * soon as the upload begins, and sends it in a
+     * {@link Frame.Opcode#RESERVED} frame.
+     */
+    public static final String EXTENSION_RESERVE = "reserve";
+
+    /**
+     * The extension with which the client can ask the server how large a
+     * file it accepts before building the file, with a
+     * {@link Frame.Opcode#QUOTA} frame.
+     */
+    public static final String EXTENSION_QUOTA = "quota";
+
+    /**
+     * The extensions of files that are already compressed, and are therefore
+     * never compressed again during the transfer.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "png", "gif", "jpg", "jpeg", "webp", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar",
+            "mp3", "mp4", "mkv", "webm", "ogg", "pdf", "docx", "xlsx", "pptx"));
+
+    /**
+     * The size of the DATA frames in which files are sent.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The time in milliseconds a server that only spoke the original protocol
+     * isn't asked for version 2 again; it may have been upgraded since.
+     */
+    private static final long LEGACY_SERVER_TTL = 10 * 60 * 1000;
+
+    /**
+     * The servers that turned out to only speak the original protocol, with
+     * the time at which they did.
+     */
+    private static final Map<InetSocketAddress, Long> LEGACY_SERVERS = new ConcurrentHashMap<>();
+
+    /**
+     * The time in milliseconds an unused connection is kept open.
+     */
+    private static final long IDLE_TIMEOUT = 30000;
+
+    /**
+     * The maximum number of unused connections kept open per server.
+     */
+    private static final int MAX_IDLE_PER_SERVER = 4;
+
+    /**
+     * The unused connections, by server, the most recently used first.
+     */
+    private static final Map<InetSocketAddress, Deque<FrameConnection>> IDLE_CONNECTIONS = new HashMap<>();
+
+    /**
+     * Returned by {@link #getCompressionLevel(String, String)} for files that
+     * should not be compressed.
+     */
+    private static final int UNCOMPRESSED = Integer.MIN_VALUE;
+
+    private final InetSocketAddress server;
+    private final String password;
+    private final boolean secure;
+    private final SocketChannel socket;
+    private final ByteChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Set<String> extensions = new HashSet<>();
+    private int nextStream = 1;
+    private volatile boolean broken;
+    private long idleSince;
+
+    private FrameConnection(InetSocketAddress server, String password, boolean secure, SocketChannel socket, ByteChannel channel) {
+        this.server = server;
+        this.password = password;
+        this.secure = secure;
+        this.socket = socket;
+        this.channel = channel;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), CHUNK_SIZE + Frame.HEADER_LENGTH));
+    }
+
+    /**
+     * Gets a connection to a server that speaks version 2 of the protocol.
+     * An unused connection from an earlier upload is reused if there is one;
+     * otherwise a new connection is opened, secured with TLS if
+     * {@code KSUPLOADER_TLS_ENABLED}, and version 2 is negotiated.
+     *
+     * @param server The address of the server.
+     * @param password The password for the server.
+     * @return the connection, or null if the server only speaks the original
+     * protocol
+     * @throws IOException If the server could not be reached.
+     */
+    public static FrameConnection open(InetSocketAddress server, String password) throws IOException {
+        if (isLegacy(server)) {
+            return null;
+        }
+        boolean secure = Setting.KSUPLOADER_TLS_ENABLED.getBooleanValue();
+        FrameConnection idle;
+        while ((idle = takeIdle(server)) != null) {
+            if (idle.secure == secure && idle.password.equals(password) && idle.isAlive()) {
+                KSUploader.logger.log(Level.FINE, "Reusing a connection to {0}", server);
+                return idle;
+            }
+            idle.close();
+        }
+
+        SocketChannel socket = HostConnector.connect(server);
+        try {
+            ByteChannel channel = secure(socket, server, secure);
+            FrameConnection connection = new FrameConnection(server, password, secure, socket, channel);
+            connection.out.writeUTF(HELLO + ENCODING_SEPARATOR + ENCODING_DEFLATE + ENCODING_SEPARATOR + EXTENSION_RESERVE
+                    + ENCODING_SEPARATOR + EXTENSION_QUOTA);
+            connection.out.flush();
+            String reply;
+            try {
+                reply = connection.in.readUTF();
+            } catch (EOFException ex) {
+                reply = null;
+            }
+            String[] greeting = (reply == null) ? new String[0] : reply.split(ENCODING_SEPARATOR);
+            if (greeting.length == 0 || !HELLO.equals(greeting[0])) {
+                KSUploader.logger.log(Level.INFO, "Server {0} doesn''t speak protocol version 2 (replied {1}); using the original protocol.", new Object[]{server, reply});
+                setLegacy(server);
+                connection.close();
+                return null;
+            }
+            connection.extensions.addAll(Arrays.asList(greeting).subList(1, greeting.length));
+            Frame.text(Frame.Opcode.AUTH, 0, password).write(connection.out);
+            return connection;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Connects to a server, and secures the connection with TLS if
+     * {@code KSUPLOADER_TLS_ENABLED}. Used for both versions of the protocol.
+     *
+     * @param server The address of the server.
+     * @return a channel over which data is exchanged with the server
+     * @throws IOException If the server could not be reached, or the TLS
+     * handshake failed.
+     */
+    public static ByteChannel connect(InetSocketAddress server) throws IOException {
+        SocketChannel socket = HostConnector.connect(server);
+        try {
+            return secure(socket, server, Setting.KSUPLOADER_TLS_ENABLED.getBooleanValue());
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Secures a connection to a server with TLS if asked to.
+     *
+     * @param socket A connected channel.
+     * @param server The address of the server.
+     * @param secure Whether to secure the connection with TLS.
+     * @return a channel over which data is exchanged with the server
+     */
+    private static ByteChannel secure(SocketChannel socket, InetSocketAddress server, boolean secure) throws IOException {
+        if (secure) {
+            return TlsChannel.open(socket, server.getHostString(), server.getPort());
+        }
+        /* Streams of a SocketChannel itself share one lock for reading and
+         writing, which would stop a batch from sending while its links are
+         being read. */
+        return new ByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return socket.read(dst);
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return socket.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return socket.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    /**
+     * Uploads a file and waits for the link to it.
+     *
+     * @param file The file to upload.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @param progress Receives the percentage of the file that has been sent.
+     * May be null.
+     * @return the link to the uploaded file
+     * @throws ServerReplyException If the server refused the upload.
+     * @throws IOException If an I/O error occurs.
+     */
+    public String upload(File file, String type, IntConsumer progress) throws IOException {
+        return readLink(send(file, type, progress));
+    }
+
+    /**
+     * Uploads a payload and waits for the link to it.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @return the link to the uploaded file
+     * @throws ServerReplyException If the server refused the upload.
+     * @throws IOException If an I/O error occurs.
+     */
+    public String upload(Payload payload, IntConsumer progress) throws IOException {
+        return upload(payload, progress, null);
+    }
+
+    /**
+     * Uploads a payload and waits for the link to it. If the server reserves
+     * links, the link is reserved before the payload is sent.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @param reserved Receives the reserved link before the payload is sent,
+     * if the server reserves links. May be null.
+     * @return the link to the uploaded file
+     * @throws ServerReplyException If the server refused the upload.
+     * @throws IOException If an I/O error occurs.
+     */
+    public String upload(Payload payload, IntConsumer progress, Consumer<String> reserved) throws IOException {
+        return readLink(send(payload.getName(), payload.getLength(), payload.openStream(), payload.getType(), progress, reserved));
+    }
+
+    /**
+     * Gets whether the server reserves the link to a file as soon as the
+     * upload begins.
+     *
+     * @return true if the server announced {@code EXTENSION_RESERVE}
+     */
+    public boolean reservesLinks() {
+        return extensions.contains(EXTENSION_RESERVE);
+    }
+
+    /**
+     * Asks the server how large a file it accepts right now, for example
+     * before building an archive that might turn out too large.
+     *
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return the maximum length in bytes, or -1 if there is no limit or the
+     * server can't tell
+     * @throws ServerReplyException If the server refuses files of that kind
+     * right now, for example because it is full.
+     * @throws IOException If an I/O error occurs.
+     */
+    public long queryMaxLength(String type) throws IOException {
+        if (!extensions.contains(EXTENSION_QUOTA)) {
+            return -1;
+        }
+        int stream = nextStream++;
+        try {
+            Frame.text(Frame.Opcode.QUOTA, stream, type).write(out);
+            out.flush();
+        } catch (IOException ex) {
+            broken = true;
+            throw ex;
+        }
+        Frame reply = readFrame();
+        if (reply.getOpcode() != Frame.Opcode.QUOTA || reply.getStream() != stream || reply.getLength() != 8) {
+            if (reply.getStream() != stream) {
+                broken = true;
+            }
+            getLink(reply);
+            broken = true;
+            throw new IOException("Unexpected frame from the server: " + reply);
+        }
+        return Math.max(-1, ByteBuffer.wrap(reply.getPayload(), 0, 8).getLong());
+    }
+
+    /**
+     * Reads the reply to an upload.
+     *
+     * @param stream The stream id of the upload.
+     * @return the link to the uploaded file
+     */
+    private String readLink(int stream) throws IOException {
+        Frame reply = readFrame();
+        while (reply.getOpcode() == Frame.Opcode.RESERVED && reply.getStream() == stream) {
+            reply = readFrame();
+        }
+        if (reply.getStream() != stream) {
+            broken = true;
+            if (reply.getStream() != 0) {
+                throw new IOException("Got a reply for upload " + reply.getStream() + " while waiting for upload " + stream);
+            }
+        }
+        return getLink(reply);
+    }
+
+    /**
+     * Uploads several files without waiting for the link to one file before
+     * sending the next. The links are read on a background task while the
+     * files are being sent.
+     *
+     * @param files The files to upload.
+     * @param type The kind of the files: "img", "file" or "txt".
+     * @param progress Receives the percentage of all files that has been
+     * sent. May be null.
+     * @return a future for the link to every file, in the order of
+     * {@code files}; each completes as soon as its link arrives
+     * @throws IOException If an I/O error occurs while sending the files.
+     */
+    public List<CompletableFuture<String>> uploadBatch(List<File> files, String type, IntConsumer progress) throws IOException {
+        Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+        List<CompletableFuture<String>> links = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            CompletableFuture<String> link = new CompletableFuture<>();
+            pending.put(nextStream + i, link);
+            links.add(link);
+        }
+        TaskRunner.submit(() -> readLinks(pending));
+
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                final int done = i;
+                send(files.get(i), type, (progress == null) ? null
+                        : (percentage) -> progress.accept((100 * done + percentage) / files.size()));
+            }
+        } catch (IOException ex) {
+            links.forEach((link) -> link.completeExceptionally(ex));
+            throw ex;
+        }
+        return links;
+    }
+
+    /**
+     * Reads replies until every pending upload got its link or error.
+     *
+     * @param pending The futures of the pending uploads, by stream id.
+     */
+    private void readLinks(Map<Integer, CompletableFuture<String>> pending) {
+        try {
+            while (!pending.isEmpty()) {
+                Frame reply = readFrame();
+                if (reply.getStream() == 0) {
+                    /* An error for the entire connection, such as a wrong
+                     password. */
+                    broken = true;
+                    IOException error = new ServerReplyException(reply.getText());
+                    pending.values().forEach((link) -> link.completeExceptionally(error));
+                    return;
+                }
+                if (reply.getOpcode() == Frame.Opcode.RESERVED) {
+                    continue;
+                }
+                CompletableFuture<String> link = pending.remove(reply.getStream());
+                if (link == null) {
+                    KSUploader.logger.log(Level.INFO, "Ignoring a reply for unknown upload {0}", reply.getStream());
+                    continue;
+                }
+                try {
+                    link.complete(getLink(reply));
+                } catch (IOException ex) {
+                    link.completeExceptionally(ex);
+                }
+            }
+        } catch (IOException ex) {
+            pending.values().forEach((link) -> link.completeExceptionally(ex));
+        }
+    }
+
+    /**
+     * Sends a file to the server without waiting for the reply. The file is
+     * compressed during the transfer if the server accepts compression, it is
+     * enabled with {@code TRANSFER_COMPRESSION}, and the file isn't already
+     * compressed. The transfer is limited by a {@link BandwidthLimiter}.
+     *
+     * @param file The file to upload.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @param progress Receives the percentage of the file that has been sent.
+     * May be null.
+     * @return the stream id of the upload, which the reply will carry
+     * @throws IOException If an I/O error occurs.
+     */
+    public int send(File file, String type, IntConsumer progress) throws IOException {
+        try (InputStream data = new FileInputStream(file)) {
+            return send(file.getName(), file.length(), data, type, progress, null);
+        }
+    }
+
+    /**
+     * Sends a payload to the server without waiting for the reply, like
+     * {@link #send(File, String, IntConsumer)}.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @return the stream id of the upload, which the reply will carry
+     * @throws IOException If an I/O error occurs.
+     */
+    public int send(Payload payload, IntConsumer progress) throws IOException {
+        return send(payload.getName(), payload.getLength(), payload.openStream(), payload.getType(), progress, null);
+    }
+
+    /**
+     * Sends data to the server without waiting for the reply. A connection
+     * on which sending failed is never reused.
+     */
+    private int send(String name, long length, InputStream data, String type, IntConsumer progress, Consumer<String> reserved) throws IOException {
+        try {
+            return sendData(name, length, data, type, progress, reserved);
+        } catch (IOException ex) {
+            broken = true;
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends data to the server as BEGIN, DATA and END frames. If
+     * {@code reserved} isn't null and the server reserves links, the
+     * RESERVED frame is awaited after the BEGIN frame.
+     */
+    private int sendData(String name, long length, InputStream data, String type, IntConsumer progress, Consumer<String> reserved) throws IOException {
+        int stream = nextStream++;
+        int level = getCompressionLevel(name, type);
+        String encoding = (level == UNCOMPRESSED) ? "" : ENCODING_DEFLATE;
+        Frame.begin(stream, length, type, name, encoding).write(out);
+        if (reserved != null && reservesLinks()) {
+            out.flush();
+            Frame reply = readFrame();
+            if (reply.getOpcode() != Frame.Opcode.RESERVED || reply.getStream() != stream) {
+                /* The server refused the upload before the file was sent;
+                 it isn't clear whether it still expects the file. */
+                getLink(reply);
+                throw new IOException("Unexpected frame from the server: " + reply);
+            }
+            reserved.accept(reply.getText());
+        }
+
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Deflater deflater = (level == UNCOMPRESSED) ? null : new Deflater(level);
+        BandwidthLimiter limiter = BandwidthLimiter.forUpload(length);
+        long sent = 0;
+        try {
+            int read;
+            while ((read = data.read(chunk)) > 0) {
+                if (deflater == null) {
+                    limiter.acquire(read);
+                    new Frame(Frame.Opcode.DATA, stream, chunk, read).write(out);
+                } else {
+                    deflater.setInput(chunk, 0, read);
+                    writeDeflated(stream, deflater, limiter, false);
+                }
+                sent += read;
+                if (progress != null) {
+                    progress.accept((int) (100 * sent / Math.max(1, length)));
+                }
+            }
+            if (deflater != null) {
+                writeDeflated(stream, deflater, limiter, true);
+                KSUploader.logger.log(Level.FINE, "Compressed {0} from {1} to {2} bytes",
+                        new Object[]{name, deflater.getBytesRead(), deflater.getBytesWritten()});
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        Frame.empty(Frame.Opcode.END, stream).write(out);
+        out.flush();
+        return stream;
+    }
+
+    /**
+     * Writes the output the deflater produces as DATA frames.
+     *
+     * @param stream The stream id of the upload.
+     * @param deflater The deflater with the data to write.
+     * @param limiter The limiter of the upload.
+     * @param finish Whether all input has been given to the deflater, so that
+     * it should be flushed completely.
+     */
+    private void writeDeflated(int stream, Deflater deflater, BandwidthLimiter limiter, boolean finish) throws IOException {
+        byte[] compressed = new byte[CHUNK_SIZE];
+        if (finish) {
+            deflater.finish();
+        }
+        while (finish ? !deflater.finished() : !deflater.needsInput()) {
+            int length = deflater.deflate(compressed);
+            if (length > 0) {
+                limiter.acquire(length);
+                new Frame(Frame.Opcode.DATA, stream, compressed, length).write(out);
+            }
+        }
+    }
+
+    /**
+     * Gets the deflate level with which a file should be sent.
+     *
+     * @param name The name of the file to send.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return the deflate level, or {@code UNCOMPRESSED} if the file should
+     * be sent as it is
+     */
+    private int getCompressionLevel(String name, String type) {
+        if (!extensions.contains(ENCODING_DEFLATE)) {
+            return UNCOMPRESSED;
+        }
+        return getRequestedCompressionLevel(name, type);
+    }
+
+    /**
+     * Gets whether {@code TRANSFER_COMPRESSION} asks for a file to be
+     * compressed during the transfer, if the server accepts compression.
+     *
+     * @param name The name of the file to send.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return true if the file should be compressed
+     */
+    static boolean isCompressionRequested(String name, String type) {
+        return getRequestedCompressionLevel(name, type) != UNCOMPRESSED;
+    }
+
+    /**
+     * Gets the deflate level {@code TRANSFER_COMPRESSION} asks for, or
+     * {@code UNCOMPRESSED} for files that are compressed already.
+     */
+    private static int getRequestedCompressionLevel(String name, String type) {
+        if ("img".equals(type) || isCompressed(name)) {
+            return UNCOMPRESSED;
+        }
+        switch (Setting.TRANSFER_COMPRESSION.getValue().toString().trim().toLowerCase(Locale.ENGLISH)) {
+            case "deflate":
+                return Deflater.DEFAULT_COMPRESSION;
+            case "fast":
+                return Deflater.BEST_SPEED;
+            default:
+                return UNCOMPRESSED;
+        }
+    }
+
+    /**
+     * Gets whether a file is already compressed, judging by its extension, so
+     * that compressing it again during the transfer would only cost time.
+     *
+     * @param name The name of the file.
+     * @return true if the file is already compressed
+     */
+    public static boolean isCompressed(String name) {
+        String lowerCaseName = name.toLowerCase(Locale.ENGLISH);
+        return COMPRESSED_EXTENSIONS.contains(lowerCaseName.substring(lowerCaseName.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Reads the next frame the server sends. Blocks until it arrives.
+     *
+     * @return the frame
+     * @throws IOException If an I/O error occurs.
+     */
+    public Frame readFrame() throws IOException {
+        try {
+            return Frame.read(in);
+        } catch (IOException ex) {
+            broken = true;
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the link from a reply of the server.
+     *
+     * @param reply A LINK or ERROR frame.
+     * @return the link carried by a LINK frame
+     * @throws ServerReplyException If the reply is an ERROR frame.
+     * @throws IOException If the reply is another kind of frame.
+     */
+    public static String getLink(Frame reply) throws IOException {
+        switch (reply.getOpcode()) {
+            case LINK:
+                return reply.getText();
+            case ERROR:
+                throw new ServerReplyException(reply.getText());
+            default:
+                throw new IOException("Unexpected frame from the server: " + reply);
+        }
+    }
+
+    /**
+     * Gets whether a server recently turned out to only speak the original
+     * protocol.
+     *
+     * @param server The address of the server.
+     * @return true if the server shouldn't be asked for version 2 now
+     */
+    static boolean isLegacy(InetSocketAddress server) {
+        Long since = LEGACY_SERVERS.get(server);
+        if (since == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - since < LEGACY_SERVER_TTL) {
+            return true;
+        }
+        LEGACY_SERVERS.remove(server, since);
+        return false;
+    }
+
+    /**
+     * Remembers that a server only speaks the original protocol, for
+     * connections that negotiate the version themselves.
+     *
+     * @param server The address of the server.
+     */
+    static void setLegacy(InetSocketAddress server) {
+        LEGACY_SERVERS.put(server, System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets which servers only speak the original protocol, so that version
+     * 2 will be tried again. Called when the configuration is reloaded.
+     */
+    public static void clearLegacyServers() {
+        LEGACY_SERVERS.clear();
+    }
+
+    /**
+     * Gets whether this connection is secured with TLS.
+     *
+     * @return true if the connection uses TLS
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * Gives back a connection that is no longer needed, so that a later
+     * upload to the same server can reuse it. The connection is closed
+     * instead if an upload on it failed, or a reply is still expected.
+     */
+    public void release() {
+        synchronized (IDLE_CONNECTIONS) {
+            Deque<FrameConnection> idle = IDLE_CONNECTIONS.computeIfAbsent(server, (key) -> new ArrayDeque<>());
+            if (!broken && channel.isOpen() && idle.size() < MAX_IDLE_PER_SERVER) {
+                idleSince = System.currentTimeMillis();
+                idle.push(this);
+                return;
+            }
+        }
+        closeQuietly();
+    }
+
+    /**
+     * Takes the most recently used unused connection to a server. Connections
+     * that have been unused for too long are closed.
+     *
+     * @return the connection, or null if there is none
+     */
+    private static FrameConnection takeIdle(InetSocketAddress server) {
+        List<FrameConnection> expired = new ArrayList<>();
+        FrameConnection connection = null;
+        synchronized (IDLE_CONNECTIONS) {
+            Deque<FrameConnection> idle = IDLE_CONNECTIONS.get(server);
+            long now = System.currentTimeMillis();
+            while (idle != null && connection == null && !idle.isEmpty()) {
+                FrameConnection candidate = idle.pop();
+                if (now - candidate.idleSince < IDLE_TIMEOUT) {
+                    connection = candidate;
+                } else {
+                    expired.add(candidate);
+                }
+            }
+        }
+        expired.forEach(FrameConnection::closeQuietly);
+        return connection;
+    }
+
+    /**
+     * Checks whether the server still keeps an unused connection open, without
+     * blocking. A connection on which the server sent anything while it was
+     * unused isn't reused either. Under TLS, the check goes through the TLS
+     * layer, which handles messages such as session tickets itself.
+     */
+    private boolean isAlive() {
+        try {
+            if (in.available() > 0) {
+                return false;
+            }
+            if (channel instanceof TlsChannel) {
+                return ((TlsChannel) channel).isAlive();
+            }
+            socket.configureBlocking(false);
+            try {
+                return socket.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                socket.configureBlocking(true);
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes all unused connections, for example after the server settings
+     * changed.
+     */
+    public static void closeIdleConnections() {
+        List<FrameConnection> idle = new ArrayList<>();
+        synchronized (IDLE_CONNECTIONS) {
+            IDLE_CONNECTIONS.values().forEach(idle::addAll);
+            IDLE_CONNECTIONS.clear();
+        }
+        idle.forEach(FrameConnection::closeQuietly);
+    }
+
+    /**
+     * Closes this connection, logging instead of throwing errors.
+     */
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.INFO, "Couldn't close the connection to " + server, ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        broken = true;
+        channel.close();
+    }
+
+}
@@ -1,197 +1,473 @@
 package it.ksuploader.client;
 
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.utils.BandwidthLimiter;
+import it.ksuploader.client.utils.HostConnector;
 import it.sauronsoftware.ftp4j.*;
+import it.sauronsoftware.ftp4j.connectors.DirectConnector;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
-import java.io.File;
 import java.io.IOException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Uploads files to an FTP(S) host, using the FTP settings of the
+ * configuration. Every upload uses a session of its own, so uploads can run at
+ * the same time. Files are always sent in binary type over a passive data
+ * connection.
+ * <p>
+ * If {@code FTP_CONTENT_NAMES}, files are stored under their
+ * {@link Payload#getContentName() content name}, so the link is known before
+ * the upload starts. If {@code FTP_ATOMIC_UPLOAD}, they are uploaded under a
+ * temporary name and renamed when complete, so that nobody following the link
+ * sees half a file. If {@code FTP_PERFORMANCE_ENABLED}, logged-in sessions are
+ * kept open for a while so that the next upload doesn't have to log in again,
+ * files that aren't compressed yet are sent in MODE Z if the server supports
+ * it, and data connections use socket buffers of
+ * {@code FTP_SOCKET_BUFFER_SIZE}.
+ */
+public class FtpUploader implements Uploader {
+
+    /**
+     * The time in milliseconds an unused session is kept open.
+     */
+    private static final long IDLE_TIMEOUT = 30000;
+
+    /**
+     * The maximum number of unused sessions kept open per server.
+     */
+    private static final int MAX_IDLE_PER_SERVER = 4;
+
+    /**
+     * The unused sessions, by user and server, the most recently used first.
+     */
+    private static final Map<String, Deque<Session>> IDLE_SESSIONS = new HashMap<>();
+
+    /**
+     * The suffix of the temporary names under which files are uploaded before
+     * they are renamed, if {@code FTP_ATOMIC_UPLOAD}.
+     */
+    private static final String TEMP_SUFFIX = ".part";
 
-public class FtpUploader extends FTPClient implements Observer {
-    private String link;
-    private String filePath;
-
-    public FtpUploader() {
+    @Override
+    public String getName() {
+        return DestinationRegistry.FTP;
     }
 
-    public void setFilePath(File toWrite) {
-        this.filePath = toWrite.getPath();
+    @Override
+    public Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.STREAMING, Capability.PARALLEL);
     }
 
-    public void setFilePath(String filePath) {
-        this.filePath = filePath;
+    @Override
+    public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+        return Uploader.runAsync(getName(), () -> transfer(payload, progress));
     }
 
-    public boolean send() {
+    @Override
+    public String predictLink(Payload payload) {
+        return Setting.FTP_WEB_URL.getValue() + getRemoteName(payload);
+    }
 
-        Main.myLog("[FtpUploader] FtpesEnabled: " + Main.config.getFtpesEnabled());
-        if (Main.config.getFtpesEnabled()) {
-            try {
-                // Setting up tls connection
-                Main.myLog("[FtpUploader] AcceptAllCertificates: " + Main.config.getAcceptAllCertificates());
-                if (Main.config.getAcceptAllCertificates()) {
-
-                    TrustManager[] trustManager = new TrustManager[]{new X509TrustManager() {
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-
-                        @Override
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                        }
-
-                        @Override
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                        }
-                    }};
-
-                    SSLContext sslContext;
-
-                    sslContext = SSLContext.getInstance("TLS");
-                    sslContext.init(null, trustManager, new SecureRandom());
-
-                    SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-                    this.setSSLSocketFactory(sslSocketFactory);
-                } else {
-                    this.setSSLSocketFactory((SSLSocketFactory) SSLSocketFactory.getDefault());
-                }
+    /**
+     * Gets the {@code FTP_MAX_SIZE}, since FTP servers can't tell how large a
+     * file they accept.
+     */
+    @Override
+    public long getMaxLength(String type) {
+        return getMaxSize();
+    }
 
-                Main.myLog("[FtpUploader] SetSecurity: SECURITY_FTPES");
-                this.setSecurity(FTPClient.SECURITY_FTPES);
+    /**
+     * Gets the {@code FTP_MAX_SIZE} in bytes, or -1 if there is no limit.
+     */
+    private static long getMaxSize() {
+        long maxSize = Setting.FTP_MAX_SIZE.getIntValue();
+        return (maxSize > 0) ? maxSize * 1024 : -1;
+    }
 
-            } catch (NoSuchAlgorithmException | KeyManagementException e) {
+    /**
+     * Gets the name a payload is stored under: its content name if
+     * {@code FTP_CONTENT_NAMES}, otherwise its own name.
+     */
+    private static String getRemoteName(Payload payload) {
+        return Setting.FTP_CONTENT_NAMES.getBooleanValue() ? payload.getContentName() : payload.getName();
+    }
 
-                e.printStackTrace();
-                Main.dialog.show("Connection error", "Unable to connect to the server via ftpes", false);
-                Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
-                return false;
-            }
+    /**
+     * Uploads a payload without showing anything to the user.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @return the link to the uploaded file
+     * @throws ServerReplyException If the payload is larger than
+     * {@code FTP_MAX_SIZE}, or the server refused the credentials.
+     * @throws IOException If the upload failed.
+     */
+    private static String transfer(Payload payload, IntConsumer progress) throws IOException {
+        long maxSize = getMaxSize();
+        if (maxSize >= 0 && payload.getLength() > maxSize) {
+            throw new ServerReplyException("FILE_TOO_LARGE");
         }
-
-        // Connection
+        boolean tuned = Setting.FTP_PERFORMANCE_ENABLED.getBooleanValue();
+        String name = getRemoteName(payload);
+        String uploadName = Setting.FTP_ATOMIC_UPLOAD.getBooleanValue()
+                ? "." + name + "." + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + TEMP_SUFFIX : name;
+        Session session = Session.open(tuned);
+        FTPClient client = session.client;
         try {
-            this.connect(Main.config.getFtpAddr(), Main.config.getFtpPort());
-        } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e1) {
-            e1.printStackTrace();
-            Main.dialog.show("Connection error", "Unable to connect to the server", false);
-            Main.myErr(Arrays.toString(e1.getStackTrace()).replace(",", "\n"));
-            return false;
+            client.setType(FTPClient.TYPE_BINARY);
+            client.setCompressionEnabled(tuned && !"img".equals(payload.getType()) && !FrameConnection.isCompressed(name)
+                    && client.isCompressionSupported());
+            try (InputStream data = BandwidthLimiter.forUpload(payload.getLength()).wrap(payload.openStream())) {
+                client.upload(uploadName, data, 0, 0, (progress == null) ? null : new ProgressListener(payload.getLength(), progress));
+            }
+            if (!uploadName.equals(name)) {
+                publish(client, uploadName, name);
+            }
+        } catch (IllegalStateException | FTPIllegalReplyException | FTPException | FTPDataTransferException | FTPAbortedException e) {
+            session.discard(uploadName);
+            throw new IOException("The FTP upload of " + payload.getName() + " failed.", e);
+        } catch (IOException e) {
+            session.discard(uploadName);
+            throw e;
         }
-        Main.myLog("[FtpUploader] Connected to the ftp server");
-
-        // Login
-        try {
-            this.login(Main.config.getFtpUser(), Main.config.getFtpPass());
-        } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e1) {
-            e1.printStackTrace();
-            Main.myErr(Arrays.toString(e1.getStackTrace()).replace(",", "\n"));
-            Main.dialog.show("Login error", "Unable to login to the server", false);
-            return false;
+        if (tuned) {
+            session.release();
+        } else {
+            session.closeQuietly();
         }
+        return Setting.FTP_WEB_URL.getValue() + name;
+    }
 
-        // Change directory
+    /**
+     * Renames an uploaded file to its final name, so that it appears there
+     * complete. Servers that refuse to replace an existing file get it
+     * deleted first; with content names, the existing file has the same
+     * contents anyway.
+     */
+    private static void publish(FTPClient client, String uploadName, String name)
+            throws IOException, FTPIllegalReplyException, FTPException {
         try {
-            this.changeDirectory(Main.config.getFtpDir());
-        } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e1) {
-            e1.printStackTrace();
-            Main.myErr(Arrays.toString(e1.getStackTrace()).replace(",", "\n"));
-            Main.dialog.show("Error", "Unable to change directory", false);
-            return false;
+            client.rename(uploadName, name);
+        } catch (FTPException e) {
+            KSUploader.logger.log(Level.FINE, "The FTP server didn't replace {0}; deleting it first.", name);
+            try {
+                client.deleteFile(name);
+            } catch (FTPException deleteEx) {
+                throw e;
+            }
+            client.rename(uploadName, name);
         }
+    }
 
-        // Upload
-        try {
-            this.upload(new File(filePath), new MyTransferListener());
-            Main.myLog("[FtpUploader] File uploaded");
-        } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException | FTPDataTransferException | FTPAbortedException e1) {
-            e1.printStackTrace();
-            Main.myErr(Arrays.toString(e1.getStackTrace()).replace(",", "\n"));
-            Main.dialog.show("Upload aborted", "Upload was stopped!", false);
-            return false;
+    /**
+     * Gets the socket factory for FTPES connections, which accepts all
+     * certificates if {@code ACCEPT_ALL_CERTIFICATES}.
+     */
+    private static SSLSocketFactory getSocketFactory() throws IOException {
+        if (!Setting.ACCEPT_ALL_CERTIFICATES.getBooleanValue()) {
+            return (SSLSocketFactory) SSLSocketFactory.getDefault();
         }
+        TrustManager[] trustManager = new TrustManager[]{new X509TrustManager() {
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
 
-        // Link return
-        try {
-            this.link = Main.config.getFtpWebUrl() + new File(filePath).getName();
-            Main.myLog("[FtpUploader] Returning url: " + this.link);
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
-            Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
-            return false;
-        }
+            @Override
+            public void checkClientTrusted(X509Certificate[] certs, String authType) {
+            }
 
-        // Clean and Disconnect
+            @Override
+            public void checkServerTrusted(X509Certificate[] certs, String authType) {
+            }
+        }};
         try {
-            new File(filePath).delete();
-            this.disconnect(true);
-            Main.myLog("[FtpUploader] Disconnected");
-            return true;
-        } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e) {
-            e.printStackTrace();
-            Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
-            Main.dialog.show("Disconnection error", "Error during the disconnection", false);
-            return false;
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManager, new SecureRandom());
+            return sslContext.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't set up FTPES.", e);
         }
-
-    }
-
-    public String getLink() {
-        return link;
     }
 
-    @Override
-    public void update(Observable o, Object arg) {
-        stopUpload();
-    }
+    /**
+     * Reports the percentage of a payload that has been sent.
+     */
+    private static class ProgressListener implements FTPDataTransferListener {
 
-    private class MyTransferListener implements FTPDataTransferListener {
+        private final long length;
+        private final IntConsumer progress;
+        private long transferred;
 
-        long tot_trasf = 0; // in bytes
+        private ProgressListener(long length, IntConsumer progress) {
+            this.length = length;
+            this.progress = progress;
+        }
 
+        @Override
         public void started() {
+            progress.accept(0);
         }
 
+        @Override
         public void transferred(int length) {
-
-            Main.dialog.show("Uploading...", "", false);
-            //Main.progressDialog.setUploader(this);
-            int percentage_sent = (int) ((100 * (tot_trasf += length)) / new File(filePath).length());
-            Main.myLog("[FtpUploader] Sent: " + percentage_sent + "%");
-            Main.dialog.set(percentage_sent);
+            transferred += length;
+            progress.accept((int) (100 * transferred / Math.max(1, this.length)));
         }
 
+        @Override
         public void completed() {
-            Main.dialog.destroy();
+            progress.accept(100);
         }
 
+        @Override
         public void aborted() {
-            Main.myLog("Connessione ftp abortita");
         }
 
+        @Override
         public void failed() {
         }
 
     }
 
-    public void stopUpload() {
-        try {
-            this.abortCurrentDataTransfer(true);
-            this.disconnect(true);
-            Main.dialog.show("Stopped...", "", false);
-            Main.myLog("Mi disconnetto dallo spazio ftp");
-        } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e) {
-            Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
+    /**
+     * Opens the control connection through the {@link HostConnector}, and
+     * data connections with socket buffers of a chosen size instead of the
+     * fixed size of ftp4j.
+     */
+    private static class Connector extends DirectConnector {
+
+        private final int bufferSize;
+
+        /**
+         * Creates a connector.
+         *
+         * @param bufferSize The size of the socket buffers of data
+         * connections in bytes, or 0 to keep the size of ftp4j.
+         */
+        private Connector(int bufferSize) {
+            this.bufferSize = bufferSize;
+            setConnectionTimeout(Math.max(1, HostConnector.getConnectTimeout() / 1000));
+        }
+
+        @Override
+        public Socket connectForCommunicationChannel(String host, int port) throws IOException {
+            Socket socket = HostConnector.connect(host, port).socket();
+            try {
+                socket.setKeepAlive(true);
+                socket.setSoTimeout(readTimeout * 1000);
+                socket.setSoLinger(true, closeTimeout);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
         }
+
+        @Override
+        public Socket connectForDataTransferChannel(String host, int port) throws IOException {
+            if (bufferSize <= 0) {
+                return super.connectForDataTransferChannel(host, port);
+            }
+            Socket socket = new Socket();
+            try {
+                socket.setSoTimeout(readTimeout * 1000);
+                socket.setSoLinger(true, closeTimeout);
+                /* The buffers must be sized before connecting to affect the TCP window. */
+                socket.setReceiveBufferSize(bufferSize);
+                socket.setSendBufferSize(bufferSize);
+                socket.connect(new InetSocketAddress(host, port), connectionTimeout * 1000);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+    }
+
+    /**
+     * A logged-in FTP(S) session, which can be reused by later uploads to the
+     * same server if {@code FTP_PERFORMANCE_ENABLED}.
+     */
+    private static class Session {
+
+        private final String server;
+        private final String settings;
+        private final FTPClient client;
+        private long idleSince;
+
+        private Session(String server, String settings, FTPClient client) {
+            this.server = server;
+            this.settings = settings;
+            this.client = client;
+        }
+
+        /**
+         * Gets a session with the server of the configuration, in the
+         * {@code FTP_DIRECTORY}. If {@code tuned}, an unused session from an
+         * earlier upload is reused if there is one; otherwise a new connection
+         * is opened and logged in.
+         *
+         * @param tuned Whether {@code FTP_PERFORMANCE_ENABLED}.
+         * @return the session
+         * @throws ServerReplyException If the server refused the credentials.
+         * @throws IOException If the server couldn't be reached, or refused
+         * the directory.
+         */
+        private static Session open(boolean tuned) throws IOException {
+            String host = Setting.FTP_ADDRESS.getValue().toString();
+            int port = Setting.FTP_PORT.getIntValue();
+            String user = Setting.FTP_USER.getValue().toString();
+            String server = user + "@" + host + ":" + port;
+            String settings = Setting.FTP_PASSWORD.getValue() + "\n" + Setting.FTP_DIRECTORY.getValue() + "\n" + Setting.FTPS_ENABLED.getBooleanValue()
+                    + "\n" + Setting.ACCEPT_ALL_CERTIFICATES.getBooleanValue() + "\n" + Setting.FTP_SOCKET_BUFFER_SIZE.getIntValue();
+
+            Session idle;
+            while (tuned && (idle = takeIdle(server)) != null) {
+                if (idle.settings.equals(settings) && idle.isAlive()) {
+                    KSUploader.logger.log(Level.FINE, "Reusing an FTP session with {0}", server);
+                    return idle;
+                }
+                idle.closeQuietly();
+            }
+
+            FTPClient client = new FTPClient();
+            Session session = new Session(server, settings, client);
+            try {
+                client.setConnector(new Connector(tuned ? Math.max(1, Setting.FTP_SOCKET_BUFFER_SIZE.getIntValue()) * 1024 : 0));
+                if (Setting.FTPS_ENABLED.getBooleanValue()) {
+                    client.setSSLSocketFactory(getSocketFactory());
+                    client.setSecurity(FTPClient.SECURITY_FTPES);
+                }
+                client.setPassive(true);
+                client.connect(host, port);
+                try {
+                    client.login(user, Setting.FTP_PASSWORD.getValue().toString());
+                } catch (FTPException e) {
+                    if (e.getCode() == 530) {
+                        throw new ServerReplyException("WRONG_PASSWORD");
+                    }
+                    throw e;
+                }
+                client.changeDirectory(Setting.FTP_DIRECTORY.getValue().toString());
+                return session;
+            } catch (IllegalStateException | FTPIllegalReplyException | FTPException e) {
+                session.closeQuietly();
+                throw new IOException("Couldn't log in to the FTP server " + server, e);
+            } catch (IOException e) {
+                session.closeQuietly();
+                throw e;
+            }
+        }
+
+        /**
+         * Takes the most recently used unused session with a server. Sessions
+         * that have been unused for too long are closed.
+         */
+        private static Session takeIdle(String server) {
+            List<Session> expired = new ArrayList<>();
+            Session session = null;
+            synchronized (IDLE_SESSIONS) {
+                Deque<Session> idle = IDLE_SESSIONS.get(server);
+                long now = System.currentTimeMillis();
+                while (idle != null && session == null && !idle.isEmpty()) {
+                    Session candidate = idle.pop();
+                    if (now - candidate.idleSince < IDLE_TIMEOUT) {
+                        session = candidate;
+                    } else {
+                        expired.add(candidate);
+                    }
+                }
+            }
+            expired.forEach(Session::closeQuietly);
+            return session;
+        }
+
+        /**
+         * Checks whether the server still answers on this session. Unlike
+         * the other transports, FTP has no way to check without a round trip.
+         */
+        private boolean isAlive() {
+            try {
+                client.noop();
+                return true;
+            } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Gives back a session after a successful upload, so that a later
+         * upload can reuse it.
+         */
+        private void release() {
+            synchronized (IDLE_SESSIONS) {
+                Deque<Session> idle = IDLE_SESSIONS.computeIfAbsent(server, (key) -> new ArrayDeque<>());
+                if (idle.size() < MAX_IDLE_PER_SERVER) {
+                    idleSince = System.currentTimeMillis();
+                    idle.push(this);
+                    return;
+                }
+            }
+            closeQuietly();
+        }
+
+        /**
+         * Closes this session after a failed upload, deleting the partly
+         * uploaded file first if it was uploaded under a temporary name. The
+         * server may have closed the connection already, so errors are
+         * ignored.
+         *
+         * @param uploadName The name the file was uploaded under.
+         */
+        private void discard(String uploadName) {
+            if (uploadName.endsWith(TEMP_SUFFIX) && client.isConnected()) {
+                try {
+                    client.deleteFile(uploadName);
+                } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e) {
+                    KSUploader.logger.log(Level.FINE, "Couldn't delete the partly uploaded {0}", uploadName);
+                }
+            }
+            closeQuietly();
+        }
+
+        /**
+         * Closes this session, logging instead of throwing errors.
+         */
+        private void closeQuietly() {
+            if (client.isConnected()) {
+                try {
+                    client.disconnect(true);
+                } catch (IllegalStateException | IOException | FTPIllegalReplyException | FTPException e) {
+                    KSUploader.logger.log(Level.INFO, "[FtpUploader] Couldn't disconnect cleanly.", e);
+                }
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,411 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.utils.BandwidthLimiter;
+import it.ksuploader.client.utils.HostConnector;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Uploads files to an HTTP(S) server, such as a storage gateway. A file is
+ * sent with a PUT request to {@code HTTP_UPLOAD_URL} followed by its name, or
+ * as a multipart/form-data POST to {@code HTTP_UPLOAD_URL} if
+ * {@code HTTP_MULTIPART_ENABLED}. A PUT of a file larger than
+ * {@code HTTP_CHUNK_SIZE} is split into several requests with a
+ * {@code Content-Range} header, so that no single request runs for long.
+ * <p>
+ * Request bodies are streamed from the payload with a fixed length, and
+ * responses are read to the end, so the connection is kept alive and reused by
+ * the next upload to the same server.
+ */
+public class HttpUploader implements Uploader {
+
+    /**
+     * The number of bytes written at once, and the unit in which the progress
+     * and the bandwidth limit are applied.
+     */
+    private static final int WRITE_LENGTH = 64 * 1024;
+
+    /**
+     * The status with which servers commonly accept a chunk that isn't the
+     * last one.
+     */
+    private static final int RESUME_INCOMPLETE = 308;
+
+    private static final HostnameVerifier ACCEPT_ALL_HOSTS = (host, session) -> true;
+    private static SSLSocketFactory acceptAllFactory;
+
+    @Override
+    public String getName() {
+        return DestinationRegistry.HTTP;
+    }
+
+    @Override
+    public Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.STREAMING, Capability.PARALLEL);
+    }
+
+    @Override
+    public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+        return Uploader.runAsync(getName(), () -> transfer(payload, progress));
+    }
+
+    /**
+     * Uploads a payload without showing anything to the user.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @return the link to the uploaded file
+     * @throws ServerReplyException If the server refused the upload.
+     * @throws IOException If the upload failed.
+     */
+    private static String transfer(Payload payload, IntConsumer progress) throws IOException {
+        Sender sender = new Sender(payload.getLength(), progress);
+        String contentType = URLConnection.guessContentTypeFromName(payload.getName());
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        Reply reply;
+        if (Setting.HTTP_MULTIPART_ENABLED.getBooleanValue()) {
+            reply = postMultipart(new URL(Setting.HTTP_UPLOAD_URL.getValue().toString()), payload, contentType, sender);
+        } else {
+            reply = put(new URL(Setting.HTTP_UPLOAD_URL.getValue() + encode(payload.getName())), payload, contentType, sender);
+        }
+
+        String webUrl = Setting.HTTP_WEB_URL.getValue().toString();
+        if (!webUrl.isEmpty()) {
+            return webUrl + encode(payload.getName());
+        }
+        if (reply.getHeader("Location") != null) {
+            return reply.getHeader("Location");
+        }
+        String body = reply.getBody().trim();
+        int lineEnd = body.indexOf('\n');
+        return (lineEnd < 0) ? body : body.substring(0, lineEnd).trim();
+    }
+
+    /**
+     * Sends a payload with PUT requests, in chunks of {@code HTTP_CHUNK_SIZE}
+     * if it is larger.
+     *
+     * @return the reply to the last request
+     */
+    private static Reply put(URL url, Payload payload, String contentType, Sender sender) throws IOException {
+        long chunkLength = 1024L * Setting.HTTP_CHUNK_SIZE.getIntValue();
+        long length = payload.getLength();
+        if (chunkLength <= 0 || length <= chunkLength) {
+            HttpURLConnection connection = open(url, "PUT", contentType, length);
+            authorize(connection);
+            try (OutputStream out = connection.getOutputStream()) {
+                sender.write(out, payload, 0, length);
+            }
+            return readReply(connection);
+        }
+
+        Reply reply = null;
+        for (long start = 0; start < length; start += chunkLength) {
+            long end = Math.min(length, start + chunkLength);
+            HttpURLConnection connection = open(url, "PUT", contentType, end - start);
+            authorize(connection);
+            connection.setRequestProperty("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+            try (OutputStream out = connection.getOutputStream()) {
+                sender.write(out, payload, start, end);
+            }
+            reply = readReply(connection);
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a payload as the "file" part of a multipart/form-data POST, after
+     * a "type" part with the kind of file.
+     *
+     * @return the reply to the request
+     */
+    private static Reply postMultipart(URL url, Payload payload, String contentType, Sender sender) throws IOException {
+        String boundary = "KSUploader" + UUID.randomUUID().toString().replace("-", "");
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"type\"\r\n\r\n"
+                + payload.getType() + "\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + payload.getName().replace("\"", "%22") + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = open(url, "POST", "multipart/form-data; boundary=" + boundary,
+                head.length + payload.getLength() + tail.length);
+        authorize(connection);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(head);
+            sender.write(out, payload, 0, payload.getLength());
+            out.write(tail);
+        }
+        return readReply(connection);
+    }
+
+    /**
+     * Adds the {@code HTTP_AUTHORIZATION} header to a request, if it is set.
+     */
+    private static void authorize(HttpURLConnection connection) {
+        String authorization = Setting.HTTP_AUTHORIZATION.getValue().toString();
+        if (!authorization.isEmpty()) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+    }
+
+    /**
+     * Opens a connection for a request, which accepts all certificates if
+     * {@code ACCEPT_ALL_CERTIFICATES}. Also used by other uploaders that speak
+     * HTTP.
+     *
+     * @param url The URL of the request.
+     * @param method The method of the request.
+     * @param contentType The type of the body, or null if there is none.
+     * @param length The length of the body in bytes, or -1 if the request
+     * has no body.
+     * @return the connection, not connected yet
+     * @throws IOException If the connection could not be created.
+     */
+    static HttpURLConnection open(URL url, String method, String contentType, long length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection instanceof HttpsURLConnection && Setting.ACCEPT_ALL_CERTIFICATES.getBooleanValue()) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getAcceptAllFactory());
+            ((HttpsURLConnection) connection).setHostnameVerifier(ACCEPT_ALL_HOSTS);
+        }
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(HostConnector.getConnectTimeout());
+        connection.setReadTimeout(Math.max(1, Setting.READ_TIMEOUT.getIntValue()) * 1000);
+        if (length >= 0) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+        }
+        if (contentType != null) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the entire reply to a request, so that the connection can be
+     * reused.
+     *
+     * @param connection The connection of the request.
+     * @return the reply
+     * @throws ServerReplyException If the server refused the upload because of
+     * the password, the size of the file or its free space.
+     * @throws IOException If the server replied with another error.
+     */
+    static Reply readReply(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        boolean success = (status >= 200 && status < 300) || status == RESUME_INCOMPLETE;
+        String body;
+        try (InputStream in = success ? connection.getInputStream() : connection.getErrorStream()) {
+            body = read(in);
+        }
+        if (!success) {
+            switch (status) {
+                case HttpURLConnection.HTTP_UNAUTHORIZED:
+                case HttpURLConnection.HTTP_FORBIDDEN:
+                    throw new ServerReplyException("WRONG_PASSWORD");
+                case HttpURLConnection.HTTP_ENTITY_TOO_LARGE:
+                    throw new ServerReplyException("FILE_TOO_LARGE");
+                case 507:
+                    throw new ServerReplyException("SERVER_FULL");
+                default:
+                    throw new IOException("The HTTP server replied " + status + " " + connection.getResponseMessage() + ": " + body);
+            }
+        }
+        return new Reply(connection, body);
+    }
+
+    /**
+     * Reads a stream to the end as UTF-8 text.
+     */
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a file name for use in a URL path.
+     */
+    static String encode(String name) throws IOException {
+        return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+    }
+
+    /**
+     * Gets the socket factory that accepts all certificates. The same factory
+     * is used for every connection, since kept-alive connections are only
+     * reused with the factory that opened them.
+     */
+    private static synchronized SSLSocketFactory getAcceptAllFactory() throws IOException {
+        if (acceptAllFactory == null) {
+            TrustManager[] trustManager = new TrustManager[]{new X509TrustManager() {
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+
+                @Override
+                public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                }
+            }};
+            try {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, trustManager, new SecureRandom());
+                acceptAllFactory = sslContext.getSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Couldn't set up HTTPS.", e);
+            }
+        }
+        return acceptAllFactory;
+    }
+
+    /**
+     * Writes the data of an upload, possibly over several requests at the
+     * same time, within the bandwidth limit and reporting the progress.
+     */
+    static class Sender {
+
+        private final long length;
+        private final IntConsumer progress;
+        private final BandwidthLimiter limiter;
+        private final AtomicLong sent = new AtomicLong();
+
+        /**
+         * Constructs a new Sender.
+         *
+         * @param length The length of the entire upload in bytes.
+         * @param progress Receives the percentage of the upload that has been
+         * sent. May be null.
+         */
+        Sender(long length, IntConsumer progress) {
+            this.length = length;
+            this.progress = progress;
+            this.limiter = BandwidthLimiter.forUpload(length);
+        }
+
+        /**
+         * Writes data to the body of a request.
+         *
+         * @param out The stream of the request body.
+         * @param data The data to write, from its position to its limit. Its
+         * position is moved past the bytes that were written.
+         * @throws IOException If the data could not be written.
+         */
+        void write(OutputStream out, ByteBuffer data) throws IOException {
+            byte[] buffer = new byte[Math.min(WRITE_LENGTH, Math.max(1, data.remaining()))];
+            while (data.hasRemaining()) {
+                int count = Math.min(buffer.length, data.remaining());
+                limiter.acquire(count);
+                data.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+                report(sent.addAndGet(count));
+            }
+        }
+
+        /**
+         * Writes a part of a payload to the body of a request.
+         *
+         * @param out The stream of the request body.
+         * @param payload The payload.
+         * @param start The offset of the first byte to write.
+         * @param end The offset after the last byte to write.
+         * @throws IOException If the data could not be written.
+         */
+        void write(OutputStream out, Payload payload, long start, long end) throws IOException {
+            for (long position = start; position < end; position += WRITE_LENGTH) {
+                write(out, payload.getData(position, (int) Math.min(WRITE_LENGTH, end - position)));
+            }
+        }
+
+        /**
+         * Sets the progress back by bytes that have to be sent again, for
+         * example after a request failed.
+         *
+         * @param count The number of bytes.
+         */
+        void discard(long count) {
+            report(sent.addAndGet(-count));
+        }
+
+        private void report(long total) {
+            if (progress != null) {
+                progress.accept((int) (100 * total / Math.max(1, length)));
+            }
+        }
+
+    }
+
+    /**
+     * The reply to a request.
+     */
+    static class Reply {
+
+        private final HttpURLConnection connection;
+        private final String body;
+
+        private Reply(HttpURLConnection connection, String body) {
+            this.connection = connection;
+            this.body = body;
+        }
+
+        /**
+         * Gets a header of the reply.
+         *
+         * @param name The name of the header.
+         * @return the value of the header, or null if there is none
+         */
+        String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        /**
+         * Gets the body of the reply.
+         *
+         * @return the body as text
+         */
+        String getBody() {
+            return body;
+        }
+
+    }
+
+}
@@ -5,6 +5,7 @@ import it.ksuploader.client.ui.PopupDialog;
 import it.ksuploader.client.utils.Environment;
 import it.ksuploader.client.utils.ShortcutListener;
 import it.ksuploader.client.utils.Sound;
+import it.ksuploader.client.utils.TaskRunner;
 
 import java.io.File;
 import java.io.IOException;
@@ -43,6 +44,7 @@ public class KSUploader {
     private SystemTrayMenu tray;
     private ShortcutListener shortcutListener;
     private PopupDialog popup;
+    private UploadJournal uploadJournal;
 
     private KSUploader() {
         environment = Environment.getEnvironment();
@@ -73,6 +75,12 @@ public class KSUploader {
             return;
         }
 
+        try {
+            uploadJournal = new UploadJournal(configDir);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "I/O error while trying to read the upload journal; failed uploads won't be retried.", ex);
+        }
+
         autoStartCheck();
         SwingUtilities.invokeLater(() -> this.tray = new SystemTrayMenu());
         this.shortcutListener = new ShortcutListener();
@@ -107,12 +115,46 @@ public class KSUploader {
     }
 
     /**
-     * Starts the application.
+     * Gets the PopupDialog object.
+     *
+     * @return PopupDialog instance
+     */
+    public PopupDialog getPopupDialog() {
+        return popup;
+    }
+
+    /**
+     * Gets the Uploader chosen in the configuration with {@code UPLOADER} or
+     * {@code FTP_ENABLED}.
+     *
+     * @return Uploader instance
+     * @see DestinationRegistry
+     */
+    public Uploader getUploader() {
+        return DestinationRegistry.getDefault();
+    }
+
+    /**
+     * Gets the UploadJournal that keeps uploads which failed because the
+     * server couldn't be reached.
+     *
+     * @return UploadJournal instance, or null if the journal couldn't be read
+     */
+    public UploadJournal getUploadJournal() {
+        return uploadJournal;
+    }
+
+    /**
+     * Starts the application, and resumes the uploads that were pending when
+     * it stopped.
      *
      * @param args Command line arguments
      */
     public static void main(String[] args) {
         inst = new KSUploader();
+        if (inst.uploadJournal != null) {
+            inst.uploadJournal.resume();
+        }
     }
 
     /**
@@ -137,6 +179,8 @@ public class KSUploader {
     public void reloadConfiguration() {
         try {
             config = new Configuration(environment.getConfigurationDirectory());
+            FrameConnection.clearLegacyServers();
+            SystemTrayMenu.clearMaxLengths();
         } catch (IOException ex) {
             logger.log(Level.WARNING, "I/O error while trying to read the configuration file.", ex);
         }
@@ -149,7 +193,7 @@ public class KSUploader {
      */
     public boolean runSound() {
         try {
-            new Sound(Sound.URL_TO_SUCCESS_SOUND).start();
+            TaskRunner.submit(new Sound(Sound.URL_TO_SUCCESS_SOUND));
             return true;
         } catch (UnsupportedAudioFileException ex) {
             logger.log(Level.WARNING, "Couldn't load the application's success sound: invalid file.", ex);
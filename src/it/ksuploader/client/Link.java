@@ -0,0 +1,45 @@
+package it.ksuploader.client;
+
+/**
+ * The link to an uploaded file, as returned by an {@link Uploader}.
+ */
+public class Link {
+
+    private final String url;
+    private final String uploader;
+
+    /**
+     * Constructs a new Link.
+     *
+     * @param url The URL at which the file can be found.
+     * @param uploader The name of the uploader that uploaded the file.
+     */
+    public Link(String url, String uploader) {
+        this.url = url;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Gets the URL at which the file can be found.
+     *
+     * @return the URL
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Gets the name of the uploader that uploaded the file.
+     *
+     * @return the uploader name
+     */
+    public String getUploader() {
+        return uploader;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+}
@@ -0,0 +1,239 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.utils.ByteBufferInputStream;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * The contents of a file that is being uploaded, read once so that it can be
+ * sent to several destinations. Small files are read into memory; larger
+ * files are mapped, so they are not copied at all. The contents are kept in
+ * windows of {@link #WINDOW_LENGTH} bytes, because a buffer can't be longer
+ * than 2 GiB.
+ */
+public class Payload {
+
+    /**
+     * Files up to this length in bytes are read into memory, so that the file
+     * itself is closed right away and can be deleted.
+     */
+    private static final long MAX_BUFFERED_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The length in bytes of every window of the contents but the last.
+     */
+    static final int WINDOW_LENGTH = 1024 * 1024 * 1024;
+
+    /**
+     * The number of bytes of the SHA-256 hash of the contents that are used
+     * in the content name; 8 bytes make a collision between two different
+     * files practically impossible.
+     */
+    private static final int CONTENT_HASH_LENGTH = 8;
+
+    private final String name;
+    private final String type;
+    /* The window at index i starts at i * WINDOW_LENGTH. */
+    private final ByteBuffer[] windows;
+    private final long length;
+    private String contentName;
+
+    /**
+     * Constructs a new Payload.
+     *
+     * @param name The name of the file.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @param data The contents of the file, from its position to its limit.
+     */
+    public Payload(String name, String type, ByteBuffer data) {
+        this(name, type, split(data.slice()));
+    }
+
+    private Payload(String name, String type, ByteBuffer[] windows) {
+        this.name = name;
+        this.type = type;
+        this.windows = windows;
+        long total = 0;
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = windows[i].asReadOnlyBuffer();
+            total += windows[i].capacity();
+        }
+        this.length = total;
+    }
+
+    /**
+     * Splits a buffer into windows.
+     */
+    private static ByteBuffer[] split(ByteBuffer data) {
+        ByteBuffer[] windows = new ByteBuffer[Math.max(1, (data.capacity() + WINDOW_LENGTH - 1) / WINDOW_LENGTH)];
+        for (int i = 0; i < windows.length; i++) {
+            ByteBuffer window = data.duplicate();
+            window.position(i * WINDOW_LENGTH).limit((int) Math.min(data.capacity(), (i + 1L) * WINDOW_LENGTH));
+            windows[i] = window.slice();
+        }
+        return windows;
+    }
+
+    /**
+     * Reads a file.
+     *
+     * @param file The file to read.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return the payload with the contents of the file
+     * @throws IOException If the file could not be read.
+     */
+    public static Payload read(File file, String type) throws IOException {
+        return read(file, file.getName(), type);
+    }
+
+    /**
+     * Reads a file to upload it under another name.
+     *
+     * @param file The file to read.
+     * @param name The name with which the file is uploaded.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return the payload with the contents of the file
+     * @throws IOException If the file could not be read.
+     */
+    public static Payload read(File file, String name, String type) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > MAX_BUFFERED_LENGTH) {
+                ByteBuffer[] windows = new ByteBuffer[(int) ((length + WINDOW_LENGTH - 1) / WINDOW_LENGTH)];
+                for (int i = 0; i < windows.length; i++) {
+                    long position = (long) i * WINDOW_LENGTH;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_LENGTH, length - position));
+                }
+                return new Payload(name, type, windows);
+            }
+            ByteBuffer data = ByteBuffer.allocate((int) length);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new EOFException("The file became shorter while it was read: " + file);
+                }
+            }
+            data.flip();
+            return new Payload(name, type, data);
+        }
+    }
+
+    /**
+     * Gets the name of the file.
+     *
+     * @return the file name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the kind of file.
+     *
+     * @return "img", "file" or "txt"
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Gets the length of the file.
+     *
+     * @return the length in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets a part of the contents of the file. Every call returns a new
+     * buffer with its own position, so several uploads can read the contents
+     * at the same time. A part that lies within one window isn't copied.
+     *
+     * @param position The offset of the part in the file.
+     * @param count The length of the part in bytes.
+     * @return a read-only buffer with the part, from its position to its
+     * limit
+     * @throws IndexOutOfBoundsException If the part doesn't lie within the
+     * file.
+     */
+    public ByteBuffer getData(long position, int count) {
+        if (position < 0 || count < 0 || position + count > length) {
+            throw new IndexOutOfBoundsException("Bytes " + position + " to " + (position + count) + " of " + length);
+        }
+        int index = (int) (position / WINDOW_LENGTH);
+        int offset = (int) (position % WINDOW_LENGTH);
+        if (count == 0 || offset + count <= windows[index].capacity()) {
+            ByteBuffer data = windows[index].duplicate();
+            data.limit(offset + count).position(offset);
+            return data.slice();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(count);
+        while (copy.hasRemaining()) {
+            ByteBuffer window = windows[index++].duplicate();
+            window.position(offset).limit(Math.min(window.capacity(), offset + copy.remaining()));
+            copy.put(window);
+            offset = 0;
+        }
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets a name derived from the contents of the file: a short hash of the
+     * contents followed by the extension of the file name. Files with
+     * different contents get different names, so uploads that happen at the
+     * same time don't overwrite each other, and the name is known before the
+     * upload starts. The hash is computed the first time.
+     *
+     * @return the name, for example "3f9a1c7be20d41e5.png"
+     */
+    public synchronized String getContentName() {
+        if (contentName == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("Every Java platform supports SHA-256.", ex);
+            }
+            for (ByteBuffer window : windows) {
+                digest.update(window.duplicate());
+            }
+            byte[] hash = digest.digest();
+            StringBuilder builder = new StringBuilder(2 * CONTENT_HASH_LENGTH + name.length());
+            for (int i = 0; i < CONTENT_HASH_LENGTH; i++) {
+                builder.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            int dot = name.lastIndexOf('.');
+            contentName = (dot > 0) ? builder.append(name.substring(dot)).toString() : builder.toString();
+        }
+        return contentName;
+    }
+
+    /**
+     * Opens a stream that reads the contents of the file.
+     *
+     * @return a new stream positioned at the start of the file
+     */
+    public InputStream openStream() {
+        if (windows.length == 1) {
+            return new ByteBufferInputStream(windows[0].duplicate());
+        }
+        InputStream[] streams = new InputStream[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            streams[i] = new ByteBufferInputStream(windows[i].duplicate());
+        }
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(streams)));
+    }
+
+}
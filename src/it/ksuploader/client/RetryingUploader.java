@@ -0,0 +1,395 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.utils.UploadScheduler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Wraps an {@link Uploader} to try uploads again that failed because the
+ * connection to the destination failed or was reset, up to
+ * {@code UPLOAD_ATTEMPTS} times, waiting a random, exponentially growing time
+ * between attempts. Refusals of the server, such as a wrong password or a file
+ * that is too large, are never tried again.
+ * <p>
+ * Every destination has a circuit breaker: after
+ * {@code CIRCUIT_BREAKER_THRESHOLD} failed attempts in a row, uploads to it
+ * fail right away for {@code CIRCUIT_BREAKER_COOLDOWN} seconds, so that a dead
+ * server doesn't make every upload wait for the connect timeout. Then one
+ * upload is let through to find out whether the server is back. The failure
+ * is a {@link ConnectException}, so the upload is kept in the
+ * {@link UploadJournal}.
+ */
+public class RetryingUploader implements Uploader {
+
+    /**
+     * The longest time in milliseconds before the second attempt; it doubles
+     * with every further attempt.
+     */
+    private static final long RETRY_DELAY = 500;
+
+    /**
+     * The longest time in milliseconds between two attempts.
+     */
+    private static final long MAX_RETRY_DELAY = 8000;
+
+    /**
+     * The circuit breakers, by destination name.
+     */
+    private static final Map<String, CircuitBreaker> BREAKERS = new HashMap<>();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "KSUploader upload retries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Uploader uploader;
+
+    /**
+     * Constructs a new RetryingUploader.
+     *
+     * @param uploader The uploader whose uploads are tried again.
+     */
+    public RetryingUploader(Uploader uploader) {
+        this.uploader = uploader;
+    }
+
+    /**
+     * Gets the uploader whose uploads are tried again.
+     *
+     * @return the wrapped uploader
+     */
+    public Uploader getUploader() {
+        return uploader;
+    }
+
+    @Override
+    public String getName() {
+        return uploader.getName();
+    }
+
+    @Override
+    public Set<Capability> getCapabilities() {
+        return uploader.getCapabilities();
+    }
+
+    @Override
+    public String predictLink(Payload payload) {
+        return uploader.predictLink(payload);
+    }
+
+    /**
+     * Asks the wrapped uploader, unless the circuit breaker of the
+     * destination is open. A failure to reach the destination counts as a
+     * failed attempt.
+     */
+    @Override
+    public long getMaxLength(String type) throws IOException {
+        CircuitBreaker breaker = getBreaker();
+        if (!breaker.isClosed()) {
+            return -1;
+        }
+        try {
+            long maxLength = uploader.getMaxLength(type);
+            breaker.succeeded();
+            return maxLength;
+        } catch (ServerReplyException ex) {
+            breaker.succeeded();
+            throw ex;
+        } catch (IOException ex) {
+            if (isRetryable(ex)) {
+                breaker.failed();
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+        return new Attempts(payload, progress, null).start();
+    }
+
+    @Override
+    public CompletableFuture<Link> upload(Payload payload, IntConsumer progress, Consumer<String> reserved) {
+        return new Attempts(payload, progress, reserved).start();
+    }
+
+    /**
+     * Gets whether an upload that failed is worth trying again: the
+     * connection couldn't be made, was reset or timed out. Refusals of the
+     * server and cancelled uploads aren't.
+     *
+     * @param ex The reason the upload failed.
+     * @return true if another attempt may succeed
+     */
+    public static boolean isRetryable(Throwable ex) {
+        if (ex instanceof ServerReplyException) {
+            return false;
+        }
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof SocketTimeoutException
+                    || cause instanceof EOFException || cause instanceof UnknownHostException) {
+                return true;
+            }
+            if (cause instanceof InterruptedIOException) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the circuit breaker of this destination.
+     */
+    private CircuitBreaker getBreaker() {
+        synchronized (BREAKERS) {
+            return BREAKERS.computeIfAbsent(getName(), CircuitBreaker::new);
+        }
+    }
+
+    /**
+     * Gets a random time to wait before an attempt, between half and all of
+     * the time that doubles with every attempt.
+     */
+    static long getDelay(int attempt) {
+        long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(attempt - 2, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * The attempts of one upload, which complete one future.
+     */
+    private class Attempts {
+
+        private final Payload payload;
+        private final IntConsumer progress;
+        private final Consumer<String> reserved;
+        private final CircuitBreaker breaker = getBreaker();
+        private final CompletableFuture<Link> link;
+        /* Runs the next attempt as part of the upload job that started the first one. */
+        private final Runnable retry;
+        private Future<?> current;
+        private int attempt;
+
+        private Attempts(Payload payload, IntConsumer progress, Consumer<String> reserved) {
+            this.payload = payload;
+            this.progress = progress;
+            AtomicBoolean told = new AtomicBoolean();
+            this.reserved = (reserved == null) ? null : (reservedLink) -> {
+                /* A later attempt may reserve another link; only the first is told. */
+                if (told.compareAndSet(false, true)) {
+                    reserved.accept(reservedLink);
+                }
+            };
+            this.link = new CompletableFuture<Link>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    if (cancelled) {
+                        Future<?> running;
+                        synchronized (Attempts.this) {
+                            running = current;
+                        }
+                        if (running != null) {
+                            running.cancel(mayInterruptIfRunning);
+                        }
+                    }
+                    return cancelled;
+                }
+            };
+            this.retry = UploadScheduler.inCurrentJob(this::next);
+        }
+
+        /**
+         * Starts the first attempt.
+         *
+         * @return the future for the link, which completes once an attempt
+         * succeeded or no attempt is left
+         */
+        private CompletableFuture<Link> start() {
+            next();
+            return link;
+        }
+
+        /**
+         * Starts the next attempt, unless the upload was cancelled or the
+         * circuit breaker doesn't let it through.
+         */
+        private void next() {
+            if (link.isDone()) {
+                return;
+            }
+            attempt++;
+            if (!breaker.allow()) {
+                link.completeExceptionally(new ConnectException("Uploads to " + getName() + " failed " + breaker.getFailures()
+                        + " times in a row; they are paused for up to " + breaker.getCooldown() / 1000 + " s."));
+                return;
+            }
+            CompletableFuture<Link> upload;
+            try {
+                upload = (reserved == null) ? uploader.upload(payload, progress) : uploader.upload(payload, progress, reserved);
+            } catch (RuntimeException ex) {
+                breaker.release();
+                link.completeExceptionally(ex);
+                return;
+            }
+            synchronized (this) {
+                current = upload;
+            }
+            if (link.isCancelled()) {
+                upload.cancel(true);
+            }
+            upload.whenComplete(this::completed);
+        }
+
+        /**
+         * Completes the upload after an attempt, or schedules another attempt.
+         */
+        private void completed(Link received, Throwable ex) {
+            if (ex instanceof CompletionException && ex.getCause() != null) {
+                ex = ex.getCause();
+            }
+            if (ex == null) {
+                breaker.succeeded();
+                link.complete(received);
+                return;
+            }
+            if (link.isCancelled()) {
+                breaker.release();
+                return;
+            }
+            if (!isRetryable(ex)) {
+                /* The server answered, so it is there. */
+                if (ex instanceof ServerReplyException) {
+                    breaker.succeeded();
+                } else {
+                    breaker.release();
+                }
+                link.completeExceptionally(ex);
+                return;
+            }
+            breaker.failed();
+            int attempts = Math.max(1, Setting.UPLOAD_ATTEMPTS.getIntValue());
+            if (attempt >= attempts || !breaker.isClosed()) {
+                link.completeExceptionally(ex);
+                return;
+            }
+            long delay = getDelay(attempt + 1);
+            KSUploader.logger.log(Level.INFO, "Attempt " + attempt + " of " + attempts + " to upload " + payload.getName() + " to " + getName()
+                    + " failed; trying again in " + delay + " ms.", ex);
+            Future<?> scheduled = TIMER.schedule(retry, delay, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                current = scheduled;
+            }
+            if (link.isCancelled()) {
+                scheduled.cancel(false);
+            }
+        }
+
+    }
+
+    /**
+     * Counts the failed attempts in a row to upload to a destination, and
+     * stops uploads to it for a while when there are too many.
+     */
+    private static class CircuitBreaker {
+
+        private final String name;
+        private int failures;
+        private long openedAt;
+        private boolean open;
+        private boolean probing;
+
+        private CircuitBreaker(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets whether an attempt may start. Once the cooldown has passed,
+         * one attempt at a time is let through.
+         */
+        private synchronized boolean allow() {
+            if (!open) {
+                return true;
+            }
+            if (probing || System.currentTimeMillis() - openedAt < getCooldown()) {
+                return false;
+            }
+            KSUploader.logger.log(Level.INFO, "Trying {0} again.", name);
+            probing = true;
+            return true;
+        }
+
+        /**
+         * Closes the breaker after an attempt reached the destination.
+         */
+        private synchronized void succeeded() {
+            if (open) {
+                KSUploader.logger.log(Level.INFO, "{0} is reachable again.", name);
+            }
+            failures = 0;
+            open = false;
+            probing = false;
+        }
+
+        /**
+         * Counts a failed attempt, and opens the breaker if there are too
+         * many in a row.
+         */
+        private synchronized void failed() {
+            failures++;
+            probing = false;
+            if (open || failures >= Math.max(1, Setting.CIRCUIT_BREAKER_THRESHOLD.getIntValue())) {
+                if (!open) {
+                    KSUploader.logger.log(Level.WARNING, "{0} failed {1} times in a row; stopping uploads to it for {2} s.",
+                            new Object[]{name, failures, getCooldown() / 1000});
+                }
+                open = true;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Ends an attempt that tells nothing about the destination, such as a
+         * cancelled one.
+         */
+        private synchronized void release() {
+            probing = false;
+        }
+
+        private synchronized boolean isClosed() {
+            return !open;
+        }
+
+        private synchronized int getFailures() {
+            return failures;
+        }
+
+        private long getCooldown() {
+            return Math.max(1, Setting.CIRCUIT_BREAKER_COOLDOWN.getIntValue()) * 1000L;
+        }
+
+    }
+
+}
@@ -0,0 +1,374 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.HttpUploader.Reply;
+import it.ksuploader.client.HttpUploader.Sender;
+import it.ksuploader.client.utils.TaskRunner;
+import it.ksuploader.client.utils.UploadScheduler;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads files to an S3-compatible object store, such as Amazon S3 or MinIO,
+ * in the bucket {@code S3_BUCKET} under {@code S3_KEY_PREFIX} followed by the
+ * file name. Files larger than {@code S3_PART_SIZE} are sent with a multipart
+ * upload: the parts are sent over {@code S3_PARALLEL_PARTS} connections at the
+ * same time, a part that fails is sent again on its own, and the upload is
+ * aborted if a part keeps failing, so that the store doesn't keep the parts.
+ * <p>
+ * Requests are signed with AWS Signature Version 4. The body isn't part of the
+ * signature, so the data is sent straight from the payload without being read
+ * twice.
+ */
+public class S3Uploader implements Uploader {
+
+    /**
+     * The smallest length in bytes S3 accepts for a part other than the last.
+     */
+    private static final long MIN_PART_LENGTH = 5 * 1024 * 1024;
+
+    /**
+     * The largest length in bytes of a part. A part is sent from one buffer,
+     * which is at most one window of the payload, or a copy if it spans two.
+     */
+    private static final long MAX_PART_LENGTH = Payload.WINDOW_LENGTH;
+
+    /**
+     * The largest number of parts S3 accepts in a multipart upload.
+     */
+    private static final int MAX_PARTS = 10000;
+
+    /**
+     * The number of times a part is sent before the upload fails.
+     */
+    private static final int PART_ATTEMPTS = 3;
+
+    /**
+     * The time in milliseconds before a failed part is sent again; doubled
+     * for every further attempt.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    @Override
+    public String getName() {
+        return DestinationRegistry.S3;
+    }
+
+    @Override
+    public Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.STREAMING, Capability.PARALLEL);
+    }
+
+    @Override
+    public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+        return Uploader.runAsync(getName(), () -> transfer(payload, progress));
+    }
+
+    /**
+     * Uploads a payload without showing anything to the user.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @return the link to the uploaded file: {@code S3_WEB_URL} followed by
+     * the key, or the URL of the object if {@code S3_WEB_URL} is empty
+     * @throws ServerReplyException If the store refused the credentials or the
+     * file.
+     * @throws IOException If the upload failed.
+     */
+    private static String transfer(Payload payload, IntConsumer progress) throws IOException {
+        String key = Setting.S3_KEY_PREFIX.getValue() + payload.getName();
+        String path = "/" + encode(Setting.S3_BUCKET.getValue().toString(), true) + "/" + encode(key, false);
+        String contentType = URLConnection.guessContentTypeFromName(payload.getName());
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        Sender sender = new Sender(payload.getLength(), progress);
+        long partLength = Math.min(MAX_PART_LENGTH, Math.max(Math.max(MIN_PART_LENGTH, 1024L * Setting.S3_PART_SIZE.getIntValue()),
+                (payload.getLength() + MAX_PARTS - 1) / MAX_PARTS));
+        if (payload.getLength() <= partLength) {
+            request("PUT", path, "", payload.getData(0, (int) payload.getLength()), contentType, sender);
+        } else {
+            uploadParts(path, payload, partLength, contentType, sender);
+        }
+
+        String webUrl = Setting.S3_WEB_URL.getValue().toString();
+        return webUrl.isEmpty() ? getEndpoint() + path : webUrl + encode(key, false);
+    }
+
+    /**
+     * Uploads a payload with a multipart upload, and aborts the upload if it
+     * fails.
+     */
+    private static void uploadParts(String path, Payload payload, long partLength, String contentType, Sender sender) throws IOException {
+        Matcher matcher = UPLOAD_ID.matcher(request("POST", path, "uploads=", ByteBuffer.allocate(0), contentType, null).getBody());
+        if (!matcher.find()) {
+            throw new IOException("The object store didn't start a multipart upload of " + payload.getName());
+        }
+        String uploadId = matcher.group(1);
+        try {
+            String[] etags = sendParts(path, uploadId, payload, partLength, sender);
+            StringBuilder complete = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 0; i < etags.length; i++) {
+                complete.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                        .append(etags[i].replace("&", "&amp;")).append("</ETag></Part>");
+            }
+            complete.append("</CompleteMultipartUpload>");
+            Reply reply = request("POST", path, "uploadId=" + encode(uploadId, true),
+                    ByteBuffer.wrap(complete.toString().getBytes(StandardCharsets.UTF_8)), "application/xml", null);
+            /* The store can report a failure after it already replied 200. */
+            if (reply.getBody().contains("<Error>")) {
+                throw new IOException("The object store couldn't complete the upload of " + payload.getName() + ": " + reply.getBody());
+            }
+        } catch (IOException | RuntimeException ex) {
+            try {
+                request("DELETE", path, "uploadId=" + encode(uploadId, true), null, null, null);
+            } catch (IOException abortEx) {
+                KSUploader.logger.log(Level.INFO, "Couldn't abort the multipart upload of " + payload.getName(), abortEx);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends the parts of a multipart upload over {@code S3_PARALLEL_PARTS}
+     * connections. The current thread sends parts as well, so the upload
+     * finishes even if no other task can be started.
+     *
+     * @return the ETag of every part, in order
+     */
+    private static String[] sendParts(String path, String uploadId, Payload payload, long partLength, Sender sender) throws IOException {
+        int partCount = (int) ((payload.getLength() + partLength - 1) / partLength);
+        String[] etags = new String[partCount];
+        AtomicInteger nextPart = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Object lock = new Object();
+        int[] finishedParts = new int[1];
+        Runnable worker = () -> {
+            int part;
+            while (failure.get() == null && (part = nextPart.getAndIncrement()) < partCount) {
+                try {
+                    long start = part * partLength;
+                    ByteBuffer data = payload.getData(start, (int) (Math.min(payload.getLength(), start + partLength) - start));
+                    etags[part] = sendPart(path, uploadId, part + 1, data, sender);
+                } catch (IOException ex) {
+                    failure.compareAndSet(null, ex);
+                } catch (RuntimeException ex) {
+                    failure.compareAndSet(null, new IOException("Part " + (part + 1) + " of " + payload.getName() + " failed.", ex));
+                } finally {
+                    synchronized (lock) {
+                        finishedParts[0]++;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        };
+
+        int workers = Math.min(partCount, Math.max(1, Setting.S3_PARALLEL_PARTS.getIntValue()));
+        for (int i = 1; i < workers; i++) {
+            TaskRunner.submit(UploadScheduler.inCurrentJob(worker));
+        }
+        worker.run();
+        synchronized (lock) {
+            while (finishedParts[0] < Math.min(nextPart.get(), partCount)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    failure.compareAndSet(null, new InterruptedIOException("Interrupted while sending the parts."));
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return etags;
+    }
+
+    /**
+     * Sends one part, and sends it again if it fails for another reason than
+     * a refusal of the store.
+     *
+     * @return the ETag of the part
+     */
+    private static String sendPart(String path, String uploadId, int partNumber, ByteBuffer data, Sender sender) throws IOException {
+        String query = "partNumber=" + partNumber + "&uploadId=" + encode(uploadId, true);
+        for (int attempt = 1;; attempt++) {
+            ByteBuffer body = data.duplicate();
+            try {
+                String etag = request("PUT", path, query, body, "application/octet-stream", sender).getHeader("ETag");
+                if (etag == null) {
+                    throw new IOException("The object store didn't return an ETag for part " + partNumber);
+                }
+                return etag;
+            } catch (SocketTimeoutException ex) {
+                /* The store was too slow to reply, so the part is sent again; other interruptions stop the upload. */
+                sender.discard(body.position());
+                waitToSendAgain(partNumber, attempt, ex);
+            } catch (ServerReplyException | InterruptedIOException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                sender.discard(body.position());
+                waitToSendAgain(partNumber, attempt, ex);
+            }
+        }
+    }
+
+    /**
+     * Waits before a part that failed is sent again, or gives up if it was
+     * sent {@code PART_ATTEMPTS} times.
+     *
+     * @throws IOException The failure, if the part isn't sent again.
+     */
+    private static void waitToSendAgain(int partNumber, int attempt, IOException failure) throws IOException {
+        if (attempt >= PART_ATTEMPTS) {
+            throw failure;
+        }
+        long delay = RETRY_DELAY << (attempt - 1);
+        KSUploader.logger.log(Level.INFO, "Part " + partNumber + " failed; sending it again in " + delay + " ms.", failure);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send part " + partNumber + " again.");
+        }
+    }
+
+    /**
+     * Sends a signed request to the object store.
+     *
+     * @param method The method of the request.
+     * @param path The encoded path of the object, starting with the bucket.
+     * @param query The encoded query, with the parameters sorted by name.
+     * @param body The body of the request, or null if it has none.
+     * @param contentType The type of the body, or null if it has none.
+     * @param sender Writes the body within the bandwidth limit, or null to
+     * write it at once.
+     * @return the reply
+     */
+    private static Reply request(String method, String path, String query, ByteBuffer body, String contentType, Sender sender) throws IOException {
+        URL url = new URL(getEndpoint() + path + (query.isEmpty() ? "" : "?" + query));
+        HttpURLConnection connection = HttpUploader.open(url, method, contentType, (body == null) ? -1 : body.remaining());
+        sign(connection, url, query);
+        if (body != null) {
+            try (OutputStream out = connection.getOutputStream()) {
+                if (sender != null) {
+                    sender.write(out, body);
+                } else {
+                    Channels.newChannel(out).write(body);
+                }
+            }
+        }
+        return HttpUploader.readReply(connection);
+    }
+
+    /**
+     * Adds the AWS Signature Version 4 headers to a request.
+     */
+    private static void sign(HttpURLConnection connection, URL url, String query) throws IOException {
+        String amzDate = ZonedDateTime.now(ZoneOffset.UTC).format(AMZ_DATE);
+        String date = amzDate.substring(0, 8);
+        String region = Setting.S3_REGION.getValue().toString();
+        String host = url.getHost() + ((url.getPort() == -1 || url.getPort() == url.getDefaultPort()) ? "" : ":" + url.getPort());
+        String canonicalRequest = connection.getRequestMethod() + "\n"
+                + url.getPath() + "\n"
+                + query + "\n"
+                + "host:" + host + "\n"
+                + "x-amz-content-sha256:" + UNSIGNED_PAYLOAD + "\n"
+                + "x-amz-date:" + amzDate + "\n\n"
+                + SIGNED_HEADERS + "\n"
+                + UNSIGNED_PAYLOAD;
+        String scope = date + "/" + region + "/s3/aws4_request";
+        try {
+            String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                    + hex(MessageDigest.getInstance("SHA-256").digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+            byte[] key = hmac(("AWS4" + Setting.S3_SECRET_KEY.getValue()).getBytes(StandardCharsets.UTF_8), date);
+            key = hmac(key, region);
+            key = hmac(key, "s3");
+            key = hmac(key, "aws4_request");
+            connection.setRequestProperty("x-amz-date", amzDate);
+            connection.setRequestProperty("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+            connection.setRequestProperty("Authorization", ALGORITHM + " Credential=" + Setting.S3_ACCESS_KEY.getValue() + "/" + scope
+                    + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + hex(hmac(key, stringToSign)));
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Couldn't sign the request.", ex);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Gets {@code S3_ENDPOINT} without a trailing slash.
+     */
+    private static String getEndpoint() {
+        String endpoint = Setting.S3_ENDPOINT.getValue().toString().trim();
+        return endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+    }
+
+    /**
+     * Encodes a value the way S3 expects it in paths and queries: every byte
+     * except letters, digits and "-_.~" is percent-encoded.
+     *
+     * @param value The value to encode.
+     * @param encodeSlash Whether "/" is encoded too, as in query values.
+     */
+    private static String encode(String value, boolean encodeSlash) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+}
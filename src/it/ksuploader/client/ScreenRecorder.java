@@ -0,0 +1,163 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.utils.GifSequenceWriter;
+import it.ksuploader.client.utils.TileIndex;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+
+/**
+ * Records a region of the screen as an animated GIF. Frames are sampled at a
+ * fixed rate and only the part of a frame that changed since the previous one
+ * is encoded. Frames are written to disk while recording, so memory use does
+ * not grow with the length of the recording.
+ */
+public class ScreenRecorder {
+
+    /**
+     * The width and height in pixels of the tiles that are compared between
+     * frames.
+     */
+    private static final int TILE_SIZE = 32;
+
+    private final Robot robot;
+    private final Rectangle region;
+    private final int frameDelay;
+    private volatile boolean stopRequested;
+
+    /**
+     * Constructs a new ScreenRecorder.
+     *
+     * @param region The area of the screen to record.
+     * @param fps The number of frames per second to sample.
+     * @throws AWTException If the Operating System doesn't allow capturing the
+     * screen.
+     * @throws IllegalArgumentException If {@code fps} is not positive.
+     */
+    public ScreenRecorder(Rectangle region, int fps) throws AWTException {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("The frame rate must be positive: " + fps);
+        }
+        this.robot = new Robot();
+        this.region = new Rectangle(region);
+        this.frameDelay = 1000 / fps;
+    }
+
+    /**
+     * Records the screen region to a file. Blocks until the maximum duration
+     * has passed or until {@link #stop()} is called.
+     *
+     * @param target The file to write the recording to.
+     * @param maxDuration The maximum length of the recording in milliseconds.
+     * @throws IOException If an I/O error occurs while writing the recording.
+     */
+    public void record(File target, long maxDuration) throws IOException {
+        stopRequested = false;
+        long start = System.currentTimeMillis();
+        long nextFrame = start;
+        KSUploader.logger.log(Level.INFO, "Started recording {0}", region);
+
+        try (GifSequenceWriter gif = new GifSequenceWriter(target)) {
+            Frames frames = new Frames(gif, frameDelay);
+            while (!stopRequested && System.currentTimeMillis() - start < maxDuration) {
+                long frameTime = System.currentTimeMillis();
+                frames.add(robot.createScreenCapture(region), frameTime);
+
+                nextFrame += frameDelay;
+                long sleep = nextFrame - System.currentTimeMillis();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                } else {
+                    /* Capturing is slower than the frame rate; don't try to
+                     catch up. */
+                    nextFrame = System.currentTimeMillis();
+                }
+            }
+            frames.finish(System.currentTimeMillis());
+        }
+        KSUploader.logger.log(Level.INFO, "Stopped recording after {0} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Stops a recording that is in progress.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Writes the sampled frames of one recording, each cropped to the part
+     * that changed since the previous frame. A frame is only written once the
+     * next changed frame arrives, because only then its display time is
+     * known.
+     */
+    static class Frames {
+
+        private final TileIndex tileIndex = new TileIndex(TILE_SIZE);
+        private final GifSequenceWriter gif;
+        private final int frameDelay;
+        private BufferedImage pending;
+        private Rectangle pendingBounds;
+        private long pendingTime;
+
+        /**
+         * Constructs a new Frames.
+         *
+         * @param gif The animation to write the frames to.
+         * @param frameDelay The time in milliseconds between two samples.
+         */
+        Frames(GifSequenceWriter gif, int frameDelay) {
+            this.gif = gif;
+            this.frameDelay = frameDelay;
+        }
+
+        /**
+         * Adds a sampled frame. A frame that didn't change is left out, so
+         * the previous frame is shown longer.
+         *
+         * @param frame The sampled frame.
+         * @param frameTime The time in milliseconds the frame was sampled.
+         * @throws IOException If an I/O error occurs while writing the
+         * previous frame.
+         */
+        void add(BufferedImage frame, long frameTime) throws IOException {
+            Rectangle changed = tileIndex.update(frame);
+            if (changed == null) {
+                return;
+            }
+            if (pending != null) {
+                gif.writeFrame(pending, pendingBounds.x, pendingBounds.y, (int) (frameTime - pendingTime));
+            }
+            pending = frame.getSubimage(changed.x, changed.y, changed.width, changed.height);
+            pendingBounds = changed;
+            pendingTime = frameTime;
+        }
+
+        /**
+         * Writes the last frame, shown until the recording ended but at least
+         * for the time between two samples.
+         *
+         * @param endTime The time in milliseconds the recording ended.
+         * @throws IOException If an I/O error occurs while writing the frame.
+         */
+        void finish(long endTime) throws IOException {
+            if (pending != null) {
+                long shown = Math.max(frameDelay, endTime - pendingTime);
+                gif.writeFrame(pending, pendingBounds.x, pendingBounds.y, (int) shown);
+                pending = null;
+            }
+        }
+
+    }
+
+}
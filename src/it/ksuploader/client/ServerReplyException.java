@@ -0,0 +1,33 @@
+package it.ksuploader.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown if KSUploader-server refuses an upload.
+ */
+public class ServerReplyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String reply;
+
+    /**
+     * Constructs a new ServerReplyException.
+     *
+     * @param reply The reply of the server, for example "FILE_TOO_LARGE".
+     */
+    public ServerReplyException(String reply) {
+        super("The server refused the upload: " + reply);
+        this.reply = reply;
+    }
+
+    /**
+     * Gets the reply with which the server refused the upload.
+     *
+     * @return the reply of the server
+     */
+    public String getReply() {
+        return reply;
+    }
+
+}
@@ -0,0 +1,558 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.utils.BandwidthLimiter;
+import it.ksuploader.client.utils.Environment;
+import it.ksuploader.client.utils.HostConnector;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+import com.jcraft.jsch.SocketFactory;
+import com.jcraft.jsch.UserInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Uploads files to an SSH server over SFTP with JSch, using the SFTP settings
+ * of the configuration. Up to {@code SFTP_MAX_REQUESTS} writes are on their
+ * way at the same time, and authenticated sessions are kept open for a while
+ * so that the next upload doesn't have to log in again.
+ */
+public class SftpUploader implements Uploader {
+
+    /**
+     * The time in milliseconds an unused session is kept open.
+     */
+    private static final long IDLE_TIMEOUT = 30000;
+
+    /**
+     * The maximum number of unused sessions kept open per server.
+     */
+    private static final int MAX_IDLE_PER_SERVER = 4;
+
+    /**
+     * The port on which SSH servers listen by default.
+     */
+    private static final int DEFAULT_PORT = 22;
+
+    /**
+     * The unused sessions, by user and server, the most recently used first.
+     */
+    private static final Map<String, Deque<Session>> IDLE_SESSIONS = new HashMap<>();
+
+    @Override
+    public String getName() {
+        return DestinationRegistry.SFTP;
+    }
+
+    @Override
+    public Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.STREAMING, Capability.PARALLEL);
+    }
+
+    @Override
+    public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+        return Uploader.runAsync(getName(), () -> transfer(payload, progress));
+    }
+
+    /**
+     * Uploads a payload without showing anything to the user.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * written. May be null.
+     * @return the link to the uploaded file
+     * @throws ServerReplyException If the server refused the credentials.
+     * @throws IOException If the upload failed.
+     */
+    private static String transfer(Payload payload, IntConsumer progress) throws IOException {
+        String directory = Setting.SFTP_DIRECTORY.getValue().toString();
+        String path = (directory.isEmpty() || directory.endsWith("/")) ? directory + payload.getName() : directory + "/" + payload.getName();
+        Session session = Session.open();
+        try (InputStream data = BandwidthLimiter.forUpload(payload.getLength()).wrap(payload.openStream())) {
+            if (progress != null) {
+                progress.accept(0);
+            }
+            session.sftp.put(data, path, new ProgressMonitor(payload.getLength(), progress), ChannelSftp.OVERWRITE);
+            if (Thread.currentThread().isInterrupted()) {
+                /* The progress monitor stopped the upload. */
+                throw new InterruptedIOException("The SFTP upload of " + payload.getName() + " was stopped.");
+            }
+        } catch (SftpException ex) {
+            session.close();
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Couldn't upload " + payload.getName() + ": " + ex.getMessage() + " (SFTP status " + ex.id + ")", ex);
+        } catch (IOException | RuntimeException ex) {
+            session.close();
+            throw ex;
+        }
+        session.release();
+        return Setting.SFTP_WEB_URL.getValue() + payload.getName();
+    }
+
+    /**
+     * Turns a failed connection or login into an IOException. A connection
+     * that failed keeps its own exception, so that the upload can be tried
+     * again or kept in the {@link UploadJournal}.
+     */
+    private static IOException toIOException(String server, JSchException ex) {
+        String message = String.valueOf(ex.getMessage());
+        if (message.startsWith("Auth fail") || message.startsWith("Auth cancel")) {
+            return new ServerReplyException("WRONG_PASSWORD");
+        }
+        if (ex.getCause() instanceof IOException) {
+            return (IOException) ex.getCause();
+        }
+        if (message.contains("\"server_host_key\"")) {
+            return new IOException("Couldn't connect to " + server + ": it shows no host key of the types known for it. If its keys changed,"
+                    + " remove the old keys from the known_hosts file in the configuration directory.", ex);
+        }
+        return new IOException("Couldn't connect to " + server + ": " + message, ex);
+    }
+
+    /**
+     * Gets the name under which OpenSSH, and JSch, keep the keys of a server.
+     */
+    private static String getHostName(String host, int port) {
+        return (port == DEFAULT_PORT) ? host : "[" + host + "]:" + port;
+    }
+
+    /**
+     * An authenticated SFTP session, which can be reused by later uploads to
+     * the same server.
+     */
+    private static class Session {
+
+        private final String server;
+        private final String credentials;
+        private final com.jcraft.jsch.Session ssh;
+        private final ChannelSftp sftp;
+        private long idleSince;
+
+        private Session(String server, String credentials, com.jcraft.jsch.Session ssh, ChannelSftp sftp) {
+            this.server = server;
+            this.credentials = credentials;
+            this.ssh = ssh;
+            this.sftp = sftp;
+        }
+
+        /**
+         * Gets a session with the server of the configuration. An unused
+         * session from an earlier upload is reused if there is one; otherwise
+         * a new connection is opened and authenticated.
+         * <p>
+         * If keys of the server are known, only host keys of those types are
+         * accepted, so a server that suddenly shows a key of another type is
+         * refused instead of being trusted as new.
+         *
+         * @return the session
+         * @throws ServerReplyException If the server refused the credentials.
+         * @throws IOException If the server couldn't be reached, showed a host
+         * key that isn't trusted, or doesn't run SFTP.
+         */
+        private static Session open() throws IOException {
+            String host = Setting.SFTP_ADDRESS.getValue().toString();
+            int port = Setting.SFTP_PORT.getIntValue();
+            String user = Setting.SFTP_USER.getValue().toString();
+            String password = Setting.SFTP_PASSWORD.getValue().toString();
+            String keyFile = Setting.SFTP_KEY_FILE.getValue().toString();
+            String hostKey = Setting.SFTP_HOST_KEY.getValue().toString();
+            String server = user + "@" + host + ":" + port;
+            String credentials = password + "\n" + keyFile + "\n" + hostKey;
+
+            Session idle;
+            while ((idle = takeIdle(server)) != null) {
+                if (idle.credentials.equals(credentials) && idle.ssh.isConnected() && idle.sftp.isConnected()) {
+                    KSUploader.logger.log(Level.FINE, "Reusing an SFTP session with {0}", server);
+                    return idle;
+                }
+                idle.close();
+            }
+
+            KnownHosts knownHosts = KnownHosts.getDefault(hostKey);
+            int timeout = HostConnector.getConnectTimeout();
+            com.jcraft.jsch.Session ssh = null;
+            try {
+                JSch jsch = new JSch();
+                jsch.setHostKeyRepository(knownHosts);
+                if (!keyFile.isEmpty()) {
+                    jsch.addIdentity(keyFile);
+                }
+                ssh = jsch.getSession(user, host, port);
+                if (!password.isEmpty()) {
+                    ssh.setPassword(password);
+                }
+                ssh.setConfig("StrictHostKeyChecking", "yes");
+                if (hostKey.isEmpty()) {
+                    ssh.setConfig("server_host_key", knownHosts.getHostKeyAlgorithms(getHostName(host, port)));
+                }
+                ssh.setSocketFactory(new ChannelSocketFactory());
+                ssh.connect(timeout);
+                ChannelSftp sftp = (ChannelSftp) ssh.openChannel("sftp");
+                sftp.setBulkRequests(Math.max(1, Setting.SFTP_MAX_REQUESTS.getIntValue()));
+                sftp.connect(timeout);
+                return new Session(server, credentials, ssh, sftp);
+            } catch (JSchException ex) {
+                if (ssh != null) {
+                    ssh.disconnect();
+                }
+                throw toIOException(server, ex);
+            }
+        }
+
+        /**
+         * Takes the most recently used unused session with a server. Sessions
+         * that have been unused for too long are closed.
+         */
+        private static Session takeIdle(String server) {
+            List<Session> expired = new ArrayList<>();
+            Session session = null;
+            synchronized (IDLE_SESSIONS) {
+                Deque<Session> idle = IDLE_SESSIONS.get(server);
+                long now = System.currentTimeMillis();
+                while (idle != null && session == null && !idle.isEmpty()) {
+                    Session candidate = idle.pop();
+                    if (now - candidate.idleSince < IDLE_TIMEOUT) {
+                        session = candidate;
+                    } else {
+                        expired.add(candidate);
+                    }
+                }
+            }
+            expired.forEach(Session::close);
+            return session;
+        }
+
+        /**
+         * Gives back a session after a successful upload, so that a later
+         * upload can reuse it.
+         */
+        private void release() {
+            synchronized (IDLE_SESSIONS) {
+                Deque<Session> idle = IDLE_SESSIONS.computeIfAbsent(server, (key) -> new ArrayDeque<>());
+                if (idle.size() < MAX_IDLE_PER_SERVER) {
+                    idleSince = System.currentTimeMillis();
+                    idle.push(this);
+                    return;
+                }
+            }
+            close();
+        }
+
+        /**
+         * Closes this session.
+         */
+        private void close() {
+            sftp.disconnect();
+            ssh.disconnect();
+        }
+
+    }
+
+    /**
+     * Connects JSch to servers with the {@link HostConnector}. Reads go
+     * through the socket, so that JSch's timeouts apply to them, while writes
+     * go straight to the channel: the streams of a SocketChannel's socket
+     * share one lock, which would keep JSch from writing while its session
+     * thread waits for data.
+     */
+    private static class ChannelSocketFactory implements SocketFactory {
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return HostConnector.connect(host, port).socket();
+        }
+
+        @Override
+        public InputStream getInputStream(Socket socket) throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream(Socket socket) throws IOException {
+            SocketChannel channel = socket.getChannel();
+            return Channels.newOutputStream(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    return channel.write(src);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Reports the progress of an upload as a percentage, and stops it when
+     * the upload is cancelled.
+     */
+    private static class ProgressMonitor implements SftpProgressMonitor {
+
+        private final long length;
+        private final IntConsumer progress;
+        private long written;
+
+        private ProgressMonitor(long length, IntConsumer progress) {
+            this.length = length;
+            this.progress = progress;
+        }
+
+        @Override
+        public void init(int op, String src, String dest, long max) {
+        }
+
+        @Override
+        public boolean count(long count) {
+            written += count;
+            if (progress != null) {
+                progress.accept((int) (100 * written / Math.max(1, length)));
+            }
+            return !Thread.currentThread().isInterrupted();
+        }
+
+        @Override
+        public void end() {
+        }
+
+    }
+
+    /**
+     * The host keys of the SSH servers connected to before, kept in a file in
+     * the configuration directory with the format of OpenSSH's
+     * {@code known_hosts}. The key a server shows the first time is trusted.
+     * After that, a server is only accepted if it shows one of its known
+     * keys; JSch is told to only negotiate the types of those keys. If
+     * {@code SFTP_HOST_KEY} is set, only the key with that fingerprint is
+     * accepted and the file isn't used.
+     */
+    private static class KnownHosts implements HostKeyRepository {
+
+        private static final String FILE_NAME = "known_hosts";
+
+        /**
+         * The host key algorithms that sign with a key of the type
+         * "ssh-rsa".
+         */
+        private static final List<String> RSA_ALGORITHMS = Arrays.asList("rsa-sha2-512", "rsa-sha2-256", "ssh-rsa");
+
+        private final File file;
+        private final String fingerprint;
+
+        private KnownHosts(File file, String fingerprint) {
+            this.file = file;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Gets the host keys kept in the configuration directory.
+         *
+         * @param fingerprint The fingerprint of the only key to accept, or an
+         * empty string to use the file.
+         * @return the known hosts
+         * @throws IOException If there is no configuration directory.
+         */
+        private static KnownHosts getDefault(String fingerprint) throws IOException {
+            if (!fingerprint.isEmpty()) {
+                return new KnownHosts(null, fingerprint);
+            }
+            File configDir = Environment.getEnvironment().getConfigurationDirectory();
+            if (configDir == null) {
+                throw new IOException("There is no configuration directory to keep host keys in.");
+            }
+            return new KnownHosts(new File(configDir, FILE_NAME), fingerprint);
+        }
+
+        /**
+         * Gets the host key algorithms JSch may negotiate with a server: all
+         * of them if no key of the server is known, and otherwise only those
+         * that use a known key.
+         *
+         * @param host The name of the server, as JSch passes it.
+         * @return the algorithms, separated by commas
+         * @throws IOException If the file couldn't be read, or if no known key
+         * of the server has a type that can be used.
+         */
+        private synchronized String getHostKeyAlgorithms(String host) throws IOException {
+            String supported = JSch.getConfig("server_host_key");
+            Set<String> types = new LinkedHashSet<>();
+            for (String[] entry : read(host)) {
+                types.add(entry[1]);
+            }
+            if (types.isEmpty()) {
+                return supported;
+            }
+            List<String> algorithms = new ArrayList<>();
+            for (String algorithm : supported.split(",")) {
+                if (types.contains(RSA_ALGORITHMS.contains(algorithm) ? "ssh-rsa" : algorithm)) {
+                    algorithms.add(algorithm);
+                }
+            }
+            if (algorithms.isEmpty()) {
+                throw new IOException("The known host keys of " + host + " are of the types " + types
+                        + ", which this Java doesn't support. Remove them from " + file + " to trust a new key.");
+            }
+            return String.join(",", algorithms);
+        }
+
+        @Override
+        public synchronized int check(String host, byte[] key) {
+            HostKey hostKey;
+            try {
+                hostKey = new HostKey(host, key);
+            } catch (JSchException ex) {
+                KSUploader.logger.log(Level.WARNING, "The server " + host + " showed a host key of an unknown type.", ex);
+                return CHANGED;
+            }
+            String shown = getFingerprint(key);
+            if (!fingerprint.isEmpty()) {
+                if (fingerprint.equals(shown)) {
+                    return OK;
+                }
+                KSUploader.logger.log(Level.WARNING, "The host key of {0} is {1} instead of {2}", new Object[]{host, shown, fingerprint});
+                return CHANGED;
+            }
+            String encoded = Base64.getEncoder().encodeToString(key);
+            List<String[]> entries;
+            try {
+                entries = read(host);
+            } catch (IOException ex) {
+                KSUploader.logger.log(Level.WARNING, "Couldn't read the known host keys in " + file, ex);
+                return CHANGED;
+            }
+            for (String[] entry : entries) {
+                if (entry[1].equals(hostKey.getType()) && entry[2].equals(encoded)) {
+                    return OK;
+                }
+            }
+            if (!entries.isEmpty()) {
+                KSUploader.logger.log(Level.WARNING, "The {0} host key of {1} is {2}, which isn''t known. If the key changed, remove the old keys from {3}",
+                        new Object[]{hostKey.getType(), host, shown, file});
+                return CHANGED;
+            }
+            KSUploader.logger.log(Level.INFO, "Trusting the {0} host key of {1}, which is new: {2}", new Object[]{hostKey.getType(), host, shown});
+            try {
+                Files.write(file.toPath(), Collections.singletonList(host + " " + hostKey.getType() + " " + encoded), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                KSUploader.logger.log(Level.WARNING, "Couldn't keep the host key of " + host + " in " + file, ex);
+            }
+            return OK;
+        }
+
+        @Override
+        public void add(HostKey hostkey, UserInfo ui) {
+            /* New keys are only trusted by check(). */
+        }
+
+        @Override
+        public void remove(String host, String type) {
+        }
+
+        @Override
+        public void remove(String host, String type, byte[] key) {
+        }
+
+        @Override
+        public String getKnownHostsRepositoryID() {
+            return (file == null) ? Setting.SFTP_HOST_KEY.getConfigKey() : file.getPath();
+        }
+
+        @Override
+        public HostKey[] getHostKey() {
+            return new HostKey[0];
+        }
+
+        @Override
+        public synchronized HostKey[] getHostKey(String host, String type) {
+            List<HostKey> keys = new ArrayList<>();
+            try {
+                for (String[] entry : read(host)) {
+                    if (type == null || type.equals(entry[1])) {
+                        keys.add(new HostKey(host, Base64.getDecoder().decode(entry[2])));
+                    }
+                }
+            } catch (IOException | JSchException | IllegalArgumentException ex) {
+                KSUploader.logger.log(Level.INFO, "Couldn't read the known host keys in " + file, ex);
+            }
+            return keys.toArray(new HostKey[0]);
+        }
+
+        /**
+         * Gets the fingerprint of a key, as shown by {@code ssh-keygen -l}.
+         */
+        private static String getFingerprint(byte[] key) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(key);
+                return "SHA256:" + Base64.getEncoder().withoutPadding().encodeToString(hash);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("Every Java platform supports SHA-256.", ex);
+            }
+        }
+
+        /**
+         * Reads the entries of a server, split into the names, the key type
+         * and the key. Hashed names and revoked keys are skipped.
+         */
+        private List<String[]> read(String host) throws IOException {
+            List<String[]> entries = new ArrayList<>();
+            if (file == null || !file.exists()) {
+                return entries;
+            }
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 3 && !fields[0].startsWith("#") && !fields[0].startsWith("@")
+                        && Arrays.asList(fields[0].split(",")).contains(host)) {
+                    entries.add(fields);
+                }
+            }
+            return entries;
+        }
+
+    }
+
+}
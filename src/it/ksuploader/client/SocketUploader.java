@@ -1,23 +1,43 @@
 package it.ksuploader.client;
 
-import java.io.*;
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.ui.PopupDialog;
+import it.ksuploader.client.utils.BandwidthLimiter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.channels.FileChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.channels.UnresolvedAddressException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Uploads files to KSUploader-server. As an {@link Uploader} it uploads
+ * payloads without showing anything to the user; {@link #sendBatch} uploads
+ * files while showing the progress in the PopupDialog. Uploads go through the
+ * shared {@link UploadEngine}, unless they need TLS or transfer compression,
+ * which only {@link FrameConnection} speaks.
+ */
+public class SocketUploader implements Observer, Uploader {
+	private static UploadEngine engine;
 
-public class SocketUploader implements Observer {
-	private SocketChannel socketChannel;
-	private String link;
-	private String filePath;
-	private DataOutputStream dos;
-	private DataInputStream dis;
-	private RandomAccessFile aFile;
-	private FileChannel inChannel;
+	private volatile String link;
+	private volatile FrameConnection frameConnection;
+	private volatile CompletableFuture<Link> currentUpload;
+	private volatile boolean stopped;
 
 	private enum Messages {
 		OK,
@@ -29,126 +49,379 @@ public class SocketUploader implements Observer {
 		UNKNOWN_ERROR
 	}
 
-	public boolean send(String type) {
+	/**
+	 * Uploads several files, each as a separate upload. If the server speaks
+	 * version 2 of the protocol, all files are sent over one connection without
+	 * waiting for the link of one file before sending the next. Otherwise the
+	 * files are uploaded one after another. Files are queued in the
+	 * {@link UploadJournal} if the server can't be reached.
+	 *
+	 * @param files The files to upload.
+	 * @param type The kind of the files: "img", "file" or "txt".
+	 * @param onLink Receives the link to every uploaded file as soon as it
+	 * arrives, on a background thread.
+	 * @return true if all files were uploaded; false otherwise
+	 */
+	public boolean sendBatch(File[] files, String type, Consumer<String> onLink) {
+		PopupDialog dialog = getDialog();
+		IntConsumer progress = (dialog == null) ? null : dialog::set;
+		if (dialog != null) {
+			dialog.show("Uploading...", "", false);
+			dialog.set(0);
+		}
+		InetSocketAddress server = getServer();
+		FrameConnection connection;
+		stopped = false;
 		try {
-			this.socketChannel = createChannel(Main.config.getIp(), Main.config.getPort());
-			this.dos = new DataOutputStream(socketChannel != null ? socketChannel.socket().getOutputStream() : null);
-			this.dis = new DataInputStream(socketChannel.socket().getInputStream());
-
-			// send auth
-			Main.myLog("[SocketUploader] Sending SYN");
-			aFile = new RandomAccessFile(filePath, "r");
-			long fileLength = aFile.length();
-
-			dos.writeUTF(Main.config.getPass() + "&" + fileLength + "&" + type);
-			this.link = dis.readUTF();
-			Main.myLog("[SocketUploader] SYN reply: " + link);
-
-			switch (Messages.valueOf(this.link)) {
-				case OK:
-					inChannel = aFile.getChannel();
-
-					long bytesSent = 0;
-					long bfSize = Math.min(4096, fileLength);
-					Main.myLog("Transfer started.");
-
-					Main.dialog.show("Uploading...", "", false);
-					Main.dialog.set(0);
-
-					while (bytesSent < fileLength) {
-						bytesSent += inChannel.transferTo(bytesSent, bfSize, socketChannel);
-						Main.dialog.set((int) (100 * bytesSent / fileLength));
-					}
-					Main.myLog("Transfer ended.");
-					inChannel.close();
-					aFile.close();
-					Main.myLog("[SocketUploader] File closed.");
-
-					Main.dialog.setWait();
-					break;
-				case BAD_SYN_STRING:
-					Main.dialog.show("Fatal Error!", "Bad SYN string", false);
-					Main.myLog("[SocketUploader] Bad SYN string");
-					break;
-				case FILE_TOO_LARGE:
-					Main.myLog("[SocketUploader] File too large");
-					Main.dialog.fileTooLarge();
-					break;
-				case SERVER_FULL:
-					Main.myLog("[SocketUploader] Server Full");
-					Main.dialog.serverFull();
-					break;
-				case FILE_NOT_RECOGNIZED:
-					Main.myLog("[SocketUploader] The server had a bad interpretation of the fileType");
-					Main.dialog.serverFull();
-					break;
-				case WRONG_PASSWORD:
-					Main.myLog("[SocketUploader] Wrong password, closed");
-					Main.dialog.wrongPassword();
-					return false;
-				case UNKNOWN_ERROR:
-					Main.dialog.show("Unknown Error!", "???", false);
-					Main.myLog("[SocketUploader] Unknown Error!");
-					break;
-			}
-			// return link
-			Main.myLog("[SocketUploader] Waiting link...");
-			this.link = dis.readUTF();
-			Main.myLog("[SocketUploader] Returned link: " + link);
-			Main.dialog.destroy();
-
+			connection = FrameConnection.open(server, Setting.KSUPLOADER_PASSWORD.getValue().toString());
 		} catch (IOException e) {
-			e.printStackTrace();
-			Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
+			KSUploader.logger.log(Level.WARNING, "Couldn't connect to " + server, e);
+			if (!UploadJournal.isUnreachable(e) || !queue(Arrays.asList(files), type)) {
+				showConnectionError();
+			}
 			return false;
+		}
+		frameConnection = connection;
+		int uploaded = 0;
+		try {
+			if (connection == null) {
+				for (File file : files) {
+					currentUpload = upload(file, type, progress);
+					this.link = Uploader.await(currentUpload).getUrl();
+					onLink.accept(link);
+					uploaded++;
+				}
+			} else {
+				List<CompletableFuture<String>> links = connection.uploadBatch(Arrays.asList(files), type, progress);
+				if (dialog != null) {
+					dialog.setWait();
+				}
+				links.forEach((future) -> future.thenAccept((received) -> {
+					this.link = received;
+					onLink.accept(received);
+				}));
+				for (CompletableFuture<String> future : links) {
+					join(future);
+				}
+				releaseFrameConnection();
+			}
+			if (dialog != null) {
+				dialog.destroy();
+			}
+			return true;
+		} catch (ServerReplyException e) {
+			KSUploader.logger.log(Level.INFO, "[SocketUploader] Upload refused: {0}", e.getReply());
+			if (dialog != null) {
+				showRefusal(e.getReply());
+			}
+		} catch (IOException e) {
+			if (stopped) {
+				return false;
+			}
+			KSUploader.logger.log(Level.WARNING, "[SocketUploader] Batch upload failed.", e);
+			List<File> remaining = Arrays.asList(files).subList(uploaded, files.length);
+			if (!UploadJournal.isUnreachable(e) || !queue(remaining, type)) {
+				showConnectionError();
+			}
 		} finally {
+			currentUpload = null;
+			closeFrameConnection();
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for the link of a file of a batch.
+	 */
+	private static String join(CompletableFuture<String> link) throws IOException {
+		try {
+			return link.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return DestinationRegistry.SOCKET;
+	}
+
+	@Override
+	public Set<Capability> getCapabilities() {
+		return EnumSet.of(Capability.STREAMING, Capability.PARALLEL);
+	}
+
+	@Override
+	public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+		return upload(payload, progress, null);
+	}
+
+	/**
+	 * Starts uploading a payload, and tells the link before the payload is
+	 * sent if the server reserves links; only servers that speak version 2 of
+	 * the protocol can.
+	 */
+	@Override
+	public CompletableFuture<Link> upload(Payload payload, IntConsumer progress, Consumer<String> reserved) {
+		if (Setting.KSUPLOADER_TLS_ENABLED.getBooleanValue() || FrameConnection.isCompressionRequested(payload.getName(), payload.getType())) {
+			return Uploader.runAsync(getName(), () -> transfer(payload, progress, reserved));
+		}
+		try {
+			return toLink(getEngine().upload(getServer(), Setting.KSUPLOADER_PASSWORD.getValue().toString(), payload, progress, reserved));
+		} catch (IOException e) {
+			CompletableFuture<Link> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Starts uploading a file of a batch to a server that only speaks the
+	 * original protocol. The engine sends the file straight from disk.
+	 */
+	private CompletableFuture<Link> upload(File file, String type, IntConsumer progress) throws IOException {
+		if (Setting.KSUPLOADER_TLS_ENABLED.getBooleanValue()) {
+			return upload(Payload.read(file, type), progress);
+		}
+		return toLink(getEngine().upload(getServer(), Setting.KSUPLOADER_PASSWORD.getValue().toString(), file, type, progress));
+	}
+
+	/**
+	 * Turns an upload of the engine into the upload of a link. Cancelling the
+	 * link cancels the upload.
+	 */
+	private CompletableFuture<Link> toLink(CompletableFuture<String> upload) {
+		CompletableFuture<Link> link = new CompletableFuture<>();
+		upload.whenComplete((received, e) -> {
+			if (e == null) {
+				link.complete(new Link(received, getName()));
+			} else {
+				link.completeExceptionally(e);
+			}
+		});
+		link.whenComplete((received, e) -> {
+			if (link.isCancelled()) {
+				upload.cancel(true);
+			}
+		});
+		return link;
+	}
+
+	/**
+	 * Gets the engine shared by all uploads, and starts it on first use.
+	 *
+	 * @throws IOException If the engine could not be started.
+	 */
+	static synchronized UploadEngine getEngine() throws IOException {
+		if (engine == null) {
+			engine = new UploadEngine();
+		}
+		return engine;
+	}
+
+	/**
+	 * Asks the server how large a file it accepts, over a pooled version 2
+	 * connection. Only servers that speak version 2 of the protocol and
+	 * support the quota extension can tell.
+	 */
+	@Override
+	public long getMaxLength(String type) throws IOException {
+		FrameConnection connection = FrameConnection.open(getServer(), Setting.KSUPLOADER_PASSWORD.getValue().toString());
+		if (connection == null) {
+			return -1;
+		}
+		try {
+			long maxLength = connection.queryMaxLength(type);
+			connection.release();
+			return maxLength;
+		} catch (ServerReplyException e) {
+			connection.release();
+			throw e;
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Uploads a payload without showing anything to the user. Uses a pooled
+	 * version 2 connection if the server speaks version 2 of the protocol.
+	 *
+	 * @param payload The payload to upload.
+	 * @param progress Receives the percentage of the payload that has been
+	 * sent. May be null.
+	 * @param reserved Receives the link before the payload is sent, if the
+	 * server reserves links. May be null.
+	 * @return the link to the uploaded file
+	 * @throws ServerReplyException If the server refused the upload.
+	 * @throws IOException If the server could not be reached or the upload
+	 * failed.
+	 */
+	private static String transfer(Payload payload, IntConsumer progress, Consumer<String> reserved) throws IOException {
+		InetSocketAddress server = getServer();
+		String password = Setting.KSUPLOADER_PASSWORD.getValue().toString();
+		FrameConnection connection = FrameConnection.open(server, password);
+		if (connection != null) {
 			try {
-				if (inChannel != null) inChannel.close();
-				if (aFile != null) aFile.close();
-				if (dis != null) dis.close();
-				if (dos != null && socketChannel != null) dos.close();
-				if (socketChannel != null) socketChannel.close();
+				String link = connection.upload(payload, progress, reserved);
+				connection.release();
+				return link;
+			} catch (ServerReplyException e) {
+				connection.release();
+				throw e;
 			} catch (IOException e) {
-				e.printStackTrace();
+				connection.close();
+				throw e;
 			}
 		}
-		return true;
+
+		try (ByteChannel channel = FrameConnection.connect(server)) {
+			DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			out.writeUTF(password + "&" + payload.getLength() + "&" + payload.getType());
+			String reply = in.readUTF();
+			if (!Messages.OK.name().equals(reply)) {
+				throw new ServerReplyException(reply);
+			}
+			BandwidthLimiter limiter = BandwidthLimiter.forUpload(payload.getLength());
+			long length = payload.getLength();
+			long sent = 0;
+			while (sent < length) {
+				ByteBuffer chunk = payload.getData(sent, (int) Math.min(length - sent, 4096));
+				limiter.acquire(chunk.remaining());
+				sent += channel.write(chunk);
+				if (progress != null) {
+					progress.accept((int) (100 * sent / Math.max(1, length)));
+				}
+			}
+			return in.readUTF();
+		}
 	}
 
-	public void stopUpload() {
+	/**
+	 * Gets the address of KSUploader-server in the configuration.
+	 */
+	private static InetSocketAddress getServer() {
+		return InetSocketAddress.createUnresolved(Setting.KSUPLOADER_SERVER_ADDRESS.getValue().toString(), Setting.KSUPLOADER_PORT.getIntValue());
+	}
+
+	/**
+	 * Gets the dialog in which the progress of {@link #sendBatch} is shown.
+	 *
+	 * @return the dialog, or null if the application isn't running, as in
+	 * tests
+	 */
+	private static PopupDialog getDialog() {
+		return (KSUploader.inst == null) ? null : KSUploader.inst.getPopupDialog();
+	}
+
+	private static void showConnectionError() {
+		PopupDialog dialog = getDialog();
+		if (dialog != null) {
+			dialog.connectionError();
+		}
+	}
+
+	/**
+	 * Keeps files that couldn't be uploaded because the server is
+	 * unreachable, so that they are uploaded later.
+	 *
+	 * @param files The files to upload.
+	 * @param type The kind of the files: "img", "file" or "txt".
+	 * @return true if every file was queued
+	 */
+	private boolean queue(List<File> files, String type) {
+		UploadJournal journal = (KSUploader.inst == null) ? null : KSUploader.inst.getUploadJournal();
+		if (journal == null) {
+			return false;
+		}
 		try {
-			if (inChannel != null) inChannel.close();
-			if (aFile != null) aFile.close();
-			if (dos != null && socketChannel != null) dos.close();
-			if (dis != null) dis.close();
-			if (socketChannel != null) socketChannel.close();
-			new File(Main.so.getTempDir(), "KStemp.zip").delete();
-			Main.dialog.show("Stopped...", "", false);
+			for (File file : files) {
+				journal.add(file, type, getName());
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
-			Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
+			KSUploader.logger.log(Level.WARNING, "[SocketUploader] Couldn't queue the files.", e);
+			return false;
 		}
+		getDialog().uploadQueued();
+		return true;
 	}
 
-	private SocketChannel createChannel(String ip, int port) {
+	/**
+	 * Tells the user why the server refused an upload.
+	 *
+	 * @param reply The reply of the server.
+	 */
+	public static void showRefusal(String reply) {
+		PopupDialog dialog = KSUploader.inst.getPopupDialog();
+		Messages message;
 		try {
-			SocketChannel sc = SocketChannel.open();
-			SocketAddress socketAddress = new InetSocketAddress(ip, port);
-			sc.connect(socketAddress);
-			Main.myLog("[SocketUploader] Reloaded socket");
-			return sc;
-		} catch (IOException | UnresolvedAddressException e) {
-			e.printStackTrace();
-			Main.dialog.connectionError();
-			Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
-			return null;
+			message = Messages.valueOf(reply);
+		} catch (IllegalArgumentException e) {
+			message = Messages.UNKNOWN_ERROR;
+		}
+		switch (message) {
+			case WRONG_PASSWORD:
+				dialog.wrongPassword();
+				break;
+			case FILE_TOO_LARGE:
+				dialog.fileTooLarge();
+				break;
+			case SERVER_FULL:
+				dialog.serverFull();
+				break;
+			case BAD_SYN_STRING:
+				dialog.show("Fatal Error!", "Bad SYN string", false);
+				break;
+			default:
+				dialog.show("Unknown Error!", reply, false);
+				break;
 		}
 	}
 
-	public void setFilePath(String filePath) {
-		this.filePath = filePath;
+	/**
+	 * Keeps the version 2 connection open for the next upload.
+	 */
+	private void releaseFrameConnection() {
+		FrameConnection connection = frameConnection;
+		frameConnection = null;
+		if (connection != null) connection.release();
+	}
+
+	private void closeFrameConnection() {
+		FrameConnection connection = frameConnection;
+		frameConnection = null;
+		try {
+			if (connection != null) connection.close();
+		} catch (IOException e) {
+			KSUploader.logger.log(Level.INFO, "[SocketUploader] Couldn't close the connection.", e);
+		}
+	}
+
+	/**
+	 * Stops the batch that is being uploaded, if any.
+	 */
+	public void stopUpload() {
+		stopped = true;
+		CompletableFuture<Link> upload = currentUpload;
+		if (upload != null) {
+			upload.cancel(true);
+		}
+		closeFrameConnection();
+		PopupDialog dialog = getDialog();
+		if (dialog != null) {
+			dialog.show("Stopped...", "", false);
+		}
 	}
 
+	/**
+	 * Gets the link to the file of the last batch that arrived last.
+	 *
+	 * @return the link, or null if no link arrived yet
+	 */
 	public String getLink() {
 		return link;
 	}
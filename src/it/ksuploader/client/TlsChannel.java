@@ -0,0 +1,379 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * A TLS connection over a blocking SocketChannel, implemented with an
+ * SSLEngine. All TlsChannels share one SSLContext, whose client session cache
+ * keeps sessions and session tickets per server, so that later connections to
+ * the same server can resume a session instead of doing a full handshake.
+ */
+public class TlsChannel implements ByteChannel {
+
+    /**
+     * The maximum number of TLS sessions kept in the client session cache.
+     */
+    private static final int SESSION_CACHE_SIZE = 64;
+
+    /**
+     * The time in seconds a cached TLS session may be resumed.
+     */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    /**
+     * The longest time in milliseconds a writer waits at a time for the reader
+     * to receive the handshake messages the writer needs.
+     */
+    private static final long HANDSHAKE_WAIT = 100;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static SSLContext context;
+    private static boolean contextAcceptsAll;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final Object writeLock = new Object();
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    /**
+     * Starts TLS on a connected channel and performs the handshake.
+     *
+     * @param channel A connected channel in blocking mode.
+     * @param host The host name of the server, used to verify its certificate
+     * and to find a session to resume.
+     * @param port The port of the server.
+     * @return the TLS channel
+     * @throws IOException If the handshake fails.
+     */
+    public static TlsChannel open(SocketChannel channel, String host, int port) throws IOException {
+        SSLEngine engine = getContext().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (!Setting.ACCEPT_ALL_CERTIFICATES.getBooleanValue()) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        TlsChannel tls = new TlsChannel(channel, engine);
+        long start = System.nanoTime();
+        engine.beginHandshake();
+        tls.handshake();
+        KSUploader.logger.log(Level.FINE, "TLS handshake with {0}:{1} took {2} ms using {3}",
+                new Object[]{host, port, (System.nanoTime() - start) / 1000000, engine.getSession().getProtocol()});
+        return tls;
+    }
+
+    /**
+     * Gets the SSLContext shared by all TlsChannels, creating it if needed. A
+     * new context is created if {@code ACCEPT_ALL_CERTIFICATES} changed.
+     */
+    private static synchronized SSLContext getContext() throws IOException {
+        boolean acceptAll = Setting.ACCEPT_ALL_CERTIFICATES.getBooleanValue();
+        if (context == null || contextAcceptsAll != acceptAll) {
+            try {
+                SSLContext newContext = SSLContext.getInstance("TLS");
+                newContext.init(null, acceptAll ? new TrustManager[]{new AcceptAllTrustManager()} : null, null);
+                SSLSessionContext sessions = newContext.getClientSessionContext();
+                sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(SESSION_TIMEOUT);
+                context = newContext;
+                contextAcceptsAll = acceptAll;
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("Couldn't set up TLS.", ex);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Gets the TLS session of this channel.
+     *
+     * @return the session
+     */
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            while (appIn.position() == 0) {
+                SSLEngineResult result = unwrap();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return -1;
+                }
+                handshakeAfterRead(result);
+            }
+            appIn.flip();
+            int length = Math.min(appIn.remaining(), dst.remaining());
+            ByteBuffer slice = appIn.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            appIn.position(appIn.position() + length);
+            appIn.compact();
+            return length;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            int written = 0;
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                written += result.bytesConsumed();
+                if (result.bytesConsumed() == 0) {
+                    handshakeBeforeWrite();
+                }
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Checks without blocking whether the server closed this connection or
+     * sent anything while it was unused. Messages of the TLS layer itself,
+     * such as session tickets and key updates, are handled and don't count.
+     *
+     * @return true if the connection is open and nothing is waiting to be read
+     */
+    public boolean isAlive() {
+        if (!readLock.tryLock()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+            try {
+                if (channel.read(netIn) < 0) {
+                    return false;
+                }
+            } finally {
+                channel.configureBlocking(true);
+            }
+            while (netIn.position() > 0 && appIn.position() == 0) {
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return false;
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    /* The rest of a record is still on its way. */
+                    break;
+                }
+                handshakeAfterRead(result);
+            }
+            return appIn.position() == 0;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (writeLock) {
+                engine.closeOutbound();
+                if (channel.isOpen()) {
+                    wrap(EMPTY);
+                }
+            }
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.FINE, "Couldn't send the TLS close notification.", ex);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Does the work messages after the handshake, such as session tickets and
+     * key updates, can require once they are read. Called with the read lock.
+     */
+    private void handshakeAfterRead(SSLEngineResult result) throws IOException {
+        if (result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+                && result.getHandshakeStatus() != HandshakeStatus.FINISHED) {
+            synchronized (writeLock) {
+                handshake();
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Lets the handshake go on when the engine can't encrypt data before it
+     * gets messages from the server, for example during a renegotiation or a
+     * TLS 1.3 key update. If another thread is reading, that thread receives
+     * the messages, so this one waits for it instead of reading too. Called
+     * with the write lock.
+     */
+    private void handshakeBeforeWrite() throws IOException {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == HandshakeStatus.NEED_TASK || status == HandshakeStatus.NEED_WRAP) {
+            handshake();
+        } else if (status == HandshakeStatus.NEED_UNWRAP) {
+            if (readLock.tryLock()) {
+                try {
+                    handshake();
+                } finally {
+                    readLock.unlock();
+                }
+            } else {
+                try {
+                    writeLock.wait(HANDSHAKE_WAIT);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ClosedByInterruptException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs the handshake until the engine has nothing left to do.
+     */
+    private void handshake() throws IOException {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    status = wrap(EMPTY).getHandshakeStatus();
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                default:
+                    SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("The server closed the connection during the TLS handshake.");
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Encrypts data and writes it to the channel.
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+                continue;
+            }
+            netOut.flip();
+            while (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Reads from the channel until the engine can decrypt a complete record.
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() * 2);
+                        netIn.flip();
+                        larger.put(netIn);
+                        netIn = larger;
+                    }
+                    if (channel.read(netIn) < 0) {
+                        throw new EOFException("The server closed the TLS connection.");
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    ByteBuffer larger = ByteBuffer.allocate(appIn.capacity() * 2);
+                    appIn.flip();
+                    larger.put(appIn);
+                    appIn = larger;
+                    break;
+                default:
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * Accepts every certificate. Only used if the user chose to accept all
+     * certificates.
+     */
+    private static class AcceptAllTrustManager implements X509TrustManager {
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] certs, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] certs, String authType) {
+        }
+
+    }
+
+}
@@ -0,0 +1,701 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.utils.BandwidthLimiter;
+import it.ksuploader.client.utils.HostConnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Uploads files to KSUploader-server using non-blocking sockets. A single
+ * thread multiplexes all uploads with one Selector, so uploads that are in
+ * progress don't each need a thread of their own. Every upload has a
+ * connection of its own, over which it speaks version 2 of the protocol, or
+ * the original protocol if the server only speaks that. Files are sent with
+ * {@link FileChannel#transferTo}, and without transfer compression; uploads
+ * over TLS go through {@link FrameConnection} instead.
+ * <p>
+ * The addresses of a server are resolved with {@link HostConnector} and tried
+ * one after another until {@code CONNECT_TIMEOUT} runs out. Uploads are
+ * limited by a {@link BandwidthLimiter} like other uploads, but never pause
+ * for interactive jobs of the
+ * {@link it.ksuploader.client.utils.UploadScheduler}.
+ */
+public class UploadEngine implements Closeable {
+
+    /**
+     * The maximum number of bytes handed to the socket in one write, and the
+     * length of the DATA frames.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The reply with which a server that speaks the original protocol
+     * accepts an upload.
+     */
+    private static final String REPLY_OK = "OK";
+
+    /**
+     * The stream id of the upload, the only one on its connection.
+     */
+    private static final int STREAM = 1;
+
+    /**
+     * The length in bytes of the buffer for the replies of the server at
+     * first; it grows for longer replies.
+     */
+    private static final int INITIAL_INPUT_LENGTH = 4096;
+
+    private final Selector selector;
+    private final Queue<Transfer> newTransfers = new ConcurrentLinkedQueue<>();
+    private final Queue<Transfer> cancelledTransfers = new ConcurrentLinkedQueue<>();
+    /* Only used by the selector thread. */
+    private final List<Transfer> transfers = new ArrayList<>();
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Constructs a new UploadEngine and starts its selector thread.
+     *
+     * @throws IOException If the selector could not be opened.
+     */
+    public UploadEngine() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "KSUploader upload engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts uploading a file. Returns immediately; the upload happens on the
+     * selector thread. Cancelling the returned future stops the upload.
+     *
+     * @param server The address of the KSUploader-server.
+     * @param password The password for the server.
+     * @param file The file to upload.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @param progress Receives the percentage of the file that has been sent,
+     * on the selector thread. May be null.
+     * @return a future that completes with the link to the uploaded file, or
+     * completes exceptionally with a {@link ServerReplyException} if the
+     * server refused the upload, or another IOException if it failed
+     */
+    public CompletableFuture<String> upload(InetSocketAddress server, String password, File file, String type, IntConsumer progress) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                start(new Transfer(server, password, file.getName(), type, fileChannel.size(), fileChannel, null, progress, null, result));
+            } catch (IOException | RuntimeException ex) {
+                fileChannel.close();
+                throw ex;
+            }
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Starts uploading a payload, like
+     * {@link #upload(InetSocketAddress, String, File, String, IntConsumer)}.
+     * If the server reserves links, the link is told as soon as the server
+     * sends it.
+     *
+     * @param server The address of the KSUploader-server.
+     * @param password The password for the server.
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent, on the selector thread. May be null.
+     * @param reserved Receives the link before the upload finishes, if the
+     * server reserves links, on the selector thread. May be null.
+     * @return a future that completes with the link to the uploaded file
+     */
+    public CompletableFuture<String> upload(InetSocketAddress server, String password, Payload payload, IntConsumer progress,
+            Consumer<String> reserved) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            start(new Transfer(server, password, payload.getName(), payload.getType(), payload.getLength(), null, payload,
+                    progress, reserved, result));
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the server and hands a transfer to the selector thread.
+     */
+    private void start(Transfer transfer) throws IOException {
+        if (!running) {
+            throw new IOException("The upload engine is closed.");
+        }
+        InetSocketAddress server = transfer.server;
+        transfer.addresses = server.isUnresolved() ? HostConnector.resolve(server.getHostString())
+                : Collections.singletonList(server.getAddress());
+        transfer.result.whenComplete((link, ex) -> {
+            if (transfer.result.isCancelled()) {
+                cancelledTransfers.add(transfer);
+                selector.wakeup();
+            }
+        });
+        newTransfers.add(transfer);
+        selector.wakeup();
+    }
+
+    /**
+     * Gets the number of uploads that haven't finished yet.
+     *
+     * @return the number of uploads in progress
+     */
+    public int getActiveUploads() {
+        return activeTransfers.get() + newTransfers.size();
+    }
+
+    /**
+     * Stops the selector thread. Uploads that are still in progress fail.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * The selector loop. Runs until the engine is closed.
+     */
+    private void run() {
+        try {
+            while (running) {
+                registerNewTransfers();
+                Transfer cancelled;
+                while ((cancelled = cancelledTransfers.poll()) != null) {
+                    /* Transfers that weren't registered yet fail when they are. */
+                    if (cancelled.registered) {
+                        cancelled.fail(new InterruptedIOException("The upload was cancelled."));
+                    }
+                }
+                long timeout = checkTimers();
+                selector.select(timeout);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Transfer transfer = (Transfer) key.attachment();
+                    try {
+                        transfer.handle(key);
+                    } catch (IOException | RuntimeException ex) {
+                        transfer.fail(ex instanceof IOException ? (IOException) ex : new IOException(ex));
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            KSUploader.logger.log(Level.WARNING, "The upload engine stopped unexpectedly.", ex);
+        } finally {
+            running = false;
+            IOException closed = new IOException("The upload engine was closed.");
+            for (Transfer transfer : new ArrayList<>(transfers)) {
+                transfer.fail(closed);
+            }
+            Transfer transfer;
+            while ((transfer = newTransfers.poll()) != null) {
+                transfer.fail(closed);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                KSUploader.logger.log(Level.INFO, "Couldn't close the selector of the upload engine.", ex);
+            }
+        }
+    }
+
+    /**
+     * Starts connecting for the uploads that were added since the last
+     * iteration of the selector loop.
+     */
+    private void registerNewTransfers() {
+        Transfer transfer;
+        while ((transfer = newTransfers.poll()) != null) {
+            activeTransfers.incrementAndGet();
+            transfers.add(transfer);
+            transfer.registered = true;
+            if (transfer.result.isDone()) {
+                transfer.fail(new InterruptedIOException("The upload was cancelled."));
+                continue;
+            }
+            try {
+                transfer.connect(FrameConnection.isLegacy(transfer.server));
+            } catch (IOException ex) {
+                transfer.fail(ex);
+            }
+        }
+    }
+
+    /**
+     * Fails the uploads whose connect deadline passed, and resumes the uploads
+     * that waited long enough for bandwidth.
+     *
+     * @return the time in milliseconds until the next deadline or resumption,
+     * or 0 if there is none
+     */
+    private long checkTimers() {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (Transfer transfer : new ArrayList<>(transfers)) {
+            if (transfer.state == State.CONNECTING) {
+                if (now - transfer.deadline >= 0) {
+                    transfer.fail(new SocketTimeoutException("Couldn't connect to " + transfer.server + " within "
+                            + HostConnector.getConnectTimeout() + " ms."));
+                    continue;
+                }
+                next = Math.min(next, transfer.deadline - now);
+            }
+            if (transfer.resumeAt != 0) {
+                if (now - transfer.resumeAt >= 0) {
+                    transfer.resumeAt = 0;
+                    transfer.updateInterest();
+                } else {
+                    next = Math.min(next, transfer.resumeAt - now);
+                }
+            }
+        }
+        return (next == Long.MAX_VALUE) ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    /**
+     * Encodes a string the way {@link DataOutputStream#writeUTF(String)} does.
+     *
+     * @param message The string to encode.
+     * @return a buffer with the encoded string, ready to be written
+     * @throws IOException If the string is too long to be encoded.
+     */
+    static ByteBuffer encodeUTF(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(message);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes a string written with {@link DataOutputStream#writeUTF(String)}
+     * from the start of a buffer, if the buffer contains all of it.
+     *
+     * @param buffer A buffer in read mode. If a string is decoded, its bytes
+     * are consumed from the buffer.
+     * @return the decoded string, or null if the buffer doesn't contain a
+     * complete string yet
+     * @throws IOException If the data is not a valid string.
+     */
+    static String decodeUTF(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int length = buffer.getShort(buffer.position()) & 0xffff;
+        if (buffer.remaining() < 2 + length) {
+            return null;
+        }
+        byte[] encoded = new byte[2 + length];
+        buffer.get(encoded);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded))) {
+            return in.readUTF();
+        }
+    }
+
+    /**
+     * Encodes a frame.
+     */
+    private static ByteBuffer encode(Frame... frames) {
+        int length = 0;
+        for (Frame frame : frames) {
+            length += Frame.HEADER_LENGTH + frame.getLength();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Frame frame : frames) {
+            frame.write(buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * The states an upload goes through.
+     */
+    private enum State {
+        CONNECTING,
+        NEGOTIATING,
+        UPLOADING,
+        DONE
+    }
+
+    /**
+     * An upload of one file over one connection.
+     */
+    private class Transfer {
+
+        private final InetSocketAddress server;
+        private final String password;
+        private final String name;
+        private final String type;
+        private final long length;
+        private final FileChannel fileChannel;
+        private final Payload payload;
+        private final IntConsumer progress;
+        private final Consumer<String> reserved;
+        private final CompletableFuture<String> result;
+        private final BandwidthLimiter limiter;
+        private List<InetAddress> addresses;
+        private int nextAddress;
+        private IOException connectFailure;
+        private long deadline;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private State state = State.CONNECTING;
+        private boolean registered;
+        private boolean legacy;
+        /* Bytes the protocol sends besides the file, such as frame headers. */
+        private ByteBuffer output;
+        private ByteBuffer input = ByteBuffer.allocate(INITIAL_INPUT_LENGTH);
+        /* Whether the file may be sent, and whether all of it was. */
+        private boolean sending;
+        private boolean sent;
+        private long position;
+        private int frameRemaining;
+        private int percentage = -1;
+        private long resumeAt;
+
+        private Transfer(InetSocketAddress server, String password, String name, String type, long length,
+                FileChannel fileChannel, Payload payload, IntConsumer progress, Consumer<String> reserved,
+                CompletableFuture<String> result) {
+            this.server = server;
+            this.password = password;
+            this.name = name;
+            this.type = type;
+            this.length = length;
+            this.fileChannel = fileChannel;
+            this.payload = payload;
+            this.progress = progress;
+            this.reserved = reserved;
+            this.result = result;
+            this.limiter = BandwidthLimiter.forUpload(length);
+        }
+
+        /**
+         * Starts connecting to the first address of the server.
+         *
+         * @param legacy Whether to speak the original protocol.
+         */
+        private void connect(boolean legacy) throws IOException {
+            this.legacy = legacy;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HostConnector.getConnectTimeout());
+            this.nextAddress = 0;
+            this.connectFailure = null;
+            connectNext();
+        }
+
+        /**
+         * Starts connecting to the next address of the server, without
+         * blocking.
+         */
+        private void connectNext() throws IOException {
+            closeChannel();
+            state = State.CONNECTING;
+            while (nextAddress < addresses.size()) {
+                InetSocketAddress address = new InetSocketAddress(addresses.get(nextAddress++), server.getPort());
+                channel = SocketChannel.open();
+                try {
+                    channel.configureBlocking(false);
+                    if (channel.connect(address)) {
+                        key = channel.register(selector, 0, this);
+                        connected();
+                    } else {
+                        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                    }
+                    return;
+                } catch (IOException ex) {
+                    connectFailure = ex;
+                    closeChannel();
+                }
+            }
+            throw (connectFailure != null) ? connectFailure : new ConnectException("No address of " + server + " could be connected to.");
+        }
+
+        /**
+         * Starts the handshake after the connection was made.
+         */
+        private void connected() throws IOException {
+            channel.socket().setTcpNoDelay(true);
+            if (server.isUnresolved()) {
+                HostConnector.promote(server.getHostString(), ((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+            }
+            state = State.NEGOTIATING;
+            output = legacy ? encodeUTF(password + "&" + length + "&" + type)
+                    : encodeUTF(FrameConnection.HELLO + ((reserved == null) ? "" : ";" + FrameConnection.EXTENSION_RESERVE));
+            updateInterest();
+        }
+
+        /**
+         * Continues the upload after the channel became ready.
+         */
+        private void handle(SelectionKey key) throws IOException {
+            if (state == State.DONE) {
+                return;
+            }
+            if (state == State.CONNECTING) {
+                try {
+                    if (channel.finishConnect()) {
+                        connected();
+                    }
+                } catch (IOException ex) {
+                    KSUploader.logger.log(Level.FINE, "Couldn''t connect to {0}: {1}", new Object[]{server, ex});
+                    connectFailure = ex;
+                    connectNext();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (state != State.DONE && key.isValid() && key.isWritable()) {
+                write();
+            }
+        }
+
+        /**
+         * Sends what can be sent without blocking: the bytes of the protocol,
+         * and the file once the server accepted it.
+         */
+        private void write() throws IOException {
+            while (true) {
+                if (output != null) {
+                    channel.write(output);
+                    if (output.hasRemaining()) {
+                        return;
+                    }
+                    output = null;
+                    continue;
+                }
+                if (!sending || sent || resumeAt != 0) {
+                    break;
+                }
+                if (position == length) {
+                    sent = true;
+                    if (!legacy) {
+                        output = encode(Frame.empty(Frame.Opcode.END, STREAM));
+                    }
+                    continue;
+                }
+                if (!legacy && frameRemaining == 0) {
+                    frameRemaining = (int) Math.min(CHUNK_SIZE, length - position);
+                    output = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+                    output.put(Frame.Opcode.DATA.getCode()).putInt(STREAM).putInt(frameRemaining).flip();
+                    continue;
+                }
+                int count = legacy ? (int) Math.min(CHUNK_SIZE, length - position) : frameRemaining;
+                long written = (fileChannel != null) ? fileChannel.transferTo(position, count, channel)
+                        : channel.write(payload.getData(position, count));
+                position += written;
+                if (!legacy) {
+                    frameRemaining -= written;
+                }
+                reportProgress();
+                long wait = limiter.reserve(written);
+                if (wait > 0) {
+                    resumeAt = System.nanoTime() + wait;
+                    break;
+                }
+                if (written < count) {
+                    return;
+                }
+            }
+            updateInterest();
+        }
+
+        private void reportProgress() {
+            int current = (int) (100 * position / Math.max(1, length));
+            if (progress != null && current != percentage) {
+                percentage = current;
+                progress.accept(current);
+            }
+        }
+
+        /**
+         * Reads what the server sent, and handles every complete message.
+         */
+        private void read() throws IOException {
+            if (!input.hasRemaining()) {
+                int maximum = Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD_LENGTH;
+                if (input.capacity() >= maximum) {
+                    throw new IOException("The server sent a reply that is too long during the upload of " + name);
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(2 * input.capacity(), maximum));
+                input.flip();
+                input = larger.put(input);
+            }
+            if (channel.read(input) < 0) {
+                throw new IOException("The server closed the connection during the upload of " + name);
+            }
+            input.flip();
+            try {
+                while (state != State.DONE && receive()) {
+                    /* Handle the next message. */
+                }
+            } finally {
+                input.compact();
+            }
+        }
+
+        /**
+         * Handles the next message in the input, if it arrived entirely.
+         *
+         * @return true if a message was handled
+         */
+        private boolean receive() throws IOException {
+            if (legacy) {
+                String message = decodeUTF(input);
+                if (message == null) {
+                    return false;
+                }
+                if (!sending) {
+                    if (!REPLY_OK.equals(message)) {
+                        throw new ServerReplyException(message);
+                    }
+                    sending = true;
+                    updateInterest();
+                } else {
+                    complete(message);
+                }
+                return true;
+            }
+            if (state == State.NEGOTIATING) {
+                String greeting = decodeUTF(input);
+                if (greeting == null) {
+                    return false;
+                }
+                if (!FrameConnection.HELLO.equals(greeting.split(";")[0])) {
+                    /* Concurrent uploads all find out at once; tell it once. */
+                    if (!FrameConnection.isLegacy(server)) {
+                        KSUploader.logger.log(Level.INFO, "Server {0} doesn''t speak protocol version 2 (replied {1}); using the original protocol.",
+                                new Object[]{server, greeting});
+                        FrameConnection.setLegacy(server);
+                    }
+                    input.clear().flip();
+                    connect(true);
+                    return false;
+                }
+                state = State.UPLOADING;
+                sending = true;
+                output = encode(Frame.text(Frame.Opcode.AUTH, 0, password), Frame.begin(STREAM, length, type, name, ""));
+                updateInterest();
+                return true;
+            }
+            Frame reply = Frame.read(input);
+            if (reply == null) {
+                return false;
+            }
+            if (reply.getOpcode() == Frame.Opcode.RESERVED && reply.getStream() == STREAM) {
+                if (reserved != null) {
+                    reserved.accept(reply.getText());
+                }
+                return true;
+            }
+            if (reply.getStream() != STREAM && reply.getStream() != 0) {
+                throw new IOException("Got a reply for upload " + reply.getStream() + " during the upload of " + name);
+            }
+            complete(FrameConnection.getLink(reply));
+            return true;
+        }
+
+        /**
+         * Sets the operations the selector waits for: always replies of the
+         * server, and writing while there is something to send.
+         */
+        private void updateInterest() {
+            if (state == State.DONE || state == State.CONNECTING || key == null || !key.isValid()) {
+                return;
+            }
+            boolean writing = output != null || (sending && !sent && resumeAt == 0);
+            key.interestOps(SelectionKey.OP_READ | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private void complete(String link) {
+            finish();
+            result.complete(link);
+        }
+
+        /**
+         * Closes the connection and fails the upload.
+         */
+        private void fail(IOException cause) {
+            if (state != State.DONE) {
+                finish();
+                result.completeExceptionally(cause);
+            }
+        }
+
+        /**
+         * Closes the connection and the file.
+         */
+        private void finish() {
+            if (state == State.DONE) {
+                return;
+            }
+            state = State.DONE;
+            if (registered) {
+                activeTransfers.decrementAndGet();
+                transfers.remove(this);
+            }
+            closeChannel();
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException ex) {
+                    KSUploader.logger.log(Level.INFO, "Couldn't close " + name, ex);
+                }
+            }
+        }
+
+        private void closeChannel() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                KSUploader.logger.log(Level.INFO, "Couldn't close the connection for " + name, ex);
+            }
+            channel = null;
+            key = null;
+        }
+
+    }
+
+}
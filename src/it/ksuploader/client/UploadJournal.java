@@ -0,0 +1,380 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.utils.UploadScheduler;
+import it.ksuploader.client.utils.UploadScheduler.Priority;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import javax.swing.SwingUtilities;
+
+/**
+ * Keeps uploads that failed because the server couldn't be reached, and
+ * retries them until they succeed. The files are copied to a directory next to
+ * the configuration file, and every change is appended to a journal file, so
+ * that pending uploads survive a restart of the application.
+ */
+public class UploadJournal {
+
+    /**
+     * The name of the journal file in the configuration directory.
+     */
+    private static final String JOURNAL_NAME = "upload-journal.log";
+
+    /**
+     * The name of the directory in the configuration directory to which files
+     * of pending uploads are copied, each in a directory of its own so that it
+     * keeps its name.
+     */
+    private static final String PENDING_DIRECTORY_NAME = "pending";
+
+    /**
+     * The name of the directory in the configuration directory to which files
+     * of pending uploads are moved when they failed for a reason other than
+     * an unreachable destination, so that they aren't lost.
+     */
+    private static final String FAILED_DIRECTORY_NAME = "failed";
+
+    /**
+     * The time in milliseconds before the first retry.
+     */
+    private static final long INITIAL_BACKOFF = 5000;
+
+    /**
+     * The maximum time in milliseconds between retries.
+     */
+    private static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    /**
+     * The journal is compacted when it holds this many records more than
+     * there are pending uploads.
+     */
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private static final String ADD = "ADD";
+    private static final String DONE = "DONE";
+    private static final String SEPARATOR = "\t";
+
+    private final File journalFile;
+    private final File pendingDirectory;
+    private final File failedDirectory;
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService timer;
+    private ScheduledFuture<?> retry;
+    private boolean retrying;
+    private long backoff = INITIAL_BACKOFF;
+    private int records;
+
+    /**
+     * Constructs a new UploadJournal and reads the pending uploads from the
+     * journal file, if it exists.
+     *
+     * @param configDir The configuration directory of the application.
+     * @throws IOException If the journal file could not be read.
+     */
+    public UploadJournal(File configDir) throws IOException {
+        this.journalFile = new File(configDir, JOURNAL_NAME);
+        this.pendingDirectory = new File(configDir, PENDING_DIRECTORY_NAME);
+        this.failedDirectory = new File(configDir, FAILED_DIRECTORY_NAME);
+        this.timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "KSUploader upload journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        load();
+        compact();
+    }
+
+    /**
+     * Adds an upload that couldn't be done now. The file is copied, so the
+     * caller may delete it.
+     *
+     * @param file The file to upload.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @param uploader The name of the {@link Uploader} to retry with.
+     * @throws IOException If the file could not be copied or the journal
+     * could not be written.
+     */
+    public synchronized void add(File file, String type, String uploader) throws IOException {
+        String id = UUID.randomUUID().toString();
+        File directory = new File(pendingDirectory, id);
+        if (!directory.mkdirs()) {
+            throw new IOException("Couldn't create the directory for a pending upload: " + directory);
+        }
+        File copy = new File(directory, file.getName().replaceAll("[\\t\\r\\n]", "_"));
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Entry entry = new Entry(id, type, copy, uploader);
+        append(ADD, id, type, copy.getPath(), uploader);
+        pending.put(id, entry);
+        KSUploader.logger.log(Level.INFO, "Queued {0} to be uploaded when the server is reachable.", file.getName());
+        scheduleRetry(backoff);
+    }
+
+    /**
+     * Gets whether an upload failed because its destination couldn't be
+     * reached, so that it is worth adding it to the journal.
+     *
+     * @param ex The reason the upload failed.
+     * @return true if the destination couldn't be reached
+     */
+    public static boolean isUnreachable(IOException ex) {
+        return ex instanceof ConnectException || ex instanceof NoRouteToHostException
+                || ex instanceof UnknownHostException || ex instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Gets the number of uploads that are waiting to be retried.
+     *
+     * @return the number of pending uploads
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Starts retrying the pending uploads, for example after the application
+     * started.
+     */
+    public synchronized void resume() {
+        if (!pending.isEmpty()) {
+            KSUploader.logger.log(Level.INFO, "Resuming {0} pending uploads.", pending.size());
+            scheduleRetry(0);
+        }
+    }
+
+    /**
+     * Schedules a retry of the pending uploads, unless one is already
+     * scheduled or running.
+     */
+    private synchronized void scheduleRetry(long delay) {
+        if (retrying || (retry != null && !retry.isDone())) {
+            return;
+        }
+        retry = timer.schedule(() -> {
+            synchronized (this) {
+                retrying = true;
+            }
+            UploadScheduler.submit(Priority.BULK, "pending uploads", this::retryPending);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Uploads the pending files one after another. Stops at the first upload
+     * that fails because the server can't be reached, and waits twice as long
+     * as the last time before retrying. Uploads that fail for another reason,
+     * such as a file that can't be read, won't succeed by retrying; they are
+     * set aside in the failed directory.
+     */
+    private void retryPending() {
+        boolean reachable = true;
+        try {
+            Entry entry;
+            while (reachable && (entry = next()) != null) {
+                if (!entry.file.isFile()) {
+                    KSUploader.logger.log(Level.WARNING, "The file of pending upload {0} is gone; dropping it.", entry.file);
+                    complete(entry);
+                    continue;
+                }
+                Uploader uploader = DestinationRegistry.get(entry.uploader);
+                if (uploader == null) {
+                    KSUploader.logger.log(Level.WARNING, "The uploader {0} of pending upload {1} is gone; dropping it.", new Object[]{entry.uploader, entry.file});
+                    complete(entry);
+                    continue;
+                }
+                try {
+                    String link = Uploader.await(uploader.upload(Payload.read(entry.file, entry.type))).getUrl();
+                    KSUploader.logger.log(Level.INFO, "Uploaded pending file {0}: {1}", new Object[]{entry.file.getName(), link});
+                    complete(entry);
+                    if (KSUploader.inst != null) {
+                        KSUploader.inst.getPopupDialog().show("Upload Completed!", link, true);
+                        SwingUtilities.invokeLater(() -> {
+                            if (KSUploader.inst.getSystemTrayMenu() != null) {
+                                KSUploader.inst.getSystemTrayMenu().history(link);
+                            }
+                        });
+                    }
+                } catch (ServerReplyException ex) {
+                    KSUploader.logger.log(Level.WARNING, "The server refused pending upload {0}: {1}", new Object[]{entry.file.getName(), ex.getReply()});
+                    complete(entry);
+                } catch (IOException ex) {
+                    if (isUnreachable(ex)) {
+                        KSUploader.logger.log(Level.INFO, "The server is still unreachable; retrying in " + backoff + " ms.", ex);
+                        reachable = false;
+                    } else {
+                        KSUploader.logger.log(Level.WARNING, "Pending upload " + entry.file.getName() + " failed; setting it aside.", ex);
+                        setAside(entry);
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                retrying = false;
+                if (reachable) {
+                    backoff = INITIAL_BACKOFF;
+                } else {
+                    long delay = backoff;
+                    backoff = Math.min(MAX_BACKOFF, backoff * 2);
+                    scheduleRetry(delay);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the oldest pending upload.
+     */
+    private synchronized Entry next() {
+        return pending.isEmpty() ? null : pending.values().iterator().next();
+    }
+
+    /**
+     * Removes an upload from the journal and deletes its copy of the file.
+     */
+    private synchronized void complete(Entry entry) {
+        if ((entry.file.exists() && !entry.file.delete()) || !entry.file.getParentFile().delete()) {
+            KSUploader.logger.log(Level.INFO, "Couldn''t delete {0}", entry.file);
+        }
+        remove(entry);
+    }
+
+    /**
+     * Removes an upload from the journal and moves its copy of the file to
+     * the failed directory, where the user can still find it.
+     */
+    private synchronized void setAside(Entry entry) {
+        File directory = new File(failedDirectory, entry.id);
+        try {
+            Files.createDirectories(failedDirectory.toPath());
+            Files.move(entry.file.getParentFile().toPath(), directory.toPath());
+            KSUploader.logger.log(Level.INFO, "Moved {0} to {1}", new Object[]{entry.file.getName(), directory});
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.WARNING, "Couldn't move " + entry.file + " to " + directory, ex);
+        }
+        remove(entry);
+    }
+
+    /**
+     * Removes an upload from the journal, and compacts the journal if it
+     * holds enough records of finished uploads.
+     */
+    private synchronized void remove(Entry entry) {
+        pending.remove(entry.id);
+        try {
+            append(DONE, entry.id);
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.WARNING, "Couldn't write to the upload journal.", ex);
+        }
+        if (records - pending.size() >= COMPACTION_THRESHOLD || pending.isEmpty()) {
+            compact();
+        }
+    }
+
+    /**
+     * Reads the pending uploads from the journal file. An incomplete last
+     * record, left by a crash while it was written, is ignored. Records
+     * without an uploader are from before uploaders could be chosen, and are
+     * retried with KSUploader-server.
+     */
+    private void load() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                records++;
+                String[] fields = line.split(SEPARATOR);
+                if (ADD.equals(fields[0]) && (fields.length == 4 || fields.length == 5)) {
+                    String uploader = (fields.length == 5) ? fields[4] : DestinationRegistry.SOCKET;
+                    pending.put(fields[1], new Entry(fields[1], fields[2], new File(fields[3]), uploader));
+                } else if (DONE.equals(fields[0]) && fields.length == 2) {
+                    pending.remove(fields[1]);
+                } else {
+                    KSUploader.logger.log(Level.INFO, "Ignoring an invalid upload journal record: {0}", line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the journal file and forces it to the disk.
+     */
+    private void append(String... fields) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write((String.join(SEPARATOR, fields) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        records++;
+    }
+
+    /**
+     * Rewrites the journal file with only the pending uploads. The new journal
+     * replaces the old one in one step, so a crash leaves one of the two.
+     */
+    private synchronized void compact() {
+        try {
+            if (pending.isEmpty()) {
+                Files.deleteIfExists(journalFile.toPath());
+                records = 0;
+                return;
+            }
+            File compacted = new File(journalFile.getPath() + ".tmp");
+            List<String> lines = new ArrayList<>();
+            for (Entry entry : pending.values()) {
+                lines.add(String.join(SEPARATOR, ADD, entry.id, entry.type, entry.file.getPath(), entry.uploader));
+            }
+            try (FileOutputStream out = new FileOutputStream(compacted);
+                    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                for (String line : lines) {
+                    writer.write(line + "\n");
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+            Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = lines.size();
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.WARNING, "Couldn't compact the upload journal.", ex);
+        }
+    }
+
+    /**
+     * A pending upload.
+     */
+    private static class Entry {
+
+        private final String id;
+        private final String type;
+        private final File file;
+        private final String uploader;
+
+        private Entry(String id, String type, File file, String uploader) {
+            this.id = id;
+            this.type = type;
+            this.file = file;
+            this.uploader = uploader;
+        }
+
+    }
+
+}
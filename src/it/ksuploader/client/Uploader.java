@@ -0,0 +1,240 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.utils.TaskRunner;
+import it.ksuploader.client.utils.UploadScheduler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * A transport that uploads files to a place where they can be shared, such as
+ * KSUploader-server or an FTP host. Uploaders are found with a
+ * {@link java.util.ServiceLoader}, so new transports can be added by listing
+ * them in {@code META-INF/services/it.ksuploader.client.Uploader}; see
+ * {@link DestinationRegistry}. Implementations must have a public constructor
+ * without arguments and must not show anything to the user, since the same
+ * payload may be uploaded by several uploaders at the same time.
+ */
+public interface Uploader {
+
+    /**
+     * Gets the name of this uploader, with which it is chosen in the
+     * configuration, for example in {@code UPLOAD_DESTINATIONS}.
+     *
+     * @return the name, in lower case
+     */
+    String getName();
+
+    /**
+     * Gets what this uploader can do besides uploading a file.
+     *
+     * @return the capabilities of this uploader
+     */
+    Set<Capability> getCapabilities();
+
+    /**
+     * Gets whether this uploader has a capability.
+     *
+     * @param capability The capability.
+     * @return true if this uploader has the capability
+     */
+    default boolean supports(Capability capability) {
+        return getCapabilities().contains(capability);
+    }
+
+    /**
+     * Starts uploading a payload in the background. Cancelling the returned
+     * future with {@code mayInterruptIfRunning} stops the upload.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @return a future for the link to the uploaded file, which completes
+     * exceptionally with a {@link ServerReplyException} if the server refused
+     * the upload, or another {@link IOException} if the upload failed
+     */
+    CompletableFuture<Link> upload(Payload payload, IntConsumer progress);
+
+    /**
+     * Starts uploading a payload in the background without reporting the
+     * progress.
+     *
+     * @param payload The payload to upload.
+     * @return a future for the link to the uploaded file
+     * @see #upload(Payload, IntConsumer)
+     */
+    default CompletableFuture<Link> upload(Payload payload) {
+        return upload(payload, null);
+    }
+
+    /**
+     * Gets the link a payload will have once this uploader has uploaded it,
+     * if it is known before the upload finishes, so that it can be shared
+     * right away.
+     *
+     * @param payload The payload that is about to be uploaded.
+     * @return the link, or null if only the upload tells
+     */
+    default String predictLink(Payload payload) {
+        return null;
+    }
+
+    /**
+     * Asks the destination how large a payload of a kind it accepts right
+     * now, before the payload is built, so that expensive work such as
+     * zipping or encoding can be skipped if the payload can't fit, or made to
+     * fit. By default the limit is unknown.
+     *
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return the maximum length in bytes, or -1 if there is no limit or it
+     * is unknown
+     * @throws ServerReplyException If the destination refuses payloads of
+     * that kind right now, for example "SERVER_FULL".
+     * @throws IOException If the destination couldn't be asked.
+     */
+    default long getMaxLength(String type) throws IOException {
+        return -1;
+    }
+
+    /**
+     * Starts uploading a payload in the background, and tells the link as
+     * soon as it is known, which may be long before the upload finishes. The
+     * link may still turn out not to work if the upload fails. By default the
+     * link is told right away if {@link #predictLink(Payload)} knows it.
+     *
+     * @param payload The payload to upload.
+     * @param progress Receives the percentage of the payload that has been
+     * sent. May be null.
+     * @param reserved Receives the link once it is known, before the upload
+     * finishes; not called if it is only known at the end. Called at most
+     * once, possibly on another thread.
+     * @return a future for the link to the uploaded file
+     * @see #upload(Payload, IntConsumer)
+     */
+    default CompletableFuture<Link> upload(Payload payload, IntConsumer progress, Consumer<String> reserved) {
+        String link = predictLink(payload);
+        if (link != null) {
+            reserved.accept(link);
+        }
+        return upload(payload, progress);
+    }
+
+    /**
+     * Runs a blocking transfer on the {@link TaskRunner}, as part of the
+     * upload job of the current thread. For uploaders whose protocol is
+     * blocking; cancelling the returned future interrupts the transfer.
+     *
+     * @param uploader The name of the uploader, for the link.
+     * @param transfer The transfer.
+     * @return a future for the link returned by the transfer
+     */
+    static CompletableFuture<Link> runAsync(String uploader, Transfer transfer) {
+        Object lock = new Object();
+        Thread[] worker = new Thread[1];
+        CompletableFuture<Link> link = new CompletableFuture<Link>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                synchronized (lock) {
+                    if (cancelled && mayInterruptIfRunning && worker[0] != null) {
+                        worker[0].interrupt();
+                    }
+                }
+                return cancelled;
+            }
+        };
+        TaskRunner.submit(UploadScheduler.inCurrentJob(() -> {
+            synchronized (lock) {
+                if (link.isDone()) {
+                    return;
+                }
+                worker[0] = Thread.currentThread();
+            }
+            try {
+                link.complete(new Link(transfer.run(), uploader));
+            } catch (IOException | RuntimeException ex) {
+                link.completeExceptionally(ex);
+            } finally {
+                synchronized (lock) {
+                    worker[0] = null;
+                    /* Don't let a late cancel interrupt the next task. */
+                    Thread.interrupted();
+                }
+            }
+        }));
+        return link;
+    }
+
+    /**
+     * Waits for an upload to finish.
+     *
+     * @param upload The future returned by {@link #upload(Payload)}.
+     * @return the link to the uploaded file
+     * @throws InterruptedIOException If the upload was cancelled, or the
+     * thread was interrupted while waiting.
+     * @throws ServerReplyException If the server refused the upload.
+     * @throws IOException If the upload failed.
+     */
+    static Link await(CompletableFuture<Link> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (CancellationException ex) {
+            throw new InterruptedIOException("The upload was cancelled.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload.");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException("The upload failed.", ex.getCause());
+        }
+    }
+
+    /**
+     * What an uploader can do besides uploading a file.
+     */
+    enum Capability {
+
+        /**
+         * The uploader can continue an interrupted upload where it stopped.
+         */
+        RESUME,
+        /**
+         * The uploader sends the payload while it reads it, so it doesn't need
+         * the entire payload in memory.
+         */
+        STREAMING,
+        /**
+         * Several uploads of the uploader can run at the same time.
+         */
+        PARALLEL
+
+    }
+
+    /**
+     * A blocking transfer, see {@link Uploader#runAsync(String, Transfer)}.
+     */
+    @FunctionalInterface
+    interface Transfer {
+
+        /**
+         * Transfers the payload.
+         *
+         * @return the link to the uploaded file
+         * @throws IOException If the upload failed.
+         */
+        String run() throws IOException;
+
+    }
+
+}
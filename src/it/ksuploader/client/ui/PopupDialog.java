@@ -1,6 +1,7 @@
 package it.ksuploader.client.ui;
 
 import it.ksuploader.client.Main;
+import it.ksuploader.client.utils.TaskRunner;
 
 import javax.swing.*;
 import java.awt.*;
@@ -179,26 +180,27 @@ public class PopupDialog extends Observable {
 		show("Connection Error!", "Check your connection or credential", false);
 	}
 
+	public void uploadQueued() {
+		show("Server unreachable", "The upload will be retried later", false);
+	}
+
 	public void destroy() {
-		new Thread() {
-			@Override
-			public void run() {
-				try {
-					Thread.sleep(3000);
-					for (float i = 1.00f; i >= 0; i -= 0.01f) {
-						dialogFrame.setOpacity(i);
-						Thread.sleep(15);
-					}
-					dialogFrame.setVisible(false);
-					dialogFrame.setOpacity(1.00f);
-					dialogFrame.setAlwaysOnTop(false);
-					gridProgressBar();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
+		TaskRunner.submit(() -> {
+			try {
+				Thread.sleep(3000);
+				for (float i = 1.00f; i >= 0; i -= 0.01f) {
+					dialogFrame.setOpacity(i);
+					Thread.sleep(15);
 				}
+				dialogFrame.setVisible(false);
+				dialogFrame.setOpacity(1.00f);
+				dialogFrame.setAlwaysOnTop(false);
+				gridProgressBar();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				Main.myErr(Arrays.toString(e.getStackTrace()).replace(",", "\n"));
 			}
-		}.start();
+		});
 	}
 
 	public void setButtonClickable(boolean b) {
@@ -1,12 +1,26 @@
 package it.ksuploader.client.ui;
 
-import it.ksuploader.client.FtpUploader;
+import it.ksuploader.client.Capture;
+import it.ksuploader.client.CaptureException;
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.DestinationRegistry;
+import it.ksuploader.client.KSUploader;
+import it.ksuploader.client.Link;
 import it.ksuploader.client.Main;
+import it.ksuploader.client.Payload;
+import it.ksuploader.client.ServerReplyException;
 import it.ksuploader.client.SocketUploader;
+import it.ksuploader.client.UploadJournal;
+import it.ksuploader.client.Uploader;
+import it.ksuploader.client.Uploader.Capability;
 import it.ksuploader.client.ui.MyScreen;
 import it.ksuploader.client.ui.SettingsDialog;
+import it.ksuploader.client.utils.ImageScaler;
 import it.ksuploader.client.utils.MyKeyListener;
 import it.ksuploader.client.utils.Sound;
+import it.ksuploader.client.utils.TaskRunner;
+import it.ksuploader.client.utils.UploadScheduler;
+import it.ksuploader.client.utils.UploadScheduler.Priority;
 import it.ksuploader.client.utils.Zipper;
 
 import javax.imageio.ImageIO;
@@ -16,32 +30,105 @@ import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.UnsupportedFlavorException;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
 
 import static java.awt.SystemTray.getSystemTray;
 import static java.awt.SystemTray.isSupported;
 
 public class SystemTrayMenu {
 
+    /**
+     * Numbers the temporary files, so that files made in the same second get
+     * different names.
+     */
+    private static final AtomicInteger TEMP_FILE_NUMBER = new AtomicInteger();
+
+    /**
+     * Put before a link in the history whose upload failed after the link was
+     * copied.
+     */
+    public static final String FAILED_FLAG = "[failed] ";
+
+    /**
+     * Put before a link in the history whose upload was queued after the
+     * link was copied; the file will be at the link once it is uploaded.
+     */
+    public static final String QUEUED_FLAG = "[queued] ";
+
+    /**
+     * The maximum number of times a screenshot is scaled down to fit the size
+     * the destination accepts.
+     */
+    private static final int MAX_FIT_ATTEMPTS = 4;
+
+    /**
+     * The length in bytes per pixel that the PNG file of a screenshot is
+     * assumed to have until a screenshot has been encoded.
+     */
+    private static final double DEFAULT_PNG_BYTES_PER_PIXEL = 1.0;
+
+    /**
+     * How long in milliseconds the size a destination accepts is remembered,
+     * so that screenshots taken in a row don't each wait for the destination
+     * to answer first.
+     */
+    private static final long MAX_LENGTH_TTL = 30 * 1000;
+
+    /**
+     * The sizes destinations accepted recently, by uploader name and kind of
+     * file.
+     */
+    private static final Map<String, MaxLength> MAX_LENGTHS = new HashMap<>();
+
+    /**
+     * The length in bytes per pixel of the PNG file of the previous
+     * screenshot, which is used to guess the length of the next one before
+     * it is encoded.
+     */
+    private static volatile double pngBytesPerPixel = DEFAULT_PNG_BYTES_PER_PIXEL;
+
     private Clipboard clpbrd;
     private PopupMenu popupMenu;
     private final Sound suono;
-    private SocketUploader socketUploader;
-    private FtpUploader ftpup;
+    private final SocketUploader socketUploader;
     private TrayIcon trayIcon;
+    private volatile CompletableFuture<Link> currentUpload;
+    private final Observer stopObserver = (o, arg) -> {
+        CompletableFuture<Link> upload = currentUpload;
+        if (upload != null) {
+            upload.cancel(true);
+        }
+    };
 
     private MenuItem[] uploads;
     private MenuItem catturaArea;
     private MenuItem catturaDesktop;
+    private MenuItem catturaFinestra;
+    private MenuItem registraArea;
     private MenuItem caricaFile;
     private MenuItem clipboard;
     private boolean capturing;
+    private volatile Capture recording;
 
     public SystemTrayMenu() {
         try {
@@ -54,16 +141,9 @@ public class SystemTrayMenu {
         this.suono = new Sound();
         this.uploads = new MenuItem[5];
 
+        this.socketUploader = new SocketUploader();
         Main.dialog.cleanObservers();
-        if (Main.config.getFtpEnabled()) {
-            this.socketUploader = null;
-            this.ftpup = new FtpUploader();
-            Main.dialog.addObserver(this.ftpup);
-        } else {
-            this.ftpup = null;
-            this.socketUploader = new SocketUploader();
-            Main.dialog.addObserver(this.socketUploader);
-        }
+        Main.dialog.addObserver(this.socketUploader);
 
         for (int i = 0; i < uploads.length; i++) {
             uploads[i] = new MenuItem();
@@ -79,6 +159,8 @@ public class SystemTrayMenu {
                 popupMenu = new PopupMenu();
                 catturaArea = new MenuItem();
                 catturaDesktop = new MenuItem();
+                catturaFinestra = new MenuItem();
+                registraArea = new MenuItem();
                 caricaFile = new MenuItem();
                 clipboard = new MenuItem();
                 updateKeys();
@@ -90,6 +172,8 @@ public class SystemTrayMenu {
                 popupMenu.addSeparator();
                 popupMenu.add(catturaArea);
                 popupMenu.add(catturaDesktop);
+                popupMenu.add(catturaFinestra);
+                popupMenu.add(registraArea);
                 popupMenu.addSeparator();
                 popupMenu.add(caricaFile);
                 popupMenu.add(clipboard);
@@ -108,6 +192,8 @@ public class SystemTrayMenu {
                         e1.printStackTrace();
                     }
                 });
+                catturaFinestra.addActionListener(e -> uploadWindowScreen());
+                registraArea.addActionListener(e -> recordScreen());
                 caricaFile.addActionListener(e -> uploadFile());
                 clipboard.addActionListener(e -> uploadClipboard());
 
@@ -115,7 +201,6 @@ public class SystemTrayMenu {
                     SettingsDialog configPanel = new SettingsDialog();
                     configPanel.loadCurrentConfig();
                     configPanel.setVisible(true);
-                    FtpSocketSwitch();
                 });
 
                 esci.addActionListener(e -> {
@@ -134,26 +219,12 @@ public class SystemTrayMenu {
         }
     }
 
-    private void FtpSocketSwitch() {
-        Main.dialog.cleanObservers();
-        if (Main.config.getFtpEnabled()) {
-            this.socketUploader = null;
-            this.ftpup = new FtpUploader();
-            Main.dialog.cleanObservers();
-            Main.dialog.addObserver(this.ftpup);
-        } else {
-            this.ftpup = null;
-            this.socketUploader = new SocketUploader();
-            Main.dialog.cleanObservers();
-            Main.dialog.addObserver(this.socketUploader);
-        }
-    }
-
-    private void history(String link) {
+    public void history(String link) {
         popupMenu.remove(uploads[uploads.length - 1]);
 
         System.arraycopy(uploads, 0, uploads, 1, uploads.length - 1);
         uploads[0] = new MenuItem(link);
+        uploads[0].setActionCommand(link);
         uploads[0].addActionListener(e -> {
             try {
                 Desktop.getDesktop().browse(new URI(e.getActionCommand()));
@@ -165,9 +236,28 @@ public class SystemTrayMenu {
         popupMenu.insert(uploads[0], 2);
     }
 
+    /**
+     * Flags a link in the history, for example because its upload failed
+     * after the link was copied. The link can still be opened.
+     *
+     * @param link The link.
+     * @param flag The flag, for example {@code FAILED_FLAG}.
+     */
+    public void flagHistory(String link, String flag) {
+        SwingUtilities.invokeLater(() -> {
+            for (MenuItem item : uploads) {
+                if (link.equals(item.getActionCommand())) {
+                    item.setLabel(flag + link);
+                }
+            }
+        });
+    }
+
     public void updateKeys() {
         catturaArea.setLabel(("Capture Area " + loadKey(Main.config.getKeyScreen())));
         catturaDesktop.setLabel("Capture Desktop " + loadKey(Main.config.getKeyCScreen()));
+        catturaFinestra.setLabel("Capture Window " + loadKey((int[]) Setting.SHORTCUT_WINDOW_SCREENSHOT.getValue()));
+        registraArea.setLabel((recording == null ? "Record Area " : "Stop Recording ") + loadKey((int[]) Setting.SHORTCUT_SCREEN_RECORDING.getValue()));
         caricaFile.setLabel("Upload File " + loadKey(Main.config.getKeyFile()));
         clipboard.setLabel("Upload Clipboard " + loadKey(Main.config.getKeyClipboard()));
     }
@@ -182,146 +272,538 @@ public class SystemTrayMenu {
         return ret.toString();
     }
 
-    public void uploadPartialScreen() {
-        if (capturing) {
-            return;
+    /**
+     * Makes up a name for a temporary file: the current time in seconds,
+     * followed by a number no other temporary file of this client has.
+     *
+     * @param extension The extension of the file, for example ".png".
+     * @return the name
+     */
+    private static String newTempName(String extension) {
+        return System.currentTimeMillis() / 1000 + "" + TEMP_FILE_NUMBER.incrementAndGet() + extension;
+    }
+
+    /**
+     * Uploads a screenshot, and saves a copy in {@code SAVE_DIRECTORY} if
+     * {@code SAVE_ENABLED}. The uploaded screenshot is scaled down if it is
+     * larger than the destination accepts. Unless a copy is saved at full
+     * size, a screenshot that is expected not to fit is scaled down before it
+     * is encoded at all.
+     *
+     * @param image The screenshot.
+     * @return true if the screenshot was uploaded
+     */
+    private boolean uploadScreenshot(BufferedImage image) {
+        long maxLength;
+        try {
+            maxLength = getMaxLength("img");
+        } catch (ServerReplyException ex) {
+            KSUploader.logger.log(Level.INFO, "The server refuses screenshots: {0}", ex.getReply());
+            SocketUploader.showRefusal(ex.getReply());
+            return false;
         }
-        new Thread() {
-            @Override
-            public void run() {
-                capturing = true;
-                MyScreen partialScreen = new MyScreen();
-                capturing = false;
-                if (!partialScreen.isValidScreen()) {
-                    Main.dialog.show("Upload Cancelled!", ":(", false);
-                    Main.dialog.destroy();
-                } else {
-                    if (Main.config.getFtpEnabled()) {
-                        try {
+        String name = newTempName(".png");
+        File tempFile = new File(System.getProperty("java.io.tmpdir"), name);
+        boolean saveCopy = Setting.SAVE_ENABLED.getBooleanValue();
+        if (!saveCopy) {
+            image = scaleDown(image, (long) image.getWidth() * image.getHeight() * pngBytesPerPixel, maxLength);
+        }
+        try {
+            ImageIO.write(image, "png", tempFile);
+            pngBytesPerPixel = (double) tempFile.length() / ((long) image.getWidth() * image.getHeight());
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.WARNING, "Couldn't save the screenshot.", ex);
+            KSUploader.inst.getPopupDialog().show("Error!", "Couldn't save the screenshot", false);
+            tempFile.delete();
+            return false;
+        }
+        if (saveCopy) {
+            try {
+                Files.copy(tempFile.toPath(), new File(Setting.SAVE_DIRECTORY.getValue().toString(), name).toPath());
+            } catch (IOException ex) {
+                KSUploader.logger.log(Level.WARNING, "Couldn't save a copy of the screenshot.", ex);
+            }
+        }
+        try {
+            fit(image, tempFile, maxLength);
+            return upload(tempFile, "img");
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.WARNING, "Couldn't scale the screenshot down.", ex);
+            KSUploader.inst.getPopupDialog().show("Error!", "Couldn't save the screenshot", false);
+            return false;
+        } finally {
+            tempFile.delete();
+        }
+    }
 
-                            File tempFile = new File(Main.so.getTempDir() + File.separator + System.currentTimeMillis() / 1000 + new Random().nextInt(999) + ".png");
+    /**
+     * Scales a screenshot down until its PNG file is no larger than the
+     * destination accepts, at most {@code MAX_FIT_ATTEMPTS} times. Every
+     * attempt assumes that the size of the PNG file shrinks with the number
+     * of pixels; detailed screenshots shrink less, which the next attempt
+     * makes up for.
+     *
+     * @param image The screenshot.
+     * @param file The PNG file of the screenshot, which is replaced.
+     * @param maxLength The maximum length in bytes, or -1 for no limit.
+     */
+    private static void fit(BufferedImage image, File file, long maxLength) throws IOException {
+        for (int i = 0; i < MAX_FIT_ATTEMPTS && maxLength >= 0 && file.length() > maxLength; i++) {
+            image = scaleDown(image, file.length(), maxLength);
+            ImageIO.write(image, "png", file);
+        }
+    }
 
-                            if (Main.config.isSaveEnabled()) {
-                                ImageIO.write(partialScreen.getImage(), "png", new File(Main.config.getSaveDir() + File.separator + System.currentTimeMillis() / 1000
-                                        + new Random().nextInt(999) + ".png"));
-                                Main.myLog("[SocketUploader] MyScreen saved");
-                            }
+    /**
+     * Scales a screenshot down so that its PNG file fits the size the
+     * destination accepts, assuming that the length of the file shrinks with
+     * the number of pixels.
+     *
+     * @param image The screenshot.
+     * @param length The length in bytes the PNG file of the screenshot has,
+     * or is expected to have.
+     * @param maxLength The maximum length in bytes, or -1 for no limit.
+     * @return the scaled screenshot, or {@code image} itself if it fits
+     */
+    private static BufferedImage scaleDown(BufferedImage image, double length, long maxLength) {
+        if (maxLength < 0 || length <= maxLength) {
+            return image;
+        }
+        double factor = 0.9 * Math.sqrt(maxLength / length);
+        int width = Math.max(1, (int) (image.getWidth() * factor));
+        int height = Math.max(1, (int) (image.getHeight() * factor));
+        KSUploader.logger.log(Level.INFO, "The screenshot is about {0} bytes, more than the {1} the destination accepts; scaling it to {2}x{3}.",
+                new Object[]{(long) length, maxLength, width, height});
+        return ImageScaler.downscale(image, width, height);
+    }
 
-                            ImageIO.write(partialScreen.getImage(), "png", tempFile);
-                            ftpup.setFilePath(tempFile);
-
-                            boolean res;
-                            res = ftpup.send();
-                            if (res) {
-                                Main.dialog.show("Screenshot Caricato!", ftpup.getLink(), true);
-                                history(ftpup.getLink());
-                                clpbrd.setContents(new StringSelection(ftpup.getLink()), null);
-                                tempFile.delete();
-                                suono.run();
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
+    /**
+     * Asks the configured uploader how large a file it accepts, before an
+     * expensive file such as an archive is built. Uploads to several
+     * destinations aren't asked. The answer, or the failure to get one, is
+     * remembered for {@code MAX_LENGTH_TTL} milliseconds.
+     *
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return the maximum length in bytes, or -1 if there is no limit or it
+     * is unknown
+     * @throws ServerReplyException If the destination refuses files of that
+     * kind right now, for example because it is full.
+     */
+    private static long getMaxLength(String type) throws ServerReplyException {
+        if (DestinationRegistry.isFanOutEnabled()) {
+            return -1;
+        }
+        Uploader uploader = KSUploader.inst.getUploader();
+        String key = uploader.getName() + "/" + type;
+        MaxLength cached;
+        synchronized (MAX_LENGTHS) {
+            cached = MAX_LENGTHS.get(key);
+        }
+        if (cached == null || System.currentTimeMillis() - cached.time > MAX_LENGTH_TTL) {
+            long maxLength = -1;
+            ServerReplyException refusal = null;
+            try {
+                maxLength = uploader.getMaxLength(type);
+            } catch (ServerReplyException ex) {
+                refusal = ex;
+            } catch (IOException ex) {
+                KSUploader.logger.log(Level.INFO, "Couldn't ask the destination how large a file it accepts.", ex);
+            }
+            cached = new MaxLength(maxLength, refusal);
+            synchronized (MAX_LENGTHS) {
+                MAX_LENGTHS.put(key, cached);
+            }
+        }
+        if (cached.refusal != null) {
+            throw cached.refusal;
+        }
+        return cached.maxLength;
+    }
 
-                        File tempFile = new File(Main.so.getTempDir() + "/ksutemp.png");
-                        try {
-                            if (Main.config.isSaveEnabled()) {
-                                ImageIO.write(partialScreen.getImage(), "png", new File(Main.config.getSaveDir() + File.separator + System.currentTimeMillis() / 1000
-                                        + new Random().nextInt(999) + ".png"));
-                                Main.myLog("[SocketUploader] MyScreen saved");
-                            }
+    /**
+     * Forgets the sizes destinations accepted, for example because the
+     * configuration changed.
+     */
+    public static void clearMaxLengths() {
+        synchronized (MAX_LENGTHS) {
+            MAX_LENGTHS.clear();
+        }
+    }
+
+    /**
+     * Uploads selected files: a single file as it is, several files or a
+     * directory as one ZIP archive. The destination is asked first how large
+     * a file it accepts: files that can't fit aren't read or zipped at all,
+     * and an archive that may only fit if compressed well is compressed at
+     * the best level.
+     *
+     * @param files The selected files.
+     */
+    private void uploadFiles(File[] files) {
+        String type = (files.length == 1 && files[0].getName().toLowerCase().endsWith(".png")) ? "img" : "file";
+        long maxLength;
+        try {
+            maxLength = getMaxLength(type);
+        } catch (ServerReplyException ex) {
+            KSUploader.logger.log(Level.INFO, "The server refuses files: {0}", ex.getReply());
+            SocketUploader.showRefusal(ex.getReply());
+            return;
+        }
+        long length = Zipper.getLength(files);
+        boolean single = files.length == 1 && files[0].isFile();
+        if (maxLength >= 0 && length > maxLength && (single || Zipper.getIncompressibleLength(files) > maxLength)) {
+            KSUploader.logger.log(Level.INFO, "The selected files can''t be made smaller than the {0} bytes the destination accepts.", maxLength);
+            SocketUploader.showRefusal("FILE_TOO_LARGE");
+            return;
+        }
+        if (single) {
+            upload(files[0], type);
+            return;
+        }
+        File zip = new File(System.getProperty("java.io.tmpdir"), newTempName(".zip"));
+        try {
+            if (maxLength >= 0 && length > maxLength) {
+                KSUploader.logger.log(Level.INFO, "The selected files are {0} bytes, more than the {1} the destination accepts; zipping them at the best compression.",
+                        new Object[]{length, maxLength});
+                Zipper.toZip(files, zip, Deflater.BEST_COMPRESSION);
+            } else {
+                Zipper.toZip(files, zip);
+            }
+            upload(zip, "file");
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.WARNING, "Couldn't create the ZIP archive.", ex);
+            KSUploader.inst.getPopupDialog().show("Error!", "Couldn't create the ZIP archive", false);
+        } finally {
+            zip.delete();
+        }
+    }
 
-                            ImageIO.write(partialScreen.getImage(), "png", tempFile);
-                            socketUploader.setFilePath(tempFile.getPath());
-
-                            boolean res;
-                            res = socketUploader.send("img");
-                            if (res) {
-                                Main.dialog.show("Upload Completed!", socketUploader.getLink(), true);
-                                history(socketUploader.getLink());
-                                clpbrd.setContents(new StringSelection(socketUploader.getLink()), null);
-                                suono.run();
-                                tempFile.delete();
+    /**
+     * Uploads a file with the configured {@link Uploader}, or to every
+     * destination in {@code UPLOAD_DESTINATIONS}. The link is added to the
+     * history and copied to the clipboard; if the uploader knows the link in
+     * advance, it is copied before the upload finishes. A file whose
+     * destination can't be reached is kept in the {@link UploadJournal} to be
+     * uploaded later.
+     *
+     * @param file The file to upload.
+     * @param type The kind of file: "img", "file" or "txt".
+     * @return true if the file was uploaded; false if it failed, was stopped
+     * or was queued
+     */
+    private boolean upload(File file, String type) {
+        PopupDialog dialog = KSUploader.inst.getPopupDialog();
+        dialog.addObserver(stopObserver);
+        dialog.show("Uploading...", "", false);
+        dialog.set(0);
+        Uploader uploader = null;
+        Payload payload = null;
+        CompletableFuture<Link> upload = null;
+        AtomicReference<String> reservedLink = new AtomicReference<>();
+        AtomicBoolean queued = new AtomicBoolean();
+        String link = null;
+        try {
+            payload = Payload.read(file, type);
+            if (DestinationRegistry.isFanOutEnabled()) {
+                upload = DestinationRegistry.fanOut(payload, dialog::set,
+                        (received) -> SwingUtilities.invokeLater(() -> history(received.getUrl())),
+                        (failed, ex) -> {
+                            if (UploadJournal.isUnreachable(ex) && queue(file, type, failed)) {
+                                queued.set(true);
                             }
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                        });
+                currentUpload = upload;
+                link = Uploader.await(upload).getUrl();
+            } else {
+                uploader = KSUploader.inst.getUploader();
+                if (Setting.OPTIMISTIC_LINKS.getBooleanValue()) {
+                    upload = uploader.upload(payload, dialog::set, (reserved) -> {
+                        reservedLink.set(reserved);
+                        clpbrd.setContents(new StringSelection(reserved), null);
+                        SwingUtilities.invokeLater(() -> history(reserved));
+                    });
+                } else {
+                    upload = uploader.upload(payload, dialog::set);
+                }
+                currentUpload = upload;
+                String received = Uploader.await(upload).getUrl();
+                link = received;
+                if (!received.equals(reservedLink.get())) {
+                    SwingUtilities.invokeLater(() -> history(received));
+                }
+            }
+            dialog.show("Upload Completed!", link, true);
+            clpbrd.setContents(new StringSelection(link), null);
+            suono.run();
+            return true;
+        } catch (ServerReplyException ex) {
+            KSUploader.logger.log(Level.INFO, "The server refused {0}: {1}", new Object[]{file.getName(), ex.getReply()});
+            SocketUploader.showRefusal(ex.getReply());
+        } catch (IOException ex) {
+            if (upload != null && upload.isCancelled()) {
+                dialog.show("Stopped...", "", false);
+                return false;
+            }
+            KSUploader.logger.log(Level.WARNING, "Couldn't upload " + file.getName(), ex);
+            if (uploader == null) {
+                /* The destinations that couldn't be reached were queued one by one. */
+                if (!queued.get()) {
+                    dialog.connectionError();
+                }
+            } else if (!UploadJournal.isUnreachable(ex) || !queue(file, type, uploader)) {
+                dialog.connectionError();
+            } else if (reservedLink.get() != null && reservedLink.get().equals(uploader.predictLink(payload))) {
+                /* The queued upload will end up at the same link. */
+                link = reservedLink.get();
+                flagHistory(link, QUEUED_FLAG);
+            }
+        } catch (RuntimeException ex) {
+            KSUploader.logger.log(Level.SEVERE, "Couldn't upload " + file.getName(), ex);
+            dialog.show("Error!", "Couldn't upload " + file.getName(), false);
+        } finally {
+            currentUpload = null;
+            String reserved = reservedLink.get();
+            if (reserved != null && !reserved.equals(link)) {
+                KSUploader.logger.log(Level.INFO, "The link {0} was copied, but the upload didn''t end up there.", reserved);
+                flagHistory(reserved, FAILED_FLAG);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Uploads a selection of files as separate files with an uploader that can
+     * upload several files in parallel, {@code BATCH_PARALLEL_UPLOADS} at a
+     * time. Every link is added to the history, and the link of the last file
+     * is copied to the clipboard. Files whose destination can't be reached are
+     * kept in the {@link UploadJournal}.
+     *
+     * @param files The selected files.
+     * @param uploader The uploader.
+     */
+    private void uploadBatch(File[] files, Uploader uploader) {
+        PopupDialog dialog = KSUploader.inst.getPopupDialog();
+        dialog.addObserver(stopObserver);
+        dialog.show("Uploading...", "", false);
+        dialog.set(0);
+        /* Stands for the whole batch, so that stopping it cancels every upload. */
+        CompletableFuture<Link> batch = new CompletableFuture<>();
+        List<CompletableFuture<Link>> batchUploads = new CopyOnWriteArrayList<>();
+        List<File> started = new ArrayList<>();
+        batch.whenComplete((link, ex) -> batchUploads.forEach((upload) -> upload.cancel(true)));
+        currentUpload = batch;
+        int[] percentages = new int[files.length];
+        Semaphore slots = new Semaphore(Math.max(1, Setting.BATCH_PARALLEL_UPLOADS.getIntValue()));
+        int failures = 0;
+        try {
+            for (int i = 0; i < files.length && !batch.isDone(); i++) {
+                slots.acquire();
+                int index = i;
+                String type = files[i].getName().toLowerCase().endsWith(".png") ? "img" : "file";
+                CompletableFuture<Link> upload;
+                try {
+                    upload = uploader.upload(Payload.read(files[i], type), (percentage) -> {
+                        synchronized (percentages) {
+                            percentages[index] = percentage;
+                            dialog.set(Arrays.stream(percentages).sum() / percentages.length);
                         }
-                    }
+                    });
+                } catch (IOException ex) {
+                    KSUploader.logger.log(Level.WARNING, "Couldn't read " + files[i].getName(), ex);
+                    slots.release();
+                    failures++;
+                    continue;
+                }
+                upload.whenComplete((link, ex) -> slots.release());
+                batchUploads.add(upload);
+                started.add(files[i]);
+                if (batch.isDone()) {
+                    upload.cancel(true);
                 }
             }
-        }.start();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            batch.cancel(true);
+        }
+
+        String lastLink = null;
+        String refusal = null;
+        for (int i = 0; i < batchUploads.size(); i++) {
+            File file = started.get(i);
+            try {
+                String link = Uploader.await(batchUploads.get(i)).getUrl();
+                SwingUtilities.invokeLater(() -> history(link));
+                lastLink = link;
+            } catch (ServerReplyException ex) {
+                KSUploader.logger.log(Level.INFO, "The server refused {0}: {1}", new Object[]{file.getName(), ex.getReply()});
+                refusal = ex.getReply();
+            } catch (IOException ex) {
+                if (batch.isDone()) {
+                    continue;
+                }
+                KSUploader.logger.log(Level.WARNING, "Couldn't upload " + file.getName(), ex);
+                String type = file.getName().toLowerCase().endsWith(".png") ? "img" : "file";
+                if (!UploadJournal.isUnreachable(ex) || !queue(file, type, uploader)) {
+                    failures++;
+                }
+            } catch (RuntimeException ex) {
+                KSUploader.logger.log(Level.SEVERE, "Couldn't upload " + file.getName(), ex);
+                failures++;
+            }
+        }
+        currentUpload = null;
+
+        if (batch.isCancelled()) {
+            dialog.show("Stopped...", "", false);
+        } else if (refusal != null) {
+            SocketUploader.showRefusal(refusal);
+        } else if (failures > 0) {
+            dialog.connectionError();
+        } else if (lastLink != null) {
+            dialog.show("Upload Completed!", lastLink, true);
+            clpbrd.setContents(new StringSelection(lastLink), null);
+            suono.run();
+        }
     }
 
-    public void uploadCompleteScreen() {
+    /**
+     * Keeps a file whose destination couldn't be reached in the
+     * {@link UploadJournal}, so that it is uploaded later.
+     *
+     * @return true if the file was queued
+     */
+    private boolean queue(File file, String type, Uploader uploader) {
+        UploadJournal journal = KSUploader.inst.getUploadJournal();
+        if (journal == null) {
+            return false;
+        }
+        try {
+            journal.add(file, type, uploader.getName());
+            KSUploader.inst.getPopupDialog().uploadQueued();
+            return true;
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.WARNING, "Couldn't queue " + file.getName(), ex);
+            return false;
+        }
+    }
+
+    public void uploadPartialScreen() {
         if (capturing) {
             return;
         }
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    boolean res;
-                    if (Main.config.getFtpEnabled()) {
-                        try {
-                            File tempFile = new File(Main.so.getTempDir() + File.separator + System.currentTimeMillis() / 1000
-                                    + new Random().nextInt(999) + ".png");
-
-                            if (Main.config.isSaveEnabled()) {
-                                ImageIO.write(new Robot().createScreenCapture(Main.so.getScreenBounds()),
-                                        "png",
-                                        new File(Main.config.getSaveDir() + File.separator + System.currentTimeMillis() / 1000
-                                                + new Random().nextInt(999) + ".png"));
-                                Main.myLog("[SocketUploader] MyScreen saved");
-                            }
-                            ImageIO.write(new Robot().createScreenCapture(Main.so.getScreenBounds()), "png", tempFile);
-
-                            ftpup.setFilePath(tempFile);
-
-                            res = ftpup.send();
-                            if (res) {
-                                Main.dialog.show("Upload Completed!", ftpup.getLink(), true);
-                                history(ftpup.getLink());
-                                clpbrd.setContents(new StringSelection(ftpup.getLink()), null);
-                                tempFile.delete();
-                                suono.run();
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        // Se socket
-                    } else {
+        UploadScheduler.submit(Priority.INTERACTIVE, "partial screenshot", () -> {
+            Capture capture = new Capture();
+            capturing = true;
+            try {
+                capture.capturePartialScreenshot();
+            } catch (CaptureException ex) {
+                Main.dialog.show("Upload Cancelled!", ":(", false);
+                Main.dialog.destroy();
+                return;
+            } finally {
+                capturing = false;
+            }
+            uploadScreenshot(capture.getImage());
+        });
+    }
 
-                        File tempFile = new File(Main.so.getTempDir() + "/ksutemp.png");
+    /**
+     * Captures the screen as configured with {@code SCREENSHOT_TARGET} and
+     * uploads it, or every monitor as a screenshot of its own. With {@code DIFFERENTIAL_CAPTURE_ENABLED}, only the part
+     * that changed since the previous uploaded screenshot is uploaded, and
+     * nothing if the screen didn't change.
+     */
+    public void uploadCompleteScreen() {
+        if (capturing) {
+            return;
+        }
+        UploadScheduler.submit(Priority.INTERACTIVE, "desktop screenshot", () -> {
+            Capture capture = new Capture();
+            try {
+                capture.captureEntireScreenshot();
+            } catch (CaptureException ex) {
+                KSUploader.logger.log(Level.WARNING, "Couldn't capture the desktop.", ex);
+                KSUploader.inst.getPopupDialog().show("Error!", "Couldn't capture the desktop", false);
+                return;
+            }
+            if (capture.isEmpty()) {
+                KSUploader.inst.getPopupDialog().show("Nothing to upload", "The screen didn't change", false);
+                return;
+            }
+            boolean uploaded = true;
+            for (BufferedImage image : capture.getImages()) {
+                uploaded &= uploadScreenshot(image);
+            }
+            if (uploaded) {
+                capture.commitChanges();
+            }
+        });
+    }
 
-                        try {
-                            ImageIO.write(new Robot().createScreenCapture(Main.so.getScreenBounds()), "png", tempFile);
-                            if (Main.config.isSaveEnabled()) {
-                                ImageIO.write(new Robot().createScreenCapture(Main.so.getScreenBounds()), "png",
-                                        new File(Main.config.getSaveDir() + File.separator + System.currentTimeMillis() / 1000 + ""
-                                                + new Random().nextInt(999) + ".png"));
-                                Main.myLog("[SocketUploader] MyScreen saved");
-                            }
+    public void uploadWindowScreen() {
+        if (capturing) {
+            return;
+        }
+        UploadScheduler.submit(Priority.INTERACTIVE, "window screenshot", () -> {
+            Capture capture = new Capture();
+            try {
+                capture.captureWindowScreenshot();
+            } catch (CaptureException ex) {
+                KSUploader.logger.log(Level.WARNING, "Couldn't capture the focused window.", ex);
+                KSUploader.inst.getPopupDialog().show("Error!", "Couldn't capture the window", false);
+                return;
+            }
+            uploadScreenshot(capture.getImage());
+        });
+    }
 
-                            socketUploader.setFilePath(tempFile.getPath());
-                            res = socketUploader.send("img");
-                            if (res) {
-                                Main.dialog.show("Upload Completed!", socketUploader.getLink(), true);
-                                history(socketUploader.getLink());
-                                clpbrd.setContents(new StringSelection(socketUploader.getLink()), null);
-                                suono.run();
-                            }
-                            tempFile.delete();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                } catch (AWTException ex) {
-                    ex.printStackTrace();
-                    Main.myErr(Arrays.toString(ex.getStackTrace()).replace(",", "\n"));
-                }
+    /**
+     * Lets the user select an area of the screen and records it as an
+     * animated GIF, or stops the recording if one is running. The recording
+     * is uploaded once it is stopped, or after {@code RECORDING_MAX_DURATION}
+     * seconds.
+     */
+    public void recordScreen() {
+        Capture current = recording;
+        if (current != null) {
+            current.stopScreenRecording();
+            return;
+        }
+        if (capturing) {
+            return;
+        }
+        Capture capture = new Capture();
+        recording = capture;
+        capturing = true;
+        updateKeys();
+        /* Recording takes a while, so it doesn't hold a slot of the upload scheduler. */
+        TaskRunner.submit(() -> {
+            try {
+                capture.captureScreenRecording();
+            } catch (CaptureException ex) {
+                KSUploader.logger.log(Level.INFO, "Couldn't record the screen.", ex);
+                KSUploader.inst.getPopupDialog().show("Recording Cancelled!", ":(", false);
+                capture.clean();
+                return;
+            } finally {
+                recording = null;
+                capturing = false;
+                updateKeys();
             }
-        }.start();
+            UploadScheduler.submit(Priority.INTERACTIVE, "screen recording", () -> {
+                File gif = new File(System.getProperty("java.io.tmpdir"), newTempName(".gif"));
+                try {
+                    Files.move(capture.getFile().toPath(), gif.toPath());
+                    upload(gif, "img");
+                } catch (IOException ex) {
+                    KSUploader.logger.log(Level.WARNING, "Couldn't save the screen recording.", ex);
+                    KSUploader.inst.getPopupDialog().show("Error!", "Couldn't save the recording", false);
+                } finally {
+                    gif.delete();
+                    capture.clean();
+                }
+            });
+        });
     }
 
     public void uploadFile() {
@@ -332,59 +814,23 @@ public class SystemTrayMenu {
             Action details = selFile.getActionMap().get("viewTypeDetails");
             details.actionPerformed(null);
             if (selFile.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-                new Thread() {
-                    @Override
-                    public void run() {
-                        boolean res = false;
-                        if (Main.config.getFtpEnabled()) {
-                            if (selFile.getSelectedFiles()[0].getName().toLowerCase().endsWith(".png") && selFile.getSelectedFiles().length == 1) {
-                                ftpup.setFilePath(selFile.getSelectedFiles()[0].getPath());
-
-                            } else if (!selFile.getSelectedFiles()[0].getName().endsWith(".zip") || selFile.getSelectedFiles().length > 1) {
-                                Main.dialog.setButtonClickable(false);
-                                ftpup.setFilePath(Zipper.toZip("ftp", selFile.getSelectedFiles(), selFile.getSelectedFiles()[0].getParentFile().getPath()));
-                                Main.dialog.setButtonClickable(true);
-                                // Altrimenti se finisce con .zip O è uno solo
-                            } else if (selFile.getSelectedFiles()[0].getName().endsWith(".zip") && selFile.getSelectedFiles().length == 1) {
-                                ftpup.setFilePath(selFile.getSelectedFiles()[0].getPath());
-                            }
-
-                            res = ftpup.send();
-                            if (res) {
-                                Main.dialog.show("Upload Completed!", ftpup.getLink(), true);
-                                history(ftpup.getLink());
-                                clpbrd.setContents(new StringSelection(ftpup.getLink()), null);
-                                suono.run();
-                            }
-
-                        } else {
-
-                            if (selFile.getSelectedFiles()[0].getName().toLowerCase().endsWith(".png") && selFile.getSelectedFiles().length == 1) {
-                                socketUploader.setFilePath(selFile.getSelectedFiles()[0].getPath());
-                                res = socketUploader.send("img");
-
-                            } else if (!selFile.getSelectedFiles()[0].getName().endsWith(".zip") || selFile.getSelectedFiles().length > 1) {
-                                Main.dialog.setButtonClickable(false);
-                                socketUploader.setFilePath(Zipper.toZip("socket", selFile.getSelectedFiles(), selFile.getSelectedFiles()[0].getParentFile().getPath()));
-                                res = socketUploader.send("file");
-
-                            } else if (selFile.getSelectedFiles()[0].getName().endsWith(".zip") && selFile.getSelectedFiles().length == 1) {
-                                socketUploader.setFilePath(selFile.getSelectedFiles()[0].getPath());
-                                res = socketUploader.send("file");
-                            }
-
-                            if (res) {
-                                Main.dialog.show("Upload Completed!", socketUploader.getLink(), true);
-                                history(socketUploader.getLink());
-                                clpbrd.setContents(new StringSelection(socketUploader.getLink()), null);
-                                suono.run();
-                            }
-                            File f = new File(Main.so.getTempDir(), "KStemp.zip");
-                            f.delete();
-
+                UploadScheduler.submit(Priority.BULK, "file upload", () -> {
+                    File[] files = selFile.getSelectedFiles();
+                    Uploader uploader = KSUploader.inst.getUploader();
+                    boolean batch = !DestinationRegistry.isFanOutEnabled() && files.length > 1 && Setting.BATCH_UPLOAD_ENABLED.getBooleanValue()
+                            && Arrays.stream(files).allMatch(File::isFile);
+                    if (batch && DestinationRegistry.SOCKET.equals(uploader.getName())) {
+                        if (socketUploader.sendBatch(files, "file", (link) -> SwingUtilities.invokeLater(() -> history(link)))) {
+                            KSUploader.inst.getPopupDialog().show("Upload Completed!", socketUploader.getLink(), true);
+                            clpbrd.setContents(new StringSelection(socketUploader.getLink()), null);
+                            suono.run();
                         }
+                    } else if (batch && uploader.supports(Capability.PARALLEL)) {
+                        uploadBatch(files, uploader);
+                    } else {
+                        uploadFiles(files);
                     }
-                }.start();
+                });
             }
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -393,48 +839,39 @@ public class SystemTrayMenu {
     }
 
     public void uploadClipboard() {
-        new Thread() {
-            @Override
-            public void run() {
-                boolean res;
-                try {
-                    String clipboard = (String) Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor);
-                    String fileName = System.currentTimeMillis() / 1000 + "" + new Random().nextInt(999);
-                    File f = new File(Main.so.getTempDir() + File.separator + fileName + ".txt");
-                    Main.myLog(f.getPath());
-                    PrintWriter out = new PrintWriter(Main.so.getTempDir() + File.separator + fileName + ".txt");
+        UploadScheduler.submit(Priority.INTERACTIVE, "clipboard upload", () -> {
+            try {
+                String clipboard = (String) Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor);
+                File f = new File(System.getProperty("java.io.tmpdir"), newTempName(".txt"));
+                try (PrintWriter out = new PrintWriter(f)) {
                     out.println(clipboard);
-                    out.close();
-
-                    if (Main.config.getFtpEnabled()) {
-                        ftpup.setFilePath(f);
-                        res = ftpup.send();
-                        if (res) {
-                            Main.dialog.show("Upload Completed!", ftpup.getLink(), true);
-                            history(ftpup.getLink());
-                            clpbrd.setContents(new StringSelection(ftpup.getLink()), null);
-                            suono.run();
-                        }
+                }
+                try {
+                    upload(f, "txt");
+                } finally {
+                    f.delete();
+                }
+            } catch (UnsupportedFlavorException | IOException ex) {
+                KSUploader.logger.log(Level.WARNING, "Couldn't read the clipboard.", ex);
+                KSUploader.inst.getPopupDialog().show("Error!", "Error with clipboard!", false);
+            }
+        });
+    }
 
-                    } else {
+    /**
+     * The size a destination accepts, or why it refuses files, and when it
+     * was asked.
+     */
+    private static class MaxLength {
 
-                        socketUploader.setFilePath(f.getPath());
-                        res = socketUploader.send("txt");
-                        if (res) {
-                            Main.dialog.show("Upload Completed!", socketUploader.getLink(), true);
-                            history(socketUploader.getLink());
-                            clpbrd.setContents(new StringSelection(socketUploader.getLink()), null);
-                            suono.run();
-                        }
-                        f.delete();
-                    }
+        private final long maxLength;
+        private final ServerReplyException refusal;
+        private final long time = System.currentTimeMillis();
+
+        private MaxLength(long maxLength, ServerReplyException refusal) {
+            this.maxLength = maxLength;
+            this.refusal = refusal;
+        }
 
-                } catch (UnsupportedFlavorException | IOException ex) {
-                    ex.printStackTrace();
-                    Main.dialog.show("Error!", "Error with clipboard!", false);
-                    Main.myErr(Arrays.toString(ex.getStackTrace()).replace(",", "\n"));
-                }
-            }
-        }.start();
     }
 }
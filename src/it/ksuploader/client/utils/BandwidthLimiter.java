@@ -0,0 +1,264 @@
+package it.ksuploader.client.utils;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.KSUploader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Limits the rate at which an upload sends data. Every upload takes tokens, one
+ * per byte, from its own token bucket and from a token bucket shared by all
+ * uploads. Uploads take tokens in small chunks, so uploads that run at the same
+ * time take turns and share the global rate fairly. Small uploads, such as
+ * screenshots, and interactive jobs of the {@link UploadScheduler} don't wait
+ * behind the tokens that large uploads already took.
+ */
+public class BandwidthLimiter {
+
+    /**
+     * Uploads up to this length in bytes are sent before larger uploads.
+     */
+    public static final long SMALL_UPLOAD_LENGTH = 2 * 1024 * 1024;
+
+    /**
+     * The number of seconds of unused rate a bucket can save up, which lets
+     * an upload send a short burst after it was idle.
+     */
+    private static final double BURST_SECONDS = 0.25;
+
+    private static final TokenBucket GLOBAL = new TokenBucket();
+    private static String parsedSchedule;
+    private static List<RateWindow> schedule = new ArrayList<>();
+
+    private final TokenBucket own = new TokenBucket();
+    private final boolean priority;
+
+    private BandwidthLimiter(boolean priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Gets a limiter for a new upload.
+     *
+     * @param length The length in bytes of the upload.
+     * @return the limiter
+     */
+    public static BandwidthLimiter forUpload(long length) {
+        return new BandwidthLimiter(length <= SMALL_UPLOAD_LENGTH || UploadScheduler.isInteractive());
+    }
+
+    /**
+     * Gets whether this upload is sent before larger uploads.
+     *
+     * @return true if the upload has priority
+     */
+    public boolean hasPriority() {
+        return priority;
+    }
+
+    /**
+     * Waits until the upload may send a number of bytes. Uploads call this
+     * before every chunk, so it is also where bulk jobs pause for interactive
+     * ones; see {@link UploadScheduler#checkpoint()}.
+     *
+     * @param bytes The number of bytes that will be sent.
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        UploadScheduler.checkpoint();
+        long wait = reserve(bytes);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+            }
+        }
+    }
+
+    /**
+     * Takes the tokens for a number of bytes without waiting, for uploads
+     * that can't block their thread, such as those of the
+     * {@link it.ksuploader.client.UploadEngine}. Such uploads don't pause for
+     * interactive jobs.
+     *
+     * @param bytes The number of bytes that are sent, or will be.
+     * @return the number of nanoseconds to wait before sending more
+     */
+    public long reserve(long bytes) {
+        long perUpload = 1024L * Setting.UPLOAD_RATE_LIMIT_PER_UPLOAD.getIntValue();
+        return Math.max(own.take(bytes, perUpload, false), GLOBAL.take(bytes, getGlobalRate(), priority));
+    }
+
+    /**
+     * Limits the rate at which data is read from a stream, for uploaders that
+     * read the file themselves.
+     *
+     * @param in The stream with the data to upload.
+     * @return a stream that waits for this limiter before returning data
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) {
+                    acquire(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Gets the rate shared by all uploads at this time of day: the rate of the
+     * first window in {@code UPLOAD_RATE_SCHEDULE} that contains the current
+     * time, or {@code UPLOAD_RATE_LIMIT} if there is none.
+     *
+     * @return the rate in bytes per second, or 0 for no limit
+     */
+    public static long getGlobalRate() {
+        return getGlobalRate(LocalTime.now());
+    }
+
+    /**
+     * Gets the rate shared by all uploads at a time of day.
+     *
+     * @param now The time of day.
+     * @return the rate in bytes per second, or 0 for no limit
+     */
+    static long getGlobalRate(LocalTime now) {
+        for (RateWindow window : getSchedule()) {
+            if (window.contains(now)) {
+                return window.rate;
+            }
+        }
+        return 1024L * Setting.UPLOAD_RATE_LIMIT.getIntValue();
+    }
+
+    /**
+     * Gets the parsed {@code UPLOAD_RATE_SCHEDULE}, parsing it again if it
+     * changed.
+     */
+    private static synchronized List<RateWindow> getSchedule() {
+        String value = Setting.UPLOAD_RATE_SCHEDULE.getValue().toString();
+        if (!value.equals(parsedSchedule)) {
+            List<RateWindow> windows = new ArrayList<>();
+            for (String entry : value.split(";")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    String[] parts = entry.split("=");
+                    String[] times = parts[0].split("-");
+                    windows.add(new RateWindow(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()),
+                            1024L * Long.parseLong(parts[1].trim())));
+                } catch (DateTimeParseException | ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                    KSUploader.logger.log(Level.WARNING, "Ignoring invalid upload rate schedule entry: " + entry, ex);
+                }
+            }
+            schedule = windows;
+            parsedSchedule = value;
+        }
+        return schedule;
+    }
+
+    /**
+     * A token bucket that lends tokens: taking more tokens than the bucket
+     * holds leaves it in debt, and the taker waits until the debt would have
+     * been refilled. Later takers see the debt, so they wait their turn.
+     */
+    static class TokenBucket {
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        /**
+         * Takes tokens from the bucket.
+         *
+         * @param count The number of tokens to take.
+         * @param rate The number of tokens added per second, or 0 for no
+         * limit.
+         * @param priority Whether to ignore the debt of earlier takers. The
+         * tokens are still taken, so that later takers wait longer.
+         * @return the number of nanoseconds to wait before using the tokens
+         */
+        synchronized long take(long count, long rate, boolean priority) {
+            return take(count, rate, priority, System.nanoTime());
+        }
+
+        /**
+         * Takes tokens from the bucket at a point in time.
+         *
+         * @param count The number of tokens to take.
+         * @param rate The number of tokens added per second, or 0 for no
+         * limit.
+         * @param priority Whether to ignore the debt of earlier takers.
+         * @param now The value of {@link System#nanoTime()} at which the
+         * tokens are taken.
+         * @return the number of nanoseconds to wait before using the tokens
+         */
+        synchronized long take(long count, long rate, boolean priority, long now) {
+            if (rate <= 0) {
+                tokens = 0;
+                lastRefill = now;
+                return 0;
+            }
+            tokens = Math.min(rate * BURST_SECONDS, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            double missing = count - (priority ? Math.max(tokens, 0) : tokens);
+            tokens -= count;
+            return (missing <= 0) ? 0 : (long) (missing * 1e9 / rate);
+        }
+
+    }
+
+    /**
+     * A time of day during which uploads share a different rate.
+     */
+    private static class RateWindow {
+
+        private final LocalTime start;
+        private final LocalTime end;
+        private final long rate;
+
+        private RateWindow(LocalTime start, LocalTime end, long rate) {
+            this.start = start;
+            this.end = end;
+            this.rate = rate;
+        }
+
+        /**
+         * Gets whether a time falls in this window. Windows that end before
+         * they start run past midnight.
+         */
+        private boolean contains(LocalTime time) {
+            if (start.isAfter(end)) {
+                return !time.isBefore(start) || time.isBefore(end);
+            }
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+
+    }
+
+}
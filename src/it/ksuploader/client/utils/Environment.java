@@ -4,20 +4,27 @@ import it.ksuploader.client.KSUploader;
 
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
+import java.awt.MouseInfo;
+import java.awt.PointerInfo;
 import java.awt.Rectangle;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.security.CodeSource;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
@@ -31,6 +38,12 @@ public class Environment {
      */
     static final String ICON_NAME = "icon.png";
 
+    /**
+     * The time in milliseconds an external program may take before it is
+     * killed, so that a hanging program doesn't block a screenshot.
+     */
+    static final long COMMAND_TIMEOUT = 2000;
+
     /**
      * Gets an Environment object appropriate to the used Operating System.
      *
@@ -173,6 +186,89 @@ public class Environment {
         return screen;
     }
 
+    /**
+     * Gets the bounds of every screen device, in the order in which the
+     * graphics environment reports them.
+     *
+     * @return an array with the bounds of each screen
+     */
+    public Rectangle[] getScreenDeviceBounds() {
+        GraphicsDevice[] devices = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices();
+        Rectangle[] bounds = new Rectangle[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            bounds[i] = devices[i].getDefaultConfiguration().getBounds();
+        }
+        return bounds;
+    }
+
+    /**
+     * Gets the bounds of the screen on which the mouse cursor is.
+     *
+     * @return the bounds of the active screen, or of the default screen if the
+     * location of the mouse cursor is unknown
+     */
+    public Rectangle getActiveScreenBounds() {
+        PointerInfo pointer = MouseInfo.getPointerInfo();
+        if (pointer != null) {
+            return pointer.getDevice().getDefaultConfiguration().getBounds();
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().getBounds();
+    }
+
+    /**
+     * Gets the bounds of the window that currently has the focus.
+     *
+     * @return the bounds of the focused window, or null if they couldn't be
+     * determined
+     */
+    public Rectangle getActiveWindowBounds() {
+        return null;
+    }
+
+    /**
+     * Runs an external program and waits for it to finish, at most
+     * {@code COMMAND_TIMEOUT} milliseconds. The programs that are run write a
+     * few lines, which fit in the pipe, so the output is read once the
+     * program has exited.
+     *
+     * @param command The program and its arguments.
+     * @return the lines the program wrote to its standard output, or null if
+     * the program couldn't be started, didn't finish in time or didn't exit
+     * successfully
+     */
+    static List<String> runCommand(String... command) {
+        Process process = null;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            if (!process.waitFor(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                KSUploader.logger.log(Level.INFO, "Command " + Arrays.toString(command) + " didn't finish within " + COMMAND_TIMEOUT + " ms; killing it.");
+                return null;
+            }
+            List<String> output = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.add(line);
+                }
+            }
+            if (process.exitValue() != 0) {
+                KSUploader.logger.log(Level.FINE, "Command {0} exited with an error: {1}", new Object[]{Arrays.toString(command), output});
+                return null;
+            }
+            return output;
+        } catch (IOException ex) {
+            KSUploader.logger.log(Level.FINE, "Couldn't run command " + Arrays.toString(command), ex);
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
     /**
      * Gets whether the program is configured in the Operating System to start
      * automatically on system boot.
@@ -331,10 +427,10 @@ class Linux extends Environment {
                 configurationDirectory = new File(configHome, "ksuploader");
             } else {
                 KSUploader.logger.log(Level.INFO, "System config home is not set; using ~/.config/ksuploader to save files.");
-                configurationDirectory = new File(System.getProperty("user.home"), String.format(".config$1ksuploader", File.separator));
+                configurationDirectory = new File(System.getProperty("user.home"), String.format(".config%1$sksuploader", File.separator));
             }
         }
-        return configHomeDirectory;
+        return configurationDirectory;
     }
 
     @Override
@@ -390,6 +486,72 @@ class Linux extends Environment {
         return targetLocation.delete();
     }
     
+    /**
+     * Gets the bounds of the focused X11 window. Uses xdotool if it is
+     * installed, and xprop with xwininfo otherwise.
+     *
+     * @return the bounds of the focused window, or null if neither helper
+     * could determine them
+     */
+    @Override
+    public Rectangle getActiveWindowBounds() {
+        List<String> geometry = runCommand("xdotool", "getactivewindow", "getwindowgeometry", "--shell");
+        if (geometry != null) {
+            Rectangle bounds = parseGeometry(geometry, "X=", "Y=", "WIDTH=", "HEIGHT=");
+            if (bounds != null) {
+                return bounds;
+            }
+        }
+
+        List<String> activeWindow = runCommand("xprop", "-root", "_NET_ACTIVE_WINDOW");
+        if (activeWindow == null || activeWindow.isEmpty()) {
+            return null;
+        }
+        String line = activeWindow.get(0);
+        String windowId = line.substring(line.lastIndexOf(' ') + 1);
+        if (!windowId.startsWith("0x")) {
+            KSUploader.logger.log(Level.INFO, "Couldn''t find the focused window: unexpected xprop output: {0}", line);
+            return null;
+        }
+        List<String> info = runCommand("xwininfo", "-id", windowId);
+        if (info == null) {
+            return null;
+        }
+        return parseGeometry(info, "Absolute upper-left X:", "Absolute upper-left Y:", "Width:", "Height:");
+    }
+
+    /**
+     * Reads window bounds from the output of an X11 helper program.
+     *
+     * @param lines The output of the program.
+     * @param keys The prefixes of the lines containing the x and y position,
+     * the width and the height, in that order.
+     * @return the window bounds, or null if not all values were found
+     */
+    private static Rectangle parseGeometry(List<String> lines, String... keys) {
+        int[] values = new int[keys.length];
+        boolean[] found = new boolean[keys.length];
+        for (String line : lines) {
+            String trimmed = line.trim();
+            for (int i = 0; i < keys.length; i++) {
+                if (trimmed.startsWith(keys[i])) {
+                    try {
+                        values[i] = Integer.parseInt(trimmed.substring(keys[i].length()).trim());
+                        found[i] = true;
+                    } catch (NumberFormatException ex) {
+                        KSUploader.logger.log(Level.FINE, "Couldn''t read window geometry from: {0}", trimmed);
+                    }
+                }
+            }
+        }
+        for (boolean value : found) {
+            if (!value) {
+                return null;
+            }
+        }
+        return new Rectangle(values[0], values[1], values[2], values[3]);
+    }
+
     @Override
     public String toString() {
         return "Linux: " + System.getProperty("os.name");
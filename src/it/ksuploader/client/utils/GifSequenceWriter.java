@@ -0,0 +1,128 @@
+package it.ksuploader.client.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes an animated GIF file frame by frame. Every frame is encoded and
+ * written to the target file as soon as it is added, so no frames are kept in
+ * memory.
+ */
+public class GifSequenceWriter implements Closeable {
+
+    /**
+     * The name of the native metadata format of the GIF image writer.
+     */
+    private static final String METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+
+    private final ImageWriter writer;
+    private final ImageOutputStream output;
+    private boolean firstFrame = true;
+
+    /**
+     * Creates a new GifSequenceWriter which writes to the specified file.
+     *
+     * @param target The file to write the animation to.
+     * @throws IOException If the file could not be opened, or if the system
+     * has no GIF encoder.
+     */
+    public GifSequenceWriter(File target) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext()) {
+            throw new IOException("No GIF image writer is available.");
+        }
+        writer = writers.next();
+        output = ImageIO.createImageOutputStream(target);
+        if (output == null) {
+            throw new IOException("Couldn't open the file for writing: " + target.getPath());
+        }
+        writer.setOutput(output);
+        writer.prepareWriteSequence(null);
+    }
+
+    /**
+     * Appends a frame to the animation. The frame is drawn over the previous
+     * frames at the given position, so it only needs to contain the part of
+     * the animation that changed.
+     *
+     * @param image The image data of the frame.
+     * @param x The horizontal position of the frame in the animation.
+     * @param y The vertical position of the frame in the animation.
+     * @param delay The time in milliseconds the frame should be shown.
+     * @throws IOException If an I/O error occurs while writing the frame.
+     */
+    public void writeFrame(BufferedImage image, int x, int y, int delay) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(METADATA_FORMAT);
+
+        IIOMetadataNode control = getNode(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "doNotDispose");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("transparentColorIndex", "0");
+        /* GIF delays are stored in hundredths of a second. */
+        control.setAttribute("delayTime", Integer.toString(Math.max(1, delay / 10)));
+
+        IIOMetadataNode descriptor = getNode(root, "ImageDescriptor");
+        descriptor.setAttribute("imageLeftPosition", Integer.toString(x));
+        descriptor.setAttribute("imageTopPosition", Integer.toString(y));
+
+        if (firstFrame) {
+            /* Make the animation loop forever. */
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[]{1, 0, 0});
+            getNode(root, "ApplicationExtensions").appendChild(loop);
+            firstFrame = false;
+        }
+
+        metadata.setFromTree(METADATA_FORMAT, root);
+        writer.writeToSequence(new IIOImage(image, null, metadata), null);
+    }
+
+    /**
+     * Finishes the animation and closes the file.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+            output.close();
+        }
+    }
+
+    /**
+     * Gets the child node with the specified name, creating it if it doesn't
+     * exist yet.
+     *
+     * @param root The node to search in.
+     * @param name The name of the child node.
+     * @return the child node with the given name
+     */
+    private static IIOMetadataNode getNode(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++) {
+            if (root.item(i).getNodeName().equalsIgnoreCase(name)) {
+                return (IIOMetadataNode) root.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        root.appendChild(node);
+        return node;
+    }
+
+}
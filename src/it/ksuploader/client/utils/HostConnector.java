@@ -0,0 +1,296 @@
+package it.ksuploader.client.utils;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.KSUploader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Opens connections to servers by name. The addresses of a name are kept for
+ * {@code DNS_CACHE_TTL} seconds, and are tried in turn with "happy eyeballs"
+ * (RFC 8305): if an address doesn't answer within a short delay, the next one
+ * is tried without giving up on the first, and the first connection that is
+ * made wins. Addresses of both IP versions are interleaved, so a broken IPv6
+ * path costs a fraction of a second instead of the whole connect timeout. The
+ * address that worked last is tried first next time.
+ */
+public class HostConnector {
+
+    /**
+     * The time in milliseconds after which the next address is tried while
+     * earlier attempts are still going, as recommended by RFC 8305.
+     */
+    private static final long ATTEMPT_DELAY = 250;
+
+    /**
+     * The resolved names, by name.
+     */
+    private static final Map<String, CacheEntry> CACHE = new HashMap<>();
+
+    /**
+     * Connects to a server. An address that was resolved already is connected
+     * to directly; otherwise the name is resolved with the cache and its
+     * addresses are raced.
+     *
+     * @param server The address of the server, resolved or not.
+     * @return a connected channel in blocking mode
+     * @throws UnknownHostException If the name couldn't be resolved.
+     * @throws SocketTimeoutException If no address answered within
+     * {@code CONNECT_TIMEOUT}.
+     * @throws IOException If no address accepted the connection.
+     */
+    public static SocketChannel connect(InetSocketAddress server) throws IOException {
+        if (server.isUnresolved()) {
+            return connect(server.getHostString(), server.getPort());
+        }
+        return race(server.getHostString(), Arrays.asList(server.getAddress()), server.getPort());
+    }
+
+    /**
+     * Connects to a server, racing the addresses of its name.
+     *
+     * @param host The name or address of the server.
+     * @param port The port of the server.
+     * @return a connected channel in blocking mode
+     * @throws UnknownHostException If the name couldn't be resolved.
+     * @throws SocketTimeoutException If no address answered within
+     * {@code CONNECT_TIMEOUT}.
+     * @throws IOException If no address accepted the connection.
+     */
+    public static SocketChannel connect(String host, int port) throws IOException {
+        return race(host, resolve(host), port);
+    }
+
+    /**
+     * Gets the connect timeout of the configuration.
+     *
+     * @return the timeout in milliseconds
+     */
+    public static int getConnectTimeout() {
+        return Math.max(1, Setting.CONNECT_TIMEOUT.getIntValue()) * 1000;
+    }
+
+    /**
+     * Gets the addresses of a name, from the cache if they were resolved less
+     * than {@code DNS_CACHE_TTL} seconds ago. If the name can't be resolved
+     * any more, addresses that were resolved before are used anyway.
+     *
+     * @param host The name or address.
+     * @return the addresses, in the order in which they should be tried
+     * @throws UnknownHostException If the name couldn't be resolved.
+     */
+    public static List<InetAddress> resolve(String host) throws UnknownHostException {
+        return resolve(host, System.currentTimeMillis(), InetAddress::getAllByName);
+    }
+
+    /**
+     * Gets the addresses of a name at a point in time, with the cache.
+     *
+     * @param host The name or address.
+     * @param now The current time in milliseconds.
+     * @param lookup Resolves the name if it isn't cached.
+     * @return the addresses, in the order in which they should be tried
+     * @throws UnknownHostException If the name couldn't be resolved.
+     */
+    static List<InetAddress> resolve(String host, long now, Lookup lookup) throws UnknownHostException {
+        CacheEntry cached;
+        synchronized (CACHE) {
+            cached = CACHE.get(host);
+            if (cached != null && now < cached.expires) {
+                return new ArrayList<>(cached.addresses);
+            }
+        }
+        List<InetAddress> addresses;
+        try {
+            addresses = interleave(lookup.getAllByName(host));
+        } catch (UnknownHostException ex) {
+            if (cached == null) {
+                throw ex;
+            }
+            KSUploader.logger.log(Level.INFO, "Couldn''t resolve {0} again; using the addresses resolved before.", host);
+            return new ArrayList<>(cached.addresses);
+        }
+        long ttl = Math.max(0, Setting.DNS_CACHE_TTL.getIntValue()) * 1000L;
+        synchronized (CACHE) {
+            CACHE.put(host, new CacheEntry(addresses, now + ttl));
+        }
+        return new ArrayList<>(addresses);
+    }
+
+    /**
+     * Forgets all resolved names.
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Orders addresses so that the IP versions alternate, starting with the
+     * version of the first address, as RFC 8305 recommends.
+     */
+    static List<InetAddress> interleave(InetAddress[] resolved) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : resolved) {
+            ((address instanceof Inet6Address) == (resolved[0] instanceof Inet6Address) ? first : second).add(address);
+        }
+        List<InetAddress> addresses = new ArrayList<>(resolved.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                addresses.add(first.get(i));
+            }
+            if (i < second.size()) {
+                addresses.add(second.get(i));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Remembers the address that accepted a connection, so that it is tried
+     * first next time. Called by callers that connect to the addresses of
+     * {@link #resolve(String)} themselves.
+     *
+     * @param host The name the address was resolved from.
+     * @param address The address that accepted the connection.
+     */
+    public static void promote(String host, InetAddress address) {
+        synchronized (CACHE) {
+            CacheEntry cached = CACHE.get(host);
+            if (cached != null && cached.addresses.remove(address)) {
+                cached.addresses.add(0, address);
+            }
+        }
+    }
+
+    /**
+     * Connects to the first address that accepts the connection. A new
+     * attempt starts every {@code ATTEMPT_DELAY} milliseconds, or as soon as
+     * an attempt fails, while earlier attempts keep going.
+     */
+    private static SocketChannel race(String host, List<InetAddress> addresses, int port) throws IOException {
+        long deadline = System.currentTimeMillis() + getConnectTimeout();
+        List<SocketChannel> attempts = new ArrayList<>();
+        SocketChannel winner = null;
+        IOException failure = null;
+        Selector selector = Selector.open();
+        try {
+            int next = 0;
+            int pending = 0;
+            long nextAttempt = 0;
+            while (winner == null) {
+                long now = System.currentTimeMillis();
+                if (next < addresses.size() && (now >= nextAttempt || pending == 0)) {
+                    InetSocketAddress address = new InetSocketAddress(addresses.get(next++), port);
+                    SocketChannel channel = SocketChannel.open();
+                    attempts.add(channel);
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(address)) {
+                            winner = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, address);
+                        pending++;
+                        nextAttempt = now + ATTEMPT_DELAY;
+                    } catch (IOException ex) {
+                        failure = ex;
+                        channel.close();
+                    }
+                    continue;
+                }
+                if (pending == 0) {
+                    throw (failure != null) ? failure : new ConnectException("No address of " + host + " could be connected to.");
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Couldn't connect to " + host + ":" + port + " within " + getConnectTimeout() + " ms.");
+                }
+                selector.select(Math.max(1, Math.min(deadline, (next < addresses.size()) ? nextAttempt : deadline) - now));
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while connecting to " + host);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (winner == null && keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                        }
+                    } catch (IOException ex) {
+                        KSUploader.logger.log(Level.FINE, "Couldn''t connect to {0}: {1}", new Object[]{key.attachment(), ex});
+                        failure = ex;
+                        pending--;
+                        channel.close();
+                    }
+                }
+            }
+        } finally {
+            selector.close();
+            for (SocketChannel attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.close();
+                }
+            }
+        }
+        try {
+            winner.configureBlocking(true);
+            winner.socket().setTcpNoDelay(true);
+        } catch (IOException ex) {
+            winner.close();
+            throw ex;
+        }
+        InetAddress address = ((InetSocketAddress) winner.getRemoteAddress()).getAddress();
+        if (!address.equals(addresses.get(0))) {
+            KSUploader.logger.log(Level.INFO, "Connected to {0} at {1}, which wasn''t the first address tried.", new Object[]{host, address});
+        }
+        promote(host, address);
+        return winner;
+    }
+
+    /**
+     * Resolves names to addresses, like {@link InetAddress#getAllByName}.
+     */
+    interface Lookup {
+
+        InetAddress[] getAllByName(String host) throws UnknownHostException;
+
+    }
+
+    /**
+     * The addresses of a name, and when they should be resolved again.
+     */
+    private static class CacheEntry {
+
+        private final List<InetAddress> addresses;
+        private final long expires;
+
+        private CacheEntry(List<InetAddress> addresses, long expires) {
+            this.addresses = new ArrayList<>(addresses);
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+package it.ksuploader.client.utils;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * Can make images smaller by averaging the pixels that fall into every target
+ * pixel. Works directly on the integer pixel data and scales the rows of an
+ * image in parallel.
+ */
+public class ImageScaler {
+
+    /**
+     * Calculates the size an image should be scaled to.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param scale The factor by which to scale the image. Values of 1 or
+     * higher leave the size unchanged.
+     * @param maxDimension The maximum width and height of the image, or 0 or
+     * less to not limit the size.
+     * @return the target size, which is never larger than the image
+     */
+    public static Dimension getTargetSize(int width, int height, double scale, int maxDimension) {
+        double factor = (scale > 0 && scale < 1) ? scale : 1;
+        if (maxDimension > 0) {
+            int largest = Math.max(width, height);
+            factor = Math.min(factor, (double) maxDimension / largest);
+        }
+        if (factor >= 1) {
+            return new Dimension(width, height);
+        }
+        return new Dimension(Math.max(1, (int) Math.round(width * factor)), Math.max(1, (int) Math.round(height * factor)));
+    }
+
+    /**
+     * Maps an area of the screen to the pixels of a capture of that screen.
+     * On scaled displays the capture may be in device pixels while the area
+     * is in user space, so the area is scaled by the ratio between the two
+     * and grown to whole pixels.
+     *
+     * @param area The area, relative to the top left corner of the screen.
+     * @param screen The size of the screen in user space.
+     * @param width The width of the capture in pixels.
+     * @param height The height of the capture in pixels.
+     * @return the pixels of the capture that the area covers, never reaching
+     * past its edges
+     */
+    public static Rectangle toImageBounds(Rectangle area, Dimension screen, int width, int height) {
+        double scaleX = (double) width / screen.width;
+        double scaleY = (double) height / screen.height;
+        int x = Math.max(0, Math.min(width, (int) Math.floor(area.x * scaleX)));
+        int y = Math.max(0, Math.min(height, (int) Math.floor(area.y * scaleY)));
+        int right = Math.min(width, (int) Math.ceil((area.x + area.width) * scaleX));
+        int bottom = Math.min(height, (int) Math.ceil((area.y + area.height) * scaleY));
+        return new Rectangle(x, y, Math.max(0, right - x), Math.max(0, bottom - y));
+    }
+
+    /**
+     * Scales an image down to the specified size. Every pixel of the result is
+     * the average of the block of source pixels it covers.
+     *
+     * @param image The image to scale.
+     * @param width The width of the result.
+     * @param height The height of the result.
+     * @return the scaled image, or {@code image} itself if it already has the
+     * specified size
+     * @throws IllegalArgumentException If the specified size is larger than
+     * the image, or not positive.
+     */
+    public static BufferedImage downscale(BufferedImage image, int width, int height) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        if (width == sourceWidth && height == sourceHeight) {
+            return image;
+        }
+        if (width <= 0 || height <= 0 || width > sourceWidth || height > sourceHeight) {
+            throw new IllegalArgumentException("Can't downscale a " + sourceWidth + "x" + sourceHeight + " image to " + width + "x" + height);
+        }
+
+        boolean alpha = image.getColorModel().hasAlpha();
+        int[] source = TileIndex.getPixels(image);
+        BufferedImage result = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] target = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+
+        /* The first source column covered by every target column, plus one
+         extra entry for the end of the last column. */
+        int[] columns = new int[width + 1];
+        for (int x = 0; x <= width; x++) {
+            columns[x] = (int) ((long) x * sourceWidth / width);
+        }
+
+        IntStream.range(0, height).parallel().forEach((y) -> {
+            int top = (int) ((long) y * sourceHeight / height);
+            int bottom = Math.max(top + 1, (int) ((long) (y + 1) * sourceHeight / height));
+            for (int x = 0; x < width; x++) {
+                int left = columns[x];
+                int right = Math.max(left + 1, columns[x + 1]);
+                long a = 0;
+                long r = 0;
+                long g = 0;
+                long b = 0;
+                for (int row = top; row < bottom; row++) {
+                    int offset = row * sourceWidth;
+                    for (int column = left; column < right; column++) {
+                        int pixel = source[offset + column];
+                        a += pixel >>> 24;
+                        r += (pixel >> 16) & 0xff;
+                        g += (pixel >> 8) & 0xff;
+                        b += pixel & 0xff;
+                    }
+                }
+                long count = (long) (bottom - top) * (right - left);
+                int averageAlpha = alpha ? (int) (a / count) : 0xff;
+                target[y * width + x] = (averageAlpha << 24)
+                        | ((int) (r / count) << 16)
+                        | ((int) (g / count) << 8)
+                        | (int) (b / count);
+            }
+        });
+        return result;
+    }
+
+}
@@ -73,7 +73,9 @@ public class ShortcutListener implements NativeKeyListener {
             Shortcut.fromSetting(Setting.SHORTCUT_CLIPBOARD),
             Shortcut.fromSetting(Setting.SHORTCUT_COMPLETE_SCREENSHOT),
             Shortcut.fromSetting(Setting.SHORTCUT_FILE),
-            Shortcut.fromSetting(Setting.SHORTCUT_PARTIAL_SCREENSHOT)};
+            Shortcut.fromSetting(Setting.SHORTCUT_PARTIAL_SCREENSHOT),
+            Shortcut.fromSetting(Setting.SHORTCUT_WINDOW_SCREENSHOT),
+            Shortcut.fromSetting(Setting.SHORTCUT_SCREEN_RECORDING)};
     }
 
     /**
@@ -147,6 +149,14 @@ class Shortcut implements Runnable {
                 return new Shortcut((int[]) setting.getValue(), () -> {
                     KSUploader.inst.getSystemTrayMenu().uploadPartialScreen();
                 });
+            case SHORTCUT_WINDOW_SCREENSHOT:
+                return new Shortcut((int[]) setting.getValue(), () -> {
+                    KSUploader.inst.getSystemTrayMenu().uploadWindowScreen();
+                });
+            case SHORTCUT_SCREEN_RECORDING:
+                return new Shortcut((int[]) setting.getValue(), () -> {
+                    KSUploader.inst.getSystemTrayMenu().recordScreen();
+                });
             default:
                 throw new UnsupportedOperationException("Shortcut setting not recognized: " + setting.toString());
         }
@@ -12,9 +12,10 @@ import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 /**
- * Represents one of the application's sounds.
+ * Represents one of the application's sounds. Play it by running it on the
+ * {@link TaskRunner}.
  */
-public class Sound extends Thread {
+public class Sound implements Runnable {
 
     /**
      * A URL to the success sound inside the JAR file.
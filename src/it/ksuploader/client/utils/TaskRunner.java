@@ -0,0 +1,125 @@
+package it.ksuploader.client.utils;
+
+import it.ksuploader.client.KSUploader;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Runs the background tasks of the application, such as uploads, dialog
+ * animations and sounds. On Java versions with virtual threads every task gets
+ * its own virtual thread; on older versions the tasks share a bounded pool of
+ * platform threads.
+ */
+public class TaskRunner {
+
+    /**
+     * The number of platform threads used when virtual threads are not
+     * available.
+     */
+    static final int POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicInteger ACTIVE_TASKS = new AtomicInteger();
+    private static final AtomicInteger QUEUED_TASKS = new AtomicInteger();
+    private static boolean virtual;
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    /**
+     * Runs a task in the background.
+     *
+     * @param task The task to run.
+     * @return a Future representing the completion of the task
+     */
+    public static Future<?> submit(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs a task in the background.
+     *
+     * @param <T> The type of the task's result.
+     * @param task The task to run.
+     * @return a Future with the result of the task
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        QUEUED_TASKS.incrementAndGet();
+        return EXECUTOR.submit(() -> {
+            QUEUED_TASKS.decrementAndGet();
+            ACTIVE_TASKS.incrementAndGet();
+            try {
+                return task.call();
+            } catch (Exception | Error ex) {
+                KSUploader.logger.log(Level.WARNING, "A background task failed.", ex);
+                throw ex;
+            } finally {
+                ACTIVE_TASKS.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Gets the number of tasks that are running.
+     *
+     * @return the number of running tasks
+     */
+    public static int getActiveTasks() {
+        return ACTIVE_TASKS.get();
+    }
+
+    /**
+     * Gets the number of tasks that have been submitted but haven't started
+     * yet.
+     *
+     * @return the number of waiting tasks
+     */
+    public static int getQueuedTasks() {
+        return QUEUED_TASKS.get();
+    }
+
+    /**
+     * Gets whether tasks run on virtual threads.
+     *
+     * @return true if every task gets a virtual thread; false if tasks share a
+     * pool of platform threads
+     */
+    public static boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor if the Java version supports
+     * it, and a pool of daemon platform threads otherwise.
+     *
+     * @return the executor for background tasks
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtual = true;
+            return executor;
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            KSUploader.logger.log(Level.FINE, "Virtual threads are not available; using a pool of {0} threads.", POOL_SIZE);
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = (runnable) -> {
+            Thread thread = new Thread(runnable, "KSUploader task " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+}
@@ -0,0 +1,211 @@
+package it.ksuploader.client.utils;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a hash of every tile of an image, so that the tiles that changed in a
+ * later image of the same size can be found without keeping the earlier image
+ * in memory. An image can be compared first and stored in the index later,
+ * once the changes were used, for example after they were uploaded.
+ */
+public class TileIndex {
+
+    /**
+     * The default width and height of a tile in pixels.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int tileSize;
+    private final List<Rectangle> changedTiles = new ArrayList<>();
+    private long[] hashes;
+    private int width;
+    private int height;
+
+    /**
+     * Constructs a new TileIndex using the default tile size.
+     */
+    public TileIndex() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Constructs a new TileIndex.
+     *
+     * @param tileSize The width and height of a tile in pixels.
+     * @throws IllegalArgumentException If {@code tileSize} is not positive.
+     */
+    public TileIndex(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("The tile size must be positive: " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Compares an image with the image this index was last updated with, and
+     * stores the tiles of the new image in the index. If the index is empty or
+     * the size of the image changed, the entire image counts as changed.
+     *
+     * @param image The new image.
+     * @return the bounds of the area covering all changed tiles, or null if
+     * nothing changed
+     */
+    public synchronized Rectangle update(BufferedImage image) {
+        Changes changes = compare(image);
+        changes.commit();
+        return changes.getBounds();
+    }
+
+    /**
+     * Compares an image with the image this index was last updated with,
+     * without storing it in the index. If the index is empty or the size of
+     * the image changed, the entire image counts as changed.
+     *
+     * @param image The new image.
+     * @return the changes, which are stored in the index with
+     * {@link Changes#commit()}
+     */
+    public synchronized Changes compare(BufferedImage image) {
+        int[] pixels = getPixels(image);
+        int newWidth = image.getWidth();
+        int newHeight = image.getHeight();
+        int columns = (newWidth + tileSize - 1) / tileSize;
+        int rows = (newHeight + tileSize - 1) / tileSize;
+        boolean sizeChanged = hashes == null || newWidth != width || newHeight != height;
+        long[] newHashes = new long[columns * rows];
+
+        List<Rectangle> tiles = new ArrayList<>();
+        Rectangle bounds = null;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = column * tileSize;
+                int y = row * tileSize;
+                int tileWidth = Math.min(tileSize, newWidth - x);
+                int tileHeight = Math.min(tileSize, newHeight - y);
+                int index = row * columns + column;
+                newHashes[index] = hashTile(pixels, newWidth, x, y, tileWidth, tileHeight);
+                if (sizeChanged || hashes[index] != newHashes[index]) {
+                    Rectangle tile = new Rectangle(x, y, tileWidth, tileHeight);
+                    tiles.add(tile);
+                    bounds = (bounds == null) ? tile : bounds.union(tile);
+                }
+            }
+        }
+        return new Changes(hashes, newHashes, newWidth, newHeight, tiles, bounds);
+    }
+
+    /**
+     * Gets the tiles that changed during the last update.
+     *
+     * @return a list with the bounds of every changed tile
+     */
+    public synchronized List<Rectangle> getChangedTiles() {
+        List<Rectangle> copy = new ArrayList<>(changedTiles.size());
+        changedTiles.forEach((tile) -> copy.add(new Rectangle(tile)));
+        return copy;
+    }
+
+    /**
+     * Empties this index, so that the next image counts as entirely changed.
+     */
+    public synchronized void reset() {
+        hashes = null;
+        changedTiles.clear();
+    }
+
+    /**
+     * Calculates a 64-bit FNV-1a hash over the pixels of a tile.
+     */
+    private static long hashTile(int[] pixels, int width, int x, int y, int tileWidth, int tileHeight) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int row = y; row < y + tileHeight; row++) {
+            int offset = row * width + x;
+            for (int i = offset; i < offset + tileWidth; i++) {
+                hash ^= pixels[i];
+                hash *= FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the pixels of an image in the default RGB color model. If the image
+     * is backed by an integer array in that model, the array itself is
+     * returned instead of a copy.
+     *
+     * @param image The image of which to get the pixels.
+     * @return the pixels, row by row
+     */
+    public static int[] getPixels(BufferedImage image) {
+        if (image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+                && image.getRaster().getParent() == null) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            if (data.length == image.getWidth() * image.getHeight()) {
+                return data;
+            }
+        }
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * The result of comparing an image with an index.
+     */
+    public class Changes {
+
+        private final long[] base;
+        private final long[] newHashes;
+        private final int newWidth;
+        private final int newHeight;
+        private final List<Rectangle> tiles;
+        private final Rectangle bounds;
+
+        private Changes(long[] base, long[] newHashes, int newWidth, int newHeight, List<Rectangle> tiles, Rectangle bounds) {
+            this.base = base;
+            this.newHashes = newHashes;
+            this.newWidth = newWidth;
+            this.newHeight = newHeight;
+            this.tiles = tiles;
+            this.bounds = bounds;
+        }
+
+        /**
+         * Gets the area that changed.
+         *
+         * @return the bounds of the area covering all changed tiles, or null
+         * if nothing changed
+         */
+        public Rectangle getBounds() {
+            return (bounds == null) ? null : new Rectangle(bounds);
+        }
+
+        /**
+         * Stores the compared image in the index, so that later images are
+         * compared with it. If the index was updated with another image since
+         * the comparison, these changes may not cover what changed since that
+         * image, so the index is emptied instead.
+         */
+        public void commit() {
+            synchronized (TileIndex.this) {
+                if (hashes != base) {
+                    reset();
+                    return;
+                }
+                hashes = newHashes;
+                width = newWidth;
+                height = newHeight;
+                changedTiles.clear();
+                changedTiles.addAll(tiles);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,313 @@
+package it.ksuploader.client.utils;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.KSUploader;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Schedules upload jobs by priority. Interactive jobs, such as screenshots and
+ * clipboard uploads, and bulk jobs, such as file uploads, wait in separate
+ * queues with their own concurrency limit, so a screenshot never waits for a
+ * large upload to finish. While an interactive job is sending data, bulk jobs
+ * pause at their next chunk boundary.
+ * <p>
+ * Jobs run on threads of their own rather than on the {@link TaskRunner},
+ * because they wait for uploads, replies and dialog animations that run
+ * there; on a bounded pool, jobs that fill it would wait forever.
+ */
+public class UploadScheduler {
+
+    /**
+     * The maximum time in milliseconds a bulk job pauses for interactive
+     * jobs, so that the server doesn't close its connection.
+     */
+    private static final long MAX_PAUSE = 60000;
+
+    private static final Object LOCK = new Object();
+    private static final Map<Priority, Deque<Job>> QUEUES = new EnumMap<>(Priority.class);
+    private static final Map<Priority, Integer> RUNNING = new EnumMap<>(Priority.class);
+    private static final ThreadLocal<Job> CURRENT = new ThreadLocal<>();
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    /* The concurrency limits bound the number of threads. */
+    private static final ExecutorService JOBS = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "KSUploader upload job " + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static int sendingInteractiveJobs;
+
+    static {
+        for (Priority priority : Priority.values()) {
+            QUEUES.put(priority, new ArrayDeque<>());
+            RUNNING.put(priority, 0);
+        }
+    }
+
+    /**
+     * Adds a job to the queue of its priority. The job runs as soon as the
+     * concurrency limit of its priority allows.
+     *
+     * @param priority The priority of the job.
+     * @param name A name for the job, used in log messages.
+     * @param task The work of the job.
+     * @return the job
+     */
+    public static Job submit(Priority priority, String name, Runnable task) {
+        Job job = new Job(priority, name, task);
+        synchronized (LOCK) {
+            QUEUES.get(priority).add(job);
+            dispatch();
+        }
+        return job;
+    }
+
+    /**
+     * Marks a chunk boundary of an upload. Called by uploads before they send
+     * a chunk of data. Bulk jobs wait here while interactive jobs are sending
+     * data; interactive jobs are marked as sending.
+     *
+     * @throws InterruptedIOException If the thread is interrupted while
+     * paused.
+     */
+    public static void checkpoint() throws InterruptedIOException {
+        Job job = CURRENT.get();
+        if (job == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            if (job.priority == Priority.INTERACTIVE) {
+                /* Uploads of a job can outlive it, see inCurrentJob(). */
+                if (!job.sending && job.finished == 0) {
+                    job.sending = true;
+                    sendingInteractiveJobs++;
+                }
+                return;
+            }
+            long start = System.currentTimeMillis();
+            long remaining = MAX_PAUSE;
+            while (sendingInteractiveJobs > 0 && remaining > 0) {
+                try {
+                    LOCK.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while paused for interactive uploads.");
+                }
+                remaining = MAX_PAUSE - (System.currentTimeMillis() - start);
+            }
+            job.pauseTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Makes a task run as part of the job of the current thread, so that an
+     * upload it does on another thread is scheduled like the job.
+     *
+     * @param task The task.
+     * @return a task that runs {@code task} as part of the current job, or
+     * {@code task} itself if the current thread doesn't run a job
+     */
+    public static Runnable inCurrentJob(Runnable task) {
+        Job job = CURRENT.get();
+        if (job == null) {
+            return task;
+        }
+        return () -> {
+            CURRENT.set(job);
+            try {
+                task.run();
+            } finally {
+                CURRENT.remove();
+            }
+        };
+    }
+
+    /**
+     * Gets whether the current thread runs an interactive job.
+     *
+     * @return true if the current thread runs an interactive job
+     */
+    public static boolean isInteractive() {
+        Job job = CURRENT.get();
+        return job != null && job.priority == Priority.INTERACTIVE;
+    }
+
+    /**
+     * Gets the number of jobs of a priority that wait to be run.
+     *
+     * @param priority The priority.
+     * @return the number of waiting jobs
+     */
+    public static int getQueuedJobs(Priority priority) {
+        synchronized (LOCK) {
+            return QUEUES.get(priority).size();
+        }
+    }
+
+    /**
+     * Starts queued jobs as long as the concurrency limits allow. Interactive
+     * jobs are started first. Must be called while holding {@code LOCK}.
+     */
+    private static void dispatch() {
+        for (Priority priority : Priority.values()) {
+            Deque<Job> queue = QUEUES.get(priority);
+            while (!queue.isEmpty() && RUNNING.get(priority) < priority.getLimit()) {
+                Job job = queue.poll();
+                RUNNING.put(priority, RUNNING.get(priority) + 1);
+                JOBS.execute(() -> run(job));
+            }
+        }
+    }
+
+    /**
+     * Runs a job and starts the next queued jobs after it finished.
+     */
+    private static void run(Job job) {
+        job.started = System.currentTimeMillis();
+        CURRENT.set(job);
+        try {
+            job.task.run();
+            job.completion.complete(null);
+        } catch (RuntimeException | Error ex) {
+            KSUploader.logger.log(Level.WARNING, "Job " + job.name + " failed.", ex);
+            job.completion.completeExceptionally(ex);
+        } finally {
+            CURRENT.remove();
+            job.finished = System.currentTimeMillis();
+            synchronized (LOCK) {
+                if (job.sending) {
+                    sendingInteractiveJobs--;
+                    LOCK.notifyAll();
+                }
+                RUNNING.put(job.priority, RUNNING.get(job.priority) - 1);
+                dispatch();
+            }
+            KSUploader.logger.log(Level.FINE, "Job {0} ({1}) waited {2} ms in the queue, ran for {3} ms and was paused for {4} ms",
+                    new Object[]{job.name, job.priority, job.getQueueWaitTime(), job.getRunTime(), job.pauseTime});
+        }
+    }
+
+    /**
+     * The priorities of jobs, from highest to lowest.
+     */
+    public enum Priority {
+
+        /**
+         * Jobs the user waits for, such as screenshots and clipboard uploads.
+         */
+        INTERACTIVE(Setting.INTERACTIVE_UPLOAD_LIMIT),
+        /**
+         * Jobs that may take long, such as file uploads.
+         */
+        BULK(Setting.BULK_UPLOAD_LIMIT);
+
+        private final Setting limit;
+
+        private Priority(Setting limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Gets the maximum number of jobs of this priority that run at the
+         * same time.
+         *
+         * @return the concurrency limit, at least 1
+         */
+        public int getLimit() {
+            return Math.max(1, limit.getIntValue());
+        }
+
+    }
+
+    /**
+     * An upload job in the scheduler.
+     */
+    public static class Job {
+
+        private final Priority priority;
+        private final String name;
+        private final Runnable task;
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private final long submitted = System.currentTimeMillis();
+        private volatile long started;
+        private volatile long finished;
+        private volatile long pauseTime;
+        private boolean sending;
+
+        private Job(Priority priority, String name, Runnable task) {
+            this.priority = priority;
+            this.name = name;
+            this.task = task;
+        }
+
+        /**
+         * Gets the priority of this job.
+         *
+         * @return the priority
+         */
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Gets the name of this job.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets a future that completes when this job has finished.
+         *
+         * @return the completion of this job
+         */
+        public CompletableFuture<Void> getCompletion() {
+            return completion;
+        }
+
+        /**
+         * Gets the time this job waited in the queue before it started.
+         *
+         * @return the wait time in milliseconds, so far if the job hasn't
+         * started yet
+         */
+        public long getQueueWaitTime() {
+            return ((started == 0) ? System.currentTimeMillis() : started) - submitted;
+        }
+
+        /**
+         * Gets the time this job has been running.
+         *
+         * @return the run time in milliseconds, or 0 if the job hasn't
+         * started yet
+         */
+        public long getRunTime() {
+            if (started == 0) {
+                return 0;
+            }
+            return ((finished == 0) ? System.currentTimeMillis() : finished) - started;
+        }
+
+        /**
+         * Gets the time this job was paused for interactive jobs.
+         *
+         * @return the pause time in milliseconds
+         */
+        public long getPauseTime() {
+            return pauseTime;
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package it.ksuploader.client.utils;
 
+import it.ksuploader.client.FrameConnection;
 import it.ksuploader.client.KSUploader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -7,6 +8,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -28,13 +30,68 @@ public class Zipper {
      * @throws IOException If an I/O error occurs.
      */
     public static void toZip(File[] files, File targetZIP) throws IOException {
+        toZip(files, targetZIP, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Copies the specified files into a new ZIP archive, compressed at a
+     * chosen level.
+     *
+     * @param files The files that should be in the new archive file.
+     * @param targetZIP A File indicating the location of the newly created ZIP.
+     * @param level The deflate level, for example
+     * {@link Deflater#BEST_COMPRESSION} to make the archive as small as
+     * possible.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void toZip(File[] files, File targetZIP, int level) throws IOException {
         try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(targetZIP))) {
             zos.setComment(ZIP_COMMENT);
+            zos.setLevel(level);
             add(zos, files);
             zos.flush();
         }
     }
 
+    /**
+     * Gets the total length of files, including the files inside
+     * directories, without reading them.
+     *
+     * @param files The files.
+     * @return the length in bytes
+     */
+    public static long getLength(File[] files) {
+        return getLength(files, false);
+    }
+
+    /**
+     * Gets the total length of the files that are already compressed, judging
+     * by their extension, including the files inside directories. An archive
+     * of the files can't be smaller than this.
+     *
+     * @param files The files.
+     * @return the length in bytes
+     */
+    public static long getIncompressibleLength(File[] files) {
+        return getLength(files, true);
+    }
+
+    /**
+     * Adds up the lengths of files, or only of the compressed ones.
+     */
+    private static long getLength(File[] files, boolean compressedOnly) {
+        long length = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                length += (children == null) ? 0 : getLength(children, compressedOnly);
+            } else if (!compressedOnly || FrameConnection.isCompressed(file.getName())) {
+                length += file.length();
+            }
+        }
+        return length;
+    }
+
     /**
      * Adds Files to a ZipOutputStream.
      *
@@ -0,0 +1,84 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the transfer compression of version 2 of the protocol against a
+ * {@link FrameServer} that accepts deflate: text is compressed, files that
+ * are already compressed and screenshots aren't, and nothing is compressed
+ * when the setting is off or the server doesn't accept it.
+ */
+public class CompressionTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            log.append("log line ").append(i).append(" INFO something happened\n");
+        }
+        byte[] text = log.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[200000];
+        new Random(1).nextBytes(random);
+
+        try (FrameServer server = new FrameServer(FrameConnection.HELLO + ";" + FrameConnection.ENCODING_DEFLATE)) {
+            for (String level : Arrays.asList("deflate", "fast")) {
+                Setting.TRANSFER_COMPRESSION.setValue(level);
+                File file = TestSupport.createFile(".txt", text);
+                long start = System.nanoTime();
+                upload(server, file, "file");
+                long elapsed = System.nanoTime() - start;
+                checkEquals(FrameConnection.ENCODING_DEFLATE, server.getEncoding(file.getName()), "encoding");
+                check(Arrays.equals(text, server.getFile(file.getName())), "the server got the file");
+                long wire = server.getWireLength(file.getName());
+                check(wire < text.length / 4, "compressed to " + wire + " of " + text.length + " bytes");
+                System.out.printf("  %s: %d bytes sent for %d in %d ms%n", level, wire, text.length, elapsed / 1000000);
+                passed("a text file is compressed with " + level);
+            }
+            Setting.TRANSFER_COMPRESSION.setValue("deflate");
+
+            File zip = TestSupport.createFile(".zip", random);
+            upload(server, zip, "file");
+            checkEquals("", server.getEncoding(zip.getName()), "encoding");
+            checkEquals((long) random.length, server.getWireLength(zip.getName()), "bytes sent");
+            passed("a compressed file is sent as it is");
+
+            File screenshot = TestSupport.createFile(".txt", text);
+            upload(server, screenshot, "img");
+            checkEquals("", server.getEncoding(screenshot.getName()), "encoding");
+            check(Arrays.equals(text, server.getFile(screenshot.getName())), "the server got the file");
+            passed("a screenshot is sent as it is");
+
+            Setting.TRANSFER_COMPRESSION.setValue("none");
+            File uncompressed = TestSupport.createFile(".txt", text);
+            upload(server, uncompressed, "file");
+            checkEquals("", server.getEncoding(uncompressed.getName()), "encoding");
+            passed("nothing is compressed when compression is off");
+            Setting.TRANSFER_COMPRESSION.setValue("deflate");
+        }
+
+        try (FrameServer server = new FrameServer(FrameConnection.HELLO)) {
+            File file = TestSupport.createFile(".txt", text);
+            upload(server, file, "file");
+            checkEquals("", server.getEncoding(file.getName()), "encoding");
+            check(Arrays.equals(text, server.getFile(file.getName())), "the server got the file");
+            passed("nothing is compressed for a server that doesn't accept it");
+        }
+        System.exit(0);
+    }
+
+    private static void upload(FrameServer server, File file, String type) throws Exception {
+        try (FrameConnection connection = FrameConnection.open(server.getAddress(), "secret")) {
+            checkEquals(FrameServer.WEB_URL + file.getName(), connection.upload(file, type, null), "link");
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests uploads to several {@code UPLOAD_DESTINATIONS} with uploaders that
+ * only wait: both fan-out policies, destinations that fail, stopping every
+ * upload at once, and uploaders that can't be loaded.
+ */
+public class DestinationRegistryTest {
+
+    private static final String WEB_URL = "http://example.com/";
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        DestinationRegistry.register(new WaitingUploader("fast", 0, null));
+        DestinationRegistry.register(new WaitingUploader("slow", 500, null));
+        DestinationRegistry.register(new WaitingUploader("hanging", 60000, null));
+        DestinationRegistry.register(new WaitingUploader("full", 0, "SERVER_FULL"));
+        Payload payload = new Payload("shot.png", "img", ByteBuffer.wrap(new byte[100]));
+
+        Setting.UPLOAD_DESTINATIONS.setValue("slow, fast");
+        Setting.FAN_OUT_POLICY.setValue("first");
+        check(DestinationRegistry.isFanOutEnabled(), "fan-out is enabled");
+        List<String> links = new CopyOnWriteArrayList<>();
+        int[] progress = {0};
+        long start = System.nanoTime();
+        Link first = Uploader.await(DestinationRegistry.fanOut(payload, (percentage) -> progress[0] = percentage,
+                (link) -> links.add(link.getUrl()), (uploader, ex) -> links.add("failed")));
+        checkEquals(WEB_URL + "fast/shot.png", first.getUrl(), "link");
+        checkEquals("fast", first.getUploader(), "uploader");
+        check(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400), "the link came before the slow destination finished");
+        TimeUnit.MILLISECONDS.sleep(800);
+        checkEquals(2, links.size(), "links received");
+        checkEquals(100, progress[0], "progress of both destinations");
+        passed("the first link with the first policy");
+
+        Setting.UPLOAD_DESTINATIONS.setValue("full,slow,fast");
+        Setting.FAN_OUT_POLICY.setValue("all");
+        Map<String, IOException> failures = new ConcurrentHashMap<>();
+        Link all = Uploader.await(DestinationRegistry.fanOut(payload, null, (link) -> { },
+                (uploader, ex) -> failures.put(uploader.getName(), ex)));
+        checkEquals(WEB_URL + "slow/shot.png", all.getUrl(), "link of the first listed destination that succeeded");
+        checkEquals("SERVER_FULL", ((ServerReplyException) failures.get("full")).getReply(), "failure of the full destination");
+        checkEquals(1, failures.size(), "failed destinations");
+        passed("the first listed link with the all policy");
+
+        Setting.UPLOAD_DESTINATIONS.setValue("full,unknown");
+        expect(IOException.class, () -> Uploader.await(DestinationRegistry.fanOut(payload, null, (link) -> { }, (uploader, ex) -> { })));
+        passed("a failure when no destination succeeds");
+
+        Setting.UPLOAD_DESTINATIONS.setValue("hanging,hanging");
+        List<IOException> stopped = new CopyOnWriteArrayList<>();
+        CompletableFuture<Link> hanging = DestinationRegistry.fanOut(payload, null, (link) -> { },
+                (uploader, ex) -> stopped.add(ex));
+        TimeUnit.MILLISECONDS.sleep(100);
+        hanging.cancel(true);
+        expect(InterruptedIOException.class, () -> Uploader.await(hanging));
+        for (int i = 0; i < 50 && stopped.size() < 2; i++) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        checkEquals(2, stopped.size(), "stopped destinations");
+        check(stopped.get(0) instanceof InterruptedIOException, "stopped, not failed: " + stopped.get(0));
+        passed("stopping stops every destination");
+
+        File classPath = Files.createTempDirectory("ksuploader-test").toFile();
+        File services = new File(classPath, "META-INF/services/" + Uploader.class.getName());
+        check(services.getParentFile().mkdirs(), "created " + services.getParent());
+        String prefix = DestinationRegistryTest.class.getName() + "$";
+        Files.write(services.toPath(), Arrays.asList(prefix + "MissingUploader", prefix + "BrokenUploader",
+                prefix + "LoadableUploader"), StandardCharsets.UTF_8);
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classPath.toURI().toURL()},
+                DestinationRegistryTest.class.getClassLoader())) {
+            DestinationRegistry.registerProviders(loader);
+        }
+        check(DestinationRegistry.get("loadable") != null, "the uploader after the broken ones was registered");
+        check(DestinationRegistry.get("broken") == null, "the broken uploader wasn't registered");
+        passed("a provider that can't be loaded only leaves out itself");
+        System.exit(0);
+    }
+
+    /**
+     * A provider that can be loaded.
+     */
+    public static class LoadableUploader extends WaitingUploader {
+
+        public LoadableUploader() {
+            super("loadable", 0, null);
+        }
+
+    }
+
+    /**
+     * A provider whose constructor fails.
+     */
+    public static class BrokenUploader extends WaitingUploader {
+
+        public BrokenUploader() {
+            super("broken", 0, null);
+            throw new IllegalStateException("Broken on purpose.");
+        }
+
+    }
+
+    /**
+     * An uploader that waits before it returns a link or refuses the upload.
+     */
+    private static class WaitingUploader implements Uploader {
+
+        private final String name;
+        private final long delay;
+        private final String refusal;
+
+        private WaitingUploader(String name, long delay, String refusal) {
+            this.name = name;
+            this.delay = delay;
+            this.refusal = refusal;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Set<Capability> getCapabilities() {
+            return EnumSet.noneOf(Capability.class);
+        }
+
+        @Override
+        public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+            return Uploader.runAsync(name, () -> {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Stopped.");
+                }
+                if (refusal != null) {
+                    throw new ServerReplyException(refusal);
+                }
+                if (progress != null) {
+                    progress.accept(100);
+                }
+                return WEB_URL + name + "/" + payload.getName();
+            });
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+package it.ksuploader.client;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests version 2 of the protocol against a {@link FrameServer}: several
+ * uploads on one connection, batches, the fallback for servers that only
+ * speak the original protocol, and the speed of the frame codec.
+ */
+public class FrameProtocolTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        byte[] contents = new byte[300000];
+        new Random(1).nextBytes(contents);
+        File file = TestSupport.createFile(".bin", contents);
+
+        try (FrameServer server = new FrameServer(FrameConnection.HELLO)) {
+            try (FrameConnection connection = FrameConnection.open(server.getAddress(), "secret")) {
+                checkEquals(FrameServer.WEB_URL + file.getName(), connection.upload(file, "file", null), "link");
+                int[] progress = {0};
+                connection.upload(file, "file", (percentage) -> progress[0] = percentage);
+                checkEquals(100, progress[0], "progress");
+            }
+            check(Arrays.equals(contents, server.getFile(file.getName())), "the server got the file");
+            checkEquals("secret", server.getPassword(), "password");
+            checkEquals(1, server.getConnections(), "connections");
+            passed("two uploads on one connection");
+
+            File second = TestSupport.createFile(".bin", new byte[Frame.MAX_PAYLOAD_LENGTH + 1]);
+            File third = TestSupport.createFile(".txt", new byte[0]);
+            try (FrameConnection connection = FrameConnection.open(server.getAddress(), "secret")) {
+                List<CompletableFuture<String>> links = connection.uploadBatch(Arrays.asList(file, second, third), "file", null);
+                checkEquals(FrameServer.WEB_URL + second.getName(), links.get(1).join(), "link");
+                checkEquals(FrameServer.WEB_URL + third.getName(), links.get(2).join(), "link");
+            }
+            checkEquals(Frame.MAX_PAYLOAD_LENGTH + 1, server.getFile(second.getName()).length, "length of a file larger than one frame");
+            checkEquals(0, server.getFile(third.getName()).length, "length of an empty file");
+            passed("a batch without waiting for links");
+        }
+
+        try (FrameServer legacy = new FrameServer("BAD_SYN_STRING")) {
+            checkEquals(null, FrameConnection.open(legacy.getAddress(), "secret"), "connection to a legacy server");
+            checkEquals(null, FrameConnection.open(legacy.getAddress(), "secret"), "connection to a legacy server");
+            checkEquals(1, legacy.getConnections(), "connections");
+            passed("a legacy server is remembered");
+
+            FrameConnection.clearLegacyServers();
+            checkEquals(null, FrameConnection.open(legacy.getAddress(), "secret"), "connection to a legacy server");
+            checkEquals(2, legacy.getConnections(), "connections");
+            passed("a legacy server is asked again after a configuration reload");
+        }
+
+        byte[] payload = new byte[64 * 1024];
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER_LENGTH + payload.length);
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 20000; i++) {
+            buffer.clear();
+            new Frame(Frame.Opcode.DATA, i, payload, payload.length).write(buffer);
+            buffer.flip();
+            bytes += Frame.read(buffer).getLength();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("  encoded and decoded 64 KiB DATA frames at %.0f MB/s%n", bytes * 1000.0 / elapsed);
+        passed("frame codec");
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,348 @@
+package it.ksuploader.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A stand-in for KSUploader-server, for tests. It answers the greeting of a
+ * client with a configurable reply, keeps every file it receives over version
+ * 2 of the protocol, and replies with a link made of the file name. Files
+ * sent with the deflate transfer encoding are inflated if the greeting offers
+ * it, links are reserved if it offers {@code reserve}, and QUOTA frames are
+ * answered if it offers {@code quota}. A reply other than
+ * {@code FrameConnection.HELLO} makes it behave like a server that only speaks
+ * the original protocol, and it then accepts uploads in that protocol. The
+ * server can also speak TLS, and renegotiate during uploads.
+ */
+public class FrameServer implements Closeable {
+
+    /**
+     * The start of the links the server replies with.
+     */
+    public static final String WEB_URL = "http://example.com/";
+
+    private final ServerSocket serverSocket;
+    private final String greeting;
+    private final int renegotiationInterval;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger legacyUploads = new AtomicInteger();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Map<String, Long> wireLengths = new ConcurrentHashMap<>();
+    private final Map<String, String> encodings = new ConcurrentHashMap<>();
+    private volatile String password;
+    private volatile long maxLength = -1;
+
+    /**
+     * Starts a server on a free port of the loopback interface.
+     *
+     * @param greeting The reply to the greeting of a client, for example
+     * {@code FrameConnection.HELLO}, or {@code "KSU/2;deflate"} to accept
+     * compressed files.
+     * @throws IOException If the server couldn't be started.
+     */
+    public FrameServer(String greeting) throws IOException {
+        this(greeting, null, 0);
+    }
+
+    /**
+     * Starts a server on a free port of the loopback interface that speaks
+     * TLS.
+     *
+     * @param greeting The reply to the greeting of a client.
+     * @param tls The context with the key and certificate of the server, or
+     * null to not use TLS.
+     * @param renegotiationInterval The number of DATA frames after which the
+     * server starts a new handshake during an upload, or 0 to never do so.
+     * Renegotiation needs TLS 1.2, so the server only speaks that version
+     * when this isn't 0.
+     * @throws IOException If the server couldn't be started.
+     */
+    public FrameServer(String greeting, SSLContext tls, int renegotiationInterval) throws IOException {
+        if (tls == null) {
+            this.serverSocket = new ServerSocket(0, 512);
+        } else {
+            SSLServerSocket secureSocket = (SSLServerSocket) tls.getServerSocketFactory().createServerSocket(0);
+            if (renegotiationInterval > 0) {
+                secureSocket.setEnabledProtocols(new String[]{"TLSv1.2"});
+            }
+            this.serverSocket = secureSocket;
+        }
+        this.greeting = greeting;
+        this.renegotiationInterval = renegotiationInterval;
+        Thread acceptor = new Thread(this::accept, "FrameServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Gets the address clients connect to.
+     *
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress("localhost", serverSocket.getLocalPort());
+    }
+
+    /**
+     * Gets the number of connections the server accepted.
+     *
+     * @return the number of connections
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Gets the password the last client sent.
+     *
+     * @return the password, or null if no client authenticated yet
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * Sets the length of the largest file the server accepts. Larger files
+     * are refused with FILE_TOO_LARGE once they are received.
+     *
+     * @param maxLength The length in bytes, or -1 for no limit.
+     */
+    public void setMaxLength(long maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Gets the contents of a file the server received. Files uploaded in the
+     * original protocol have no name, and are kept as "legacy1", "legacy2"
+     * and so on.
+     *
+     * @param name The name of the file.
+     * @return the contents, or null if no file with that name was received
+     */
+    public byte[] getFile(String name) {
+        return files.get(name);
+    }
+
+    /**
+     * Gets the number of bytes a file took in DATA frames.
+     *
+     * @param name The name of the file.
+     * @return the number of bytes, or null if no file with that name was
+     * received
+     */
+    public Long getWireLength(String name) {
+        return wireLengths.get(name);
+    }
+
+    /**
+     * Gets the transfer encoding a file was sent with.
+     *
+     * @param name The name of the file.
+     * @return the encoding, which is empty if the file was sent as it is, or
+     * null if no file with that name was received
+     */
+    public String getEncoding(String name) {
+        return encodings.get(name);
+    }
+
+    /**
+     * Closes the connections the server accepted, as a server that restarted
+     * or timed out idle clients would, but keeps accepting new ones.
+     *
+     * @throws IOException If a connection couldn't be closed.
+     */
+    public void closeConnections() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        closeConnections();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                sockets.add(socket);
+                Thread connection = new Thread(() -> serve(socket), "FrameServer connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException ex) {
+            /* The server was closed. */
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            String hello = in.readUTF();
+            if (!hello.startsWith(FrameConnection.HELLO)) {
+                serveLegacy(hello, in, out);
+                return;
+            }
+            out.writeUTF(greeting);
+            out.flush();
+            if (!greeting.startsWith(FrameConnection.HELLO)) {
+                return;
+            }
+            Set<String> extensions = new HashSet<>(Arrays.asList(hello.split(";")));
+            extensions.retainAll(Arrays.asList(greeting.split(";")));
+            password = Frame.read(in).getText();
+            Upload upload = null;
+            int dataFrames = 0;
+            while (true) {
+                Frame frame = Frame.read(in);
+                switch (frame.getOpcode()) {
+                    case BEGIN:
+                        upload = new Upload(frame);
+                        if (extensions.contains(FrameConnection.EXTENSION_RESERVE)) {
+                            Frame.text(Frame.Opcode.RESERVED, frame.getStream(), WEB_URL + upload.name).write(out);
+                            out.flush();
+                        }
+                        break;
+                    case DATA:
+                        upload.write(frame);
+                        if (renegotiationInterval > 0 && ++dataFrames % renegotiationInterval == 0) {
+                            ((SSLSocket) socket).startHandshake();
+                        }
+                        break;
+                    case END:
+                        if (maxLength >= 0 && upload.data.size() > maxLength) {
+                            Frame.text(Frame.Opcode.ERROR, frame.getStream(), "FILE_TOO_LARGE").write(out);
+                            out.flush();
+                            break;
+                        }
+                        files.put(upload.name, upload.data.toByteArray());
+                        wireLengths.put(upload.name, upload.wireLength);
+                        encodings.put(upload.name, upload.encoding);
+                        Frame.text(Frame.Opcode.LINK, frame.getStream(), WEB_URL + upload.name).write(out);
+                        out.flush();
+                        break;
+                    case QUOTA:
+                        if (!extensions.contains(FrameConnection.EXTENSION_QUOTA)) {
+                            Frame.text(Frame.Opcode.ERROR, frame.getStream(), "UNSUPPORTED").write(out);
+                        } else {
+                            new Frame(Frame.Opcode.QUOTA, frame.getStream(), ByteBuffer.allocate(8).putLong(maxLength).array(), 8).write(out);
+                        }
+                        out.flush();
+                        break;
+                    default:
+                        Frame.text(Frame.Opcode.ERROR, frame.getStream(), "UNSUPPORTED").write(out);
+                        out.flush();
+                }
+            }
+        } catch (EOFException | SocketException ex) {
+            /* The client closed the connection. */
+        } catch (IOException | DataFormatException ex) {
+            if (!socket.isClosed()) {
+                ex.printStackTrace();
+            }
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                /* Already closed. */
+            }
+        }
+    }
+
+    /**
+     * Receives a file in the original protocol: the password, length and
+     * kind of the file, the reply OK, the file, and the link.
+     */
+    private void serveLegacy(String header, DataInputStream in, DataOutputStream out) throws IOException {
+        String[] fields = header.split("&");
+        password = fields[0];
+        long length = Long.parseLong(fields[1]);
+        if (maxLength >= 0 && length > maxLength) {
+            out.writeUTF("FILE_TOO_LARGE");
+            out.flush();
+            return;
+        }
+        out.writeUTF("OK");
+        out.flush();
+        byte[] data = new byte[(int) length];
+        in.readFully(data);
+        String name = "legacy" + legacyUploads.incrementAndGet();
+        files.put(name, data);
+        wireLengths.put(name, length);
+        encodings.put(name, "");
+        out.writeUTF(WEB_URL + name);
+        out.flush();
+    }
+
+    /**
+     * A file that is being received.
+     */
+    private static class Upload {
+
+        private final String name;
+        private final String encoding;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private final Inflater inflater;
+        private long wireLength;
+
+        private Upload(Frame begin) {
+            ByteBuffer payload = ByteBuffer.wrap(begin.getPayload(), 0, begin.getLength());
+            payload.getLong();
+            readString(payload);
+            name = readString(payload);
+            encoding = readString(payload);
+            inflater = FrameConnection.ENCODING_DEFLATE.equals(encoding) ? new Inflater() : null;
+        }
+
+        private static String readString(ByteBuffer payload) {
+            byte[] bytes = new byte[payload.getShort()];
+            payload.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void write(Frame frame) throws DataFormatException {
+            wireLength += frame.getLength();
+            if (inflater == null) {
+                data.write(frame.getPayload(), 0, frame.getLength());
+                return;
+            }
+            inflater.setInput(frame.getPayload(), 0, frame.getLength());
+            byte[] inflated = new byte[64 * 1024];
+            int length;
+            while ((length = inflater.inflate(inflated)) > 0) {
+                data.write(inflated, 0, length);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,276 @@
+package it.ksuploader.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A stand-in for an FTP server, for tests. It knows the commands the
+ * {@link FtpUploader} sends, keeps the files it receives in memory, and counts
+ * logins. It can delay every reply, as a distant server would, and it can
+ * leave out MODE Z.
+ */
+public class FtpServer implements Closeable {
+
+    public static final String USER = "ksu";
+    public static final String PASSWORD = "secret";
+
+    private final ServerSocket serverSocket;
+    private final boolean modeZ;
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Map<String, Long> wireLengths = new ConcurrentHashMap<>();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger transfers = new AtomicInteger();
+    private final AtomicInteger maxTransfers = new AtomicInteger();
+    private volatile long replyDelay;
+
+    /**
+     * Starts a server on a free port of the loopback interface.
+     *
+     * @param modeZ Whether the server supports MODE Z.
+     * @throws IOException If the server couldn't be started.
+     */
+    public FtpServer(boolean modeZ) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.modeZ = modeZ;
+        Thread acceptor = new Thread(this::accept, "FtpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Gets the port clients connect to.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sets the time every reply is delayed by.
+     *
+     * @param replyDelay The delay in milliseconds.
+     */
+    public void setReplyDelay(long replyDelay) {
+        this.replyDelay = replyDelay;
+    }
+
+    /**
+     * Gets the number of successful logins.
+     *
+     * @return the number of logins
+     */
+    public int getLogins() {
+        return logins.get();
+    }
+
+    /**
+     * Gets the largest number of STOR commands that were in progress at once,
+     * from the command to the reply that the file was received, and starts
+     * counting again.
+     *
+     * @return the number of files
+     */
+    public int takeMaxTransfers() {
+        return maxTransfers.getAndSet(0);
+    }
+
+    /**
+     * Gets the contents of a file the server received.
+     *
+     * @param name The name of the file.
+     * @return the contents, or null if there is no file with that name
+     */
+    public byte[] getFile(String name) {
+        return files.get(name);
+    }
+
+    /**
+     * Gets the number of bytes a file took on its data connection.
+     *
+     * @param name The name of the file.
+     * @return the number of bytes, or null if there is no file with that name
+     */
+    public Long getWireLength(String name) {
+        return wireLengths.get(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread session = new Thread(() -> serve(socket), "FtpServer session");
+                session.setDaemon(true);
+                session.start();
+            }
+        } catch (IOException ex) {
+            /* The server was closed. */
+        }
+    }
+
+    private void serve(Socket socket) {
+        ServerSocket passive = null;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            reply(out, "220 FtpServer ready");
+            boolean compressed = false;
+            String renameFrom = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+                String argument = (space < 0) ? "" : line.substring(space + 1);
+                switch (command) {
+                    case "USER":
+                        reply(out, "331 Password required");
+                        break;
+                    case "PASS":
+                        if (PASSWORD.equals(argument)) {
+                            logins.incrementAndGet();
+                            reply(out, "230 Logged in");
+                        } else {
+                            reply(out, "530 Login incorrect");
+                        }
+                        break;
+                    case "FEAT":
+                        reply(out, "211-Features:\r\n" + (modeZ ? " MODE Z\r\n" : "") + " PASV\r\n211 End");
+                        break;
+                    case "MODE":
+                        if (argument.equalsIgnoreCase("S") || (modeZ && argument.equalsIgnoreCase("Z"))) {
+                            compressed = argument.equalsIgnoreCase("Z");
+                            reply(out, "200 Mode set to " + argument);
+                        } else {
+                            reply(out, "504 Mode not supported");
+                        }
+                        break;
+                    case "SYST":
+                        reply(out, "215 UNIX Type: L8");
+                        break;
+                    case "TYPE":
+                    case "NOOP":
+                    case "CWD":
+                        reply(out, "200 OK");
+                        break;
+                    case "PWD":
+                        reply(out, "257 \"/\"");
+                        break;
+                    case "PASV":
+                        if (passive != null) {
+                            passive.close();
+                        }
+                        passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int port = passive.getLocalPort();
+                        reply(out, "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")");
+                        break;
+                    case "STOR":
+                        if (passive == null) {
+                            reply(out, "425 Use PASV first");
+                            break;
+                        }
+                        maxTransfers.accumulateAndGet(transfers.incrementAndGet(), Math::max);
+                        try {
+                            reply(out, "150 Ready");
+                            try (ServerSocket listening = passive; Socket data = listening.accept()) {
+                                receive(argument, data.getInputStream(), compressed);
+                            }
+                            passive = null;
+                            reply(out, "226 Transfer complete");
+                        } finally {
+                            transfers.decrementAndGet();
+                        }
+                        break;
+                    case "RNFR":
+                        renameFrom = argument;
+                        reply(out, files.containsKey(argument) ? "350 Ready for RNTO" : "550 No such file");
+                        break;
+                    case "RNTO":
+                        files.put(argument, files.remove(renameFrom));
+                        wireLengths.put(argument, wireLengths.remove(renameFrom));
+                        reply(out, "250 Renamed");
+                        break;
+                    case "DELE":
+                        wireLengths.remove(argument);
+                        reply(out, files.remove(argument) != null ? "250 Deleted" : "550 No such file");
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Bye");
+                        return;
+                    default:
+                        reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException | DataFormatException ex) {
+            if (!socket.isClosed()) {
+                ex.printStackTrace();
+            }
+        } finally {
+            try {
+                socket.close();
+                if (passive != null) {
+                    passive.close();
+                }
+            } catch (IOException ex) {
+                /* Already closed. */
+            }
+        }
+    }
+
+    /**
+     * Reads a file from a data connection, inflating it if it was sent in
+     * MODE Z.
+     */
+    private void receive(String name, InputStream data, boolean compressed) throws IOException, DataFormatException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        Inflater inflater = compressed ? new Inflater() : null;
+        byte[] buffer = new byte[64 * 1024];
+        byte[] inflated = new byte[64 * 1024];
+        long wireLength = 0;
+        int read;
+        while ((read = data.read(buffer)) >= 0) {
+            wireLength += read;
+            if (inflater == null) {
+                file.write(buffer, 0, read);
+                continue;
+            }
+            inflater.setInput(buffer, 0, read);
+            int length;
+            while ((length = inflater.inflate(inflated)) > 0) {
+                file.write(inflated, 0, length);
+            }
+        }
+        files.put(name, file.toByteArray());
+        wireLengths.put(name, wireLength);
+    }
+
+    private void reply(OutputStream out, String reply) throws IOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(replyDelay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+}
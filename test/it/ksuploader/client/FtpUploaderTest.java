@@ -0,0 +1,136 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link FtpUploader} against an {@link FtpServer}: binary
+ * transfers, pooled sessions and MODE Z with {@code FTP_PERFORMANCE_ENABLED},
+ * servers without MODE Z, uploads in parallel, and wrong passwords.
+ */
+public class FtpUploaderTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            log.append("log line ").append(i).append(" INFO something happened\r\n");
+        }
+        byte[] text = log.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[200000];
+        new Random(1).nextBytes(random);
+
+        try (FtpServer server = new FtpServer(true)) {
+            configure(server, false);
+            int logins = server.getLogins();
+            for (int i = 0; i < 3; i++) {
+                checkEquals("http://example.com/plain" + i + ".txt", upload("plain" + i + ".txt", "txt", text), "link");
+                check(Arrays.equals(text, server.getFile("plain" + i + ".txt")), "the server got the file unchanged");
+                checkEquals((long) text.length, server.getWireLength("plain" + i + ".txt"), "bytes sent");
+            }
+            checkEquals(logins + 3, server.getLogins(), "logins");
+            passed("binary uploads with a session each");
+
+            configure(server, true);
+            logins = server.getLogins();
+            for (int i = 0; i < 3; i++) {
+                upload("pooled" + i + ".txt", "txt", text);
+                check(Arrays.equals(text, server.getFile("pooled" + i + ".txt")), "the server got the file");
+            }
+            checkEquals(logins + 1, server.getLogins(), "logins");
+            passed("sessions are reused");
+
+            long wire = server.getWireLength("pooled0.txt");
+            check(wire < text.length / 4, "text compressed to " + wire + " of " + text.length + " bytes");
+            upload("archive.zip", "file", random);
+            checkEquals((long) random.length, server.getWireLength("archive.zip"), "bytes sent for a zip file");
+            upload("shot.txt", "img", text);
+            checkEquals((long) text.length, server.getWireLength("shot.txt"), "bytes sent for a screenshot");
+            System.out.printf("  MODE Z sent %d bytes for %d of text%n", wire, text.length);
+            passed("MODE Z for files that aren't compressed yet");
+
+            Setting.FTP_PASSWORD.setValue("wrong");
+            ServerReplyException refusal = expect(ServerReplyException.class, () -> upload("denied.txt", "txt", text));
+            checkEquals("WRONG_PASSWORD", refusal.getReply(), "reply");
+            passed("a wrong password is a refusal");
+        }
+
+        try (FtpServer server = new FtpServer(false)) {
+            configure(server, true);
+            upload("uncompressed.txt", "txt", text);
+            check(Arrays.equals(text, server.getFile("uncompressed.txt")), "the server got the file");
+            checkEquals((long) text.length, server.getWireLength("uncompressed.txt"), "bytes sent");
+            passed("a server without MODE Z");
+        }
+
+        try (FtpServer server = new FtpServer(true)) {
+            server.setReplyDelay(20);
+            byte[] small = Arrays.copyOf(text, 64 * 1024);
+            configure(server, false);
+            long unpooled = uploadAll(server, "unpooled", small, 1);
+            configure(server, true);
+            long pooled = uploadAll(server, "pooled", small, 1);
+            checkEquals(1, server.takeMaxTransfers(), "files uploaded at once");
+            long parallel = uploadAll(server, "parallel", small, 4);
+            check(server.takeMaxTransfers() > 1, "files were uploaded at once");
+            System.out.printf("  twenty 64 KiB files with replies delayed by 20 ms took %d ms one at a time, "
+                    + "%d ms pooled, %d ms pooled four at a time%n", unpooled, pooled, parallel);
+            passed("uploads in parallel");
+        }
+        System.exit(0);
+    }
+
+    private static void configure(FtpServer server, boolean performance) {
+        Setting.FTP_ADDRESS.setValue("localhost");
+        Setting.FTP_PORT.setValue(server.getPort());
+        Setting.FTP_USER.setValue(FtpServer.USER);
+        Setting.FTP_PASSWORD.setValue(FtpServer.PASSWORD);
+        Setting.FTP_DIRECTORY.setValue("/");
+        Setting.FTP_WEB_URL.setValue("http://example.com/");
+        Setting.FTP_CONTENT_NAMES.setValue(false);
+        Setting.FTP_PERFORMANCE_ENABLED.setValue(performance);
+    }
+
+    private static String upload(String name, String type, byte[] contents) throws IOException {
+        return Uploader.await(new FtpUploader().upload(new Payload(name, type, ByteBuffer.wrap(contents)), null)).getUrl();
+    }
+
+    /**
+     * Uploads twenty files, at most {@code parallel} at a time, and checks
+     * that they arrived.
+     *
+     * @return the time it took in milliseconds
+     */
+    private static long uploadAll(FtpServer server, String prefix, byte[] contents, int parallel) throws IOException {
+        long start = System.nanoTime();
+        List<CompletableFuture<Link>> uploads = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            if (uploads.size() >= parallel) {
+                Uploader.await(uploads.remove(0));
+            }
+            uploads.add(new FtpUploader().upload(new Payload(prefix + i + ".txt", "txt", ByteBuffer.wrap(contents)), null));
+        }
+        for (CompletableFuture<Link> upload : uploads) {
+            Uploader.await(upload);
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        for (int i = 0; i < 20; i++) {
+            check(Arrays.equals(contents, server.getFile(prefix + i + ".txt")), "the server got " + prefix + i + ".txt");
+        }
+        return elapsed;
+    }
+
+}
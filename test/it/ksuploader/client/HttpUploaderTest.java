@@ -0,0 +1,244 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link HttpUploader} against an in-process HTTP server: PUT
+ * uploads in one request and in chunks, multipart/form-data uploads, the
+ * Authorization header, refusals, and reuse of keep-alive connections.
+ */
+public class HttpUploaderTest {
+
+    private static final String AUTHORIZATION = "Bearer secret";
+
+    /**
+     * The largest file the server accepts, as a gateway with a size limit
+     * would.
+     */
+    private static final int MAX_LENGTH = 8 * 1024 * 1024;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern FILE_NAME = Pattern.compile("filename=\"([^\"]*)\"");
+
+    private static final Map<String, ByteArrayOutputStream> FILES = new ConcurrentHashMap<>();
+    private static final Set<Integer> CLIENT_PORTS = ConcurrentHashMap.newKeySet();
+    private static String contentType;
+    private static volatile Throwable failure;
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        /* Otherwise the server sends the headers and the body of a reply in
+         separate segments, and delayed ACKs add 40 ms to every request. */
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/files/", (exchange) -> handle(exchange, HttpUploaderTest::put));
+        server.createContext("/form", (exchange) -> handle(exchange, HttpUploaderTest::post));
+        server.start();
+        String address = "http://localhost:" + server.getAddress().getPort();
+        try {
+            Setting.HTTP_UPLOAD_URL.setValue(address + "/files/");
+            Setting.HTTP_AUTHORIZATION.setValue(AUTHORIZATION);
+            Setting.HTTP_MULTIPART_ENABLED.setValue(false);
+            Setting.HTTP_WEB_URL.setValue("");
+            Setting.HTTP_CHUNK_SIZE.setValue(0);
+            byte[] contents = new byte[3 * 1024 * 1024 + 17];
+            new Random(1).nextBytes(contents);
+
+            checkEquals("http://example.com/a%20b.png", upload("a b.png", "img", contents), "link");
+            check(Arrays.equals(contents, FILES.get("a b.png").toByteArray()), "the server got the file");
+            checkEquals("image/png", contentType, "content type");
+            passed("a PUT in one request");
+
+            Setting.HTTP_CHUNK_SIZE.setValue(1024);
+            checkEquals("http://example.com/chunked.bin", upload("chunked.bin", "file", contents), "link");
+            check(Arrays.equals(contents, FILES.get("chunked.bin").toByteArray()), "the server got the file");
+            passed("a PUT in chunks");
+
+            ServerReplyException tooLarge = expect(ServerReplyException.class, () -> upload("large.bin", "file", new byte[MAX_LENGTH + 1]));
+            checkEquals("FILE_TOO_LARGE", tooLarge.getReply(), "reply");
+            Setting.HTTP_AUTHORIZATION.setValue("Bearer wrong");
+            ServerReplyException wrongPassword = expect(ServerReplyException.class, () -> upload("denied.bin", "file", contents));
+            checkEquals("WRONG_PASSWORD", wrongPassword.getReply(), "reply");
+            Setting.HTTP_AUTHORIZATION.setValue(AUTHORIZATION);
+            passed("413 and 401 replies are refusals");
+
+            Setting.HTTP_MULTIPART_ENABLED.setValue(true);
+            Setting.HTTP_UPLOAD_URL.setValue(address + "/form");
+            Setting.HTTP_WEB_URL.setValue("https://cdn.example.com/");
+            byte[] text = "hello \"world\"\r\n--not a boundary\r\n".getBytes(StandardCharsets.UTF_8);
+            checkEquals("https://cdn.example.com/notes.txt", upload("notes.txt", "txt", text), "link");
+            check(Arrays.equals(text, FILES.get("notes.txt").toByteArray()), "the server got the file");
+            passed("a multipart/form-data POST with http_weburl");
+
+            Setting.HTTP_MULTIPART_ENABLED.setValue(false);
+            Setting.HTTP_UPLOAD_URL.setValue(address + "/files/");
+            Setting.HTTP_WEB_URL.setValue("");
+            Setting.HTTP_CHUNK_SIZE.setValue(0);
+            CLIENT_PORTS.clear();
+            byte[] small = new byte[64 * 1024];
+            long start = System.nanoTime();
+            for (int i = 0; i < 50; i++) {
+                upload("small" + i + ".bin", "file", small);
+            }
+            long elapsed = System.nanoTime() - start;
+            checkEquals(1, CLIENT_PORTS.size(), "connections for 50 uploads");
+            System.out.printf("  50 uploads of 64 KiB took %.1f ms each over one connection%n", elapsed / 50e6);
+            passed("keep-alive connections are reused");
+        } finally {
+            server.stop(0);
+        }
+        System.exit(0);
+    }
+
+    private static String upload(String name, String type, byte[] contents) throws IOException {
+        try {
+            return Uploader.await(new HttpUploader().upload(new Payload(name, type, ByteBuffer.wrap(contents)), null)).getUrl();
+        } finally {
+            if (failure != null) {
+                throw new AssertionError("The server failed a check.", failure);
+            }
+        }
+    }
+
+    /**
+     * Handles a request, and keeps the first check that failed on the server
+     * so that the test fails with it instead of a reset connection.
+     */
+    private static void handle(HttpExchange exchange, HttpHandler handler) throws IOException {
+        try {
+            handler.handle(exchange);
+        } catch (IOException | RuntimeException | Error ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Stores a file sent with PUT, or a chunk of it if the request has a
+     * Content-Range header, and replies with its link in the body once the
+     * whole file arrived.
+     */
+    private static void put(HttpExchange exchange) throws IOException {
+        byte[] body = read(exchange.getRequestBody());
+        CLIENT_PORTS.add(exchange.getRemoteAddress().getPort());
+        if (!authorized(exchange)) {
+            return;
+        }
+        String name = exchange.getRequestURI().getPath().substring("/files/".length());
+        String range = exchange.getRequestHeaders().getFirst("Content-Range");
+        long length = body.length;
+        boolean last = true;
+        if (range == null) {
+            FILES.remove(name);
+        } else {
+            Matcher matcher = CONTENT_RANGE.matcher(range);
+            check(matcher.matches(), "Content-Range " + range);
+            long first = Long.parseLong(matcher.group(1));
+            long end = Long.parseLong(matcher.group(2)) + 1;
+            length = Long.parseLong(matcher.group(3));
+            if (first == 0) {
+                FILES.remove(name);
+            }
+            long received = FILES.containsKey(name) ? FILES.get(name).size() : 0;
+            checkEquals(received, first, "start of the chunk");
+            checkEquals((long) body.length, end - first, "length of the chunk");
+            last = end == length;
+        }
+        if (length > MAX_LENGTH) {
+            reply(exchange, 413, "Too large");
+            return;
+        }
+        contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        FILES.computeIfAbsent(name, (key) -> new ByteArrayOutputStream()).write(body, 0, body.length);
+        reply(exchange, last ? 201 : 308, last ? "http://example.com/" + name.replace(" ", "%20") + "\nstored" : "");
+    }
+
+    /**
+     * Stores the "file" part of a multipart/form-data POST.
+     */
+    private static void post(HttpExchange exchange) throws IOException {
+        byte[] body = read(exchange.getRequestBody());
+        if (!authorized(exchange)) {
+            return;
+        }
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        check(type.startsWith("multipart/form-data; boundary="), "Content-Type " + type);
+        String boundary = "--" + type.substring(type.indexOf('=') + 1);
+        String form = new String(body, StandardCharsets.ISO_8859_1);
+        int part = form.indexOf("name=\"file\"");
+        check(form.startsWith(boundary + "\r\nContent-Disposition: form-data; name=\"type\"\r\n\r\ntxt\r\n"), "type part");
+        Matcher matcher = FILE_NAME.matcher(form);
+        check(part >= 0 && matcher.find(part), "file part");
+        int start = form.indexOf("\r\n\r\n", part) + 4;
+        int end = form.lastIndexOf("\r\n" + boundary + "--\r\n");
+        check(end == body.length - boundary.length() - 6, "the form ends with the boundary");
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(body, start, end - start);
+        FILES.put(matcher.group(1), file);
+        reply(exchange, 200, "ignored because http_weburl is set");
+    }
+
+    /**
+     * Checks the Authorization header of a request, and replies 401 if it is
+     * wrong.
+     *
+     * @return whether the request is authorized
+     */
+    private static boolean authorized(HttpExchange exchange) throws IOException {
+        if (AUTHORIZATION.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            return true;
+        }
+        reply(exchange, 401, "Unauthorized");
+        return false;
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,82 @@
+package it.ksuploader.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests {@link Payload} with a file in memory and a sparse file longer than
+ * 2 GiB, which is mapped in several windows.
+ */
+public class PayloadTest {
+
+    public static void main(String[] args) throws Exception {
+        byte[] contents = new byte[100 * 1024 + 3];
+        new Random(1).nextBytes(contents);
+        Payload small = Payload.read(TestSupport.createFile(".png", contents), "img");
+        checkEquals((long) contents.length, small.getLength(), "length");
+        check(Arrays.equals(contents, read(small.openStream(), contents.length)), "the stream reads the contents");
+        check(Arrays.equals(Arrays.copyOfRange(contents, 10, 20), toArray(small.getData(10, 10))), "a part of the contents");
+        check(small.getContentName().matches("[0-9a-f]{16}\\.png"), "content name " + small.getContentName());
+        checkEquals(small.getContentName(), new Payload("other.png", "img", ByteBuffer.wrap(contents)).getContentName(), "content name");
+        expect(IndexOutOfBoundsException.class, () -> small.getData(contents.length - 1, 2));
+        passed("a small file");
+
+        File file = TestSupport.createFile(".bin", new byte[0]);
+        long length = 2L * Payload.WINDOW_LENGTH + 12345;
+        byte[] boundary = "crosses the first window".getBytes(StandardCharsets.UTF_8);
+        byte[] end = "the end of the file".getBytes(StandardCharsets.UTF_8);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+            out.seek(Payload.WINDOW_LENGTH - 10);
+            out.write(boundary);
+            out.seek(length - end.length);
+            out.write(end);
+        }
+        Payload large = Payload.read(file, "file");
+        checkEquals(length, large.getLength(), "length");
+        check(Arrays.equals(boundary, toArray(large.getData(Payload.WINDOW_LENGTH - 10, boundary.length))), "a part that spans two windows");
+        check(Arrays.equals(end, toArray(large.getData(length - end.length, end.length))), "a part past 2 GiB");
+        check(large.getData(Payload.WINDOW_LENGTH, 0).remaining() == 0, "an empty part");
+        try (InputStream in = large.openStream()) {
+            long skipped = 0;
+            while (skipped < length - end.length) {
+                skipped += in.skip(length - end.length - skipped);
+            }
+            check(Arrays.equals(end, read(in, end.length)), "the stream reads past 2 GiB");
+            checkEquals(-1, in.read(), "the stream ends with the file");
+        }
+        passed("a file longer than 2 GiB");
+        System.exit(0);
+    }
+
+    private static byte[] toArray(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] read(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return bytes;
+    }
+
+}
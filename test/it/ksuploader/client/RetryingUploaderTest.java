@@ -0,0 +1,188 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link RetryingUploader} with a stub uploader that fails as told:
+ * the growing time between attempts, which failures are tried again, and how
+ * the circuit breaker of a destination opens, lets one attempt through after
+ * the cooldown, and closes again.
+ */
+public class RetryingUploaderTest {
+
+    private static final Payload PAYLOAD = new Payload("shot.png", "img", ByteBuffer.wrap(new byte[100]));
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        Setting.CIRCUIT_BREAKER_THRESHOLD.setValue(100);
+        for (int attempt = 2; attempt <= 12; attempt++) {
+            long longest = Math.min(8000, 500L << (attempt - 2));
+            for (int i = 0; i < 200; i++) {
+                long delay = RetryingUploader.getDelay(attempt);
+                check(delay >= longest / 2 && delay <= longest, "delay before attempt " + attempt + ": " + delay + " ms");
+            }
+        }
+        passed("the time between attempts doubles up to a limit");
+
+        Setting.UPLOAD_ATTEMPTS.setValue(3);
+        StubUploader flaky = new StubUploader("flaky");
+        flaky.outcomes.add(new ConnectException("Connection refused"));
+        flaky.outcomes.add(new SocketTimeoutException("Read timed out"));
+        RetryingUploader retrying = new RetryingUploader(flaky);
+        checkEquals("http://example.com/shot.png", retrying.upload(PAYLOAD, null).get(10, TimeUnit.SECONDS).getUrl(), "link");
+        checkEquals(3, flaky.attempts.size(), "attempts");
+        long first = flaky.attempts.get(1) - flaky.attempts.get(0);
+        long second = flaky.attempts.get(2) - flaky.attempts.get(1);
+        check(first >= 240 && first <= 1000, "the second attempt came after " + first + " ms");
+        check(second >= 490 && second <= 1500, "the third attempt came after " + second + " ms");
+        passed("failed attempts are tried again after a growing time");
+
+        StubUploader dead = new StubUploader("dead");
+        for (int i = 0; i < 5; i++) {
+            dead.outcomes.add(new EOFException("The connection was closed."));
+        }
+        checkEquals(EOFException.class, fail(new RetryingUploader(dead)).getClass(), "failure");
+        checkEquals(3, dead.attempts.size(), "attempts");
+        passed("the last failure is reported once every attempt failed");
+
+        check(RetryingUploader.isRetryable(new ConnectException("Connection refused")), "a refused connection is retryable");
+        check(RetryingUploader.isRetryable(new SocketTimeoutException("Read timed out")), "a timeout is retryable");
+        check(RetryingUploader.isRetryable(new UnknownHostException("example.com")), "an unknown host is retryable");
+        check(RetryingUploader.isRetryable(new IOException("Couldn't upload.", new EOFException())), "a wrapped reset is retryable");
+        check(!RetryingUploader.isRetryable(new ServerReplyException("WRONG_PASSWORD")), "a refusal isn't retryable");
+        check(!RetryingUploader.isRetryable(new IOException("Couldn't encode the file.")), "another failure isn't retryable");
+        check(!RetryingUploader.isRetryable(new InterruptedIOException("Cancelled.")), "a cancelled upload isn't retryable");
+
+        StubUploader refusing = new StubUploader("refusing");
+        refusing.outcomes.add(new ServerReplyException("FILE_TOO_LARGE"));
+        checkEquals("FILE_TOO_LARGE", ((ServerReplyException) fail(new RetryingUploader(refusing))).getReply(), "reply");
+        checkEquals(1, refusing.attempts.size(), "attempts");
+        StubUploader broken = new StubUploader("broken");
+        broken.outcomes.add(new IOException("Couldn't encode the file."));
+        checkEquals("Couldn't encode the file.", fail(new RetryingUploader(broken)).getMessage(), "failure");
+        checkEquals(1, broken.attempts.size(), "attempts");
+        passed("refusals and other failures aren't tried again");
+
+        Setting.UPLOAD_ATTEMPTS.setValue(1);
+        Setting.CIRCUIT_BREAKER_THRESHOLD.setValue(2);
+        Setting.CIRCUIT_BREAKER_COOLDOWN.setValue(1);
+        StubUploader down = new StubUploader("down");
+        RetryingUploader breaker = new RetryingUploader(down);
+        down.outcomes.add(new ConnectException("Connection refused"));
+        down.outcomes.add(new ConnectException("Connection refused"));
+        fail(breaker);
+        fail(breaker);
+        checkEquals(2, down.attempts.size(), "attempts");
+        Throwable open = fail(breaker);
+        check(open instanceof ConnectException, "an open breaker fails like an unreachable destination: " + open);
+        checkEquals(2, down.attempts.size(), "attempts while the breaker is open");
+        checkEquals(-1L, breaker.getMaxLength("img"), "size accepted while the breaker is open");
+        passed("the breaker opens after failures in a row");
+
+        TimeUnit.MILLISECONDS.sleep(1100);
+        CompletableFuture<Link> probe = new CompletableFuture<>();
+        down.pending.add(probe);
+        CompletableFuture<Link> probing = breaker.upload(PAYLOAD, null);
+        checkEquals(3, down.attempts.size(), "attempts after the cooldown");
+        fail(breaker);
+        checkEquals(3, down.attempts.size(), "attempts while one is let through");
+        probe.completeExceptionally(new ConnectException("Connection refused"));
+        check(probing.isCompletedExceptionally(), "the attempt that was let through failed");
+        fail(breaker);
+        checkEquals(3, down.attempts.size(), "attempts after the breaker opened again");
+        passed("after the cooldown one attempt is let through, and a failure opens the breaker again");
+
+        TimeUnit.MILLISECONDS.sleep(1100);
+        checkEquals("http://example.com/shot.png", breaker.upload(PAYLOAD, null).get(10, TimeUnit.SECONDS).getUrl(), "link");
+        breaker.upload(PAYLOAD, null).get(10, TimeUnit.SECONDS);
+        checkEquals(5, down.attempts.size(), "attempts after the breaker closed");
+        passed("an attempt that succeeds closes the breaker");
+        System.exit(0);
+    }
+
+    /**
+     * Uploads the payload, which must fail.
+     *
+     * @return the reason the upload failed
+     */
+    private static Throwable fail(Uploader uploader) throws Exception {
+        try {
+            uploader.upload(PAYLOAD, null).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+        throw new AssertionError("The upload should have failed.");
+    }
+
+    /**
+     * Fails with the queued failures, waits for the queued futures, and
+     * uploads once none are left. Records when every attempt started.
+     */
+    private static class StubUploader implements Uploader {
+
+        private final String name;
+        private final Queue<IOException> outcomes = new ConcurrentLinkedQueue<>();
+        private final Queue<CompletableFuture<Link>> pending = new ConcurrentLinkedQueue<>();
+        private final List<Long> attempts = new CopyOnWriteArrayList<>();
+
+        private StubUploader(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Set<Capability> getCapabilities() {
+            return EnumSet.noneOf(Capability.class);
+        }
+
+        @Override
+        public long getMaxLength(String type) throws IOException {
+            throw new AssertionError("The size accepted shouldn't be asked.");
+        }
+
+        @Override
+        public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+            attempts.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+            CompletableFuture<Link> waiting = pending.poll();
+            if (waiting != null) {
+                return waiting;
+            }
+            CompletableFuture<Link> link = new CompletableFuture<>();
+            IOException failure = outcomes.poll();
+            if (failure != null) {
+                link.completeExceptionally(failure);
+            } else {
+                link.complete(new Link("http://example.com/" + payload.getName(), name));
+            }
+            return link;
+        }
+
+    }
+
+}
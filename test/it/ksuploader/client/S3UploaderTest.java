@@ -0,0 +1,309 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link S3Uploader} against an in-process stand-in for an object
+ * store, which checks the AWS Signature Version 4 of every request: single
+ * PUTs, multipart uploads with parts sent in parallel, a part that fails once,
+ * a part whose reply times out once, wrong credentials and {@code S3_WEB_URL}.
+ */
+public class S3UploaderTest {
+
+    private static final String BUCKET = "ksuploader-test";
+    private static final String ACCESS_KEY = "AKIDEXAMPLE";
+    private static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    private static final String REGION = "eu-west-1";
+
+    /**
+     * The time in milliseconds the store takes for every part, so that parts
+     * sent in parallel overlap.
+     */
+    private static final long PART_DELAY = 100;
+
+    private static final Map<String, byte[]> OBJECTS = new ConcurrentHashMap<>();
+    private static final Map<String, Map<Integer, byte[]>> UPLOADS = new ConcurrentHashMap<>();
+    private static final AtomicInteger UPLOAD_IDS = new AtomicInteger();
+    private static final AtomicInteger PARTS_IN_FLIGHT = new AtomicInteger();
+    private static final AtomicInteger MAX_PARTS_IN_FLIGHT = new AtomicInteger();
+    private static final AtomicInteger PART_REQUESTS = new AtomicInteger();
+    private static volatile int failingPart;
+    private static volatile int slowPart;
+    private static volatile Throwable failure;
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        /* Otherwise the server sends the headers and the body of a reply in
+         separate segments, and delayed ACKs add 40 ms to every request. */
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", S3UploaderTest::handle);
+        server.start();
+        String endpoint = "http://localhost:" + server.getAddress().getPort();
+        try {
+            Setting.S3_ENDPOINT.setValue(endpoint + "/");
+            Setting.S3_REGION.setValue(REGION);
+            Setting.S3_BUCKET.setValue(BUCKET);
+            Setting.S3_KEY_PREFIX.setValue("up/");
+            Setting.S3_ACCESS_KEY.setValue(ACCESS_KEY);
+            Setting.S3_SECRET_KEY.setValue(SECRET_KEY);
+            Setting.S3_WEB_URL.setValue("");
+            Setting.S3_PART_SIZE.setValue(5 * 1024);
+
+            byte[] text = "hello".getBytes(StandardCharsets.UTF_8);
+            String path = "/" + BUCKET + "/up/small%20file%2B1.txt";
+            checkEquals(endpoint + path, upload("small file+1.txt", "txt", text), "link");
+            check(Arrays.equals(text, OBJECTS.get(path)), "the store got the file");
+            passed("a small file in one signed PUT");
+
+            byte[] contents = new byte[23 * 1024 * 1024];
+            new Random(1).nextBytes(contents);
+            long[] elapsed = new long[2];
+            int[] parallelParts = {1, 4};
+            for (int i = 0; i < parallelParts.length; i++) {
+                Setting.S3_PARALLEL_PARTS.setValue(parallelParts[i]);
+                MAX_PARTS_IN_FLIGHT.set(0);
+                String name = "large" + parallelParts[i] + ".zip";
+                long start = System.nanoTime();
+                checkEquals(endpoint + "/" + BUCKET + "/up/" + name, upload(name, "file", contents), "link");
+                elapsed[i] = System.nanoTime() - start;
+                check(Arrays.equals(contents, OBJECTS.get("/" + BUCKET + "/up/" + name)), "the parts make up the file");
+                checkEquals(parallelParts[i], MAX_PARTS_IN_FLIGHT.get(), "parts sent at once");
+            }
+            System.out.printf("  a multipart upload of 5 parts took %d ms one part at a time, %d ms with 4 parts at a time%n",
+                    elapsed[0] / 1000000, elapsed[1] / 1000000);
+            passed("a multipart upload with parts sent in parallel");
+
+            failingPart = 2;
+            int requests = PART_REQUESTS.get();
+            checkEquals(endpoint + "/" + BUCKET + "/up/retried.zip", upload("retried.zip", "file", contents), "link");
+            check(Arrays.equals(contents, OBJECTS.get("/" + BUCKET + "/up/retried.zip")), "the parts make up the file");
+            checkEquals(requests + 6, PART_REQUESTS.get(), "requests for 5 parts, one of which failed once");
+            passed("a part that failed is sent again");
+
+            Setting.READ_TIMEOUT.setValue(1);
+            slowPart = 3;
+            requests = PART_REQUESTS.get();
+            checkEquals(endpoint + "/" + BUCKET + "/up/slow.zip", upload("slow.zip", "file", contents), "link");
+            check(Arrays.equals(contents, OBJECTS.get("/" + BUCKET + "/up/slow.zip")), "the parts make up the file");
+            checkEquals(requests + 6, PART_REQUESTS.get(), "requests for 5 parts, one of which timed out once");
+            Setting.READ_TIMEOUT.setValue(60);
+            passed("a part whose reply timed out is sent again");
+
+            Setting.S3_WEB_URL.setValue("https://cdn.example.com/");
+            checkEquals("https://cdn.example.com/up/shot.png", upload("shot.png", "img", text), "link");
+            passed("s3_weburl");
+
+            Setting.S3_SECRET_KEY.setValue("wrong");
+            ServerReplyException refusal = expect(ServerReplyException.class, () -> upload("denied.png", "img", text));
+            checkEquals("WRONG_PASSWORD", refusal.getReply(), "reply");
+            passed("a wrong secret key is a refusal");
+        } finally {
+            server.stop(0);
+        }
+        System.exit(0);
+    }
+
+    private static String upload(String name, String type, byte[] contents) throws IOException {
+        try {
+            return Uploader.await(new S3Uploader().upload(new Payload(name, type, ByteBuffer.wrap(contents)), null)).getUrl();
+        } finally {
+            if (failure != null) {
+                throw new AssertionError("The store failed a check.", failure);
+            }
+        }
+    }
+
+    /**
+     * Handles a request, and keeps the first check that failed on the server
+     * so that the test fails with it instead of a reset connection.
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = read(exchange.getRequestBody());
+            if (!isSigned(exchange)) {
+                reply(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String path = exchange.getRequestURI().getRawPath();
+            String method = exchange.getRequestMethod();
+            if (method.equals("PUT") && query.isEmpty()) {
+                OBJECTS.put(path, body);
+                reply(exchange, 200, "");
+            } else if (method.equals("POST") && query.containsKey("uploads")) {
+                /* Characters that must be encoded in the query. */
+                String uploadId = "upload/" + UPLOAD_IDS.incrementAndGet() + "+id";
+                UPLOADS.put(uploadId, new ConcurrentHashMap<>());
+                reply(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if (method.equals("PUT") && query.containsKey("partNumber")) {
+                putPart(exchange, UPLOADS.get(query.get("uploadId")), Integer.parseInt(query.get("partNumber")), body);
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                Map<Integer, byte[]> parts = UPLOADS.remove(query.get("uploadId"));
+                String xml = new String(body, StandardCharsets.UTF_8);
+                ByteArrayOutputStream object = new ByteArrayOutputStream();
+                for (int part = 1; part <= parts.size(); part++) {
+                    check(xml.contains("<Part><PartNumber>" + part + "</PartNumber><ETag>\"etag-" + part + "\"</ETag></Part>"),
+                            "part " + part + " in " + xml);
+                    object.write(parts.get(part));
+                }
+                OBJECTS.put(path, object.toByteArray());
+                reply(exchange, 200, "<CompleteMultipartUploadResult/>");
+            } else {
+                reply(exchange, 400, "<Error><Code>InvalidRequest</Code></Error>");
+            }
+        } catch (IOException | RuntimeException | Error ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Stores a part after {@code PART_DELAY}, or fails if it is
+     * {@code failingPart}, which then no longer fails. If it is
+     * {@code slowPart}, it waits longer than the read timeout of the client
+     * first, once.
+     */
+    private static void putPart(HttpExchange exchange, Map<Integer, byte[]> parts, int partNumber, byte[] body) throws IOException {
+        PART_REQUESTS.incrementAndGet();
+        int inFlight = PARTS_IN_FLIGHT.incrementAndGet();
+        MAX_PARTS_IN_FLIGHT.accumulateAndGet(inFlight, Math::max);
+        long delay = PART_DELAY;
+        if (partNumber == slowPart) {
+            slowPart = 0;
+            delay = 1500;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            PARTS_IN_FLIGHT.decrementAndGet();
+        }
+        if (partNumber == failingPart) {
+            failingPart = 0;
+            reply(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+            return;
+        }
+        parts.put(partNumber, body);
+        exchange.getResponseHeaders().add("ETag", "\"etag-" + partNumber + "\"");
+        reply(exchange, 200, "");
+    }
+
+    /**
+     * Checks the Authorization header of a request against the signature the
+     * store computes itself with the secret key.
+     */
+    private static boolean isSigned(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        String amzDate = headers.getFirst("x-amz-date");
+        String authorization = headers.getFirst("Authorization");
+        if (amzDate == null || authorization == null) {
+            return false;
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        String canonicalRequest = exchange.getRequestMethod() + "\n"
+                + exchange.getRequestURI().getRawPath() + "\n"
+                + (query == null ? "" : query) + "\n"
+                + "host:" + headers.getFirst("Host") + "\n"
+                + "x-amz-content-sha256:" + headers.getFirst("x-amz-content-sha256") + "\n"
+                + "x-amz-date:" + amzDate + "\n\n"
+                + "host;x-amz-content-sha256;x-amz-date\n"
+                + headers.getFirst("x-amz-content-sha256");
+        String scope = amzDate.substring(0, 8) + "/" + REGION + "/s3/aws4_request";
+        try {
+            String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                    + hex(MessageDigest.getInstance("SHA-256").digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+            byte[] key = ("AWS4" + SECRET_KEY).getBytes(StandardCharsets.UTF_8);
+            for (String part : new String[]{amzDate.substring(0, 8), REGION, "s3", "aws4_request"}) {
+                key = hmac(key, part);
+            }
+            return authorization.equals("AWS4-HMAC-SHA256 Credential=" + ACCESS_KEY + "/" + scope
+                    + ", SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=" + hex(hmac(key, stringToSign)));
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null && !query.isEmpty()) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                String value = (equals < 0) ? "" : parameter.substring(equals + 1);
+                parameters.put(equals < 0 ? parameter : parameter.substring(0, equals), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,104 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.utils.GifSequenceWriter;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests how the frames of a recording are written to a GIF: every frame is
+ * cropped to the tiles that changed and placed where they are, frames that
+ * didn't change are left out, and every frame is shown until the next one.
+ */
+public class ScreenRecorderTest {
+
+    public static void main(String[] args) throws Exception {
+        File target = TestSupport.createFile(".gif", new byte[0]);
+        try (GifSequenceWriter gif = new GifSequenceWriter(target)) {
+            ScreenRecorder.Frames frames = new ScreenRecorder.Frames(gif, 100);
+            BufferedImage frame = new BufferedImage(96, 64, BufferedImage.TYPE_INT_RGB);
+            frames.add(copy(frame), 1000);
+            frames.add(copy(frame), 1100);
+            frame.setRGB(40, 10, Color.RED.getRGB());
+            frames.add(copy(frame), 1250);
+            Graphics2D g = frame.createGraphics();
+            g.setColor(Color.BLUE);
+            g.fillRect(10, 40, 60, 10);
+            g.dispose();
+            frames.add(copy(frame), 1253);
+            frames.add(copy(frame), 1300);
+            frames.finish(1320);
+        }
+
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (ImageInputStream input = ImageIO.createImageInputStream(target)) {
+            reader.setInput(input);
+            checkEquals(3, reader.getNumImages(true), "frames");
+            checkFrame(reader, 0, 0, 0, 96, 64, 25);
+            passed("the first frame is entire and shown until the next change");
+
+            checkFrame(reader, 1, 32, 0, 32, 32, 1);
+            BufferedImage changed = reader.read(1);
+            checkEquals(Color.RED.getRGB(), changed.getRGB(8, 10), "the changed pixel");
+            passed("a frame is cropped to the tile that changed, and shown at least 10 ms");
+
+            checkFrame(reader, 2, 0, 32, 96, 32, 10);
+            checkEquals(Color.BLUE.getRGB(), reader.read(2).getRGB(10, 8), "a pixel of the changed area");
+            passed("a frame covers every tile that changed, and the last frame is shown for a sample");
+
+            IIOMetadataNode first = getRoot(reader, 0);
+            check(getNode(first, "ApplicationExtensions") != null, "the first frame makes the animation loop");
+            check(getNode(getRoot(reader, 1), "ApplicationExtensions") == null, "later frames don't repeat the loop");
+            passed("the animation loops");
+        } finally {
+            reader.dispose();
+        }
+        System.exit(0);
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        image.copyData(copy.getRaster());
+        return copy;
+    }
+
+    /**
+     * Checks the position, size and delay in hundredths of a second of a
+     * frame.
+     */
+    private static void checkFrame(ImageReader reader, int index, int x, int y, int width, int height, int delay) throws Exception {
+        IIOMetadataNode root = getRoot(reader, index);
+        IIOMetadataNode descriptor = getNode(root, "ImageDescriptor");
+        String frame = "frame " + index + " ";
+        checkEquals(Integer.toString(x), descriptor.getAttribute("imageLeftPosition"), frame + "x");
+        checkEquals(Integer.toString(y), descriptor.getAttribute("imageTopPosition"), frame + "y");
+        checkEquals(Integer.toString(width), descriptor.getAttribute("imageWidth"), frame + "width");
+        checkEquals(Integer.toString(height), descriptor.getAttribute("imageHeight"), frame + "height");
+        checkEquals(Integer.toString(delay), getNode(root, "GraphicControlExtension").getAttribute("delayTime"), frame + "delay");
+    }
+
+    private static IIOMetadataNode getRoot(ImageReader reader, int index) throws Exception {
+        return (IIOMetadataNode) reader.getImageMetadata(index).getAsTree("javax_imageio_gif_image_1.0");
+    }
+
+    private static IIOMetadataNode getNode(IIOMetadataNode root, String name) {
+        for (int i = 0; i < root.getLength(); i++) {
+            if (root.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) root.item(i);
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,197 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.utils.Environment;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.signature.BuiltinSignatures;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link SftpUploader} against an embedded Apache MINA SSHD server:
+ * uploads with every key exchange the client offers, trust on first use,
+ * changed host keys, host keys of another type, pinned fingerprints and
+ * wrong passwords.
+ */
+public class SftpUploaderTest {
+
+    private static final String USER = "ksu";
+    private static final String PASSWORD = "secret";
+
+    private static Path root;
+    /* Every server listens on the same port, so that they are the same host to the client. */
+    private static int port;
+    private static File knownHosts;
+    private static final AtomicInteger SESSIONS = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        File configDir = Environment.getEnvironment().getConfigurationDirectory();
+        configDir.mkdirs();
+        knownHosts = new File(configDir, "known_hosts");
+        root = Files.createTempDirectory("ksuploader-sftp");
+        byte[] contents = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(contents);
+        File file = TestSupport.createFile(".bin", contents);
+
+        KeyPair ecdsa = generate("EC", new ECGenParameterSpec("secp256r1"));
+        KeyPair otherEcdsa = generate("EC", new ECGenParameterSpec("secp256r1"));
+        KeyPair rsa = generate("RSA", null);
+
+        for (BuiltinDHFactories kex : Arrays.asList(BuiltinDHFactories.curve25519, BuiltinDHFactories.ecdhp256, BuiltinDHFactories.dhg14_256)) {
+            SshServer server = start(Collections.singletonList(ecdsa), kex);
+            try {
+                configure(server.getPort(), PASSWORD, "");
+                int sessions = SESSIONS.get();
+                String link = upload(file);
+                checkEquals("http://example.com/" + file.getName(), link, "link");
+                check(Arrays.equals(contents, Files.readAllBytes(root.resolve(file.getName()))), "the uploaded file has the same contents");
+                upload(file);
+                checkEquals(sessions + 1, SESSIONS.get(), "sessions opened for two uploads");
+                passed("upload and reuse with " + kex.getName());
+            } finally {
+                stop(server);
+            }
+        }
+        List<String> trusted = Files.readAllLines(knownHosts.toPath());
+        checkEquals(1, trusted.size(), "known host keys after the first connection");
+        check(trusted.get(0).contains("ecdsa-sha2-nistp256"), "the ECDSA key is trusted: " + trusted);
+        passed("the key shown the first time is trusted");
+
+        SshServer changed = start(Collections.singletonList(otherEcdsa), null);
+        try {
+            configure(changed.getPort(), PASSWORD, "");
+            expect(IOException.class, () -> upload(file));
+            checkEquals(trusted, Files.readAllLines(knownHosts.toPath()), "known host keys");
+            passed("a changed host key is refused");
+        } finally {
+            stop(changed);
+        }
+
+        SshServer otherType = start(Collections.singletonList(rsa), null);
+        try {
+            configure(otherType.getPort(), PASSWORD, "");
+            expect(IOException.class, () -> upload(file));
+            checkEquals(trusted, Files.readAllLines(knownHosts.toPath()), "known host keys");
+            passed("a host key of another type is refused");
+        } finally {
+            stop(otherType);
+        }
+
+        SshServer both = start(Arrays.asList(rsa, ecdsa), null);
+        try {
+            configure(both.getPort(), PASSWORD, "");
+            upload(file);
+            checkEquals(trusted, Files.readAllLines(knownHosts.toPath()), "known host keys");
+            passed("the known key type is negotiated when the server has several");
+        } finally {
+            stop(both);
+        }
+
+        SshServer pinned = start(Collections.singletonList(rsa), null);
+        try {
+            configure(pinned.getPort(), PASSWORD, getFingerprint(ecdsa));
+            expect(IOException.class, () -> upload(file));
+            configure(pinned.getPort(), PASSWORD, getFingerprint(rsa));
+            upload(file);
+            checkEquals(trusted, Files.readAllLines(knownHosts.toPath()), "known host keys");
+            passed("a pinned fingerprint overrides the known hosts");
+
+            configure(pinned.getPort(), "wrong", getFingerprint(rsa));
+            ServerReplyException refusal = expect(ServerReplyException.class, () -> upload(file));
+            checkEquals("WRONG_PASSWORD", refusal.getReply(), "reply");
+            passed("a wrong password is a refusal");
+        } finally {
+            stop(pinned);
+        }
+        System.exit(0);
+    }
+
+    private static KeyPair generate(String algorithm, ECGenParameterSpec spec) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        if (spec != null) {
+            generator.initialize(spec);
+        } else {
+            generator.initialize(2048);
+        }
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Starts a server with the given host keys, and only the given key
+     * exchange if it isn't null.
+     */
+    private static SshServer start(List<KeyPair> hostKeys, BuiltinDHFactories kex) throws IOException {
+        SshServer server = SshServer.setUpDefaultServer();
+        server.setPort(port);
+        server.setKeyPairProvider(KeyPairProvider.wrap(hostKeys));
+        server.setSignatureFactories(Arrays.asList(BuiltinSignatures.nistp256, BuiltinSignatures.rsaSHA512, BuiltinSignatures.rsaSHA256));
+        if (kex != null) {
+            server.setKeyExchangeFactories(NamedFactory.setUpTransformedFactories(false, Collections.singletonList(kex), ServerBuilder.DH2KEX));
+        }
+        server.setPasswordAuthenticator((user, password, session) -> USER.equals(user) && PASSWORD.equals(password));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        server.addSessionListener(new SessionListener() {
+            @Override
+            public void sessionCreated(Session session) {
+                SESSIONS.incrementAndGet();
+            }
+        });
+        server.start();
+        port = server.getPort();
+        return server;
+    }
+
+    private static void stop(SshServer server) throws IOException {
+        server.stop(true);
+    }
+
+    private static void configure(int port, String password, String hostKey) {
+        Setting.SFTP_ADDRESS.setValue("localhost");
+        Setting.SFTP_PORT.setValue(port);
+        Setting.SFTP_USER.setValue(USER);
+        Setting.SFTP_PASSWORD.setValue(password);
+        Setting.SFTP_HOST_KEY.setValue(hostKey);
+        Setting.SFTP_DIRECTORY.setValue("");
+        Setting.SFTP_WEB_URL.setValue("http://example.com/");
+    }
+
+    private static String upload(File file) throws IOException {
+        return Uploader.await(new SftpUploader().upload(Payload.read(file, "file"), null)).getUrl();
+    }
+
+    /**
+     * Gets the fingerprint of a host key as {@code ssh-keygen -l} shows it.
+     */
+    private static String getFingerprint(KeyPair key) {
+        return KeyUtils.getFingerPrint(key.getPublic());
+    }
+
+}
@@ -0,0 +1,110 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link SocketUploader} against a {@link FrameServer} that speaks
+ * version 2 of the protocol and one that only speaks the original protocol:
+ * uploads of payloads, reserved links, the size the server accepts, batches,
+ * and servers that can't be reached.
+ */
+public class SocketUploaderTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        byte[] contents = new byte[200000];
+        new Random(1).nextBytes(contents);
+        File first = TestSupport.createFile(".bin", contents);
+        File second = TestSupport.createFile(".bin", Arrays.copyOf(contents, 1000));
+        SocketUploader uploader = new SocketUploader();
+
+        try (FrameServer server = new FrameServer(FrameConnection.HELLO + ";reserve;quota")) {
+            configure(server);
+            checkEquals(FrameServer.WEB_URL + "a.bin", upload(uploader, "a.bin", contents), "link");
+            check(Arrays.equals(contents, server.getFile("a.bin")), "the server got the file");
+            checkEquals("secret", server.getPassword(), "password");
+            passed("an upload over version 2");
+
+            AtomicReference<String> reserved = new AtomicReference<>();
+            CompletableFuture<Link> upload = uploader.upload(new Payload("b.bin", "file", ByteBuffer.wrap(contents)), null, reserved::set);
+            String link = Uploader.await(upload).getUrl();
+            checkEquals(link, reserved.get(), "reserved link");
+            passed("a reserved link");
+
+            checkEquals(-1L, uploader.getMaxLength("file"), "size accepted without a limit");
+            server.setMaxLength(100000);
+            checkEquals(100000L, uploader.getMaxLength("file"), "size accepted");
+            ServerReplyException refusal = expect(ServerReplyException.class, () -> upload(uploader, "c.bin", contents));
+            checkEquals("FILE_TOO_LARGE", refusal.getReply(), "reply");
+            server.setMaxLength(-1);
+            passed("the size the server accepts");
+
+            int connections = server.getConnections();
+            List<String> links = new CopyOnWriteArrayList<>();
+            check(uploader.sendBatch(new File[]{first, second}, "file", links::add), "the batch was uploaded");
+            checkEquals(Arrays.asList(FrameServer.WEB_URL + first.getName(), FrameServer.WEB_URL + second.getName()), links, "links");
+            checkEquals(FrameServer.WEB_URL + second.getName(), uploader.getLink(), "last link");
+            check(Arrays.equals(contents, server.getFile(first.getName())), "the server got the first file");
+            check(server.getConnections() - connections <= 1, "the batch used one connection");
+            passed("a batch over version 2");
+        }
+
+        try (FrameServer legacy = new FrameServer("BAD_SYN_STRING")) {
+            configure(legacy);
+            checkEquals(FrameServer.WEB_URL + "legacy1", upload(uploader, "a.bin", contents), "link");
+            check(Arrays.equals(contents, legacy.getFile("legacy1")), "the server got the file");
+            checkEquals(-1L, uploader.getMaxLength("file"), "size accepted");
+            passed("an upload over the original protocol");
+
+            List<String> links = new CopyOnWriteArrayList<>();
+            check(uploader.sendBatch(new File[]{first, second}, "file", links::add), "the batch was uploaded");
+            checkEquals(Arrays.asList(FrameServer.WEB_URL + "legacy2", FrameServer.WEB_URL + "legacy3"), links, "links");
+            checkEquals(1000, legacy.getFile("legacy3").length, "length of the second file");
+            passed("a batch over the original protocol");
+
+            legacy.setMaxLength(100000);
+            ServerReplyException refusal = expect(ServerReplyException.class, () -> upload(uploader, "c.bin", contents));
+            checkEquals("FILE_TOO_LARGE", refusal.getReply(), "reply");
+            passed("a refusal in the original protocol");
+        }
+
+        int port;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            port = closed.getLocalPort();
+        }
+        Setting.KSUPLOADER_PORT.setValue(port);
+        IOException unreachable = expect(IOException.class, () -> upload(uploader, "a.bin", contents));
+        check(UploadJournal.isUnreachable(unreachable), "the server is unreachable: " + unreachable);
+        check(!uploader.sendBatch(new File[]{first}, "file", (received) -> { }), "the batch failed");
+        passed("a server that can't be reached");
+        System.exit(0);
+    }
+
+    private static void configure(FrameServer server) {
+        Setting.KSUPLOADER_SERVER_ADDRESS.setValue("localhost");
+        Setting.KSUPLOADER_PORT.setValue(server.getAddress().getPort());
+        Setting.KSUPLOADER_PASSWORD.setValue("secret");
+        Setting.KSUPLOADER_TLS_ENABLED.setValue(false);
+    }
+
+    private static String upload(SocketUploader uploader, String name, byte[] contents) throws IOException {
+        return Uploader.await(uploader.upload(new Payload(name, "file", ByteBuffer.wrap(contents)))).getUrl();
+    }
+
+}
@@ -0,0 +1,111 @@
+package it.ksuploader.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Objects;
+
+/**
+ * Checks and helpers shared by the tests. A test is a class with a main
+ * method that throws an AssertionError on the first check that fails; see
+ * {@code test/run.sh}.
+ */
+public class TestSupport {
+
+    /**
+     * Something that is expected to throw.
+     */
+    public interface Action {
+
+        void run() throws Exception;
+
+    }
+
+    private TestSupport() {
+    }
+
+    /**
+     * Fails if a condition doesn't hold.
+     *
+     * @param condition The condition.
+     * @param message What was expected.
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Fails if a value isn't the expected one.
+     *
+     * @param expected The expected value.
+     * @param actual The actual value.
+     * @param message What the value is.
+     */
+    public static void checkEquals(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    /**
+     * Fails if an action doesn't throw an exception of a type.
+     *
+     * @param <T> The type of the exception.
+     * @param type The type of the exception.
+     * @param action The action.
+     * @return the exception
+     */
+    public static <T extends Throwable> T expect(Class<T> type, Action action) {
+        try {
+            action.run();
+        } catch (Throwable ex) {
+            if (type.isInstance(ex)) {
+                return type.cast(ex);
+            }
+            throw new AssertionError("Expected " + type.getSimpleName() + ", got " + ex, ex);
+        }
+        throw new AssertionError("Expected " + type.getSimpleName() + ", but nothing was thrown.");
+    }
+
+    /**
+     * Points the home directory, and therefore the configuration directory,
+     * at a new temporary directory, so that tests don't touch the files of
+     * the user.
+     *
+     * @return the new home directory
+     * @throws IOException If the directory couldn't be created.
+     */
+    public static File useTemporaryHome() throws IOException {
+        File home = Files.createTempDirectory("ksuploader-test").toFile();
+        System.setProperty("user.home", home.getPath());
+        return home;
+    }
+
+    /**
+     * Creates a temporary file with the given contents, which is deleted
+     * when the test ends.
+     *
+     * @param name The end of the file name, for example ".png".
+     * @param contents The contents.
+     * @return the file
+     * @throws IOException If the file couldn't be written.
+     */
+    public static File createFile(String name, byte[] contents) throws IOException {
+        File file = File.createTempFile("ksuploader-test", name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    /**
+     * Prints that a test case passed.
+     *
+     * @param name The name of the case.
+     */
+    public static void passed(String name) {
+        System.out.println("  ok: " + name);
+    }
+
+}
@@ -0,0 +1,132 @@
+package it.ksuploader.client;
+
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests version 2 of the protocol over TLS against a {@link FrameServer} with
+ * a self-signed certificate: certificate checks, uploads, reuse of unused
+ * connections, renegotiation during an upload, and connections the server
+ * closed while they were unused.
+ */
+public class TlsConnectionTest {
+
+    private static final String PASSWORD = "secret";
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        SSLContext tls = createContext();
+        byte[] contents = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(contents);
+        File file = TestSupport.createFile(".bin", contents);
+        Setting.KSUPLOADER_TLS_ENABLED.setValue(true);
+
+        try (FrameServer server = new FrameServer(FrameConnection.HELLO, tls, 0)) {
+            Setting.ACCEPT_ALL_CERTIFICATES.setValue(false);
+            expect(IOException.class, () -> FrameConnection.open(server.getAddress(), PASSWORD));
+            passed("a self-signed certificate is refused");
+
+            Setting.ACCEPT_ALL_CERTIFICATES.setValue(true);
+            try (FrameConnection connection = FrameConnection.open(server.getAddress(), PASSWORD)) {
+                check(connection.isSecure(), "the connection uses TLS");
+                checkEquals(FrameServer.WEB_URL + file.getName(), connection.upload(file, "file", null), "link");
+            }
+            check(Arrays.equals(contents, server.getFile(file.getName())), "the server got the file");
+            checkEquals(PASSWORD, server.getPassword(), "password");
+            passed("an upload over TLS");
+
+            int connections = server.getConnections();
+            long fresh = 0;
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                FrameConnection connection = FrameConnection.open(server.getAddress(), PASSWORD);
+                fresh += System.nanoTime() - start;
+                connection.upload(file, "file", null);
+                connection.close();
+            }
+            checkEquals(connections + 5, server.getConnections(), "connections");
+            connections = server.getConnections();
+            FrameConnection first = FrameConnection.open(server.getAddress(), PASSWORD);
+            first.upload(file, "file", null);
+            first.release();
+            long pooled = 0;
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                FrameConnection connection = FrameConnection.open(server.getAddress(), PASSWORD);
+                pooled += System.nanoTime() - start;
+                connection.upload(file, "file", null);
+                connection.release();
+            }
+            checkEquals(connections + 1, server.getConnections(), "connections for six uploads");
+            System.out.printf("  opening a connection took %.2f ms on average, %.2f ms when it was reused%n",
+                    fresh / 5e6, pooled / 5e6);
+            passed("unused connections are reused");
+
+            server.closeConnections();
+            TimeUnit.MILLISECONDS.sleep(200);
+            connections = server.getConnections();
+            try (FrameConnection connection = FrameConnection.open(server.getAddress(), PASSWORD)) {
+                checkEquals(FrameServer.WEB_URL + file.getName(), connection.upload(file, "file", null), "link");
+            }
+            checkEquals(connections + 1, server.getConnections(), "connections");
+            passed("a connection the server closed isn't reused");
+            FrameConnection.closeIdleConnections();
+        }
+
+        try (FrameServer server = new FrameServer(FrameConnection.HELLO, tls, 10)) {
+            File second = TestSupport.createFile(".bin", contents);
+            FrameConnection connection = FrameConnection.open(server.getAddress(), PASSWORD);
+            checkEquals(FrameServer.WEB_URL + file.getName(), connection.upload(file, "file", null), "link");
+            List<CompletableFuture<String>> links = connection.uploadBatch(Arrays.asList(file, second), "file", null);
+            checkEquals(FrameServer.WEB_URL + second.getName(), links.get(1).get(30, TimeUnit.SECONDS), "link");
+            connection.close();
+            check(Arrays.equals(contents, server.getFile(second.getName())), "the server got the file");
+            passed("the server renegotiates during uploads");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Creates a context with a self-signed certificate for localhost, which
+     * keytool generates in a temporary directory.
+     */
+    private static SSLContext createContext() throws Exception {
+        File directory = Files.createTempDirectory("ksuploader-tls").toFile();
+        File keyStore = new File(directory, "server.p12");
+        Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                "-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        check(keytool.waitFor(60, TimeUnit.SECONDS) && keytool.exitValue() == 0, "keytool created the key store");
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            keys.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+}
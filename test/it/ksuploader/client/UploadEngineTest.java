@@ -0,0 +1,172 @@
+package it.ksuploader.client;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import it.ksuploader.client.Configuration.Setting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link UploadEngine} under load: hundreds of concurrent uploads of
+ * files and payloads to a {@link FrameServer} that speaks version 2 of the
+ * protocol and to one that only speaks the original protocol, refusals,
+ * cancelled uploads and servers that can't be reached. Every upload must
+ * close its connection and its file.
+ */
+public class UploadEngineTest {
+
+    private static final int UPLOADS = 300;
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        Random random = new Random(1);
+        List<byte[]> contents = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < UPLOADS; i++) {
+            byte[] data = new byte[1 + random.nextInt(300000)];
+            random.nextBytes(data);
+            contents.add(data);
+            files.add(TestSupport.createFile(".bin", data));
+        }
+
+        try (UploadEngine engine = new UploadEngine()) {
+            long openFiles = getOpenFiles();
+
+            try (FrameServer server = new FrameServer(FrameConnection.HELLO + ";reserve")) {
+                InetSocketAddress address = InetSocketAddress.createUnresolved("localhost", server.getAddress().getPort());
+                Map<String, String> reserved = new ConcurrentHashMap<>();
+                long start = System.nanoTime();
+                List<CompletableFuture<String>> links = new ArrayList<>();
+                for (int i = 0; i < UPLOADS; i++) {
+                    if (i % 2 == 0) {
+                        links.add(engine.upload(address, "secret", files.get(i), "file", null));
+                    } else {
+                        String name = "payload" + i;
+                        links.add(engine.upload(address, "secret", new Payload(name, "file", ByteBuffer.wrap(contents.get(i))), null,
+                                (link) -> reserved.put(name, link)));
+                    }
+                }
+                for (int i = 0; i < UPLOADS; i++) {
+                    String name = (i % 2 == 0) ? files.get(i).getName() : "payload" + i;
+                    checkEquals(FrameServer.WEB_URL + name, links.get(i).get(30, TimeUnit.SECONDS), "link " + i);
+                    check(Arrays.equals(contents.get(i), server.getFile(name)), "the server got upload " + i);
+                    if (i % 2 != 0) {
+                        checkEquals(FrameServer.WEB_URL + name, reserved.get(name), "reserved link " + i);
+                    }
+                }
+                checkEquals("secret", server.getPassword(), "password");
+                System.out.println(UPLOADS + " concurrent uploads over version 2 took "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                passed("concurrent uploads over version 2");
+
+                server.setMaxLength(10);
+                ExecutionException refusal = expectFailure(engine.upload(address, "secret", files.get(0), "file", null));
+                check(refusal.getCause() instanceof ServerReplyException, "the upload was refused: " + refusal.getCause());
+                checkEquals("FILE_TOO_LARGE", ((ServerReplyException) refusal.getCause()).getReply(), "reply");
+                server.setMaxLength(-1);
+                passed("a refusal over version 2");
+
+                Setting.UPLOAD_RATE_LIMIT_PER_UPLOAD.setValue(64);
+                CountDownLatch started = new CountDownLatch(1);
+                CompletableFuture<String> slow = engine.upload(address, "secret",
+                        new Payload("slow.bin", "file", ByteBuffer.allocate(1024 * 1024)), (percentage) -> started.countDown(), null);
+                check(started.await(10, TimeUnit.SECONDS), "the slow upload started");
+                check(slow.cancel(true), "the slow upload was cancelled");
+                awaitIdle(engine);
+                Setting.UPLOAD_RATE_LIMIT_PER_UPLOAD.setValue(0);
+                check(server.getFile("slow.bin") == null, "the cancelled upload didn't finish");
+                passed("a cancelled upload");
+            }
+
+            try (FrameServer legacy = new FrameServer("BAD_SYN_STRING")) {
+                InetSocketAddress address = new InetSocketAddress("localhost", legacy.getAddress().getPort());
+                List<CompletableFuture<String>> links = new ArrayList<>();
+                for (int i = 0; i < UPLOADS; i++) {
+                    links.add(engine.upload(address, "secret", files.get(i), "file", null));
+                }
+                Set<String> received = new HashSet<>();
+                for (int i = 0; i < UPLOADS; i++) {
+                    String link = links.get(i).get(30, TimeUnit.SECONDS);
+                    check(received.add(link), "link " + i + " is unique");
+                    byte[] data = legacy.getFile(link.substring(FrameServer.WEB_URL.length()));
+                    checkEquals(contents.get(i).length, data.length, "length of upload " + i);
+                }
+                checkEquals(UPLOADS, received.size(), "links");
+                check(FrameConnection.isLegacy(address), "the server is known to speak the original protocol");
+                passed("concurrent uploads over the original protocol");
+
+                legacy.setMaxLength(10);
+                ExecutionException refusal = expectFailure(engine.upload(address, "secret", files.get(0), "file", null));
+                checkEquals("FILE_TOO_LARGE", ((ServerReplyException) refusal.getCause()).getReply(), "reply");
+                passed("a refusal over the original protocol");
+            }
+
+            int port;
+            try (ServerSocket closed = new ServerSocket(0)) {
+                port = closed.getLocalPort();
+            }
+            ExecutionException unreachable = expectFailure(engine.upload(InetSocketAddress.createUnresolved("localhost", port),
+                    "secret", files.get(0), "file", null));
+            check(UploadJournal.isUnreachable((IOException) unreachable.getCause()), "the server is unreachable: " + unreachable.getCause());
+            passed("a server that can't be reached");
+
+            awaitIdle(engine);
+            long leaked = getOpenFiles() - openFiles;
+            check(leaked < 10, leaked + " files or connections were left open");
+            passed("no uploads left open");
+        }
+        System.exit(0);
+    }
+
+    private static ExecutionException expectFailure(CompletableFuture<String> upload) throws Exception {
+        try {
+            upload.get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            return ex;
+        } catch (CancellationException ex) {
+            throw new InterruptedIOException("Unexpectedly cancelled.");
+        }
+        throw new AssertionError("The upload should have failed.");
+    }
+
+    private static void awaitIdle(UploadEngine engine) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (engine.getActiveUploads() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        checkEquals(0, engine.getActiveUploads(), "active uploads");
+    }
+
+    /**
+     * Gets the number of files and sockets the process has open, or 0 where
+     * the platform can't tell.
+     */
+    private static long getOpenFiles() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return (os instanceof UnixOperatingSystemMXBean) ? ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() : 0;
+    }
+
+}
@@ -0,0 +1,149 @@
+package it.ksuploader.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the {@link UploadJournal}: pending uploads survive a restart, also
+ * when the last record was only partly written, the journal is compacted as
+ * uploads finish, retries stop while the destination is unreachable, and
+ * uploads that fail for another reason are set aside.
+ */
+public class UploadJournalTest {
+
+    public static void main(String[] args) throws Exception {
+        File home = TestSupport.useTemporaryHome();
+        StubUploader uploader = new StubUploader("journal-test");
+        DestinationRegistry.register(uploader);
+
+        File configDir = new File(home, "journal");
+        check(configDir.mkdirs(), "the configuration directory was created");
+        File journalFile = new File(configDir, "upload-journal.log");
+        UploadJournal journal = new UploadJournal(configDir);
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            File file = TestSupport.createFile(".bin", new byte[]{(byte) i});
+            files.add(file);
+            journal.add(file, "file", uploader.getName());
+        }
+        checkEquals(70, journal.getPendingCount(), "pending uploads");
+        checkEquals(70, new UploadJournal(configDir).getPendingCount(), "pending uploads after a restart");
+        checkEquals(70, countRecords(journalFile), "records");
+        passed("pending uploads survive a restart");
+
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write("ADD\t0f1e2d3c\tfi".getBytes(StandardCharsets.UTF_8));
+        }
+        checkEquals(70, new UploadJournal(configDir).getPendingCount(), "pending uploads after a torn record");
+        checkEquals(70, countRecords(journalFile), "records after compaction");
+        passed("a torn last record is ignored");
+
+        /* Adding an upload already scheduled the retry. */
+        uploader.unreachable.add(files.get(66).getName());
+        journal.resume();
+        await(() -> uploader.attempts.contains(files.get(66).getName()), "the retry reached the unreachable upload");
+        checkEquals(66, uploader.uploaded.size(), "uploads before the unreachable one");
+        checkEquals(files.get(0).getName(), uploader.uploaded.get(0), "the oldest upload went first");
+        checkEquals(4, journal.getPendingCount(), "uploads still pending");
+        check(countRecords(journalFile) < 70, "the journal was compacted: " + countRecords(journalFile) + " records");
+        checkEquals(4, new UploadJournal(configDir).getPendingCount(), "pending uploads after a restart");
+        passed("retries stop at an unreachable destination, and finished uploads are compacted away");
+
+        File otherDir = new File(home, "failing");
+        check(otherDir.mkdirs(), "the configuration directory was created");
+        /* Another destination, whose circuit breaker isn't open. */
+        StubUploader other = new StubUploader("journal-test-other");
+        DestinationRegistry.register(other);
+        UploadJournal failing = new UploadJournal(otherDir);
+        File broken = TestSupport.createFile(".bin", new byte[]{1});
+        File working = TestSupport.createFile(".bin", new byte[]{2});
+        other.broken.add(broken.getName());
+        failing.add(broken, "file", other.getName());
+        failing.add(working, "file", other.getName());
+        failing.resume();
+        await(() -> failing.getPendingCount() == 0, "the pending uploads were handled");
+        check(other.uploaded.contains(working.getName()), "the upload after the failed one was done");
+        File[] setAside = new File(otherDir, "failed").listFiles();
+        check(setAside != null && setAside.length == 1, "one upload was set aside");
+        check(new File(setAside[0], broken.getName()).isFile(), "the file of the failed upload was kept");
+        File[] stillPending = new File(otherDir, "pending").listFiles();
+        check(stillPending == null || stillPending.length == 0, "no copies are left pending");
+        check(!new File(otherDir, "upload-journal.log").exists(), "the empty journal was deleted");
+        passed("uploads that fail for another reason are set aside");
+        System.exit(0);
+    }
+
+    private static int countRecords(File journalFile) throws IOException {
+        return Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8).size();
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        check(condition.getAsBoolean(), message);
+    }
+
+    /**
+     * Uploads every file, except files that it treats as unreachable or as
+     * failing for another reason.
+     */
+    private static class StubUploader implements Uploader {
+
+        private final String name;
+        private final Set<String> unreachable = ConcurrentHashMap.newKeySet();
+        private final Set<String> broken = ConcurrentHashMap.newKeySet();
+        private final Set<String> attempts = ConcurrentHashMap.newKeySet();
+        private final List<String> uploaded = new CopyOnWriteArrayList<>();
+
+        private StubUploader(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Set<Capability> getCapabilities() {
+            return EnumSet.noneOf(Capability.class);
+        }
+
+        @Override
+        public CompletableFuture<Link> upload(Payload payload, IntConsumer progress) {
+            CompletableFuture<Link> link = new CompletableFuture<>();
+            attempts.add(payload.getName());
+            if (unreachable.contains(payload.getName())) {
+                link.completeExceptionally(new ConnectException("Connection refused"));
+            } else if (broken.contains(payload.getName())) {
+                link.completeExceptionally(new IOException("Couldn't encode the file."));
+            } else {
+                uploaded.add(payload.getName());
+                link.complete(new Link("http://example.com/" + payload.getName(), name));
+            }
+            return link;
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+package it.ksuploader.client.utils;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.TestSupport;
+
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the waits of the token buckets of {@link BandwidthLimiter}, and the
+ * rates of {@code UPLOAD_RATE_SCHEDULE}, also for windows that run past
+ * midnight.
+ */
+public class BandwidthLimiterTest {
+
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        BandwidthLimiter.TokenBucket bucket = new BandwidthLimiter.TokenBucket();
+        /* Long enough after the bucket was made for it to be full. */
+        long start = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        checkEquals(0L, bucket.take(250, 1000, false, start), "wait for a burst");
+        checkEquals(500 * MILLISECOND, bucket.take(500, 1000, false, start), "wait beyond the burst");
+        passed("a full bucket allows a burst of a quarter second");
+
+        checkEquals(400 * MILLISECOND, bucket.take(100, 1000, false, start + 200 * MILLISECOND), "wait behind the debt");
+        checkEquals(100 * MILLISECOND, bucket.take(100, 1000, true, start + 200 * MILLISECOND), "wait with priority");
+        checkEquals(600 * MILLISECOND, bucket.take(100, 1000, false, start + 200 * MILLISECOND), "wait behind the priority upload");
+        passed("later uploads wait for the debt of earlier ones, unless they have priority");
+
+        long later = start + TimeUnit.SECONDS.toNanos(10);
+        checkEquals(50 * MILLISECOND, bucket.take(300, 1000, false, later), "wait after a long idle time");
+        passed("an idle bucket saves up no more than a burst");
+
+        checkEquals(0L, bucket.take(1000000, 0, false, later), "wait without a limit");
+        checkEquals(100 * MILLISECOND, bucket.take(100, 1000, false, later), "wait once limited again");
+        passed("an unlimited bucket neither waits nor keeps tokens");
+
+        Setting.UPLOAD_RATE_LIMIT.setValue(500);
+        Setting.UPLOAD_RATE_SCHEDULE.setValue("22:00-06:00=2000; 12:00-13:00=100; 13:00-14:00");
+        checkEquals(2000 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(22, 0)), "rate at the start of the night");
+        checkEquals(2000 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(23, 59)), "rate before midnight");
+        checkEquals(2000 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.MIDNIGHT), "rate at midnight");
+        checkEquals(2000 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(5, 59)), "rate after midnight");
+        checkEquals(500 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(6, 0)), "rate at the end of the night");
+        checkEquals(500 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(21, 59)), "rate before the night");
+        passed("a window that runs past midnight");
+
+        checkEquals(100 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(12, 30)), "rate at lunch");
+        checkEquals(500 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(13, 30)), "rate in an invalid window");
+        Setting.UPLOAD_RATE_SCHEDULE.setValue("");
+        checkEquals(500 * 1024L, BandwidthLimiter.getGlobalRate(LocalTime.of(23, 0)), "rate without a schedule");
+        passed("a window within a day, invalid windows and no schedule");
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,31 @@
+package it.ksuploader.client.utils;
+
+import java.util.Arrays;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests how {@link Environment} runs external programs, such as the ones that
+ * find the focused window.
+ */
+public class EnvironmentTest {
+
+    public static void main(String[] args) throws Exception {
+        checkEquals(Arrays.asList("one", "two"), Environment.runCommand("sh", "-c", "echo one; echo two"), "output");
+        passed("the output of a program");
+
+        checkEquals(null, Environment.runCommand("sh", "-c", "echo one; exit 3"), "output");
+        checkEquals(null, Environment.runCommand("ksuploader-no-such-program"), "output");
+        passed("a program that fails or doesn't exist");
+
+        long start = System.currentTimeMillis();
+        checkEquals(null, Environment.runCommand("sleep", "30"), "output");
+        long elapsed = System.currentTimeMillis() - start;
+        check(elapsed < Environment.COMMAND_TIMEOUT + 1000, "a hanging program took " + elapsed + " ms");
+        passed("a hanging program is killed");
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,76 @@
+package it.ksuploader.client.utils;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.TestSupport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.expect;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the order in which {@link HostConnector} tries the addresses of a
+ * name, and how long it keeps them: IPv4 and IPv6 addresses alternate,
+ * resolved names are cached for {@code DNS_CACHE_TTL} seconds, and cached
+ * addresses are used when a name can't be resolved again.
+ */
+public class HostConnectorTest {
+
+    public static void main(String[] args) throws Exception {
+        TestSupport.useTemporaryHome();
+        InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        InetAddress v4c = InetAddress.getByName("192.0.2.3");
+        InetAddress v6a = InetAddress.getByName("2001:db8::1");
+        InetAddress v6b = InetAddress.getByName("2001:db8::2");
+
+        checkEquals(Arrays.asList(v4a, v6a, v4b, v6b, v4c), HostConnector.interleave(new InetAddress[]{v4a, v4b, v4c, v6a, v6b}), "order");
+        checkEquals(Arrays.asList(v6a, v4a, v6b, v4b), HostConnector.interleave(new InetAddress[]{v6a, v6b, v4a, v4b}), "order");
+        checkEquals(Arrays.asList(v4a, v4b), HostConnector.interleave(new InetAddress[]{v4a, v4b}), "order");
+        passed("IPv4 and IPv6 addresses alternate, starting with the version of the first");
+
+        Setting.DNS_CACHE_TTL.setValue(60);
+        AtomicInteger lookups = new AtomicInteger();
+        InetAddress[][] answer = {{v4a, v6a}};
+        HostConnector.Lookup lookup = (host) -> {
+            lookups.incrementAndGet();
+            if (answer[0] == null) {
+                throw new UnknownHostException(host);
+            }
+            return answer[0];
+        };
+        long start = 1000000;
+        checkEquals(Arrays.asList(v4a, v6a), HostConnector.resolve("cache.test", start, lookup), "addresses");
+        checkEquals(Arrays.asList(v4a, v6a), HostConnector.resolve("cache.test", start + 59999, lookup), "cached addresses");
+        checkEquals(1, lookups.get(), "lookups within the time to live");
+        answer[0] = new InetAddress[]{v4b};
+        checkEquals(Arrays.asList(v4b), HostConnector.resolve("cache.test", start + 60000, lookup), "addresses after the time to live");
+        checkEquals(2, lookups.get(), "lookups after the time to live");
+        passed("resolved names are cached for the time to live");
+
+        answer[0] = new InetAddress[]{v4c, v6b};
+        HostConnector.resolve("cache.test", start + 120000, lookup);
+        HostConnector.promote("cache.test", v6b);
+        checkEquals(Arrays.asList(v6b, v4c), HostConnector.resolve("cache.test", start + 120001, lookup), "cached addresses");
+        passed("the address that worked last is tried first");
+
+        answer[0] = null;
+        checkEquals(Arrays.asList(v6b, v4c), HostConnector.resolve("cache.test", start + 180000, lookup), "addresses that can't be resolved");
+        expect(UnknownHostException.class, () -> HostConnector.resolve("unknown.test", start, lookup));
+        passed("addresses resolved before are used when the name can't be resolved again");
+
+        Setting.DNS_CACHE_TTL.setValue(0);
+        answer[0] = new InetAddress[]{v4a};
+        int before = lookups.get();
+        HostConnector.resolve("uncached.test", start, lookup);
+        HostConnector.resolve("uncached.test", start, lookup);
+        checkEquals(before + 2, lookups.get(), "lookups without a cache");
+        passed("a time to live of 0 resolves every time");
+        System.exit(0);
+    }
+
+}
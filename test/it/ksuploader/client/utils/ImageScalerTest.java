@@ -0,0 +1,37 @@
+package it.ksuploader.client.utils;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests how {@link ImageScaler} maps an area of the screen to the pixels of a
+ * capture, on regular and on scaled displays.
+ */
+public class ImageScalerTest {
+
+    public static void main(String[] args) throws Exception {
+        Dimension screen = new Dimension(1920, 1080);
+        Rectangle area = new Rectangle(100, 50, 300, 200);
+        checkEquals(area, ImageScaler.toImageBounds(area, screen, 1920, 1080), "bounds");
+        passed("an area on a regular display");
+
+        checkEquals(new Rectangle(200, 100, 600, 400), ImageScaler.toImageBounds(area, screen, 3840, 2160), "bounds");
+        checkEquals(new Rectangle(150, 75, 450, 300), ImageScaler.toImageBounds(area, screen, 2880, 1620), "bounds");
+        passed("an area on a display scaled by whole and by fractional factors");
+
+        checkEquals(new Rectangle(1, 1, 4, 4), ImageScaler.toImageBounds(new Rectangle(1, 1, 2, 2), new Dimension(10, 10), 15, 15),
+                "bounds");
+        passed("an area is grown to whole pixels");
+
+        checkEquals(new Rectangle(3500, 2000, 340, 160), ImageScaler.toImageBounds(new Rectangle(1750, 1000, 300, 200), screen, 3840, 2160),
+                "bounds");
+        checkEquals(new Rectangle(0, 0, 20, 20), ImageScaler.toImageBounds(new Rectangle(-5, -5, 15, 15), new Dimension(10, 10), 20, 20),
+                "bounds");
+        passed("an area is kept within the capture");
+        System.exit(0);
+    }
+
+}
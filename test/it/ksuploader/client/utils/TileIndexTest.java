@@ -0,0 +1,62 @@
+package it.ksuploader.client.utils;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests the area a {@link TileIndex} finds changed between images: whole
+ * tiles, the partial tiles at the edges, images of another size, and
+ * comparing an image without storing it until the changes are committed.
+ */
+public class TileIndexTest {
+
+    public static void main(String[] args) throws Exception {
+        TileIndex index = new TileIndex(32);
+        BufferedImage image = new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB);
+        checkEquals(new Rectangle(0, 0, 100, 70), index.update(image), "bounds of the first image");
+        checkEquals(null, index.update(image), "bounds of the same image");
+        passed("the first image changed entirely, the same image not at all");
+
+        image.setRGB(40, 10, 0xff0000);
+        checkEquals(new Rectangle(32, 0, 32, 32), index.update(image), "bounds");
+        checkEquals(Arrays.asList(new Rectangle(32, 0, 32, 32)), index.getChangedTiles(), "changed tiles");
+        passed("one changed pixel changes its tile");
+
+        image.setRGB(99, 69, 0x00ff00);
+        checkEquals(new Rectangle(96, 64, 4, 6), index.update(image), "bounds");
+        image.setRGB(5, 5, 0x0000ff);
+        image.setRGB(70, 40, 0x0000ff);
+        checkEquals(new Rectangle(0, 0, 96, 64), index.update(image), "bounds");
+        checkEquals(2, index.getChangedTiles().size(), "changed tiles");
+        passed("the bounds cover every changed tile and stop at the edges of the image");
+
+        checkEquals(new Rectangle(0, 0, 64, 64), index.update(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB)), "bounds");
+        passed("an image of another size changed entirely");
+
+        BufferedImage next = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        next.setRGB(1, 1, 0xffffff);
+        TileIndex.Changes changes = index.compare(next);
+        checkEquals(new Rectangle(0, 0, 32, 32), changes.getBounds(), "bounds");
+        checkEquals(new Rectangle(0, 0, 32, 32), index.compare(next).getBounds(), "bounds before committing");
+        changes.commit();
+        checkEquals(null, index.compare(next).getBounds(), "bounds after committing");
+        passed("compared images are only stored once committed");
+
+        BufferedImage later = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        later.setRGB(40, 40, 0xffffff);
+        TileIndex.Changes stale = index.compare(later);
+        index.update(next);
+        index.update(later);
+        stale.commit();
+        checkEquals(new Rectangle(0, 0, 64, 64), index.compare(later).getBounds(), "bounds after a stale commit");
+        check(index.getChangedTiles().isEmpty(), "the index was emptied");
+        passed("committing changes that are out of date empties the index");
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,55 @@
+package it.ksuploader.client.utils;
+
+import it.ksuploader.client.Configuration.Setting;
+import it.ksuploader.client.utils.UploadScheduler.Job;
+import it.ksuploader.client.utils.UploadScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.ksuploader.client.TestSupport.check;
+import static it.ksuploader.client.TestSupport.checkEquals;
+import static it.ksuploader.client.TestSupport.passed;
+
+/**
+ * Tests that jobs of the {@link UploadScheduler} can wait for tasks of the
+ * {@link TaskRunner}, as they do for transfers, replies and dialog
+ * animations, even when both priorities run more jobs at once than the pool
+ * of the TaskRunner has threads.
+ */
+public class UploadSchedulerTest {
+
+    public static void main(String[] args) throws Exception {
+        int jobsPerPriority = TaskRunner.POOL_SIZE;
+        Setting.INTERACTIVE_UPLOAD_LIMIT.setValue(jobsPerPriority);
+        Setting.BULK_UPLOAD_LIMIT.setValue(jobsPerPriority);
+        CountDownLatch allRunning = new CountDownLatch(2 * jobsPerPriority);
+        AtomicInteger tasks = new AtomicInteger();
+        List<Job> jobs = new ArrayList<>();
+        for (Priority priority : Priority.values()) {
+            for (int i = 0; i < jobsPerPriority; i++) {
+                jobs.add(UploadScheduler.submit(priority, priority + " job " + i, () -> {
+                    allRunning.countDown();
+                    try {
+                        check(allRunning.await(10, TimeUnit.SECONDS), "all jobs run at once");
+                        TaskRunner.submit(tasks::incrementAndGet).get(10, TimeUnit.SECONDS);
+                    } catch (Exception ex) {
+                        throw new AssertionError("A job couldn't wait for its task.", ex);
+                    }
+                }));
+            }
+        }
+        for (Job job : jobs) {
+            job.getCompletion().get(30, TimeUnit.SECONDS);
+        }
+        checkEquals(2 * jobsPerPriority, tasks.get(), "tasks run by the jobs");
+        System.out.println("  " + jobs.size() + " jobs waited for tasks on " + (TaskRunner.usesVirtualThreads() ? "virtual threads"
+                : "a pool of " + TaskRunner.POOL_SIZE + " threads"));
+        passed("jobs of both priorities fill the limits and wait for tasks");
+        System.exit(0);
+    }
+
+}
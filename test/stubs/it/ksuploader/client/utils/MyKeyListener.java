@@ -0,0 +1,9 @@
+package it.ksuploader.client.utils;
+
+/**
+ * Stands in for the legacy MyKeyListener class, which the sources that still
+ * use the legacy Main class import but which isn't part of this tree.
+ */
+public class MyKeyListener {
+
+}